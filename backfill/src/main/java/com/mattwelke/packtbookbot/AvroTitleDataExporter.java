@@ -0,0 +1,209 @@
+package com.mattwelke.packtbookbot;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.avro.LogicalTypes;
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaBuilder;
+import org.apache.avro.file.CodecFactory;
+import org.apache.avro.file.DataFileReader;
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+
+/**
+ * Exports title data rows to deflate compressed Avro files, one per month, to be loaded into BigQuery with load jobs
+ * instead of streaming inserts. Files are laid out like Hive partitions:
+ * <pre>
+ * export/month=2021-03/free_ebook_of_the_day.avro
+ * </pre>
+ * Rows are built with {@link BigQueryTitleDataSink#row(TitleData, LocalDate)}, so they have the same fields as
+ * streamed rows. Dates and timestamps are written with Avro logical types, which BigQuery loads as DATE and TIMESTAMP
+ * columns when the load job is told to use them.
+ * <p>
+ * A file is replaced when its month is exported again.
+ */
+final class AvroTitleDataExporter implements AutoCloseable {
+    static final String fileName = BigQueryTitleDataSink.tableName + ".avro";
+
+    static final Schema schema = schema();
+
+    private final Path dir;
+    private final Map<YearMonth, Partition> partitions = new TreeMap<>();
+
+    private static final class Partition {
+        final Path file;
+        final DataFileWriter<GenericRecord> writer;
+        final List<LocalDate> days = new ArrayList<>();
+
+        Partition(Path file, DataFileWriter<GenericRecord> writer) {
+            this.file = file;
+            this.writer = writer;
+        }
+    }
+
+    /**
+     * Creates an exporter.
+     *
+     * @param dir The directory to create the month directories in.
+     */
+    AvroTitleDataExporter(Path dir) {
+        this.dir = dir;
+    }
+
+    private static Schema schema() {
+        Schema date = LogicalTypes.date().addToSchema(Schema.create(Schema.Type.INT));
+        Schema timestamp = LogicalTypes.timestampMicros().addToSchema(Schema.create(Schema.Type.LONG));
+        Schema authorsV2 = SchemaBuilder.record("authors_v2").fields()
+                .name("names").type().array().items().stringType().noDefault()
+                .name("all_present").type().booleanType().noDefault()
+                .endRecord();
+        return SchemaBuilder.record(BigQueryTitleDataSink.tableName).namespace("com.mattwelke.packtbookbot")
+                .fields()
+                .name("day").type(date).noDefault()
+                .name("title").type().stringType().noDefault()
+                .name("publication_date").type(date).noDefault()
+                .name("authors").type().array().items().stringType().noDefault()
+                .name("inserted_at").type(timestamp).noDefault()
+                .name("authors_v2").type(authorsV2).noDefault()
+                .endRecord();
+    }
+
+    /**
+     * Writes a title's row to the file of its day's month.
+     *
+     * @param day  The day the title was the free eBook of the day.
+     * @param data The title data.
+     * @throws IOException when the row can't be written.
+     */
+    void write(LocalDate day, TitleData data) throws IOException {
+        write(BigQueryTitleDataSink.row(data, day));
+    }
+
+    /**
+     * Writes a row to the file of its day's month.
+     *
+     * @param row A row built by {@link BigQueryTitleDataSink#row(TitleData, LocalDate)}.
+     * @throws IOException when the row can't be written.
+     */
+    void write(Map<String, Object> row) throws IOException {
+        LocalDate day = LocalDate.parse((String) row.get("day"));
+        Partition partition = partitions.get(YearMonth.from(day));
+        if (partition == null) {
+            Path file = dir.resolve("month=" + YearMonth.from(day)).resolve(fileName);
+            Files.createDirectories(file.getParent());
+            DataFileWriter<GenericRecord> writer = new DataFileWriter<>(new GenericDatumWriter<GenericRecord>(schema));
+            writer.setCodec(CodecFactory.deflateCodec(6));
+            writer.create(schema, file.toFile());
+            partition = new Partition(file, writer);
+            partitions.put(YearMonth.from(day), partition);
+        }
+        partition.writer.append(record(row));
+        partition.days.add(day);
+    }
+
+    /**
+     * Returns the files written so far, which are only complete once the exporter is closed.
+     *
+     * @return The days whose rows are in each file, by file, oldest month first.
+     */
+    Map<Path, List<LocalDate>> files() {
+        Map<Path, List<LocalDate>> files = new LinkedHashMap<>();
+        for (Partition partition : partitions.values()) {
+            files.put(partition.file, List.copyOf(partition.days));
+        }
+        return files;
+    }
+
+    /**
+     * Finishes the files.
+     *
+     * @throws IOException when a file can't be finished.
+     */
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        for (Partition partition : partitions.values()) {
+            try {
+                partition.writer.close();
+            } catch (IOException ex) {
+                failure = ex;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Reads the rows back from an exported file, in the form they were written in, so that an export can be checked
+     * without BigQuery.
+     *
+     * @param file The file.
+     * @return The rows.
+     * @throws IOException when the file can't be read.
+     */
+    static List<Map<String, Object>> read(Path file) throws IOException {
+        List<Map<String, Object>> rows = new ArrayList<>();
+        try (DataFileReader<GenericRecord> reader = new DataFileReader<>(file.toFile(),
+                new GenericDatumReader<>(schema))) {
+            for (GenericRecord record : reader) {
+                rows.add(row(record));
+            }
+        }
+        return rows;
+    }
+
+    private static GenericRecord record(Map<String, Object> row) {
+        @SuppressWarnings("unchecked")
+        Map<String, Object> authorsV2 = (Map<String, Object>) row.get("authors_v2");
+        GenericRecord authorsV2Record = new GenericData.Record(schema.getField("authors_v2").schema());
+        authorsV2Record.put("names", authorsV2.get("names"));
+        authorsV2Record.put("all_present", authorsV2.get("all_present"));
+
+        GenericRecord record = new GenericData.Record(schema);
+        record.put("day", (int) LocalDate.parse((String) row.get("day")).toEpochDay());
+        record.put("title", row.get("title"));
+        record.put("publication_date", (int) LocalDate.parse((String) row.get("publication_date")).toEpochDay());
+        record.put("authors", row.get("authors"));
+        record.put("inserted_at",
+                ChronoUnit.MICROS.between(Instant.EPOCH, Instant.parse((String) row.get("inserted_at"))));
+        record.put("authors_v2", authorsV2Record);
+        return record;
+    }
+
+    private static Map<String, Object> row(GenericRecord record) {
+        GenericRecord authorsV2 = (GenericRecord) record.get("authors_v2");
+
+        Map<String, Object> row = new LinkedHashMap<>();
+        row.put("day", LocalDate.ofEpochDay((Integer) record.get("day")).toString());
+        row.put("title", record.get("title").toString());
+        row.put("publication_date", LocalDate.ofEpochDay((Integer) record.get("publication_date")).toString());
+        row.put("authors", strings(record.get("authors")));
+        row.put("inserted_at", Instant.EPOCH.plus((Long) record.get("inserted_at"), ChronoUnit.MICROS).toString());
+        row.put("authors_v2", Map.of("names", strings(authorsV2.get("names")),
+                "all_present", authorsV2.get("all_present")));
+        return row;
+    }
+
+    /**
+     * Converts an array read by Avro, whose strings are read as Avro's own string type, to a list of strings.
+     */
+    private static List<String> strings(Object array) {
+        return ((Collection<?>) array).stream().map(Object::toString).toList();
+    }
+}
@@ -0,0 +1,78 @@
+package com.mattwelke.packtbookbot;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Records which days a backfill has finished, so that a backfill that was stopped can be resumed without inserting
+ * those days again. The checkpoint is a file with one day per line, appended to as days are finished.
+ */
+class BackfillCheckpoint implements AutoCloseable {
+    private final Set<LocalDate> completed = new HashSet<>();
+    private final BufferedWriter writer;
+
+    /**
+     * Opens a checkpoint, creating its file if it doesn't exist yet.
+     *
+     * @param file The checkpoint file.
+     * @throws IOException when the file can't be read or opened for appending.
+     */
+    BackfillCheckpoint(Path file) throws IOException {
+        String content = Files.exists(file) ? Files.readString(file, StandardCharsets.UTF_8) : "";
+        for (String line : content.lines().toList()) {
+            // A line may be incomplete if the previous backfill was killed while writing it.
+            try {
+                completed.add(LocalDate.parse(line));
+            } catch (DateTimeParseException ex) {
+                // Not a finished day, so it'll be backfilled again.
+            }
+        }
+        writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        // End an incomplete last line, so that the next day isn't appended to it.
+        if (!content.isEmpty() && !content.endsWith("\n")) {
+            writer.newLine();
+            writer.flush();
+        }
+    }
+
+    /**
+     * Returns whether a day was finished by this or a previous backfill.
+     *
+     * @param day The day.
+     * @return Whether the day is finished.
+     */
+    synchronized boolean isCompleted(LocalDate day) {
+        return completed.contains(day);
+    }
+
+    /**
+     * Records days as finished.
+     *
+     * @param days The days.
+     * @throws IOException when the checkpoint file can't be written to.
+     */
+    synchronized void markCompleted(Collection<LocalDate> days) throws IOException {
+        for (LocalDate day : days) {
+            if (completed.add(day)) {
+                writer.write(day.toString());
+                writer.newLine();
+            }
+        }
+        writer.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        writer.close();
+    }
+}
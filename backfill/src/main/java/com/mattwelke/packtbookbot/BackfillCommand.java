@@ -0,0 +1,460 @@
+package com.mattwelke.packtbookbot;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+import com.google.cloud.bigquery.BigQuery;
+import com.google.cloud.bigquery.JobId;
+import com.google.cloud.bigquery.TableId;
+
+/**
+ * Backfills the free eBook of the day table from saved copies of the free learning page and product pages, for days
+ * the live actions didn't run. Each day's pages are expected in a directory named after the day:
+ * <pre>
+ * snapshots/2021-03-04/free-learning.html
+ * snapshots/2021-03-04/product-page.html (optional)
+ * </pre>
+ * When a directory isn't named after a day, the day is taken from the last modified time of its free learning page.
+ * <p>
+ * Pages are parsed in parallel on a fork-join pool using the same fetchers as the title fetcher action. Parsed days are
+ * handed to a single writer thread. When there are only a few days to backfill, it inserts them with streaming
+ * inserts, in large batches. Otherwise, it exports them to Avro files, one per month, which are then loaded with load
+ * jobs. Finished days are recorded in a checkpoint file so that a stopped backfill can be resumed.
+ */
+public class BackfillCommand {
+    private static final String freeLearningFileName = "free-learning.html";
+    private static final String productPageFileName = "product-page.html";
+    private static final String productPageBaseUri = "https://www.packtpub.com/";
+    private static final int maxInsertAttempts = 3;
+
+    private final Logger logger = Logger.getLogger(BackfillCommand.class.getName());
+
+    private final Options options;
+
+    private final AtomicLong pagesParsed = new AtomicLong();
+    private final AtomicLong daysParsed = new AtomicLong();
+    private final AtomicLong daysSkipped = new AtomicLong();
+    private final AtomicLong parseFailures = new AtomicLong();
+    private final AtomicLong rowsInserted = new AtomicLong();
+    private final AtomicLong insertFailures = new AtomicLong();
+
+    /**
+     * Why the writer stopped inserting, when it couldn't record finished days in the checkpoint.
+     */
+    private volatile IOException checkpointFailure;
+
+    /**
+     * The backfill's settings.
+     *
+     * @param snapshotDir    The directory containing a directory of saved pages per day.
+     * @param checkpointFile The file recording finished days.
+     * @param parallelism    How many pages to parse at once.
+     * @param batchRows      How many rows to insert per request.
+     * @param mode           How to write rows, or null to choose by how many days are left to backfill.
+     * @param loadThreshold  The fewest days left to backfill to use load jobs for, when choosing by volume.
+     * @param exportDir      The directory to export rows to for load jobs.
+     * @param dryRun         Whether to only parse the pages, and export them for load jobs, without inserting or
+     *                       loading anything.
+     */
+    record Options(Path snapshotDir, Path checkpointFile, int parallelism, int batchRows,
+                   BigQueryTitleDataLoader.Mode mode, long loadThreshold, Path exportDir, boolean dryRun) {
+    }
+
+    /**
+     * The data parsed from one day's saved pages.
+     */
+    private record ParsedDay(LocalDate day, TitleData data, int attempt) {
+    }
+
+    private static final ParsedDay endOfDays = new ParsedDay(null, null, 0);
+
+    BackfillCommand(Options options) {
+        this.options = options;
+    }
+
+    /**
+     * Runs the backfill.
+     *
+     * @param client The client to insert or load rows with. Not used in a dry run.
+     * @throws Exception when the snapshot directory can't be read, the checkpoint file can't be read or written, or
+     *                   parsing is interrupted.
+     */
+    void run(BigQuery client) throws Exception {
+        try (BackfillCheckpoint checkpoint = new BackfillCheckpoint(options.checkpointFile())) {
+            run(client, checkpoint);
+        }
+    }
+
+    /**
+     * Runs the backfill with a checkpoint that's already open.
+     *
+     * @param client     The client to insert or load rows with. Not used in a dry run.
+     * @param checkpoint The checkpoint.
+     * @throws Exception when the snapshot directory can't be read, the checkpoint can't be written, or parsing is
+     *                   interrupted.
+     */
+    void run(BigQuery client, BackfillCheckpoint checkpoint) throws Exception {
+        List<Path> dayDirs;
+        try (Stream<Path> dirs = Files.list(options.snapshotDir())) {
+            dayDirs = dirs.filter(dir -> Files.isRegularFile(dir.resolve(freeLearningFileName))).sorted().toList();
+        }
+        logger.log(Level.INFO, "Found {0} day(s) of saved pages.", dayDirs.size());
+
+        long startNanos = System.nanoTime();
+        ScheduledExecutorService progress = Executors.newSingleThreadScheduledExecutor();
+        progress.scheduleAtFixedRate(() -> logProgress(dayDirs.size(), startNanos), 5, 5, TimeUnit.SECONDS);
+
+        BlockingQueue<ParsedDay> parsedDays = new ArrayBlockingQueue<>(options.batchRows() * 4);
+        ForkJoinPool parsers = new ForkJoinPool(options.parallelism());
+
+        try (BigQueryBatchingSink<ParsedDay> sink = new BigQueryBatchingSink<>(
+                     TableId.of("public_data", "free_ebook_of_the_day"),
+                     new BigQueryBatchingSink.Limits(options.batchRows(), 5_000_000, Duration.ofSeconds(10)),
+                     result -> logger.log(Level.WARNING, "Unexpected background flush of {0} row(s).",
+                             result.inserted().size() + result.failed().size()))) {
+
+            BigQueryTitleDataLoader.Mode mode = mode(dayDirs, checkpoint);
+            logger.log(Level.INFO, "Writing rows with mode {0}.", mode);
+            AvroTitleDataExporter exporter = mode == BigQueryTitleDataLoader.Mode.LOAD
+                    ? new AvroTitleDataExporter(options.exportDir())
+                    : null;
+
+            Thread writer = new Thread(() -> {
+                if (exporter != null) {
+                    export(parsedDays, exporter);
+                } else {
+                    write(client, parsedDays, sink, checkpoint);
+                }
+            }, "backfill-writer");
+            writer.start();
+
+            parsers.submit(() -> dayDirs.parallelStream().forEach(dir -> {
+                Optional<ParsedDay> parsed = parse(dir, checkpoint);
+                if (parsed.isPresent()) {
+                    try {
+                        // Blocks when the writer falls behind, so parsed days don't pile up in memory.
+                        parsedDays.put(parsed.get());
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        throw new IllegalStateException("Interrupted while queueing parsed day.", ex);
+                    }
+                }
+            })).get();
+
+            parsedDays.put(endOfDays);
+            writer.join();
+            if (checkpointFailure != null) {
+                throw new IOException("Could not record finished days in the checkpoint.", checkpointFailure);
+            }
+
+            if (exporter != null) {
+                exporter.close();
+                load(client, exporter.files(), checkpoint);
+            }
+        } finally {
+            parsers.shutdown();
+            progress.shutdown();
+            logProgress(dayDirs.size(), startNanos);
+        }
+    }
+
+    /**
+     * Returns how to write rows: the mode in the options, or else the mode for the number of days left to backfill.
+     */
+    private BigQueryTitleDataLoader.Mode mode(List<Path> dayDirs, BackfillCheckpoint checkpoint) throws IOException {
+        if (options.mode() != null) {
+            return options.mode();
+        }
+        long daysLeft = 0;
+        for (Path dayDir : dayDirs) {
+            if (!checkpoint.isCompleted(day(dayDir))) {
+                daysLeft++;
+            }
+        }
+        return BigQueryTitleDataLoader.mode(daysLeft, options.loadThreshold());
+    }
+
+    /**
+     * Parses one day's saved pages, unless the day was already finished.
+     */
+    private Optional<ParsedDay> parse(Path dayDir, BackfillCheckpoint checkpoint) {
+        try {
+            LocalDate day = day(dayDir);
+            if (checkpoint.isCompleted(day)) {
+                daysSkipped.incrementAndGet();
+                return Optional.empty();
+            }
+
+            FreeLearningPageDataFetcher freeLearningFetcher;
+            try (InputStream in = Files.newInputStream(dayDir.resolve(freeLearningFileName))) {
+                freeLearningFetcher = new FreeLearningPageDataFetcher(in);
+            }
+            pagesParsed.incrementAndGet();
+
+            String title = freeLearningFetcher.title();
+            PublicationDate pubDate = freeLearningFetcher.pubDate();
+            if (!pubDate.hasYearMonth()) {
+                // The table's publication date is a year-month, so a row can't be built without one.
+                throw new IllegalArgumentException("Publication date " + pubDate.month() + " " + pubDate.year()
+                        + " is not a valid month and year.");
+            }
+            Authors authors = freeLearningFetcher.authors();
+            Optional<String> productPageUrl = Optional.empty();
+
+            Path productPage = dayDir.resolve(productPageFileName);
+            if (Files.isRegularFile(productPage)) {
+                ProductPageDataFetcher productPageFetcher;
+                try (InputStream in = Files.newInputStream(productPage)) {
+                    productPageFetcher = new ProductPageDataFetcher(in, productPageBaseUri);
+                }
+                pagesParsed.incrementAndGet();
+
+                productPageUrl = productPageFetcher.canonicalUrl();
+                if (authors.more()) {
+                    List<String> completeAuthorNames = productPageFetcher.authors();
+                    if (!completeAuthorNames.isEmpty()) {
+                        authors = new Authors(completeAuthorNames, false);
+                    }
+                }
+            }
+
+            daysParsed.incrementAndGet();
+            return Optional.of(new ParsedDay(day, new TitleData(title, pubDate, productPageUrl, authors), 1));
+        } catch (Exception ex) {
+            parseFailures.incrementAndGet();
+            logger.log(Level.WARNING, "Could not parse saved pages in " + dayDir + ". Skipping the day.", ex);
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Inserts parsed days as they arrive until the end of the days is reached, retrying rejected rows. When the
+     * checkpoint can't be written, stops inserting, but keeps taking parsed days until the end of the days, so that
+     * the parsers aren't left blocked on a full queue, and leaves the failure for {@link #run} to throw.
+     */
+    private void write(BigQuery client, BlockingQueue<ParsedDay> parsedDays, BigQueryBatchingSink<ParsedDay> sink,
+                       BackfillCheckpoint checkpoint) {
+        Deque<ParsedDay> retries = new ArrayDeque<>();
+        boolean reachedEnd = false;
+        try {
+            while (true) {
+                ParsedDay parsed = retries.isEmpty() ? parsedDays.take() : retries.poll();
+                if (parsed == endOfDays) {
+                    reachedEnd = true;
+                    handle(sink.flush(), retries, checkpoint);
+                    if (retries.isEmpty()) {
+                        return;
+                    }
+                    // Come back to the end after the retries are done.
+                    retries.add(endOfDays);
+                    continue;
+                }
+                if (options.dryRun()) {
+                    continue;
+                }
+                Map<String, Object> row;
+                try {
+                    row = BigQueryTitleDataSink.row(parsed.data(), parsed.day());
+                } catch (RuntimeException ex) {
+                    // Skip the day instead of ending the writer, which would leave the parsers blocked on the queue.
+                    logger.log(Level.WARNING, "Could not build row for day " + parsed.day() + ". Skipping the day.",
+                            ex);
+                    insertFailures.incrementAndGet();
+                    continue;
+                }
+                // Retries keep the row's insert ID, so a row whose first insert actually went through isn't inserted
+                // twice.
+                String insertId = BigQueryTitleDataSink.insertId(parsed.day(), parsed.data().title());
+                handle(sink.add(client, parsed, insertId, row), retries, checkpoint);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (IOException ex) {
+            logger.log(Level.SEVERE, "Could not write to checkpoint. Stopping inserts.", ex);
+            checkpointFailure = ex;
+            if (!reachedEnd) {
+                drain(parsedDays);
+            }
+        }
+    }
+
+    /**
+     * Takes parsed days without writing them until the end of the days is reached.
+     */
+    private void drain(BlockingQueue<ParsedDay> parsedDays) {
+        try {
+            while (parsedDays.take() != endOfDays) {
+                insertFailures.incrementAndGet();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Exports parsed days as they arrive until the end of the days is reached. Keeps taking parsed days after an
+     * export fails, so that the parsers aren't left blocked on a full queue, but doesn't export them.
+     */
+    private void export(BlockingQueue<ParsedDay> parsedDays, AvroTitleDataExporter exporter) {
+        boolean failed = false;
+        try {
+            while (true) {
+                ParsedDay parsed = parsedDays.take();
+                if (parsed == endOfDays) {
+                    return;
+                }
+                if (failed) {
+                    insertFailures.incrementAndGet();
+                    continue;
+                }
+                try {
+                    exporter.write(parsed.day(), parsed.data());
+                } catch (IOException ex) {
+                    logger.log(Level.SEVERE, "Could not export day " + parsed.day() + ". Stopping exports.", ex);
+                    insertFailures.incrementAndGet();
+                    failed = true;
+                } catch (RuntimeException ex) {
+                    // Only this day's row is bad, so keep exporting the others.
+                    logger.log(Level.WARNING, "Could not build row for day " + parsed.day() + ". Skipping the day.",
+                            ex);
+                    insertFailures.incrementAndGet();
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Loads exported files with load jobs, one at a time, recording the days of each loaded file as finished.
+     */
+    private void load(BigQuery client, Map<Path, List<LocalDate>> files, BackfillCheckpoint checkpoint)
+            throws IOException, InterruptedException {
+        BigQueryTitleDataLoader loader = new BigQueryTitleDataLoader(client,
+                TableId.of(BigQueryTitleDataSink.datasetName, BigQueryTitleDataSink.tableName));
+        for (Map.Entry<Path, List<LocalDate>> file : files.entrySet()) {
+            if (options.dryRun()) {
+                logger.log(Level.INFO, "Exported {0} row(s) to {1}. Not loading them in a dry run.",
+                        new Object[]{file.getValue().size(), file.getKey()});
+                continue;
+            }
+            try {
+                JobId jobId = loader.load(file.getKey());
+                rowsInserted.addAndGet(file.getValue().size());
+                checkpoint.markCompleted(file.getValue());
+                logger.log(Level.INFO, "Load job {0} loaded {1} row(s) from {2}.",
+                        new Object[]{jobId.getJob(), file.getValue().size(), file.getKey()});
+            } catch (CouldNotShareDataException ex) {
+                insertFailures.addAndGet(file.getValue().size());
+                logger.log(Level.SEVERE, "Could not load " + file.getKey() + ".", ex);
+            }
+        }
+    }
+
+    private void handle(BigQueryBatchingSink.FlushResult<ParsedDay> result, Deque<ParsedDay> retries,
+                        BackfillCheckpoint checkpoint) throws IOException {
+        rowsInserted.addAndGet(result.inserted().size());
+        checkpoint.markCompleted(result.inserted().stream().map(ParsedDay::day).toList());
+
+        for (BigQueryBatchingSink.FailedEvent<ParsedDay> failed : result.failed()) {
+            ParsedDay parsed = failed.event();
+            if (parsed.attempt() < maxInsertAttempts) {
+                retries.add(new ParsedDay(parsed.day(), parsed.data(), parsed.attempt() + 1));
+            } else {
+                insertFailures.incrementAndGet();
+                logger.log(Level.SEVERE, "Giving up on inserting day {0} after {1} attempts: {2}",
+                        new Object[]{parsed.day(), parsed.attempt(), failed.errors()});
+            }
+        }
+    }
+
+    private void logProgress(int totalDays, long startNanos) {
+        double seconds = Math.max((System.nanoTime() - startNanos) / 1e9, 1e-9);
+        logger.log(Level.INFO,
+                "Parsed {0} of {1} day(s) ({2} skipped, {3} failed), {4} page(s) at {5} pages/s. Inserted {6} row(s), {7} failed.",
+                new Object[]{daysParsed.get(), totalDays, daysSkipped.get(), parseFailures.get(), pagesParsed.get(),
+                        String.format("%.0f", pagesParsed.get() / seconds), rowsInserted.get(),
+                        insertFailures.get()});
+    }
+
+    /**
+     * Derives the day a day directory's pages were saved on.
+     */
+    static LocalDate day(Path dayDir) throws IOException {
+        try {
+            return LocalDate.parse(dayDir.getFileName().toString());
+        } catch (DateTimeParseException ex) {
+            return LocalDate.ofInstant(
+                    Files.getLastModifiedTime(dayDir.resolve(freeLearningFileName)).toInstant(), ZoneOffset.UTC);
+        }
+    }
+
+    /**
+     * Runs a backfill. Reads credentials from the GCP_CREDS environment variable, like the action's local testing
+     * entrypoint.
+     * <p>
+     * Usage: {@code <snapshot dir> [--checkpoint <file>] [--parallelism <n>] [--batch-rows <n>]
+     * [--mode auto|stream|load] [--load-threshold <days>] [--export-dir <dir>] [--dry-run]}
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: <snapshot dir> [--checkpoint <file>] [--parallelism <n>] [--batch-rows <n>] "
+                    + "[--mode auto|stream|load] [--load-threshold <days>] [--export-dir <dir>] [--dry-run]");
+            System.exit(2);
+        }
+
+        Path snapshotDir = Path.of(args[0]);
+        Path checkpointFile = snapshotDir.resolve("backfill.checkpoint");
+        int parallelism = Runtime.getRuntime().availableProcessors();
+        int batchRows = 500;
+        BigQueryTitleDataLoader.Mode mode = null;
+        long loadThreshold = BigQueryTitleDataLoader.defaultLoadThreshold;
+        Path exportDir = snapshotDir.resolve("export");
+        boolean dryRun = false;
+        for (int i = 1; i < args.length; i++) {
+            switch (args[i]) {
+                case "--checkpoint" -> checkpointFile = Path.of(args[++i]);
+                case "--parallelism" -> parallelism = Integer.parseInt(args[++i]);
+                case "--batch-rows" -> batchRows = Integer.parseInt(args[++i]);
+                case "--mode" -> {
+                    String value = args[++i];
+                    mode = value.equals("auto") ? null : BigQueryTitleDataLoader.Mode.valueOf(value.toUpperCase());
+                }
+                case "--load-threshold" -> loadThreshold = Long.parseLong(args[++i]);
+                case "--export-dir" -> exportDir = Path.of(args[++i]);
+                case "--dry-run" -> dryRun = true;
+                default -> throw new IllegalArgumentException("Unknown argument: " + args[i]);
+            }
+        }
+
+        BigQuery client = null;
+        if (!dryRun) {
+            client = new BigQueryClientCache(Duration.ofHours(1), Duration.ofMinutes(5))
+                    .client(System.getenv("GCP_CREDS")).client();
+        }
+
+        new BackfillCommand(new Options(snapshotDir, checkpointFile, parallelism, batchRows, mode, loadThreshold,
+                exportDir, dryRun)).run(client);
+    }
+}
@@ -0,0 +1,178 @@
+package com.mattwelke.packtbookbot;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.LocalDate;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.cloud.bigquery.BigQuery;
+import com.google.cloud.bigquery.BigQueryException;
+import com.google.cloud.bigquery.FormatOptions;
+import com.google.cloud.bigquery.Job;
+import com.google.cloud.bigquery.JobId;
+import com.google.cloud.bigquery.JobInfo;
+import com.google.cloud.bigquery.JobStatus;
+import com.google.cloud.bigquery.TableDataWriteChannel;
+import com.google.cloud.bigquery.TableId;
+import com.google.cloud.bigquery.WriteChannelConfiguration;
+
+/**
+ * Loads files exported by {@link AvroTitleDataExporter} into BigQuery with load jobs, which are free and, for more
+ * than a few rows, faster than streaming inserts, which are billed by the byte. Load jobs are limited to 1,500 per
+ * table per day, and each one takes a few seconds however small it is, so streaming is still better for a handful of
+ * rows.
+ * <p>
+ * Each file is uploaded as a job whose ID is derived from the days and titles of its rows, the same way rows' insert
+ * IDs are. Loading the same rows again, like when a backfill is resumed after it was stopped while waiting for a job,
+ * finds the existing job instead of loading the rows twice. A job that finished with an error loaded nothing, so it's
+ * retried as a new job, with the attempt number added to the ID.
+ */
+final class BigQueryTitleDataLoader {
+    /**
+     * How rows get into BigQuery.
+     */
+    enum Mode {
+        /**
+         * Streaming inserts, in batches.
+         */
+        STREAM,
+        /**
+         * Load jobs, one per exported file.
+         */
+        LOAD
+    }
+
+    /**
+     * The fewest rows worth loading with load jobs when the mode is chosen by volume. Below this, streaming inserts
+     * finish sooner, and cost next to nothing.
+     */
+    static final int defaultLoadThreshold = 1_000;
+
+    private final Logger logger = Logger.getLogger(BigQueryTitleDataLoader.class.getName());
+
+    private final BigQuery client;
+    private final TableId table;
+
+    /**
+     * Creates a loader.
+     *
+     * @param client The client to submit jobs with.
+     * @param table  The table to load rows into.
+     */
+    BigQueryTitleDataLoader(BigQuery client, TableId table) {
+        this.client = client;
+        this.table = table;
+    }
+
+    /**
+     * Chooses how to get rows into BigQuery by how many there are.
+     *
+     * @param rows          How many rows there are.
+     * @param loadThreshold The fewest rows to use load jobs for.
+     * @return The mode.
+     */
+    static Mode mode(long rows, long loadThreshold) {
+        return rows >= loadThreshold ? Mode.LOAD : Mode.STREAM;
+    }
+
+    /**
+     * Loads an exported file, appending its rows to the table, and waits for the load job to finish.
+     *
+     * @param file The file.
+     * @return The ID of the load job.
+     * @throws CouldNotShareDataException when the file can't be read or uploaded, or the load job failed.
+     * @throws InterruptedException       when interrupted while waiting for the job.
+     */
+    JobId load(Path file) throws CouldNotShareDataException, InterruptedException {
+        JobId firstJobId;
+        try {
+            firstJobId = jobId(file);
+        } catch (IOException ex) {
+            throw new CouldNotShareDataException("Could not read " + file + ".", ex);
+        }
+
+        try {
+            JobId jobId = firstJobId;
+            Job job;
+            for (int attempt = 2; ; attempt++) {
+                job = client.getJob(jobId);
+                if (job == null || !failed(job)) {
+                    break;
+                }
+                logger.log(Level.WARNING, "Load job {0} for {1} from a previous run failed: {2}. Retrying it.",
+                        new Object[]{jobId.getJob(), file, job.getStatus().getError()});
+                jobId = JobId.of(firstJobId.getJob() + "_" + attempt);
+            }
+            if (job != null) {
+                logger.log(Level.INFO, "Found load job {0} for {1} from a previous run.",
+                        new Object[]{jobId.getJob(), file});
+            } else {
+                WriteChannelConfiguration config = WriteChannelConfiguration.newBuilder(table)
+                        .setFormatOptions(FormatOptions.avro())
+                        .setUseAvroLogicalTypes(true)
+                        .setCreateDisposition(JobInfo.CreateDisposition.CREATE_NEVER)
+                        .setWriteDisposition(JobInfo.WriteDisposition.WRITE_APPEND)
+                        .build();
+                TableDataWriteChannel writer = client.writer(jobId, config);
+                try (OutputStream out = Channels.newOutputStream(writer)) {
+                    Files.copy(file, out);
+                }
+                job = writer.getJob();
+                logger.log(Level.INFO, "Submitted load job {0} for {1}.", new Object[]{jobId.getJob(), file});
+            }
+
+            job = job.waitFor();
+            if (job == null) {
+                throw new CouldNotShareDataException("Load job " + jobId.getJob() + " for " + file + " disappeared.");
+            }
+            if (job.getStatus().getError() != null) {
+                throw new CouldNotShareDataException(String.format("Load job %s for %s failed: %s", jobId.getJob(),
+                        file, job.getStatus().getExecutionErrors()));
+            }
+            return jobId;
+        } catch (IOException | BigQueryException ex) {
+            throw new CouldNotShareDataException("Could not load " + file + ".", ex);
+        }
+    }
+
+    private static boolean failed(Job job) {
+        return job.getStatus() != null && job.getStatus().getState() == JobStatus.State.DONE
+                && job.getStatus().getError() != null;
+    }
+
+    /**
+     * Returns the ID of the first job loading an exported file: a hex SHA-256 hash of the insert IDs of the file's rows,
+     * shortened to keep job IDs readable. Unlike a hash of the file, it doesn't change when the same rows are exported
+     * again.
+     *
+     * @param file The file.
+     * @return The job ID.
+     * @throws IOException when the file can't be read.
+     */
+    static JobId jobId(Path file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-256 is always available.", ex);
+        }
+        List<String> insertIds = AvroTitleDataExporter.read(file).stream()
+                .map(row -> BigQueryTitleDataSink.insertId(LocalDate.parse((String) row.get("day")),
+                        (String) row.get("title")))
+                .sorted()
+                .toList();
+        for (String insertId : insertIds) {
+            digest.update(insertId.getBytes(StandardCharsets.UTF_8));
+        }
+        return JobId.of("backfill_" + HexFormat.of().formatHex(digest.digest(), 0, 16));
+    }
+}
@@ -0,0 +1,86 @@
+package com.mattwelke.packtbookbot;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+class AvroTitleDataExporterTest {
+    @TempDir
+    Path dir;
+
+    private static final TitleData forensics = new TitleData("Practical Mobile Forensics - Fourth Edition",
+            new PublicationDate("April", "2020"), Optional.empty(),
+            new Authors(List.of("Rohit Tamma", "Oleg Skulkin", "Heather Mahalik", "Satish Bommisetty"), false));
+
+    private static final TitleData python = new TitleData("Hands-On Software Engineering with Python",
+            new PublicationDate("October", "2018"), Optional.empty(), new Authors(List.of("Brian Allbee"), true));
+
+    /**
+     * Builds a row the way the exporter does, with a fixed insertion time, so that it can be compared to the row read
+     * back.
+     */
+    private static Map<String, Object> row(TitleData data, LocalDate day, String insertedAt) {
+        Map<String, Object> row = BigQueryTitleDataSink.row(data, day);
+        row.put("inserted_at", insertedAt);
+        return row;
+    }
+
+    private static Map<Path, List<LocalDate>> export(Path dir, List<Map<String, Object>> rows) throws IOException {
+        try (AvroTitleDataExporter exporter = new AvroTitleDataExporter(dir)) {
+            for (Map<String, Object> row : rows) {
+                exporter.write(row);
+            }
+            return exporter.files();
+        }
+    }
+
+    @Test
+    void writesOneFilePerMonthThatReadsBackAsTheRows() throws IOException {
+        List<Map<String, Object>> march = List.of(
+                row(forensics, LocalDate.of(2021, 3, 30), "2021-03-30T00:01:02.123456Z"),
+                row(python, LocalDate.of(2021, 3, 31), "2021-03-31T00:01:02Z"));
+        List<Map<String, Object>> april = List.of(
+                row(forensics, LocalDate.of(2021, 4, 1), "2021-04-01T00:01:02.500Z"));
+        List<Map<String, Object>> rows = new ArrayList<>(march);
+        rows.addAll(april);
+
+        Map<Path, List<LocalDate>> files = export(dir, rows);
+
+        Path marchFile = dir.resolve("month=2021-03").resolve(AvroTitleDataExporter.fileName);
+        Path aprilFile = dir.resolve("month=2021-04").resolve(AvroTitleDataExporter.fileName);
+        assertEquals(List.of(marchFile, aprilFile), List.copyOf(files.keySet()));
+        assertEquals(List.of(LocalDate.of(2021, 3, 30), LocalDate.of(2021, 3, 31)), files.get(marchFile));
+        assertEquals(march, AvroTitleDataExporter.read(marchFile));
+        assertEquals(april, AvroTitleDataExporter.read(aprilFile));
+    }
+
+    @Test
+    void jobIdDependsOnTheRowsDaysAndTitles() throws IOException {
+        LocalDate day = LocalDate.of(2021, 3, 30);
+        Path first = export(dir.resolve("first"), List.of(row(forensics, day, "2021-03-30T00:01:02Z")))
+                .keySet().iterator().next();
+        Path again = export(dir.resolve("again"), List.of(row(forensics, day, "2021-03-31T10:00:00Z")))
+                .keySet().iterator().next();
+        Path other = export(dir.resolve("other"), List.of(row(python, day, "2021-03-30T00:01:02Z")))
+                .keySet().iterator().next();
+
+        assertEquals(BigQueryTitleDataLoader.jobId(first), BigQueryTitleDataLoader.jobId(again));
+        assertNotEquals(BigQueryTitleDataLoader.jobId(first), BigQueryTitleDataLoader.jobId(other));
+    }
+
+    @Test
+    void choosesLoadJobsByVolume() {
+        assertEquals(BigQueryTitleDataLoader.Mode.STREAM, BigQueryTitleDataLoader.mode(999, 1_000));
+        assertEquals(BigQueryTitleDataLoader.Mode.LOAD, BigQueryTitleDataLoader.mode(1_000, 1_000));
+    }
+}
@@ -0,0 +1,228 @@
+package com.mattwelke.packtbookbot;
+
+import com.google.cloud.NoCredentials;
+import com.google.cloud.ServiceOptions;
+import com.google.cloud.bigquery.BigQuery;
+import com.google.cloud.bigquery.BigQueryOptions;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs backfills of saved pages against a local fake of the BigQuery insertAll endpoint, which rejects rows whose
+ * title starts with "Flaky" the first time it sees them, and rows whose title starts with "Bad" every time.
+ */
+class BackfillCommandTest {
+    private static final LocalDate firstDay = LocalDate.of(2021, 3, 4);
+
+    @TempDir
+    Path dir;
+
+    private HttpServer server;
+    private BigQuery client;
+    private final List<String> insertedTitles = new CopyOnWriteArrayList<>();
+    private final Map<String, Integer> attempts = new ConcurrentHashMap<>();
+
+    @BeforeEach
+    void startFakeBigQuery() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", exchange -> {
+            InputStream requestBody = exchange.getRequestBody();
+            if ("gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+                requestBody = new GZIPInputStream(requestBody);
+            }
+            JsonArray rows = JsonParser.parseString(
+                    new String(requestBody.readAllBytes(), StandardCharsets.UTF_8))
+                    .getAsJsonObject().getAsJsonArray("rows");
+
+            JsonArray insertErrors = new JsonArray();
+            for (int i = 0; i < rows.size(); i++) {
+                String title = rows.get(i).getAsJsonObject().getAsJsonObject("json").get("title").getAsString();
+                int attempt = attempts.merge(title, 1, Integer::sum);
+                if (title.startsWith("Bad") || (title.startsWith("Flaky") && attempt == 1)) {
+                    JsonObject error = new JsonObject();
+                    error.addProperty("reason", "backendError");
+                    error.addProperty("message", "rejected " + title);
+                    JsonArray errors = new JsonArray();
+                    errors.add(error);
+                    JsonObject insertError = new JsonObject();
+                    insertError.addProperty("index", i);
+                    insertError.add("errors", errors);
+                    insertErrors.add(insertError);
+                } else {
+                    insertedTitles.add(title);
+                }
+            }
+            JsonObject response = new JsonObject();
+            response.addProperty("kind", "bigquery#tableDataInsertAllResponse");
+            if (!insertErrors.isEmpty()) {
+                response.add("insertErrors", insertErrors);
+            }
+
+            byte[] body = response.toString().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+
+        client = BigQueryOptions.newBuilder()
+                .setProjectId("test-project")
+                .setHost("http://localhost:" + server.getAddress().getPort())
+                .setCredentials(NoCredentials.getInstance())
+                .setRetrySettings(ServiceOptions.getNoRetrySettings())
+                .build().getService();
+    }
+
+    @AfterEach
+    void stopFakeBigQuery() {
+        server.stop(0);
+    }
+
+    private Path snapshots() throws IOException {
+        return Files.createDirectories(dir.resolve("snapshots"));
+    }
+
+    private Path savePage(String dayDirName, String title) throws IOException {
+        return savePage(dayDirName, title, "April 2020");
+    }
+
+    private Path savePage(String dayDirName, String title, String pubDate) throws IOException {
+        Path dayDir = Files.createDirectories(snapshots().resolve(dayDirName));
+        Files.writeString(dayDir.resolve("free-learning.html"), """
+                <html><body>
+                <h3 class="product-info__title">Free eBook - %s</h3>
+                <div class="free_learning__product_pages_date">Publication date: %s</div>
+                <span class="product-info__author">By Stephen Samuel</span>
+                </body></html>
+                """.formatted(title, pubDate));
+        return dayDir;
+    }
+
+    private BackfillCommand command(int batchRows) throws IOException {
+        return new BackfillCommand(new BackfillCommand.Options(snapshots(), dir.resolve("backfill.checkpoint"), 2,
+                batchRows, BigQueryTitleDataLoader.Mode.STREAM, BigQueryTitleDataLoader.defaultLoadThreshold,
+                dir.resolve("export"), false));
+    }
+
+    private List<String> checkpointedDays() throws IOException {
+        return Files.readAllLines(dir.resolve("backfill.checkpoint")).stream().sorted().toList();
+    }
+
+    @Test
+    void derivesDayFromDirectoryNameOrPageModifiedTime() throws IOException {
+        assertEquals(firstDay, BackfillCommand.day(savePage("2021-03-04", "Learning Kotlin")));
+
+        Path unnamed = savePage("saved-later", "Learning Rust");
+        Files.setLastModifiedTime(unnamed.resolve("free-learning.html"),
+                FileTime.from(Instant.parse("2021-03-05T23:30:00Z")));
+        assertEquals(firstDay.plusDays(1), BackfillCommand.day(unnamed));
+    }
+
+    @Test
+    void skipsDaysFinishedByAnEarlierBackfill() throws Exception {
+        savePage("2021-03-04", "Learning Kotlin");
+        savePage("2021-03-05", "Learning Rust");
+        savePage("2021-03-06", "Learning Go");
+        Files.writeString(dir.resolve("backfill.checkpoint"), "2021-03-05\n");
+
+        command(10).run(client);
+
+        assertEquals(List.of("Learning Go", "Learning Kotlin"), insertedTitles.stream().sorted().toList());
+        assertEquals(List.of("2021-03-04", "2021-03-05", "2021-03-06"), checkpointedDays());
+    }
+
+    @Test
+    void retriesRejectedRowsAndGivesUpAfterThreeAttempts() throws Exception {
+        savePage("2021-03-04", "Learning Kotlin");
+        savePage("2021-03-05", "Flaky Title");
+        savePage("2021-03-06", "Bad Title");
+
+        assertTimeoutPreemptively(Duration.ofSeconds(30), () -> command(2).run(client));
+
+        assertEquals(List.of("Flaky Title", "Learning Kotlin"), insertedTitles.stream().sorted().toList());
+        assertEquals(2, attempts.get("Flaky Title"));
+        assertEquals(3, attempts.get("Bad Title"));
+        assertEquals(List.of("2021-03-04", "2021-03-05"), checkpointedDays());
+    }
+
+    @Test
+    void resumesFromCheckpointWithGarbledLines() throws Exception {
+        savePage("2021-03-04", "Learning Kotlin");
+        savePage("2021-03-05", "Learning Rust");
+        savePage("2021-03-06", "Learning Go");
+        // A line that isn't a day, and a last line cut off by a killed backfill.
+        Files.writeString(dir.resolve("backfill.checkpoint"), "2021-03-05\nnot-a-day!\n2021-0");
+
+        command(10).run(client);
+
+        assertEquals(List.of("Learning Go", "Learning Kotlin"), insertedTitles.stream().sorted().toList());
+        assertTrue(Files.readAllLines(dir.resolve("backfill.checkpoint")).containsAll(
+                List.of("2021-03-04", "2021-03-05", "2021-03-06")));
+    }
+
+    @Test
+    void skipsDaysWhosePublicationDateHasNoYearMonth() throws Exception {
+        savePage("2021-03-04", "Learning Kotlin");
+        // More days than the queue between the parsers and the writer holds.
+        for (int i = 1; i <= 10; i++) {
+            savePage(firstDay.plusDays(i).toString(), "Abbreviated " + i, "Sept 2020");
+        }
+        savePage("2021-03-20", "Learning Go");
+
+        assertTimeoutPreemptively(Duration.ofSeconds(30), () -> command(1).run(client));
+
+        assertEquals(List.of("Learning Go", "Learning Kotlin"), insertedTitles.stream().sorted().toList());
+        assertEquals(List.of("2021-03-04", "2021-03-20"), checkpointedDays());
+    }
+
+    @Test
+    void failsInsteadOfHangingWhenCheckpointCannotBeWritten() throws Exception {
+        // More days than the queue between the parsers and the writer holds.
+        for (int i = 0; i < 20; i++) {
+            savePage(firstDay.plusDays(i).toString(), "Title " + i);
+        }
+        BackfillCheckpoint checkpoint = new BackfillCheckpoint(dir.resolve("backfill.checkpoint")) {
+            @Override
+            synchronized void markCompleted(Collection<LocalDate> days) throws IOException {
+                throw new IOException("No space left on device");
+            }
+        };
+
+        try (checkpoint) {
+            IOException ex = assertTimeoutPreemptively(Duration.ofSeconds(30),
+                    () -> assertThrows(IOException.class, () -> command(1).run(client, checkpoint)));
+            assertEquals("No space left on device", ex.getCause().getMessage());
+        }
+    }
+}
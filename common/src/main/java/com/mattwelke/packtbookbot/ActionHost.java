@@ -0,0 +1,272 @@
+package com.mattwelke.packtbookbot;
+
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.mattwelke.owr.java.Action;
+
+/**
+ * Runs many actions, and many activations of each at once, in one JVM, so that a container can be given a
+ * per-container concurrency above one and fewer containers, and cold starts, are needed.
+ * <p>
+ * Each action is created once, when it's registered, and that warm instance runs all its activations, along with the
+ * JVM's shared clients, caches and connection pools, like {@link HttpTransport#shared()}. Actions run by a host must be
+ * safe to invoke concurrently, like the load test already invokes them. The cluster context isn't set on the shared
+ * instance, which would be overwritten by the next activation, but bound to the activation's threads as an
+ * {@link ActivationContext}.
+ * <p>
+ * Each action has a concurrency limit, so that one busy action can't take all of the container's memory or outbound
+ * connections. Activations over the limit wait in the action's queue, without holding a thread, and are started as
+ * running ones finish. Activations that don't fit in the queue either are rejected with a
+ * {@link RejectedExecutionException}, so the caller can shed load.
+ * <p>
+ * Every started activation runs on its own dispatcher thread, so there are at most as many threads as the sum of the
+ * actions' limits. The actions mostly wait on the network, which is what virtual threads are for, but the build
+ * targets Java 17, where they're not available, so the threads are pooled platform threads.
+ */
+public final class ActionHost implements AutoCloseable {
+    private static final Logger logger = Logger.getLogger(ActionHost.class.getName());
+
+    private final Map<String, Registration> actions = new ConcurrentHashMap<>();
+    private final AtomicInteger threadCount = new AtomicInteger();
+    private final ExecutorService dispatcher = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "action-host-" + threadCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Activations started or queued, and not finished yet. Guarded by this.
+     */
+    private int outstanding;
+    private volatile boolean closed;
+
+    /**
+     * An action's counters.
+     *
+     * @param running     Activations running now.
+     * @param queued      Activations waiting for one of the running ones to finish.
+     * @param peakRunning The most activations that ran at once.
+     * @param activations Activations that finished.
+     * @param failures    Activations that threw.
+     * @param rejected    Activations rejected because the queue was full.
+     */
+    public record Stats(int running, int queued, int peakRunning, long activations, long failures, long rejected) {
+        public Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("running", running);
+            map.put("queued", queued);
+            map.put("peakRunning", peakRunning);
+            map.put("activations", activations);
+            map.put("failures", failures);
+            map.put("rejected", rejected);
+            return map;
+        }
+    }
+
+    private record Activation(ActivationContext context, Map<String, Object> params,
+                              CompletableFuture<Map<String, Object>> output) {
+    }
+
+    private static final class Registration {
+        final String name;
+        final Action action;
+        final int maxConcurrency;
+        final int maxQueued;
+        final Queue<Activation> queue = new ArrayDeque<>();
+        int running;
+        int peakRunning;
+        long activations;
+        long failures;
+        long rejected;
+
+        Registration(String name, Action action, int maxConcurrency, int maxQueued) {
+            this.name = name;
+            this.action = action;
+            this.maxConcurrency = maxConcurrency;
+            this.maxQueued = maxQueued;
+        }
+    }
+
+    /**
+     * Registers an action.
+     *
+     * @param name           The name activations of the action are run with, like "title-fetcher".
+     * @param action         The action. Invoked concurrently by up to {@code maxConcurrency} threads.
+     * @param maxConcurrency How many activations of the action may run at once.
+     * @param maxQueued      How many activations of the action may wait to run.
+     * @throws IllegalArgumentException when an action is already registered with the name, or the limits aren't
+     *                                  positive.
+     */
+    public void register(String name, Action action, int maxConcurrency, int maxQueued)
+            throws IllegalArgumentException {
+        if (maxConcurrency < 1 || maxQueued < 0) {
+            throw new IllegalArgumentException("Action " + name + " needs a positive concurrency limit.");
+        }
+        if (actions.putIfAbsent(name, new Registration(name, action, maxConcurrency, maxQueued)) != null) {
+            throw new IllegalArgumentException("Duplicate action name " + name + ".");
+        }
+    }
+
+    /**
+     * Starts an activation of an action, or queues it when the action is at its concurrency limit.
+     *
+     * @param name           The name the action is registered with.
+     * @param params         The input to the action.
+     * @param clusterContext The activation's cluster context, like its namespace and activation ID.
+     * @return The action's output. Completes exceptionally with what the action threw, or with a
+     * {@link RejectedExecutionException} when the action's queue is full or the host is closed.
+     * @throws IllegalArgumentException when no action is registered with the name.
+     */
+    public CompletableFuture<Map<String, Object>> invoke(String name, Map<String, Object> params,
+                                                         Map<String, Object> clusterContext)
+            throws IllegalArgumentException {
+        Registration registration = actions.get(name);
+        if (registration == null) {
+            throw new IllegalArgumentException("No action named " + name + ".");
+        }
+        Activation activation = new Activation(new ActivationContext(name, clusterContext), params,
+                new CompletableFuture<>());
+
+        boolean start = false;
+        synchronized (registration) {
+            if (closed) {
+                activation.output().completeExceptionally(new RejectedExecutionException("Host is closed."));
+                return activation.output();
+            }
+            if (registration.running < registration.maxConcurrency) {
+                registration.running++;
+                registration.peakRunning = Math.max(registration.peakRunning, registration.running);
+                start = true;
+                accepted();
+            } else if (registration.queue.size() < registration.maxQueued) {
+                registration.queue.add(activation);
+                accepted();
+            } else {
+                registration.rejected++;
+                activation.output().completeExceptionally(new RejectedExecutionException(String.format(
+                        "Action %s has %d activations running and %d queued.", name, registration.running,
+                        registration.queue.size())));
+            }
+        }
+        if (start) {
+            dispatch(registration, activation);
+        }
+        return activation.output();
+    }
+
+    private synchronized void accepted() {
+        outstanding++;
+    }
+
+    private void dispatch(Registration registration, Activation activation) {
+        try {
+            dispatcher.execute(() -> run(registration, activation));
+        } catch (RejectedExecutionException ex) {
+            // Only when the dispatcher was shut down after waiting for activations timed out.
+            activation.output().completeExceptionally(ex);
+            finished(registration, false);
+        }
+    }
+
+    private void run(Registration registration, Activation activation) {
+        Map<String, Object> output = null;
+        Throwable failure = null;
+        try {
+            output = activation.context().bind(() -> registration.action.invoke(activation.params())).call();
+        } catch (Throwable ex) {
+            logger.log(Level.FINE, String.format("Activation %s of action %s failed.",
+                    activation.context().activationId(), registration.name), ex);
+            failure = ex;
+        }
+        // Counted before completing, so that a caller who sees the output sees it counted too.
+        finished(registration, failure == null);
+        if (failure == null) {
+            activation.output().complete(output);
+        } else {
+            activation.output().completeExceptionally(failure);
+        }
+    }
+
+    /**
+     * Counts a finished activation, and hands its slot to the next queued one, if any.
+     */
+    private void finished(Registration registration, boolean succeeded) {
+        Activation next;
+        synchronized (registration) {
+            registration.activations++;
+            if (!succeeded) {
+                registration.failures++;
+            }
+            next = registration.queue.poll();
+            if (next == null) {
+                registration.running--;
+            }
+        }
+        synchronized (this) {
+            outstanding--;
+            notifyAll();
+        }
+        if (next != null) {
+            dispatch(registration, next);
+        }
+    }
+
+    /**
+     * Returns the counters of every action.
+     *
+     * @return The counters by action name, sorted by name.
+     */
+    public Map<String, Stats> stats() {
+        Map<String, Stats> stats = new TreeMap<>();
+        for (Registration registration : actions.values()) {
+            synchronized (registration) {
+                stats.put(registration.name, new Stats(registration.running, registration.queue.size(),
+                        registration.peakRunning, registration.activations, registration.failures,
+                        registration.rejected));
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * Stops accepting activations, and waits up to a minute for the running and queued ones to finish.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (Registration registration : actions.values()) {
+            // Waits out activations being accepted, so that the wait below counts them.
+            synchronized (registration) {
+                logger.log(Level.FINE, "Closing action {0}.", registration.name);
+            }
+        }
+        long deadline = System.nanoTime() + TimeUnit.MINUTES.toNanos(1);
+        try {
+            synchronized (this) {
+                while (outstanding > 0 && deadline - System.nanoTime() > 0) {
+                    TimeUnit.NANOSECONDS.timedWait(this, deadline - System.nanoTime());
+                }
+                if (outstanding > 0) {
+                    logger.log(Level.WARNING, "{0} activation(s) did not finish in time.", outstanding);
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            dispatcher.shutdown();
+        }
+    }
+}
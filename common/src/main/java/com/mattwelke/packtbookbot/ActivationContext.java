@@ -0,0 +1,80 @@
+package com.mattwelke.packtbookbot;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+/**
+ * What OpenWhisk says about one activation of an action: its cluster context, aka "OpenWhisk variables", like the
+ * namespace, action name, activation ID and deadline.
+ * <p>
+ * The runtime's {@link com.mattwelke.owr.java.Action} keeps the cluster context in a field, set before each
+ * activation, which is only right while the action runs one activation at a time. An {@link ActionHost} runs many at
+ * once, so it binds each activation's context to the threads working on it instead, the same way
+ * {@link InvocationMetrics} are bound, and code running on behalf of an activation finds it with {@link #current()}.
+ *
+ * @param actionName     The name the action is registered with.
+ * @param clusterContext The cluster context.
+ */
+public record ActivationContext(String actionName, Map<String, Object> clusterContext) {
+    private static final ThreadLocal<ActivationContext> bound = new ThreadLocal<>();
+
+    private static final ActivationContext none = new ActivationContext("", Map.of());
+
+    public ActivationContext {
+        // Not Map.copyOf, which rejects the null values OpenWhisk may send.
+        clusterContext = Collections.unmodifiableMap(new HashMap<>(clusterContext));
+    }
+
+    /**
+     * Returns the context of the activation the current thread is working on.
+     *
+     * @return The context. When the thread isn't working on an activation run by a host, an empty context.
+     */
+    public static ActivationContext current() {
+        ActivationContext context = bound.get();
+        return context != null ? context : none;
+    }
+
+    /**
+     * Returns whether the current thread is working on an activation run by a host.
+     *
+     * @return Whether a context is bound.
+     */
+    static boolean isBound() {
+        return bound.get() != null;
+    }
+
+    /**
+     * Returns the activation's ID, from the cluster context.
+     *
+     * @return The ID, or an empty string when the cluster context doesn't have one.
+     */
+    public String activationId() {
+        return clusterContext.get("activation_id") instanceof String id ? id : "";
+    }
+
+    /**
+     * Wraps work so that {@link #current()} returns this context on whichever thread runs it.
+     *
+     * @param work The work.
+     * @param <T>  The type of the work's result.
+     * @return The wrapped work.
+     */
+    public <T> Callable<T> bind(Callable<T> work) {
+        return () -> {
+            ActivationContext previous = bound.get();
+            bound.set(this);
+            try {
+                return work.call();
+            } finally {
+                if (previous != null) {
+                    bound.set(previous);
+                } else {
+                    bound.remove();
+                }
+            }
+        };
+    }
+}
@@ -1,7 +1,7 @@
 package com.mattwelke.packtbookbot;
 
 /**
- * Used when there is an issue sharing the book data to GCP.
+ * Used when there is an issue sharing the book data with a sink, like GCP.
  */
 public class CouldNotShareDataException extends Exception {
     public CouldNotShareDataException(String errorMessage) {
@@ -0,0 +1,69 @@
+package com.mattwelke.packtbookbot;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.Map;
+
+/**
+ * Shares titles by appending them to a local file, one JSON object per line, with the params map keys of
+ * {@link TitleData#toMap()} and the day under "day". Each line is forced to the disk before the title counts as
+ * shared.
+ */
+final class FileTitleDataSink implements TitleDataSink {
+    private final Path file;
+    private FileChannel channel;
+
+    /**
+     * Creates a sink appending to a file. The file and its directory are created when the first title is shared.
+     *
+     * @param file The file.
+     */
+    FileTitleDataSink(Path file) {
+        this.file = file;
+    }
+
+    @Override
+    public String name() {
+        return "file";
+    }
+
+    @Override
+    public void share(TitleData data, LocalDate day) throws CouldNotShareDataException {
+        Map<String, Object> line = data.toMap();
+        line.put("day", day.toString());
+        ByteBuffer bytes = ByteBuffer.wrap((Json.write(line) + "\n").getBytes(StandardCharsets.UTF_8));
+        try {
+            if (channel == null) {
+                if (file.getParent() != null) {
+                    Files.createDirectories(file.getParent());
+                }
+                channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.APPEND);
+            }
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+            channel.force(false);
+        } catch (IOException ex) {
+            throw new CouldNotShareDataException("Could not append title to " + file + ".", ex);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                // Every line was already forced to the disk, so there's nothing to lose.
+            }
+            channel = null;
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.mattwelke.packtbookbot;
+
+import java.util.Arrays;
+
+/**
+ * A histogram with fixed bucket upper bounds, counted the way Prometheus histograms are, so that it can be exported
+ * without conversion. Thread safe.
+ */
+final class Histogram {
+    /**
+     * Upper bounds in seconds, from a millisecond to the longest an action may run.
+     */
+    static final double[] durationBounds = {0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10,
+            30, 60};
+
+    private final double[] bounds;
+    private final long[] counts;
+    private double sum;
+
+    /**
+     * A copy of a histogram's counts at one point in time.
+     *
+     * @param bounds The bucket upper bounds, in ascending order.
+     * @param counts The number of observations in each bucket, not cumulative. Has one more element than the bounds,
+     *               for the observations above the last bound.
+     * @param sum    The sum of all observations.
+     */
+    record Snapshot(double[] bounds, long[] counts, double sum) {
+        long count() {
+            return Arrays.stream(counts).sum();
+        }
+    }
+
+    /**
+     * Creates a histogram.
+     *
+     * @param bounds The bucket upper bounds, in ascending order.
+     */
+    Histogram(double[] bounds) {
+        this.bounds = bounds.clone();
+        this.counts = new long[bounds.length + 1];
+    }
+
+    synchronized void observe(double value) {
+        int bucket = Arrays.binarySearch(bounds, value);
+        counts[bucket >= 0 ? bucket : -bucket - 1]++;
+        sum += value;
+    }
+
+    synchronized Snapshot snapshot() {
+        return new Snapshot(bounds, counts.clone(), sum);
+    }
+}
@@ -0,0 +1,383 @@
+package com.mattwelke.packtbookbot;
+
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.security.Security;
+import java.time.Duration;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import javax.net.ssl.SSLSession;
+
+/**
+ * The HTTP client the actions fetch pages and call services with. There's one per JVM, so that its connections are
+ * kept alive across warm invocations, which hit the same few hosts every time, instead of every fetch opening a new
+ * connection with a new TLS handshake.
+ * <ul>
+ *     <li>HTTP/2 is negotiated with hosts that support it, so concurrent requests to a host, like a hedged Google
+ *     search, share one connection. Other hosts get pooled HTTP/1.1 connections.</li>
+ *     <li>Responses are requested compressed with gzip or deflate, and decompressed as they're read. Brotli isn't
+ *     offered, because the JDK can't decode it.</li>
+ *     <li>Bodies are streamed, so a caller that stops reading early, like a streaming extractor, never downloads the
+ *     rest.</li>
+ *     <li>Successful DNS lookups are cached for 5 minutes instead of the JVM's default of 30 seconds, unless the
+ *     "networkaddress.cache.ttl" security property is already set.</li>
+ * </ul>
+ * Counts requests, HTTP/2 responses, connections and bytes per host. Connections are counted by their TLS session,
+ * so they're only counted for HTTPS hosts. Each request is a span of the invocation's {@link Trace}.
+ */
+final class HttpTransport {
+    /**
+     * The user agent Jsoup sends, which the fetchers sent before they used this transport. Sent unless a request sets
+     * its own, so that pages are served the way they were.
+     */
+    static final String defaultUserAgent = "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 "
+            + "(KHTML, like Gecko) Chrome/79.0.3945.130 Safari/537.36";
+
+    private static final Pattern charsetPattern = Pattern.compile("charset=\"?([^\\s;\"]+)",
+            Pattern.CASE_INSENSITIVE);
+
+    /**
+     * How many connections to a host are remembered, to tell a new connection from a reused one.
+     */
+    private static final int maxRememberedConnections = 64;
+
+    private static volatile HttpTransport shared;
+
+    private final HttpClient client;
+    private final Map<String, Host> hosts = new ConcurrentHashMap<>();
+
+    /**
+     * A host's counters.
+     *
+     * @param requests       Responses received from the host.
+     * @param http2          Responses received over HTTP/2.
+     * @param connections    TLS connections the responses came over. Zero for plain HTTP hosts.
+     * @param reused         Responses over TLS that came over a connection an earlier response came over.
+     * @param bytesReceived  Body bytes received, before decompression.
+     * @param bytesDecoded   Body bytes read, after decompression.
+     */
+    record HostStats(long requests, long http2, long connections, long reused, long bytesReceived,
+                     long bytesDecoded) {
+        Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("requests", requests);
+            map.put("http2", http2);
+            map.put("connections", connections);
+            map.put("reused", reused);
+            map.put("bytesReceived", bytesReceived);
+            map.put("bytesDecoded", bytesDecoded);
+            return map;
+        }
+    }
+
+    /**
+     * A response whose body hasn't been read yet. Closing it before the body is read abandons the rest of the body.
+     *
+     * @param statusCode The status code.
+     * @param uri        The URL the response came from, after redirects.
+     * @param headers    The headers.
+     * @param version    The HTTP version the response came over.
+     * @param body       The body, decompressed.
+     * @param charset    The charset from the Content-Type header, or UTF-8 when it doesn't have one.
+     */
+    record Response(int statusCode, URI uri, HttpHeaders headers, HttpClient.Version version, InputStream body,
+                    Charset charset) implements Closeable {
+        /**
+         * Returns a reader over the body, decoded with the response's charset.
+         *
+         * @return The reader.
+         */
+        Reader reader() {
+            return new InputStreamReader(body, charset);
+        }
+
+        @Override
+        public void close() throws IOException {
+            body.close();
+        }
+    }
+
+    /**
+     * A host's counters, and the connections seen to it.
+     */
+    private static final class Host {
+        private final AtomicLong requests = new AtomicLong();
+        private final AtomicLong http2 = new AtomicLong();
+        private final AtomicLong connections = new AtomicLong();
+        private final AtomicLong reused = new AtomicLong();
+        private final AtomicLong bytesReceived = new AtomicLong();
+        private final AtomicLong bytesDecoded = new AtomicLong();
+
+        /**
+         * The IDs of the most recent TLS sessions, which are per connection, in least recently used order.
+         */
+        private final LinkedHashMap<String, Boolean> sessions = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > maxRememberedConnections;
+            }
+        };
+
+        void received(HttpResponse<?> response) {
+            requests.incrementAndGet();
+            if (response.version() == HttpClient.Version.HTTP_2) {
+                http2.incrementAndGet();
+            }
+            response.sslSession().map(SSLSession::getId).ifPresent(id -> {
+                boolean seen;
+                synchronized (sessions) {
+                    seen = sessions.put(HexFormat.of().formatHex(id), Boolean.TRUE) != null;
+                }
+                (seen ? reused : connections).incrementAndGet();
+            });
+        }
+
+        HostStats stats() {
+            return new HostStats(requests.get(), http2.get(), connections.get(), reused.get(), bytesReceived.get(),
+                    bytesDecoded.get());
+        }
+    }
+
+    /**
+     * Creates a transport.
+     *
+     * @param version        The HTTP version to try first. HTTP/2 falls back to HTTP/1.1 with hosts that don't
+     *                       support it.
+     * @param connectTimeout How long connecting to a host may take.
+     */
+    HttpTransport(HttpClient.Version version, Duration connectTimeout) {
+        this.client = HttpClient.newBuilder()
+                .version(version)
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .connectTimeout(connectTimeout)
+                .build();
+    }
+
+    /**
+     * Returns the transport shared by everything in the JVM, creating it on first use, with the connect timeout in
+     * milliseconds from the "packtbookbot.http.connectTimeoutMs" system property.
+     *
+     * @return The transport.
+     */
+    static HttpTransport shared() {
+        HttpTransport transport = shared;
+        if (transport == null) {
+            synchronized (HttpTransport.class) {
+                transport = shared;
+                if (transport == null) {
+                    if (Security.getProperty("networkaddress.cache.ttl") == null) {
+                        Security.setProperty("networkaddress.cache.ttl", "300");
+                    }
+                    transport = new HttpTransport(HttpClient.Version.HTTP_2,
+                            Duration.ofMillis(Long.getLong("packtbookbot.http.connectTimeoutMs", 10_000)));
+                    shared = transport;
+                }
+            }
+        }
+        return transport;
+    }
+
+    /**
+     * Starts building a GET request with the headers the transport sends by default.
+     *
+     * @param url     The URL.
+     * @param timeout How long to wait for the response's headers.
+     * @return The request builder.
+     */
+    static HttpRequest.Builder get(URI url, Duration timeout) {
+        return HttpRequest.newBuilder(url)
+                .timeout(timeout)
+                .header("User-Agent", defaultUserAgent)
+                .header("Accept", "text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8")
+                .GET();
+    }
+
+    /**
+     * Sends a request and waits for the response's headers. The body is streamed as it's read. Compression is
+     * requested unless the request asks for an encoding itself.
+     *
+     * @param request The request.
+     * @return The response, which must be closed.
+     * @throws IOException when the request fails or times out, or when interrupted, as an
+     *                     {@link InterruptedIOException}, after cancelling the request.
+     */
+    Response send(HttpRequest request) throws IOException {
+        CompletableFuture<Response> response = sendAsync(request);
+        try {
+            return response.get();
+        } catch (InterruptedException ex) {
+            response.cancel(true);
+            Thread.currentThread().interrupt();
+            InterruptedIOException interrupted = new InterruptedIOException("Interrupted requesting "
+                    + request.uri() + ".");
+            interrupted.initCause(ex);
+            throw interrupted;
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException io) {
+                throw io;
+            }
+            throw new IOException("Could not request " + request.uri() + ".", ex.getCause());
+        }
+    }
+
+    /**
+     * Sends a request without waiting. Like {@link #send(HttpRequest)}, the body is streamed as it's read.
+     *
+     * @param request The request.
+     * @return The response, once its headers arrive.
+     */
+    CompletableFuture<Response> sendAsync(HttpRequest request) {
+        HttpRequest compressed = request;
+        if (request.headers().firstValue("Accept-Encoding").isEmpty()) {
+            compressed = HttpRequest.newBuilder(request, (name, value) -> true)
+                    .header("Accept-Encoding", "gzip, deflate")
+                    .build();
+        }
+        // Captured here, because the response arrives on one of the client's threads.
+        InvocationMetrics metrics = InvocationMetrics.current();
+        // The span ends when the headers arrive, since the body is read by the caller, at its own pace.
+        Trace.Span span = metrics.trace().span("HTTP " + request.method())
+                .attribute("http.request.method", request.method())
+                .attribute("server.address", String.valueOf(request.uri().getHost()))
+                .attribute("url.path", String.valueOf(request.uri().getRawPath()));
+        return client.sendAsync(compressed, HttpResponse.BodyHandlers.ofInputStream())
+                .whenComplete((response, ex) -> {
+                    if (ex != null) {
+                        span.error(ex);
+                    } else {
+                        span.attribute("http.response.status_code", response.statusCode());
+                    }
+                    span.close();
+                })
+                .thenApply(response -> response(response, metrics));
+    }
+
+    /**
+     * Returns the underlying client, for requests whose bodies aren't pages, like posting to a webhook. Its responses
+     * aren't counted.
+     *
+     * @return The client.
+     */
+    HttpClient client() {
+        return client;
+    }
+
+    /**
+     * Returns each host's counters.
+     *
+     * @return The counters by host, sorted by host.
+     */
+    Map<String, HostStats> stats() {
+        Map<String, HostStats> stats = new TreeMap<>();
+        hosts.forEach((host, counters) -> stats.put(host, counters.stats()));
+        return stats;
+    }
+
+    /**
+     * Returns each host's counters as a params map, for action output.
+     *
+     * @return The counters by host, sorted by host.
+     */
+    Map<String, Object> statsMap() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        stats().forEach((host, stats) -> map.put(host, stats.toMap()));
+        return map;
+    }
+
+    private Response response(HttpResponse<InputStream> response, InvocationMetrics metrics) {
+        Host host = hosts.computeIfAbsent(response.uri().getHost(), key -> new Host());
+        host.received(response);
+
+        InputStream body = new CountingInputStream(response.body(), host.bytesReceived, metrics);
+        String encoding = response.headers().firstValue("Content-Encoding").orElse("identity")
+                .trim().toLowerCase(Locale.ROOT);
+        try {
+            body = switch (encoding) {
+                case "gzip", "x-gzip" -> new GZIPInputStream(body, 8192);
+                case "deflate" -> new InflaterInputStream(body);
+                default -> body;
+            };
+        } catch (IOException ex) {
+            // A gzip body that doesn't start with a gzip header. Reading it fails the same way.
+            body = InputStream.nullInputStream();
+        }
+        body = new CountingInputStream(body, host.bytesDecoded, null);
+        return new Response(response.statusCode(), response.uri(), response.headers(), response.version(), body,
+                charset(response.headers()));
+    }
+
+    private static Charset charset(HttpHeaders headers) {
+        Matcher matcher = charsetPattern.matcher(headers.firstValue("Content-Type").orElse(""));
+        if (matcher.find()) {
+            try {
+                return Charset.forName(matcher.group(1));
+            } catch (IllegalArgumentException ex) {
+                // Fall back to UTF-8, like Jsoup does.
+            }
+        }
+        return StandardCharsets.UTF_8;
+    }
+
+    /**
+     * Counts the bytes read through it, and adds them to an invocation's bytes downloaded.
+     */
+    private static final class CountingInputStream extends FilterInputStream {
+        private final AtomicLong counter;
+        private final InvocationMetrics metrics;
+
+        CountingInputStream(InputStream in, AtomicLong counter, InvocationMetrics metrics) {
+            super(in);
+            this.counter = counter;
+            this.metrics = metrics;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                counted(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                counted(n);
+            }
+            return n;
+        }
+
+        private void counted(int n) {
+            counter.addAndGet(n);
+            if (metrics != null) {
+                metrics.addBytesDownloaded(n);
+            }
+        }
+    }
+}
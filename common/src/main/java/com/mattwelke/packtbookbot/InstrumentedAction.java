@@ -0,0 +1,116 @@
+package com.mattwelke.packtbookbot;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.mattwelke.owr.java.Action;
+
+/**
+ * An action whose invocations are measured. Each invocation gets its own {@link InvocationMetrics}, which code running
+ * on behalf of the invocation records phases to. The metrics are added to the invocation's output as "metrics", and
+ * aggregated in a {@link MetricsRegistry} that is exported after every invocation.
+ * <p>
+ * Each invocation is also a span of a {@link Trace}, continuing the trace of the action that emitted its params when
+ * they have a trace context, and its spans are exported with a {@link TraceExporter} after every invocation. The time
+ * between the previous action emitting the params and this invocation starting is recorded as the "traceQueueDelay"
+ * phase.
+ */
+public abstract class InstrumentedAction extends Action {
+    private static final String queueDelayPhase = "traceQueueDelay";
+
+    private final MetricsRegistry registry;
+    private final TraceExporter traces;
+
+    /**
+     * Creates an action that records to the shared registry.
+     */
+    protected InstrumentedAction() {
+        this(MetricsRegistry.shared());
+    }
+
+    /**
+     * Creates an action that records to a registry.
+     *
+     * @param registry The registry.
+     */
+    InstrumentedAction(MetricsRegistry registry) {
+        this(registry, TraceExporter.shared());
+    }
+
+    /**
+     * Creates an action that records to a registry and exports its spans with an exporter.
+     *
+     * @param registry The registry.
+     * @param traces   The exporter.
+     */
+    InstrumentedAction(MetricsRegistry registry, TraceExporter traces) {
+        this.registry = registry;
+        this.traces = traces;
+    }
+
+    /**
+     * Runs the action with metrics recording, then adds the metrics to its output.
+     *
+     * @param params The input to the action during its invocation.
+     * @return The action's output, with "metrics" added.
+     */
+    @Override
+    public final Map<String, Object> invoke(Map<String, Object> params) {
+        InvocationMetrics metrics = new InvocationMetrics();
+        TitleDataCodec.trace(params).ifPresent(context -> {
+            metrics.continueTrace(context);
+            long queueDelayMillis = Math.max(System.currentTimeMillis() - context.emittedAtMillis(), 0);
+            metrics.record(queueDelayPhase, TimeUnit.MILLISECONDS.toNanos(queueDelayMillis));
+        });
+        boolean succeeded = false;
+        try {
+            Map<String, Object> output = new HashMap<>(metrics.bind(() -> run(params)).call());
+            succeeded = true;
+            metrics.finish();
+            output.put("metrics", metrics.toMap());
+            return output;
+        } catch (RuntimeException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            // Only possible if run sneaks a checked exception past the compiler.
+            throw new RuntimeException(ex);
+        } finally {
+            metrics.finish();
+            registry.record(getClass().getSimpleName(), metrics, succeeded);
+            registry.export();
+            traces.export(getClass().getSimpleName(), metrics.trace().finish(getClass().getSimpleName(),
+                    spanAttributes(), !succeeded));
+        }
+    }
+
+    private Map<String, Object> spanAttributes() {
+        Map<String, Object> attributes = new HashMap<>();
+        attributes.put("faas.name", getClass().getSimpleName());
+        if (clusterContext().get("activation_id") instanceof String activationId) {
+            attributes.put("faas.invocation_id", activationId);
+        }
+        return attributes;
+    }
+
+    /**
+     * Returns the cluster context of the activation being run. Use this instead of the {@code clusterContext} field,
+     * which an {@link ActionHost} running many activations at once doesn't set.
+     *
+     * @return The cluster context bound by the host, or else the one set by the runtime. Empty when neither is set.
+     */
+    protected Map<String, Object> clusterContext() {
+        if (ActivationContext.isBound()) {
+            return ActivationContext.current().clusterContext();
+        }
+        return clusterContext != null ? clusterContext : Map.of();
+    }
+
+    /**
+     * Implementation of the action. Runs with {@link InvocationMetrics#current()} returning the invocation's metrics.
+     *
+     * @param params The input to the action during its invocation.
+     * @return The output of the action invocation.
+     */
+    protected abstract Map<String, Object> run(Map<String, Object> params);
+}
@@ -0,0 +1,256 @@
+package com.mattwelke.packtbookbot;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Records where one action invocation's time and memory go: the wall time of each phase, the bytes downloaded and the
+ * bytes allocated by the threads working on the invocation. Also counts events worth watching, like hedged requests.
+ * <p>
+ * Code deep in an invocation finds the metrics to record to with {@link #current()}, so they don't have to be passed
+ * down through every call. Work handed to another thread is wrapped with {@link #bind(Callable)} so that it records to
+ * the same metrics, and so that its allocations are counted too.
+ */
+public final class InvocationMetrics {
+    private static final ThreadLocal<InvocationMetrics> bound = new ThreadLocal<>();
+
+    /**
+     * Null when the JVM can't measure allocations per thread.
+     */
+    private static final com.sun.management.ThreadMXBean threads = allocationMeasuringThreads();
+
+    private final long startNanos = System.nanoTime();
+    private final Map<String, LongAdder> phaseNanos = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> events = new ConcurrentHashMap<>();
+    private final LongAdder bytesDownloaded = new LongAdder();
+    private final LongAdder allocatedBytes = new LongAdder();
+    private volatile long durationNanos = -1;
+    private volatile Trace trace;
+
+    /**
+     * Measures the time between its creation and being closed, and records it as a phase.
+     */
+    public final class Timer implements AutoCloseable {
+        private final String phase;
+        private final long start = System.nanoTime();
+
+        private Timer(String phase) {
+            this.phase = phase;
+        }
+
+        @Override
+        public void close() {
+            record(phase, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Returns the metrics of the invocation the current thread is working on.
+     *
+     * @return The metrics. When the thread isn't working on an invocation, new metrics that nothing reads, so that
+     * code recording metrics doesn't need to check.
+     */
+    public static InvocationMetrics current() {
+        InvocationMetrics metrics = bound.get();
+        return metrics != null ? metrics : new InvocationMetrics();
+    }
+
+    /**
+     * Wraps work so that it records to these metrics on whichever thread runs it. The bytes allocated by the thread
+     * while running the work are added to these metrics. When the calling thread is working on an activation run by an
+     * {@link ActionHost}, the work is bound to the activation's {@link ActivationContext} too.
+     *
+     * @param work The work.
+     * @param <T>  The type of the work's result.
+     * @return The wrapped work.
+     */
+    public <T> Callable<T> bind(Callable<T> work) {
+        Callable<T> withMetrics = bindMetrics(work);
+        return ActivationContext.isBound() ? ActivationContext.current().bind(withMetrics) : withMetrics;
+    }
+
+    private <T> Callable<T> bindMetrics(Callable<T> work) {
+        return () -> {
+            InvocationMetrics previous = bound.get();
+            bound.set(this);
+            long allocatedBefore = currentThreadAllocatedBytes();
+            try {
+                return work.call();
+            } finally {
+                allocatedBytes.add(currentThreadAllocatedBytes() - allocatedBefore);
+                if (previous != null) {
+                    bound.set(previous);
+                } else {
+                    bound.remove();
+                }
+            }
+        };
+    }
+
+    /**
+     * Returns the invocation's trace, where outbound calls record their spans.
+     *
+     * @return The trace. A new trace, unless the invocation continues one.
+     */
+    public Trace trace() {
+        Trace current = trace;
+        if (current == null) {
+            synchronized (this) {
+                current = trace;
+                if (current == null) {
+                    current = Trace.start();
+                    trace = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Makes the invocation part of a trace started by an earlier action. Meant to be called before the invocation
+     * records any spans.
+     *
+     * @param context The context the earlier action emitted.
+     */
+    void continueTrace(TraceContext context) {
+        trace = Trace.continueFrom(context);
+    }
+
+    /**
+     * Starts timing a phase. Meant to be used with try-with-resources. When a phase is timed more than once, the times
+     * are added together.
+     *
+     * @param phase The name of the phase.
+     * @return The timer, which records the phase when closed.
+     */
+    public Timer time(String phase) {
+        return new Timer(phase);
+    }
+
+    /**
+     * Records time spent in a phase, adding it to any time already recorded for the phase.
+     *
+     * @param phase The name of the phase.
+     * @param nanos The time spent, in nanoseconds.
+     */
+    public void record(String phase, long nanos) {
+        phaseNanos.computeIfAbsent(phase, p -> new LongAdder()).add(nanos);
+    }
+
+    /**
+     * Counts an event.
+     *
+     * @param event The name of the event.
+     */
+    public void count(String event) {
+        events.computeIfAbsent(event, e -> new LongAdder()).increment();
+    }
+
+    /**
+     * Records bytes downloaded over the network.
+     *
+     * @param bytes The number of bytes.
+     */
+    public void addBytesDownloaded(long bytes) {
+        bytesDownloaded.add(bytes);
+    }
+
+    /**
+     * Marks the invocation as finished, fixing its duration. Later calls have no effect.
+     */
+    void finish() {
+        if (durationNanos < 0) {
+            durationNanos = System.nanoTime() - startNanos;
+        }
+    }
+
+    /**
+     * Returns how long the invocation took.
+     *
+     * @return The duration in nanoseconds, so far if it hasn't finished.
+     */
+    public long durationNanos() {
+        long duration = durationNanos;
+        return duration >= 0 ? duration : System.nanoTime() - startNanos;
+    }
+
+    /**
+     * Returns the time recorded for each phase.
+     *
+     * @return The times, in nanoseconds, by phase name.
+     */
+    public Map<String, Long> phaseNanos() {
+        Map<String, Long> nanos = new HashMap<>();
+        phaseNanos.forEach((phase, adder) -> nanos.put(phase, adder.sum()));
+        return nanos;
+    }
+
+    /**
+     * Returns how many times each event happened.
+     *
+     * @return The counts by event name. Events that didn't happen aren't included.
+     */
+    public Map<String, Long> eventCounts() {
+        Map<String, Long> counts = new HashMap<>();
+        events.forEach((event, adder) -> counts.put(event, adder.sum()));
+        return counts;
+    }
+
+    /**
+     * Returns the bytes downloaded over the network.
+     *
+     * @return The bytes.
+     */
+    public long bytesDownloaded() {
+        return bytesDownloaded.sum();
+    }
+
+    /**
+     * Returns the bytes allocated by the threads working on the invocation.
+     *
+     * @return The bytes, or -1 when the JVM can't measure allocations per thread.
+     */
+    public long allocatedBytes() {
+        return threads != null ? allocatedBytes.sum() : -1;
+    }
+
+    /**
+     * Returns the metrics as a map, to be included in an action's output.
+     *
+     * @return The map, with phase times in milliseconds.
+     */
+    public Map<String, Object> toMap() {
+        Map<String, Long> phasesMs = new HashMap<>();
+        phaseNanos().forEach((phase, nanos) -> phasesMs.put(phase, TimeUnit.NANOSECONDS.toMillis(nanos)));
+
+        Map<String, Object> map = new HashMap<>();
+        map.put("durationMs", TimeUnit.NANOSECONDS.toMillis(durationNanos()));
+        map.put("phasesMs", phasesMs);
+        map.put("events", eventCounts());
+        map.put("bytesDownloaded", bytesDownloaded());
+        map.put("allocatedBytes", allocatedBytes());
+        return map;
+    }
+
+    private static long currentThreadAllocatedBytes() {
+        return threads != null ? threads.getCurrentThreadAllocatedBytes() : 0;
+    }
+
+    private static com.sun.management.ThreadMXBean allocationMeasuringThreads() {
+        try {
+            if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean threads
+                    && threads.isThreadAllocatedMemorySupported()) {
+                threads.setThreadAllocatedMemoryEnabled(true);
+                return threads;
+            }
+        } catch (UnsupportedOperationException | SecurityException ex) {
+            // Allocations just aren't measured.
+        }
+        return null;
+    }
+}
@@ -0,0 +1,17 @@
+package com.mattwelke.packtbookbot;
+
+import java.io.IOException;
+
+/**
+ * Publishes the metrics aggregated by a {@link MetricsRegistry}, for example by writing them where a monitoring system
+ * can collect them. Called after every invocation, so it should be quick.
+ */
+public interface MetricsExporter {
+    /**
+     * Publishes the metrics.
+     *
+     * @param registry The registry with the metrics.
+     * @throws IOException when the metrics can't be published.
+     */
+    void export(MetricsRegistry registry) throws IOException;
+}
@@ -0,0 +1,171 @@
+package com.mattwelke.packtbookbot;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Aggregates the metrics of every invocation in a warm container, so that they can be exported to a monitoring system
+ * that collects them over time. Each invocation's own metrics are in its output, but the histograms here show how the
+ * phases behave across invocations.
+ */
+public final class MetricsRegistry {
+    private static final String prefix = "packtbookbot_";
+    private static final double nanosPerSecond = 1_000_000_000.0;
+
+    private static volatile MetricsRegistry shared;
+
+    private final Logger logger = Logger.getLogger(MetricsRegistry.class.getName());
+
+    // Keyed by rendered Prometheus labels, so that they're exported in a stable order.
+    private final Map<String, LongAdder> invocations = new ConcurrentSkipListMap<>();
+    private final Map<String, Histogram> invocationDurations = new ConcurrentSkipListMap<>();
+    private final Map<String, Histogram> phaseDurations = new ConcurrentSkipListMap<>();
+    private final Map<String, LongAdder> bytesDownloaded = new ConcurrentSkipListMap<>();
+    private final Map<String, LongAdder> allocatedBytes = new ConcurrentSkipListMap<>();
+    private final Map<String, LongAdder> events = new ConcurrentSkipListMap<>();
+
+    private final List<MetricsExporter> exporters = new CopyOnWriteArrayList<>();
+
+    /**
+     * Returns the registry shared by all actions in the JVM. When the "packtbookbot.metrics.prometheusFile" system
+     * property is set, the metrics are written to that file in the Prometheus text format after every invocation.
+     *
+     * @return The registry.
+     */
+    public static MetricsRegistry shared() {
+        MetricsRegistry registry = shared;
+        if (registry == null) {
+            synchronized (MetricsRegistry.class) {
+                registry = shared;
+                if (registry == null) {
+                    registry = new MetricsRegistry();
+                    String prometheusFile = System.getProperty("packtbookbot.metrics.prometheusFile");
+                    if (prometheusFile != null) {
+                        registry.addExporter(new PrometheusFileExporter(Path.of(prometheusFile)));
+                    }
+                    shared = registry;
+                }
+            }
+        }
+        return registry;
+    }
+
+    /**
+     * Adds an exporter to run after every invocation.
+     *
+     * @param exporter The exporter.
+     */
+    public void addExporter(MetricsExporter exporter) {
+        exporters.add(exporter);
+    }
+
+    /**
+     * Adds the metrics of a finished invocation.
+     *
+     * @param action    The name of the action.
+     * @param metrics   The invocation's metrics.
+     * @param succeeded Whether the invocation returned output instead of throwing.
+     */
+    void record(String action, InvocationMetrics metrics, boolean succeeded) {
+        String actionLabels = labels("action", action);
+        invocations.computeIfAbsent(labels("action", action, "outcome", succeeded ? "success" : "failure"),
+                k -> new LongAdder()).increment();
+        durationHistogram(invocationDurations, actionLabels).observe(metrics.durationNanos() / nanosPerSecond);
+        metrics.phaseNanos().forEach((phase, nanos) ->
+                durationHistogram(phaseDurations, labels("action", action, "phase", phase))
+                        .observe(nanos / nanosPerSecond));
+        bytesDownloaded.computeIfAbsent(actionLabels, k -> new LongAdder()).add(metrics.bytesDownloaded());
+        if (metrics.allocatedBytes() >= 0) {
+            allocatedBytes.computeIfAbsent(actionLabels, k -> new LongAdder()).add(metrics.allocatedBytes());
+        }
+        metrics.eventCounts().forEach((event, count) ->
+                events.computeIfAbsent(labels("action", action, "event", event), k -> new LongAdder()).add(count));
+    }
+
+    /**
+     * Runs every exporter. An exporter that fails is logged instead of failing the invocation.
+     */
+    void export() {
+        for (MetricsExporter exporter : exporters) {
+            try {
+                exporter.export(this);
+            } catch (IOException | RuntimeException ex) {
+                logger.log(Level.WARNING, "Could not export metrics.", ex);
+            }
+        }
+    }
+
+    /**
+     * Returns the metrics in the Prometheus text exposition format.
+     *
+     * @return The metrics.
+     */
+    public String toPrometheusText() {
+        StringBuilder text = new StringBuilder();
+        counter(text, "invocations_total", "Action invocations, by outcome.", invocations);
+        histogram(text, "invocation_duration_seconds", "Wall time of action invocations.", invocationDurations);
+        histogram(text, "phase_duration_seconds", "Wall time of each phase of action invocations.", phaseDurations);
+        counter(text, "downloaded_bytes_total", "Bytes downloaded by action invocations.", bytesDownloaded);
+        counter(text, "allocated_bytes_total", "Bytes allocated by threads working on action invocations.",
+                allocatedBytes);
+        counter(text, "events_total", "Events during action invocations, like hedged requests and circuit breaker " +
+                "trips, by event.", events);
+        return text.toString();
+    }
+
+    private static Histogram durationHistogram(Map<String, Histogram> histograms, String labels) {
+        return histograms.computeIfAbsent(labels, k -> new Histogram(Histogram.durationBounds));
+    }
+
+    private static void counter(StringBuilder text, String name, String help, Map<String, LongAdder> counters) {
+        header(text, name, help, "counter");
+        counters.forEach((labels, count) ->
+                text.append(prefix).append(name).append('{').append(labels).append("} ").append(count.sum())
+                        .append('\n'));
+    }
+
+    private static void histogram(StringBuilder text, String name, String help, Map<String, Histogram> histograms) {
+        header(text, name, help, "histogram");
+        histograms.forEach((labels, histogram) -> {
+            Histogram.Snapshot snapshot = histogram.snapshot();
+            long cumulative = 0;
+            for (int i = 0; i <= snapshot.bounds().length; i++) {
+                cumulative += snapshot.counts()[i];
+                String le = i < snapshot.bounds().length ? Double.toString(snapshot.bounds()[i]) : "+Inf";
+                text.append(prefix).append(name).append("_bucket{").append(labels).append(",le=\"").append(le)
+                        .append("\"} ").append(cumulative).append('\n');
+            }
+            text.append(prefix).append(name).append("_sum{").append(labels).append("} ").append(snapshot.sum())
+                    .append('\n');
+            text.append(prefix).append(name).append("_count{").append(labels).append("} ").append(cumulative)
+                    .append('\n');
+        });
+    }
+
+    private static void header(StringBuilder text, String name, String help, String type) {
+        text.append("# HELP ").append(prefix).append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(prefix).append(name).append(' ').append(type).append('\n');
+    }
+
+    /**
+     * Renders label names and values, alternating, as Prometheus labels.
+     */
+    private static String labels(String... namesAndValues) {
+        StringBuilder labels = new StringBuilder();
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            if (i > 0) {
+                labels.append(',');
+            }
+            labels.append(namesAndValues[i]).append("=\"").append(namesAndValues[i + 1]
+                    .replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n")).append('"');
+        }
+        return labels.toString();
+    }
+}
@@ -0,0 +1,32 @@
+package com.mattwelke.packtbookbot;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Writes metrics to a file in the Prometheus text exposition format, for the node exporter's textfile collector or a
+ * similar agent to pick up. The file is replaced atomically, so a collector never reads a half written file.
+ */
+public final class PrometheusFileExporter implements MetricsExporter {
+    private final Path file;
+
+    /**
+     * Creates an exporter.
+     *
+     * @param file The file to write. Its directory is created if it doesn't exist.
+     */
+    public PrometheusFileExporter(Path file) {
+        this.file = file.toAbsolutePath();
+    }
+
+    @Override
+    public synchronized void export(MetricsRegistry registry) throws IOException {
+        Files.createDirectories(file.getParent());
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.writeString(tmp, registry.toPrometheusText(), StandardCharsets.UTF_8);
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
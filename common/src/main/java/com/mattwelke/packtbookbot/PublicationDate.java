@@ -1,4 +1,144 @@
 package com.mattwelke.packtbookbot;
 
-public record PublicationDate(String month, String year) {
+import java.util.Objects;
+
+/**
+ * The month and year a title was published in.
+ * <p>
+ * Kept as one compact year-month number when the date has one, so that it can be sent between actions and compared
+ * without month name lookups. The month name and year strings are only derived from the number when asked for. A date
+ * created from strings that don't form a valid year-month, like a month name the page abbreviated, keeps the strings
+ * as they were, and has no year-month number.
+ */
+public final class PublicationDate {
+    private static final int noYearMonth = 0;
+
+    private final int yearMonth;
+    private final String month;
+    private final String year;
+
+    /**
+     * Creates a publication date from a month name and a year, like they're written on Packt's pages.
+     *
+     * @param month The full month name, like "April".
+     * @param year  The year, like "2020".
+     */
+    public PublicationDate(String month, String year) {
+        this.month = month;
+        this.year = year;
+        this.yearMonth = yearMonth(month, year);
+    }
+
+    private PublicationDate(int yearMonth) {
+        this.month = null;
+        this.year = null;
+        this.yearMonth = yearMonth;
+    }
+
+    /**
+     * Creates a publication date from its compact year-month form.
+     *
+     * @param yearMonth The year and month number as one number, e.g. 202004 for April 2020.
+     * @return The publication date.
+     * @throws IllegalArgumentException when the number isn't a valid year and month.
+     */
+    public static PublicationDate ofYearMonth(int yearMonth) throws IllegalArgumentException {
+        if (!isValidYearMonth(yearMonth)) {
+            throw new IllegalArgumentException("Invalid year-month: " + yearMonth);
+        }
+        return new PublicationDate(yearMonth);
+    }
+
+    /**
+     * Returns whether a number is a valid compact year-month, with a four digit year and a month from 1 to 12.
+     *
+     * @param yearMonth The number.
+     * @return Whether it's valid.
+     */
+    static boolean isValidYearMonth(int yearMonth) {
+        int month = yearMonth % 100;
+        return yearMonth >= 100_000 && yearMonth <= 999_999 && month >= 1 && month <= 12;
+    }
+
+    private static int yearMonth(String month, String year) {
+        if (month == null || year == null || year.length() != 4) {
+            return noYearMonth;
+        }
+        int monthIndex = PublicationDateMonths.monthIndexOrZero(month);
+        int yearNumber = 0;
+        for (int i = 0; i < year.length(); i++) {
+            char c = year.charAt(i);
+            if (c < '0' || c > '9') {
+                return noYearMonth;
+            }
+            yearNumber = yearNumber * 10 + (c - '0');
+        }
+        return monthIndex == 0 || yearNumber < 1000 ? noYearMonth : yearNumber * 100 + monthIndex;
+    }
+
+    /**
+     * Returns the full month name.
+     *
+     * @return The month name, like "April".
+     */
+    public String month() {
+        return month != null ? month : PublicationDateMonths.monthName(yearMonth % 100);
+    }
+
+    /**
+     * Returns the year.
+     *
+     * @return The year, like "2020".
+     */
+    public String year() {
+        return year != null ? year : Integer.toString(yearMonth / 100);
+    }
+
+    /**
+     * Returns whether the date has a compact year-month form, which it doesn't when it was created from a month name
+     * or year that isn't valid.
+     *
+     * @return Whether {@link #yearMonth()} can be called.
+     */
+    public boolean hasYearMonth() {
+        return yearMonth != noYearMonth;
+    }
+
+    /**
+     * Returns the compact year-month form of the publication date, which can be sent between actions as one number
+     * instead of two strings.
+     *
+     * @return The year and month number as one number, e.g. 202004 for April 2020.
+     * @throws IllegalStateException when the date has no year-month form.
+     */
+    public int yearMonth() throws IllegalStateException {
+        if (yearMonth == noYearMonth) {
+            throw new IllegalStateException("Invalid publication date: " + month + " " + year);
+        }
+        return yearMonth;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof PublicationDate other)) {
+            return false;
+        }
+        if (month == null && other.month == null) {
+            return yearMonth == other.yearMonth;
+        }
+        return month().equals(other.month()) && year().equals(other.year());
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(month(), year());
+    }
+
+    @Override
+    public String toString() {
+        return "PublicationDate[month=" + month() + ", year=" + year() + "]";
+    }
 }
@@ -1,5 +1,7 @@
 package com.mattwelke.packtbookbot;
 
+import java.util.Locale;
+
 /**
  * Normalizes publication date month names.
  */
@@ -55,4 +57,59 @@ public class PublicationDateMonths {
             default -> throw new IllegalStateException("Invalid full month name: " + fullMonthName);
         };
     }
+
+    private static final String[] fullMonthNames = {
+            "January", "February", "March", "April", "May", "June", "July", "August", "September", "October",
+            "November", "December"};
+
+    /**
+     * Given a month's number, returns the full month name.
+     *
+     * @param monthIndex The number of the month, from 1 to 12.
+     * @return The full month name for the month.
+     * @throws IllegalArgumentException when the number isn't a month's.
+     */
+    public static String monthName(final int monthIndex) throws IllegalArgumentException {
+        if (monthIndex < 1 || monthIndex > 12) {
+            throw new IllegalArgumentException("Invalid month number: " + monthIndex);
+        }
+        return fullMonthNames[monthIndex - 1];
+    }
+
+    /**
+     * Given a month's full month name, returns the number of the month.
+     * <p>
+     * Example: September -> 9
+     *
+     * @param fullMonthName The full month name.
+     * @return The number of the month, from 1 to 12.
+     */
+    public static int monthIndex(final String fullMonthName) {
+        int monthIndex = monthIndexOrZero(fullMonthName);
+        if (monthIndex == 0) {
+            throw new IllegalStateException("Invalid full month name: " + fullMonthName);
+        }
+        return monthIndex;
+    }
+
+    /**
+     * Like {@link #monthIndex(String)}, but returns 0 instead of throwing when the name isn't a full month name.
+     */
+    static int monthIndexOrZero(final String fullMonthName) {
+        return switch (fullMonthName.toLowerCase(Locale.ROOT)) {
+            case "january" -> 1;
+            case "february" -> 2;
+            case "march" -> 3;
+            case "april" -> 4;
+            case "may" -> 5;
+            case "june" -> 6;
+            case "july" -> 7;
+            case "august" -> 8;
+            case "september" -> 9;
+            case "october" -> 10;
+            case "november" -> 11;
+            case "december" -> 12;
+            default -> 0;
+        };
+    }
 }
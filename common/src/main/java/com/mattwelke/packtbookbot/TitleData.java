@@ -1,20 +1,47 @@
 package com.mattwelke.packtbookbot;
 
-import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 
 /**
  * The data for a title obtainable from the free learning URL. Used between actions, but the Java 17
  * runtime doesn't support serializing and deserializing java.util.Optional<T> and records, so we need
- * to manually serialize it to and deserialize it from strings and booleans.
+ * to manually serialize it to and deserialize it from strings and booleans. See {@link TitleDataCodec} for the format.
  */
 public record TitleData(
         String title,
         PublicationDate pubDate,
         Optional<String> productPageUrl,
-        Authors authors) {
+        Authors authors,
+        Optional<TraceContext> trace) {
+    /**
+     * Creates a record that isn't part of a trace.
+     */
+    public TitleData(String title, PublicationDate pubDate, Optional<String> productPageUrl, Authors authors) {
+        this(title, pubDate, productPageUrl, authors, Optional.empty());
+    }
+
+    /**
+     * Returns a copy of the record as part of a trace, so that the action it's passed to continues the trace.
+     *
+     * @param trace The trace context.
+     * @return The copy.
+     */
+    public TitleData withTrace(TraceContext trace) {
+        return new TitleData(title, pubDate, productPageUrl, authors, Optional.of(trace));
+    }
+
+    /**
+     * Returns whether two records are about the same title, regardless of the traces they're part of.
+     *
+     * @param other The other record.
+     * @return Whether everything but the trace is equal.
+     */
+    public boolean sameTitle(TitleData other) {
+        return title.equals(other.title) && pubDate.equals(other.pubDate)
+                && productPageUrl.equals(other.productPageUrl) && authors.equals(other.authors);
+    }
+
     /**
      * Creates a record from an OpenWhisk action params map.
      *
@@ -22,65 +49,7 @@ public record TitleData(
      * @return The record.
      */
     static TitleData of(Map<String, Object> params) throws IllegalArgumentException {
-        // title
-        if (!params.containsKey("title")) {
-            throw new IllegalArgumentException("missing param \"title\"");
-        }
-        String title = (String) params.get("title");
-        if (title.length() < 1) {
-            throw new IllegalArgumentException("param \"title\" must be at least one character long");
-        }
-
-        // pub date
-        if (!params.containsKey("pubDateMonth")) {
-            throw new IllegalArgumentException("missing param \"pubDateMonth\"");
-        }
-        String pubDateMonth = (String) params.get("pubDateMonth");
-        if (pubDateMonth.length() < 1) {
-            throw new IllegalArgumentException("param \"pubDateMonth\" must be at least one character long");
-        }
-        if (!params.containsKey("pubDateYear")) {
-            throw new IllegalArgumentException("missing param \"pubDateYear\"");
-        }
-        String pubDateYear = (String) params.get("pubDateYear");
-        if (pubDateYear.length() < 1) {
-            throw new IllegalArgumentException("param \"pubDateYear\" must be at least one character long");
-        }
-
-        // product page URL
-        if (!params.containsKey("hasProductPageUrl")) {
-            throw new IllegalArgumentException("missing param \"hasProductPageUrl\"");
-        }
-        boolean hasProductPageUrl = (boolean) params.get("hasProductPageUrl");
-        String productPageUrl = null;
-        if (hasProductPageUrl) {
-            productPageUrl = (String) params.get("productPageUrl");
-            if (productPageUrl.length() < 1) {
-                throw new IllegalArgumentException("param \"productPageUrl\", if provided, must be at least one character long");
-            }
-        }
-
-        // authors
-        if (!params.containsKey("authorsNames")) {
-            throw new IllegalArgumentException("missing param \"authorsNames\"");
-        }
-        // TODO: Investigate warning "Unchecked cast: 'java.lang.Object' to 'java.util.List<java.lang.String>'"
-        List<String> authorsNames = (List<String>) params.get("authorsNames");
-        if (authorsNames.size() < 1) {
-            throw new IllegalArgumentException("param \"authorsNames\" needs at least one author");
-        }
-        for (String name : authorsNames) {
-            if (name.length() < 1) {
-                throw new IllegalArgumentException("each string in param \"authorsNames\" must be at least one character long");
-            }
-        }
-        if (!params.containsKey("authorsMore")) {
-            throw new IllegalArgumentException("missing param \"authorsMore\"");
-        }
-        boolean authorsMore = (boolean) params.get("authorsMore");
-
-        return new TitleData(title, new PublicationDate(pubDateMonth, pubDateYear),
-                Optional.ofNullable(productPageUrl), new Authors(authorsNames, authorsMore));
+        return TitleDataCodec.decode(params);
     }
 
     /**
@@ -88,14 +57,6 @@ public record TitleData(
      * @return The map.
      */
     Map<String, Object> toMap() {
-        Map<String, Object> map = new HashMap<>();
-        map.put("title", title);
-        map.put("pubDateMonth", pubDate.month());
-        map.put("pubDateYear", pubDate.year());
-        map.put("hasProductPageUrl", productPageUrl.isPresent());
-        map.put("productPageUrl", productPageUrl.orElse(null));
-        map.put("authorsNames", authors.names());
-        map.put("authorsMore", authors.more());
-        return map;
+        return TitleDataCodec.encode(this);
     }
 }
@@ -0,0 +1,178 @@
+package com.mattwelke.packtbookbot;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Encodes title data to, and decodes it from, the params maps passed between actions.
+ * <p>
+ * Version 2 of the schema adds a schema version and the publication date as one compact year-month number. Every
+ * version 1 key is still written, so that actions still reading version 1 can read maps from actions writing version
+ * 2 while both are deployed. Maps without a schema version are decoded as version 1, as are version 2 maps without the
+ * compact number, which is left out for publication dates that don't have one.
+ * <p>
+ * The trace context, when the title is part of a trace, is written as "traceparent", "traceStartedAtMs" and
+ * "traceEmittedAtMs". These keys are optional in every version, and a malformed trace context is ignored rather than
+ * failing the decoding, since it only matters to tracing.
+ * <p>
+ * Decoding checks each value's type instead of casting it, so a malformed map causes an IllegalArgumentException
+ * naming the param instead of a ClassCastException. Decoded lists are the lists from the map, not copies.
+ */
+final class TitleDataCodec {
+    /**
+     * The schema version this codec writes.
+     */
+    static final int schemaVersion = 2;
+
+    static final String schemaVersionKey = "schemaVersion";
+    static final String titleKey = "title";
+    static final String pubDateMonthKey = "pubDateMonth";
+    static final String pubDateYearKey = "pubDateYear";
+    static final String pubDateYearMonthKey = "pubDateYearMonth";
+    static final String hasProductPageUrlKey = "hasProductPageUrl";
+    static final String productPageUrlKey = "productPageUrl";
+    static final String authorsNamesKey = "authorsNames";
+    static final String authorsMoreKey = "authorsMore";
+    static final String traceparentKey = "traceparent";
+    static final String traceStartedAtKey = "traceStartedAtMs";
+    static final String traceEmittedAtKey = "traceEmittedAtMs";
+
+    private TitleDataCodec() {
+    }
+
+    /**
+     * Encodes title data as an OpenWhisk params map.
+     *
+     * @param data The title data.
+     * @return The map. Mutable, so that actions can add their own output to it.
+     */
+    static Map<String, Object> encode(TitleData data) {
+        Map<String, Object> map = new HashMap<>(16);
+        map.put(schemaVersionKey, schemaVersion);
+        map.put(titleKey, data.title());
+        map.put(pubDateMonthKey, data.pubDate().month());
+        map.put(pubDateYearKey, data.pubDate().year());
+        // A date taken from a page as it was written, like with an abbreviated month name, has no compact form, and
+        // is decoded from its strings.
+        if (data.pubDate().hasYearMonth()) {
+            map.put(pubDateYearMonthKey, data.pubDate().yearMonth());
+        }
+        map.put(hasProductPageUrlKey, data.productPageUrl().isPresent());
+        map.put(productPageUrlKey, data.productPageUrl().orElse(null));
+        map.put(authorsNamesKey, data.authors().names());
+        map.put(authorsMoreKey, data.authors().more());
+        data.trace().ifPresent(trace -> {
+            map.put(traceparentKey, trace.traceparent());
+            map.put(traceStartedAtKey, trace.startedAtMillis());
+            map.put(traceEmittedAtKey, trace.emittedAtMillis());
+        });
+        return map;
+    }
+
+    /**
+     * Decodes title data from an OpenWhisk params map of any schema version.
+     *
+     * @param params The params map.
+     * @return The title data.
+     * @throws IllegalArgumentException when a param is missing or invalid.
+     */
+    static TitleData decode(Map<String, Object> params) throws IllegalArgumentException {
+        String title = nonEmptyString(params, titleKey);
+
+        PublicationDate pubDate;
+        if (version(params) >= 2 && params.get(pubDateYearMonthKey) instanceof Number yearMonth) {
+            if (!PublicationDate.isValidYearMonth(yearMonth.intValue())) {
+                throw new IllegalArgumentException(
+                        "param \"pubDateYearMonth\" must be a year and month number like 202004");
+            }
+            pubDate = PublicationDate.ofYearMonth(yearMonth.intValue());
+        } else {
+            pubDate = new PublicationDate(nonEmptyString(params, pubDateMonthKey),
+                    nonEmptyString(params, pubDateYearKey));
+        }
+
+        String productPageUrl = null;
+        if (bool(params, hasProductPageUrlKey)) {
+            if (!(params.get(productPageUrlKey) instanceof String url) || url.length() < 1) {
+                throw new IllegalArgumentException(
+                        "param \"productPageUrl\", if provided, must be at least one character long");
+            }
+            productPageUrl = url;
+        }
+
+        List<String> authorsNames = authorsNames(params);
+        boolean authorsMore = bool(params, authorsMoreKey);
+
+        return new TitleData(title, pubDate, Optional.ofNullable(productPageUrl),
+                new Authors(authorsNames, authorsMore), trace(params));
+    }
+
+    /**
+     * Decodes the trace context from a params map, which may or may not be title data.
+     *
+     * @param params The params map.
+     * @return The trace context, if the map has a valid one.
+     */
+    static Optional<TraceContext> trace(Map<String, Object> params) {
+        if (!(params.get(traceparentKey) instanceof String traceparent)
+                || !(params.get(traceStartedAtKey) instanceof Number startedAt)
+                || !(params.get(traceEmittedAtKey) instanceof Number emittedAt)) {
+            return Optional.empty();
+        }
+        try {
+            return Optional.of(TraceContext.parse(traceparent, startedAt.longValue(), emittedAt.longValue()));
+        } catch (IllegalArgumentException ex) {
+            return Optional.empty();
+        }
+    }
+
+    private static int version(Map<String, Object> params) {
+        return params.get(schemaVersionKey) instanceof Number version ? version.intValue() : 1;
+    }
+
+    private static String nonEmptyString(Map<String, Object> params, String key) {
+        if (!params.containsKey(key)) {
+            throw new IllegalArgumentException(String.format("missing param \"%s\"", key));
+        }
+        if (!(params.get(key) instanceof String value) || value.length() < 1) {
+            throw new IllegalArgumentException(
+                    String.format("param \"%s\" must be at least one character long", key));
+        }
+        return value;
+    }
+
+    private static boolean bool(Map<String, Object> params, String key) {
+        if (!params.containsKey(key)) {
+            throw new IllegalArgumentException(String.format("missing param \"%s\"", key));
+        }
+        if (!(params.get(key) instanceof Boolean value)) {
+            throw new IllegalArgumentException(String.format("param \"%s\" must be a boolean", key));
+        }
+        return value;
+    }
+
+    private static List<String> authorsNames(Map<String, Object> params) {
+        if (!params.containsKey(authorsNamesKey)) {
+            throw new IllegalArgumentException("missing param \"authorsNames\"");
+        }
+        if (!(params.get(authorsNamesKey) instanceof List<?> names)) {
+            throw new IllegalArgumentException("param \"authorsNames\" must be a list");
+        }
+        if (names.size() < 1) {
+            throw new IllegalArgumentException("param \"authorsNames\" needs at least one author");
+        }
+        for (Object name : names) {
+            if (!(name instanceof String s) || s.length() < 1) {
+                throw new IllegalArgumentException(
+                        "each string in param \"authorsNames\" must be at least one character long");
+            }
+        }
+        // Safe because every element was checked to be a string above.
+        @SuppressWarnings("unchecked")
+        List<String> checkedNames = (List<String>) names;
+        return Collections.unmodifiableList(checkedNames);
+    }
+}
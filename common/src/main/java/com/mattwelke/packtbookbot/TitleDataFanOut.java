@@ -0,0 +1,201 @@
+package com.mattwelke.packtbookbot;
+
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Shares each title with several sinks concurrently. Every sink has its own thread and its own bounded queue of titles
+ * waiting to be shared, so a slow or failing sink doesn't delay or fail the others.
+ * <p>
+ * When a sink's queue is full, publishing waits for room, up to a timeout, so that a producer can't get further ahead
+ * of a slow sink than the queue allows. If there's still no room after the timeout, the title isn't shared with that
+ * sink, and its delivery fails.
+ * <p>
+ * The metrics of the invocation publishing a title are bound on the sink threads while they share it, and the time
+ * each sink takes is recorded as a phase named after the sink, like "fileSink".
+ */
+public final class TitleDataFanOut implements AutoCloseable {
+    private static final Logger logger = Logger.getLogger(TitleDataFanOut.class.getName());
+
+    /**
+     * Queued after the last title to stop a sink's thread.
+     */
+    private static final Task stop = new Task(null, null, null, null);
+
+    private final List<Lane> lanes = new ArrayList<>();
+    private volatile boolean closed;
+
+    private record Task(TitleData data, LocalDate day, InvocationMetrics metrics, CompletableFuture<Void> delivery) {
+    }
+
+    private static final class Lane {
+        final TitleDataSink sink;
+        final BlockingQueue<Task> queue;
+        final Thread thread;
+
+        Lane(TitleDataSink sink, int queueCapacity) {
+            this.sink = sink;
+            this.queue = new ArrayBlockingQueue<>(queueCapacity);
+            this.thread = new Thread(this::run, "title-data-sink-" + sink.name());
+            // Daemon so that a sink stuck on a slow service can't keep the JVM alive.
+            thread.setDaemon(true);
+        }
+
+        private void run() {
+            String phase = sink.name() + "Sink";
+            try {
+                while (true) {
+                    Task task = queue.take();
+                    if (task == stop) {
+                        return;
+                    }
+                    try {
+                        task.metrics().bind(() -> {
+                            InvocationMetrics.Timer timer = task.metrics().time(phase);
+                            try {
+                                sink.share(task.data(), task.day());
+                            } finally {
+                                timer.close();
+                            }
+                            return null;
+                        }).call();
+                        task.delivery().complete(null);
+                    } catch (Exception ex) {
+                        logger.log(Level.WARNING, String.format("Sink %s could not share title %s.", sink.name(),
+                                task.data().title()), ex);
+                        task.delivery().completeExceptionally(ex);
+                    }
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } finally {
+                sink.close();
+            }
+        }
+    }
+
+    /**
+     * Creates a fan-out to sinks and starts their threads.
+     *
+     * @param sinks         The sinks, with unique names.
+     * @param queueCapacity How many titles may wait to be shared with each sink.
+     * @throws IllegalArgumentException when two sinks have the same name.
+     */
+    public TitleDataFanOut(List<? extends TitleDataSink> sinks, int queueCapacity) throws IllegalArgumentException {
+        for (TitleDataSink sink : sinks) {
+            if (lanes.stream().anyMatch(lane -> lane.sink.name().equals(sink.name()))) {
+                throw new IllegalArgumentException("Duplicate sink name " + sink.name() + ".");
+            }
+            lanes.add(new Lane(sink, queueCapacity));
+        }
+        lanes.forEach(lane -> lane.thread.start());
+    }
+
+    /**
+     * Queues a title to be shared with every sink.
+     *
+     * @param data           The title data.
+     * @param day            The day the title was the free eBook of the day.
+     * @param enqueueTimeout How long to wait, overall, for room in the queues of sinks that are behind.
+     * @return The delivery to each sink by sink name, in the order the sinks were given. Completes when the sink has
+     * shared the title, or exceptionally when it couldn't, or there was no room in its queue.
+     * @throws IllegalStateException when the fan-out is closed.
+     * @throws InterruptedException  when interrupted while waiting for room.
+     */
+    public Map<String, CompletableFuture<Void>> publish(TitleData data, LocalDate day, Duration enqueueTimeout)
+            throws IllegalStateException, InterruptedException {
+        if (closed) {
+            throw new IllegalStateException("Fan-out is closed.");
+        }
+        InvocationMetrics metrics = InvocationMetrics.current();
+        Map<String, CompletableFuture<Void>> deliveries = new LinkedHashMap<>();
+        List<Lane> full = new ArrayList<>();
+
+        // Queue where there's room first, so that a sink that's behind doesn't delay the others.
+        for (Lane lane : lanes) {
+            Task task = new Task(data, day, metrics, new CompletableFuture<>());
+            deliveries.put(lane.sink.name(), task.delivery());
+            if (!lane.queue.offer(task)) {
+                full.add(lane);
+            }
+        }
+
+        long deadline = System.nanoTime() + enqueueTimeout.toNanos();
+        for (Lane lane : full) {
+            CompletableFuture<Void> delivery = deliveries.get(lane.sink.name());
+            long remaining = deadline - System.nanoTime();
+            if (!lane.queue.offer(new Task(data, day, metrics, delivery), Math.max(remaining, 0), TimeUnit.NANOSECONDS)) {
+                delivery.completeExceptionally(new CouldNotShareDataException(String.format(
+                        "Queue of sink %s stayed full for %d ms.", lane.sink.name(), enqueueTimeout.toMillis())));
+            }
+        }
+        return deliveries;
+    }
+
+    /**
+     * Returns how many titles are waiting to be shared with each sink, not counting the ones being shared.
+     *
+     * @return The counts by sink name.
+     */
+    public Map<String, Integer> queued() {
+        Map<String, Integer> queued = new LinkedHashMap<>();
+        for (Lane lane : lanes) {
+            queued.put(lane.sink.name(), lane.queue.size());
+        }
+        return queued;
+    }
+
+    /**
+     * Returns whether the fan-out was closed, after which it no longer accepts titles.
+     *
+     * @return Whether it was closed.
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Shares the titles already queued, then stops the sinks' threads and closes the sinks. Waits for the threads to
+     * stop, up to a timeout per sink.
+     *
+     * @param timeout How long to wait for each sink.
+     * @throws InterruptedException when interrupted while waiting.
+     */
+    public void close(Duration timeout) throws InterruptedException {
+        closed = true;
+        for (Lane lane : lanes) {
+            if (!lane.queue.offer(stop, timeout.toNanos(), TimeUnit.NANOSECONDS)) {
+                lane.thread.interrupt();
+            }
+        }
+        for (Lane lane : lanes) {
+            lane.thread.join(timeout.toMillis());
+            if (lane.thread.isAlive()) {
+                logger.log(Level.WARNING, "Sink {0} did not stop in time.", lane.sink.name());
+                lane.thread.interrupt();
+            }
+        }
+    }
+
+    /**
+     * Closes the fan-out, waiting up to 30 seconds per sink. See {@link #close(Duration)}.
+     */
+    @Override
+    public void close() {
+        try {
+            close(Duration.ofSeconds(30));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
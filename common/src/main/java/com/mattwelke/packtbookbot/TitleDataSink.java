@@ -0,0 +1,33 @@
+package com.mattwelke.packtbookbot;
+
+import java.time.LocalDate;
+
+/**
+ * Somewhere the free eBook of the day is shared, like a BigQuery table, a file or a webhook. Sinks are run by a
+ * {@link TitleDataFanOut}, which calls each sink from its own thread, one title at a time, so implementations don't
+ * need to be thread safe.
+ */
+public interface TitleDataSink extends AutoCloseable {
+    /**
+     * Returns the name of the sink, used in the output of actions and in logs.
+     *
+     * @return The name.
+     */
+    String name();
+
+    /**
+     * Shares a title.
+     *
+     * @param data The title data.
+     * @param day  The day the title was the free eBook of the day.
+     * @throws CouldNotShareDataException when the title can't be shared.
+     */
+    void share(TitleData data, LocalDate day) throws CouldNotShareDataException;
+
+    /**
+     * Releases what the sink holds open. Does nothing by default.
+     */
+    @Override
+    default void close() {
+    }
+}
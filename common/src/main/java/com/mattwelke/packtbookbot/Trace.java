@@ -0,0 +1,219 @@
+package com.mattwelke.packtbookbot;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The spans of one action invocation, as part of a trace that may have started in an earlier action. The invocation
+ * is the root span, and work within it, like each outbound HTTP request and BigQuery call, is a span under it.
+ * <p>
+ * Each invocation's {@link InvocationMetrics} has a trace, so code deep in an invocation finds it with
+ * {@code InvocationMetrics.current().trace()}, on whichever thread the metrics are bound to.
+ */
+public final class Trace {
+    private final String traceId;
+    private final String rootSpanId = newSpanId();
+    private final String parentSpanId;
+    private final long startedAtMillis;
+    private final long rootStartNanos = epochNanos();
+    private final Queue<SpanData> spans = new ConcurrentLinkedQueue<>();
+
+    /**
+     * The kind of a span, numbered like OTLP numbers them.
+     */
+    enum Kind {
+        INTERNAL(1), SERVER(2), CLIENT(3);
+
+        final int otlp;
+
+        Kind(int otlp) {
+            this.otlp = otlp;
+        }
+    }
+
+    /**
+     * A finished span.
+     *
+     * @param traceId         The trace ID.
+     * @param spanId          The span ID.
+     * @param parentSpanId    The parent span ID, or null for the first span of the trace.
+     * @param name            The name, like "HTTP GET".
+     * @param kind            The kind.
+     * @param startEpochNanos When the span started, in nanoseconds since the epoch.
+     * @param endEpochNanos   When the span ended, in nanoseconds since the epoch.
+     * @param attributes      The attributes, with string, boolean or number values.
+     * @param error           Whether the work the span covers failed.
+     */
+    record SpanData(String traceId, String spanId, String parentSpanId, String name, Kind kind, long startEpochNanos,
+                    long endEpochNanos, Map<String, Object> attributes, boolean error) {
+    }
+
+    /**
+     * A span in progress, which is recorded when closed. Meant to be used with try-with-resources, or closed from a
+     * callback when the work finishes on another thread.
+     */
+    public final class Span implements AutoCloseable {
+        private final String name;
+        private final Kind kind;
+        private final long startEpochNanos = epochNanos();
+        private final Map<String, Object> attributes = new LinkedHashMap<>();
+        private boolean error;
+        private boolean closed;
+
+        private Span(String name, Kind kind) {
+            this.name = name;
+            this.kind = kind;
+        }
+
+        /**
+         * Sets an attribute.
+         *
+         * @param key   The key, like "http.response.status_code".
+         * @param value The value, a string, boolean or number.
+         * @return The span.
+         */
+        public synchronized Span attribute(String key, Object value) {
+            attributes.put(key, value);
+            return this;
+        }
+
+        /**
+         * Marks the work the span covers as failed.
+         *
+         * @param ex What it failed with.
+         * @return The span.
+         */
+        public synchronized Span error(Throwable ex) {
+            error = true;
+            attributes.put("exception.type", ex.getClass().getName());
+            return this;
+        }
+
+        /**
+         * Ends the span. Later calls have no effect.
+         */
+        @Override
+        public synchronized void close() {
+            if (!closed) {
+                closed = true;
+                spans.add(new SpanData(traceId, newSpanId(), rootSpanId, name, kind, startEpochNanos, epochNanos(),
+                        Map.copyOf(attributes), error));
+            }
+        }
+    }
+
+    private Trace(String traceId, String parentSpanId, long startedAtMillis) {
+        this.traceId = traceId;
+        this.parentSpanId = parentSpanId;
+        this.startedAtMillis = startedAtMillis;
+    }
+
+    /**
+     * Starts a trace, for an invocation that isn't continuing one.
+     *
+     * @return The trace.
+     */
+    static Trace start() {
+        return new Trace(newTraceId(), null, System.currentTimeMillis());
+    }
+
+    /**
+     * Continues a trace started by an earlier action.
+     *
+     * @param context The context the earlier action emitted.
+     * @return The trace.
+     */
+    static Trace continueFrom(TraceContext context) {
+        return new Trace(context.traceId(), context.parentSpanId(), context.startedAtMillis());
+    }
+
+    /**
+     * Starts an outbound call's span.
+     *
+     * @param name The name, like "HTTP GET".
+     * @return The span.
+     */
+    public Span span(String name) {
+        return new Span(name, Kind.CLIENT);
+    }
+
+    /**
+     * Returns the ID of the trace.
+     *
+     * @return The ID.
+     */
+    public String traceId() {
+        return traceId;
+    }
+
+    /**
+     * Returns when the trace started, which is when the invocation started unless it continues a trace.
+     *
+     * @return Milliseconds since the epoch.
+     */
+    public long startedAtMillis() {
+        return startedAtMillis;
+    }
+
+    /**
+     * Returns the context to pass to the next action, with the invocation's span as the parent.
+     *
+     * @return The context, emitted now.
+     */
+    public TraceContext context() {
+        return new TraceContext(traceId, rootSpanId, startedAtMillis, System.currentTimeMillis());
+    }
+
+    /**
+     * Ends the invocation's span and returns every span of the invocation.
+     *
+     * @param name       The invocation's span name, like the action's name.
+     * @param attributes The invocation's span attributes.
+     * @param error      Whether the invocation failed.
+     * @return The spans, the invocation's first.
+     */
+    List<SpanData> finish(String name, Map<String, Object> attributes, boolean error) {
+        List<SpanData> finished = new ArrayList<>();
+        finished.add(new SpanData(traceId, rootSpanId, parentSpanId, name, Kind.SERVER, rootStartNanos, epochNanos(),
+                attributes, error));
+        finished.addAll(spans);
+        return finished;
+    }
+
+    /**
+     * Returns a span from when a trace started until now, for something measured end to end, like how long after the
+     * trigger a title's row could be queried.
+     *
+     * @param context    The context of the trace, whose span becomes the parent.
+     * @param name       The name.
+     * @param attributes The attributes.
+     * @return The span, ended now.
+     */
+    static SpanData sinceStart(TraceContext context, String name, Map<String, Object> attributes) {
+        return new SpanData(context.traceId(), newSpanId(), context.parentSpanId(), name, Kind.INTERNAL,
+                TimeUnit.MILLISECONDS.toNanos(context.startedAtMillis()), epochNanos(), Map.copyOf(attributes),
+                false);
+    }
+
+    static long epochNanos() {
+        Instant now = Instant.now();
+        return now.getEpochSecond() * 1_000_000_000L + now.getNano();
+    }
+
+    static String newSpanId() {
+        return HexFormat.of().toHexDigits(ThreadLocalRandom.current().nextLong() | 1);
+    }
+
+    private static String newTraceId() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        return HexFormat.of().toHexDigits(random.nextLong()) + HexFormat.of().toHexDigits(random.nextLong() | 1);
+    }
+}
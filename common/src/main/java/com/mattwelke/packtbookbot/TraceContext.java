@@ -0,0 +1,51 @@
+package com.mattwelke.packtbookbot;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * What one action passes to the next about the trace they're both part of, so that the spans of the title fetcher,
+ * the trigger invoker and the GCP data sharer can be tied together, and the time between them measured.
+ * <p>
+ * The trace and parent span IDs are passed as a W3C "traceparent" value. The time the trace started, when the title
+ * fetcher was triggered, and the time the previous action emitted its output are passed along with it, so that an
+ * action can measure how long it waited to be invoked, and how long since the trigger its work finished, without a
+ * collector.
+ *
+ * @param traceId         The trace ID, as 32 lowercase hex digits.
+ * @param parentSpanId    The ID of the span of the action that emitted the context, as 16 lowercase hex digits.
+ * @param startedAtMillis When the trace started, in milliseconds since the epoch.
+ * @param emittedAtMillis When the action that emitted the context finished, in milliseconds since the epoch.
+ */
+public record TraceContext(String traceId, String parentSpanId, long startedAtMillis, long emittedAtMillis) {
+    private static final Pattern traceparent = Pattern.compile("^00-([0-9a-f]{32})-([0-9a-f]{16})-[0-9a-f]{2}$");
+    private static final String invalidTraceId = "0".repeat(32);
+    private static final String invalidSpanId = "0".repeat(16);
+
+    /**
+     * Returns the context as a W3C "traceparent" value, sampled.
+     *
+     * @return The value, like "00-0af7651916cd43dd8448eb211c80319c-b7ad6b7169203331-01".
+     */
+    public String traceparent() {
+        return "00-" + traceId + "-" + parentSpanId + "-01";
+    }
+
+    /**
+     * Parses a context.
+     *
+     * @param traceparent     A W3C "traceparent" value of version 00.
+     * @param startedAtMillis When the trace started.
+     * @param emittedAtMillis When the action that emitted the context finished.
+     * @return The context.
+     * @throws IllegalArgumentException when the value isn't a valid "traceparent" value.
+     */
+    static TraceContext parse(String traceparent, long startedAtMillis, long emittedAtMillis)
+            throws IllegalArgumentException {
+        Matcher m = TraceContext.traceparent.matcher(traceparent);
+        if (!m.matches() || m.group(1).equals(invalidTraceId) || m.group(2).equals(invalidSpanId)) {
+            throw new IllegalArgumentException("Invalid traceparent " + traceparent + ".");
+        }
+        return new TraceContext(m.group(1), m.group(2), startedAtMillis, emittedAtMillis);
+    }
+}
@@ -0,0 +1,163 @@
+package com.mattwelke.packtbookbot;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Exports spans as OTLP JSON, the JSON encoding of the OpenTelemetry protocol's trace export request, so that any
+ * OpenTelemetry collector can take them.
+ * <p>
+ * Spans are appended to a file, one export request per line, like the collector's file exporter writes them and its
+ * file receiver reads them, and posted to a collector's OTLP/HTTP endpoint, like "http://localhost:4318/v1/traces".
+ * Posting doesn't wait for the collector, so a slow or missing collector doesn't slow down invocations. Spans the
+ * collector doesn't take are dropped.
+ */
+public final class TraceExporter {
+    private static final Logger logger = Logger.getLogger(TraceExporter.class.getName());
+    private static final Duration postTimeout = Duration.ofSeconds(5);
+
+    private static volatile TraceExporter shared;
+
+    private final Path file;
+    private final URI endpoint;
+
+    /**
+     * Creates an exporter.
+     *
+     * @param file     The file to append to, or null to not write a file. Its directory is created if it doesn't
+     *                 exist.
+     * @param endpoint The collector's OTLP/HTTP traces endpoint, or null to not post spans.
+     */
+    TraceExporter(Path file, URI endpoint) {
+        this.file = file != null ? file.toAbsolutePath() : null;
+        this.endpoint = endpoint;
+    }
+
+    /**
+     * Returns the exporter shared by all actions in the JVM. It appends to the file named by the
+     * "packtbookbot.traces.file" system property and posts to the endpoint named by the "packtbookbot.traces.endpoint"
+     * system property. With neither set, spans aren't exported.
+     *
+     * @return The exporter.
+     */
+    static TraceExporter shared() {
+        TraceExporter exporter = shared;
+        if (exporter == null) {
+            synchronized (TraceExporter.class) {
+                exporter = shared;
+                if (exporter == null) {
+                    String file = System.getProperty("packtbookbot.traces.file");
+                    String endpoint = System.getProperty("packtbookbot.traces.endpoint");
+                    exporter = new TraceExporter(file != null ? Path.of(file) : null,
+                            endpoint != null ? URI.create(endpoint) : null);
+                    shared = exporter;
+                }
+            }
+        }
+        return exporter;
+    }
+
+    /**
+     * Exports spans. Failures are logged, not thrown, so that tracing can't fail an invocation.
+     *
+     * @param service The name of the service the spans are from, like the action's name.
+     * @param spans   The spans.
+     */
+    void export(String service, List<Trace.SpanData> spans) {
+        if ((file == null && endpoint == null) || spans.isEmpty()) {
+            return;
+        }
+        String json = Json.write(toOtlp(service, spans));
+        if (file != null) {
+            try {
+                append(json);
+            } catch (IOException ex) {
+                logger.log(Level.WARNING, "Could not write spans to " + file + ".", ex);
+            }
+        }
+        if (endpoint != null) {
+            HttpRequest request = HttpRequest.newBuilder(endpoint)
+                    .timeout(postTimeout)
+                    .header("Content-Type", "application/json")
+                    .POST(HttpRequest.BodyPublishers.ofString(json))
+                    .build();
+            HttpTransport.shared().client().sendAsync(request, HttpResponse.BodyHandlers.discarding())
+                    .whenComplete((response, ex) -> {
+                        if (ex != null || response.statusCode() / 100 != 2) {
+                            logger.log(Level.WARNING, "Collector " + endpoint + " didn't take " + spans.size()
+                                    + " span(s): " + (ex != null ? ex : "HTTP status " + response.statusCode()));
+                        }
+                    });
+        }
+    }
+
+    private synchronized void append(String json) throws IOException {
+        Files.createDirectories(file.getParent());
+        Files.writeString(file, json + "\n", StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Returns spans as an OTLP trace export request.
+     *
+     * @param service The name of the service the spans are from.
+     * @param spans   The spans.
+     * @return The request, to be written as JSON.
+     */
+    static Map<String, Object> toOtlp(String service, List<Trace.SpanData> spans) {
+        List<Object> otlpSpans = new ArrayList<>(spans.size());
+        for (Trace.SpanData span : spans) {
+            Map<String, Object> otlpSpan = new LinkedHashMap<>();
+            otlpSpan.put("traceId", span.traceId());
+            otlpSpan.put("spanId", span.spanId());
+            if (span.parentSpanId() != null) {
+                otlpSpan.put("parentSpanId", span.parentSpanId());
+            }
+            otlpSpan.put("name", span.name());
+            otlpSpan.put("kind", span.kind().otlp);
+            // 64 bit integers are strings in OTLP JSON.
+            otlpSpan.put("startTimeUnixNano", Long.toString(span.startEpochNanos()));
+            otlpSpan.put("endTimeUnixNano", Long.toString(span.endEpochNanos()));
+            otlpSpan.put("attributes", attributes(span.attributes()));
+            // 1 is OK and 2 is ERROR.
+            otlpSpan.put("status", Map.of("code", span.error() ? 2 : 1));
+            otlpSpans.add(otlpSpan);
+        }
+        return Map.of("resourceSpans", List.of(Map.of(
+                "resource", Map.of("attributes", attributes(Map.of("service.name", service))),
+                "scopeSpans", List.of(Map.of(
+                        "scope", Map.of("name", "packt-book-bot"),
+                        "spans", otlpSpans)))));
+    }
+
+    private static List<Object> attributes(Map<String, Object> attributes) {
+        List<Object> otlpAttributes = new ArrayList<>(attributes.size());
+        attributes.forEach((key, value) -> {
+            Map<String, Object> otlpValue;
+            if (value instanceof Boolean b) {
+                otlpValue = Map.of("boolValue", b);
+            } else if (value instanceof Integer || value instanceof Long) {
+                otlpValue = Map.of("intValue", value.toString());
+            } else if (value instanceof Number number) {
+                otlpValue = Map.of("doubleValue", number.doubleValue());
+            } else {
+                otlpValue = Map.of("stringValue", String.valueOf(value));
+            }
+            otlpAttributes.add(Map.of("key", key, "value", otlpValue));
+        });
+        return otlpAttributes;
+    }
+}
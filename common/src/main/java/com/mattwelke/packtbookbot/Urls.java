@@ -1,5 +1,18 @@
 package com.mattwelke.packtbookbot;
 
+/**
+ * The external endpoints the actions call. Each can be overridden with a system property, set before the actions are
+ * loaded, so that the actions can be pointed at local stubs, like the load test does.
+ */
 public class Urls {
-    static final String FREE_LEARNING = "https://www.packtpub.com/free-learning";
+    static final String FREE_LEARNING = System.getProperty("packtbookbot.url.freeLearning",
+            "https://www.packtpub.com/free-learning");
+
+    static final String GOOGLE_SEARCH = System.getProperty("packtbookbot.url.googleSearch",
+            "https://google.com/search");
+
+    /**
+     * The BigQuery API root. Null to use the client library's default.
+     */
+    static final String BIGQUERY = System.getProperty("packtbookbot.url.bigquery");
 }
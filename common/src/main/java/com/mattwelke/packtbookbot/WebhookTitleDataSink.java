@@ -0,0 +1,67 @@
+package com.mattwelke.packtbookbot;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.Map;
+
+/**
+ * Shares titles by posting them to a webhook as a JSON object, with the params map keys of {@link TitleData#toMap()}
+ * and the day under "day". Any 2xx response counts as shared.
+ */
+final class WebhookTitleDataSink implements TitleDataSink {
+    private final URI url;
+    private final Duration timeout;
+
+    /**
+     * Creates a sink posting to a webhook.
+     *
+     * @param url     The webhook's URL.
+     * @param timeout How long each request may take, including retries of the connection.
+     */
+    WebhookTitleDataSink(URI url, Duration timeout) {
+        this.url = url;
+        this.timeout = timeout;
+    }
+
+    @Override
+    public String name() {
+        return "webhook";
+    }
+
+    @Override
+    public void share(TitleData data, LocalDate day) throws CouldNotShareDataException {
+        Map<String, Object> body = data.toMap();
+        body.put("day", day.toString());
+        HttpRequest request = HttpRequest.newBuilder(url)
+                .timeout(timeout)
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(Json.write(body)))
+                .build();
+
+        HttpResponse<Void> response;
+        try (Trace.Span span = InvocationMetrics.current().trace().span("HTTP POST")
+                .attribute("http.request.method", "POST")
+                .attribute("server.address", String.valueOf(url.getHost()))
+                .attribute("url.path", String.valueOf(url.getRawPath()))) {
+            try {
+                response = HttpTransport.shared().client().send(request, HttpResponse.BodyHandlers.discarding());
+            } catch (IOException ex) {
+                span.error(ex);
+                throw new CouldNotShareDataException("Could not post title to webhook " + url + ".", ex);
+            } catch (InterruptedException ex) {
+                span.error(ex);
+                Thread.currentThread().interrupt();
+                throw new CouldNotShareDataException("Interrupted posting title to webhook " + url + ".", ex);
+            }
+            span.attribute("http.response.status_code", response.statusCode());
+        }
+        if (response.statusCode() / 100 != 2) {
+            throw new CouldNotShareDataException(String.format("Webhook %s responded with status code %d.", url,
+                    response.statusCode()));
+        }
+    }
+}
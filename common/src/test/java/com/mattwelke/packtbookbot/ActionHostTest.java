@@ -0,0 +1,121 @@
+package com.mattwelke.packtbookbot;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import com.mattwelke.owr.java.Action;
+
+class ActionHostTest {
+    /**
+     * Waits until released, then returns its activation ID as seen on the invoking thread and on another thread.
+     */
+    private static class BlockingAction extends InstrumentedAction {
+        final CountDownLatch started;
+        final CountDownLatch release = new CountDownLatch(1);
+        private final ExecutorService executor = Executors.newCachedThreadPool();
+
+        BlockingAction(int activations) {
+            super(new MetricsRegistry());
+            started = new CountDownLatch(activations);
+        }
+
+        @Override
+        protected Map<String, Object> run(Map<String, Object> params) {
+            try {
+                started.countDown();
+                release.await();
+                Object handedOff = executor.submit(InvocationMetrics.current().bind(
+                        () -> ActivationContext.current().activationId())).get();
+                if (params.containsKey("fail")) {
+                    throw new IllegalStateException("failed on purpose");
+                }
+                return Map.of("activationId", clusterContext().get("activation_id"), "handedOff", handedOff);
+            } catch (InterruptedException | ExecutionException ex) {
+                throw new RuntimeException(ex);
+            }
+        }
+    }
+
+    private static Map<String, Object> context(int activation) {
+        return Map.of("namespace", "test", "activation_id", "a" + activation);
+    }
+
+    @Test
+    void scopesClusterContextPerActivation() throws Exception {
+        BlockingAction action = new BlockingAction(8);
+        try (ActionHost host = new ActionHost()) {
+            host.register("blocking", action, 8, 0);
+            List<CompletableFuture<Map<String, Object>>> outputs = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                outputs.add(host.invoke("blocking", Map.of(), context(i)));
+            }
+
+            // All eight run at once on the one instance before any returns.
+            assertEquals(true, action.started.await(10, TimeUnit.SECONDS));
+            action.release.countDown();
+            for (int i = 0; i < 8; i++) {
+                Map<String, Object> output = outputs.get(i).get(10, TimeUnit.SECONDS);
+                assertEquals("a" + i, output.get("activationId"));
+                assertEquals("a" + i, output.get("handedOff"));
+            }
+            assertEquals(new ActionHost.Stats(0, 0, 8, 8, 0, 0), host.stats().get("blocking"));
+        }
+    }
+
+    @Test
+    void queuesAndRejectsOverTheLimit() throws Exception {
+        BlockingAction action = new BlockingAction(2);
+        try (ActionHost host = new ActionHost()) {
+            host.register("blocking", action, 2, 1);
+            List<CompletableFuture<Map<String, Object>>> outputs = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                outputs.add(host.invoke("blocking", i == 2 ? Map.of("fail", true) : Map.of(), context(i)));
+            }
+            action.started.await(10, TimeUnit.SECONDS);
+            CompletableFuture<Map<String, Object>> rejected = host.invoke("blocking", Map.of(), context(3));
+
+            ExecutionException ex = assertThrows(ExecutionException.class, rejected::get);
+            assertInstanceOf(RejectedExecutionException.class, ex.getCause());
+            assertEquals(new ActionHost.Stats(2, 1, 2, 0, 0, 1), host.stats().get("blocking"));
+
+            action.release.countDown();
+            assertEquals("a0", outputs.get(0).get(10, TimeUnit.SECONDS).get("activationId"));
+            assertEquals("a1", outputs.get(1).get(10, TimeUnit.SECONDS).get("activationId"));
+            assertThrows(ExecutionException.class, () -> outputs.get(2).get(10, TimeUnit.SECONDS));
+            assertEquals(new ActionHost.Stats(0, 0, 2, 3, 1, 1), host.stats().get("blocking"));
+        }
+    }
+
+    @Test
+    void runsSeveralActions() throws Exception {
+        Action echo = new Action() {
+            @Override
+            public Map<String, Object> invoke(Map<String, Object> input) {
+                return Map.of("action", ActivationContext.current().actionName());
+            }
+        };
+        try (ActionHost host = new ActionHost()) {
+            host.register("first", echo, 1, 0);
+            host.register("second", echo, 1, 0);
+
+            assertEquals("first", host.invoke("first", Map.of(), Map.of()).get().get("action"));
+            assertEquals("second", host.invoke("second", Map.of(), Map.of()).get().get("action"));
+            assertThrows(IllegalArgumentException.class, () -> host.register("first", echo, 1, 0));
+            assertThrows(IllegalArgumentException.class, () -> host.invoke("third", Map.of(), Map.of()));
+        }
+    }
+}
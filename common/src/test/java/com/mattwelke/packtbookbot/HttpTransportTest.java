@@ -0,0 +1,118 @@
+package com.mattwelke.packtbookbot;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.GZIPOutputStream;
+
+import com.sun.net.httpserver.HttpServer;
+
+class HttpTransportTest {
+    private static final String page = "<html><body><h3>Caf\u00e9</h3>" + "<p>filler</p>".repeat(1_000)
+            + "</body></html>";
+
+    private HttpServer server;
+    private final List<String> acceptEncodings = new CopyOnWriteArrayList<>();
+    private final HttpTransport transport = new HttpTransport(HttpClient.Version.HTTP_1_1, Duration.ofSeconds(5));
+
+    @BeforeEach
+    void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+            acceptEncodings.add(String.valueOf(acceptEncoding));
+            byte[] body = page.getBytes(StandardCharsets.ISO_8859_1);
+            if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+                ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+                try (GZIPOutputStream gzip = new GZIPOutputStream(gzipped)) {
+                    gzip.write(body);
+                }
+                body = gzipped.toByteArray();
+                exchange.getResponseHeaders().add("Content-Encoding", "gzip");
+            }
+            exchange.getResponseHeaders().add("Content-Type", "text/html; charset=ISO-8859-1");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+            exchange.close();
+        });
+        server.start();
+    }
+
+    @AfterEach
+    void stopServer() {
+        server.stop(0);
+    }
+
+    private URI url(String path) {
+        return URI.create("http://127.0.0.1:" + server.getAddress().getPort() + path);
+    }
+
+    private static String read(HttpTransport.Response response) throws IOException {
+        StringWriter body = new StringWriter();
+        response.reader().transferTo(body);
+        return body.toString();
+    }
+
+    @Test
+    void requestsCompressionAndDecodesTheBodyWithItsCharset() throws IOException {
+        String body;
+        try (HttpTransport.Response response = transport.send(HttpTransport.get(url("/"), Duration.ofSeconds(5))
+                .build())) {
+            body = read(response);
+            assertEquals(StandardCharsets.ISO_8859_1, response.charset());
+        }
+
+        assertEquals(List.of("gzip, deflate"), acceptEncodings);
+        assertEquals(page, body);
+        HttpTransport.HostStats stats = transport.stats().get("127.0.0.1");
+        assertEquals(1, stats.requests());
+        assertEquals(page.length(), stats.bytesDecoded());
+        assertTrue(stats.bytesReceived() < stats.bytesDecoded() / 10, "received " + stats.bytesReceived());
+    }
+
+    @Test
+    void leavesAnEncodingTheRequestAsksForAlone() throws IOException {
+        try (HttpTransport.Response response = transport.send(HttpTransport.get(url("/"), Duration.ofSeconds(5))
+                .header("Accept-Encoding", "identity")
+                .build())) {
+            assertEquals(page, read(response));
+        }
+
+        assertEquals(List.of("identity"), acceptEncodings);
+        HttpTransport.HostStats stats = transport.stats().get("127.0.0.1");
+        assertEquals(stats.bytesDecoded(), stats.bytesReceived());
+    }
+
+    @Test
+    void countsRequestsPerHost() throws IOException {
+        for (int i = 0; i < 3; i++) {
+            try (HttpTransport.Response response = transport.send(HttpTransport.get(url("/" + i),
+                    Duration.ofSeconds(5)).build())) {
+                response.body().readAllBytes();
+            }
+        }
+
+        HttpTransport.HostStats stats = transport.stats().get("127.0.0.1");
+        assertEquals(3, stats.requests());
+        assertEquals(0, stats.http2());
+        // Plain HTTP, so connections can't be told apart.
+        assertEquals(0, stats.connections());
+    }
+}
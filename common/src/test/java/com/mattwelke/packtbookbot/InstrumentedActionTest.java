@@ -0,0 +1,177 @@
+package com.mattwelke.packtbookbot;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpServer;
+
+class InstrumentedActionTest {
+    /**
+     * Records one phase on the invoking thread and one on another thread, like the title fetcher's stages.
+     */
+    private static class TwoPhaseAction extends InstrumentedAction {
+        private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+        TwoPhaseAction(MetricsRegistry registry) {
+            super(registry);
+        }
+
+        @Override
+        protected Map<String, Object> run(Map<String, Object> params) {
+            try {
+                InvocationMetrics.Timer timer = InvocationMetrics.current().time("parse");
+                try {
+                    InvocationMetrics.current().addBytesDownloaded(100);
+                } finally {
+                    timer.close();
+                }
+                InvocationMetrics metrics = InvocationMetrics.current();
+                executor.submit(metrics.bind(() -> {
+                    InvocationMetrics.current().record("pageFetch", 2_000_000);
+                    InvocationMetrics.current().addBytesDownloaded(50);
+                    InvocationMetrics.current().count("pageFetchHedges");
+                    return new byte[1_000_000];
+                })).get();
+            } catch (Exception ex) {
+                throw new RuntimeException(ex);
+            } finally {
+                executor.shutdown();
+            }
+            if (params.containsKey("fail")) {
+                throw new IllegalStateException("failed on purpose");
+            }
+            return Map.of("title", "Practical Mobile Forensics");
+        }
+    }
+
+    /**
+     * Fetches a page through the transport, like the title fetcher, and passes the trace on in its output.
+     */
+    private static class FetchingAction extends InstrumentedAction {
+        private final HttpTransport transport = new HttpTransport(HttpClient.Version.HTTP_1_1, Duration.ofSeconds(5));
+        private final URI url;
+
+        FetchingAction(TraceExporter traces, URI url) {
+            super(new MetricsRegistry(), traces);
+            this.url = url;
+        }
+
+        @Override
+        protected Map<String, Object> run(Map<String, Object> params) {
+            try (HttpTransport.Response response = transport.send(HttpTransport.get(url, Duration.ofSeconds(5))
+                    .build())) {
+                response.body().readAllBytes();
+            } catch (IOException ex) {
+                throw new RuntimeException(ex);
+            }
+            return TitleData.of(params).withTrace(InvocationMetrics.current().trace().context()).toMap();
+        }
+    }
+
+    @Test
+    void continuesTraceAndExportsSpans(@TempDir Path dir) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            exchange.sendResponseHeaders(204, -1);
+            exchange.close();
+        });
+        server.start();
+        Path file = dir.resolve("traces.jsonl");
+        Map<String, Object> output;
+        try {
+            URI url = URI.create("http://127.0.0.1:" + server.getAddress().getPort() + "/free-learning");
+            TitleData data = new TitleData("Learning Kotlin", new PublicationDate("April", "2020"), Optional.empty(),
+                    new Authors(List.of("Stephen Samuel"), false));
+            long startedAt = System.currentTimeMillis() - 5_000;
+            TraceContext incoming = new TraceContext("0af7651916cd43dd8448eb211c80319c", "b7ad6b7169203331",
+                    startedAt, startedAt + 1_000);
+
+            output = new FetchingAction(new TraceExporter(file, null), url).invoke(data.withTrace(incoming).toMap());
+        } finally {
+            server.stop(0);
+        }
+
+        TraceContext outgoing = TitleDataCodec.trace(output).orElseThrow();
+        assertEquals("0af7651916cd43dd8448eb211c80319c", outgoing.traceId());
+        assertNotEquals("b7ad6b7169203331", outgoing.parentSpanId());
+        @SuppressWarnings("unchecked")
+        Map<String, Object> phases = (Map<String, Object>) ((Map<String, Object>) output.get("metrics")).get("phasesMs");
+        assertTrue(((Long) phases.get("traceQueueDelay")) >= 4_000, phases.toString());
+
+        List<String> lines = Files.readAllLines(file);
+        assertEquals(1, lines.size());
+        @SuppressWarnings("unchecked")
+        List<Map<String, Object>> spans = (List<Map<String, Object>>) ((Map<String, Object>) ((List<Object>)
+                ((Map<String, Object>) ((List<Object>) Json.readObject(lines.get(0)).get("resourceSpans")).get(0))
+                        .get("scopeSpans")).get(0)).get("spans");
+        assertEquals(List.of("FetchingAction", "HTTP GET"), spans.stream().map(span -> span.get("name")).toList());
+        Map<String, Object> invocation = spans.get(0);
+        Map<String, Object> request = spans.get(1);
+        assertEquals("0af7651916cd43dd8448eb211c80319c", invocation.get("traceId"));
+        assertEquals("b7ad6b7169203331", invocation.get("parentSpanId"));
+        assertEquals(outgoing.parentSpanId(), invocation.get("spanId"));
+        assertEquals(invocation.get("spanId"), request.get("parentSpanId"));
+        assertEquals(3L, ((Number) request.get("kind")).longValue());
+        assertTrue(request.get("attributes").toString().contains("http.response.status_code"),
+                request.get("attributes").toString());
+    }
+
+    @Test
+    void addsMetricsToOutput() {
+        Map<String, Object> output = new TwoPhaseAction(new MetricsRegistry()).invoke(Map.of());
+
+        assertEquals("Practical Mobile Forensics", output.get("title"));
+        @SuppressWarnings("unchecked")
+        Map<String, Object> metrics = (Map<String, Object>) output.get("metrics");
+        assertEquals(150L, metrics.get("bytesDownloaded"));
+        assertEquals(Map.of("parse", 0L, "pageFetch", 2L), metrics.get("phasesMs"));
+        assertEquals(Map.of("pageFetchHedges", 1L), metrics.get("events"));
+        long allocatedBytes = (Long) metrics.get("allocatedBytes");
+        assertTrue(allocatedBytes == -1 || allocatedBytes >= 1_000_000, "allocated " + allocatedBytes);
+    }
+
+    @Test
+    void exportsPrometheusText(@TempDir Path dir) throws IOException {
+        Path file = dir.resolve("metrics.prom");
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.addExporter(new PrometheusFileExporter(file));
+
+        new TwoPhaseAction(registry).invoke(Map.of());
+        assertThrows(IllegalStateException.class, () -> new TwoPhaseAction(registry).invoke(Map.of("fail", true)));
+
+        String text = Files.readString(file);
+        assertTrue(text.contains(
+                "packtbookbot_invocations_total{action=\"TwoPhaseAction\",outcome=\"success\"} 1\n"), text);
+        assertTrue(text.contains(
+                "packtbookbot_invocations_total{action=\"TwoPhaseAction\",outcome=\"failure\"} 1\n"), text);
+        assertTrue(text.contains(
+                "packtbookbot_phase_duration_seconds_bucket{action=\"TwoPhaseAction\",phase=\"pageFetch\",le=\"0.001\"} 0\n"),
+                text);
+        assertTrue(text.contains(
+                "packtbookbot_phase_duration_seconds_bucket{action=\"TwoPhaseAction\",phase=\"pageFetch\",le=\"0.0025\"} 2\n"),
+                text);
+        assertTrue(text.contains(
+                "packtbookbot_phase_duration_seconds_count{action=\"TwoPhaseAction\",phase=\"pageFetch\"} 2\n"), text);
+        assertTrue(text.contains("packtbookbot_downloaded_bytes_total{action=\"TwoPhaseAction\"} 300\n"), text);
+        assertTrue(text.contains(
+                "packtbookbot_events_total{action=\"TwoPhaseAction\",event=\"pageFetchHedges\"} 2\n"), text);
+    }
+}
@@ -0,0 +1,49 @@
+package com.mattwelke.packtbookbot;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+class JsonTest {
+    @Test
+    void roundTripsTitleData() {
+        TitleData data = new TitleData("Practical Mobile Forensics - \"Fourth\" Edition",
+                new PublicationDate("April", "2020"),
+                Optional.of("https://www.packtpub.com/product/practical-mobile-forensics-fourth-edition/9781838647520"),
+                new Authors(List.of("Rohit Tamma", "Oleg Skulkin"), true));
+
+        Map<String, Object> params = Json.readObject(Json.write(data.toMap()));
+
+        assertEquals(2L, params.get("schemaVersion"));
+        assertEquals(data, TitleData.of(params));
+    }
+
+    @Test
+    void readsEveryType() {
+        Object value = Json.read(" {\"a\": [1, -2.5e1, true, false, null], \"b\": {}, \"c\": \"\\u00e9\\n\\\"\"} ");
+
+        assertEquals(Map.of(
+                "a", Arrays.asList(1L, -25.0, true, false, null),
+                "b", Map.of(),
+                "c", "\u00e9\n\""), value);
+    }
+
+    @Test
+    void escapesControlCharacters() {
+        assertEquals("[\"tab\\there\",\"\\u0001\",1.5,null]", Json.write(Arrays.asList("tab\there", "\u0001", 1.5, null)));
+    }
+
+    @Test
+    void rejectsInvalidJson() {
+        assertThrows(IllegalArgumentException.class, () -> Json.read("{\"a\": 1,}"));
+        assertThrows(IllegalArgumentException.class, () -> Json.read("{\"a\": 1} x"));
+        assertThrows(IllegalArgumentException.class, () -> Json.read("\"unterminated"));
+        assertThrows(IllegalArgumentException.class, () -> Json.readObject("[]"));
+    }
+}
@@ -0,0 +1,112 @@
+package com.mattwelke.packtbookbot;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+class TitleDataCodecTest {
+    private final TitleData data = new TitleData("Practical Mobile Forensics - Fourth Edition",
+            new PublicationDate("April", "2020"),
+            Optional.of("https://www.packtpub.com/product/practical-mobile-forensics-fourth-edition/9781838647520"),
+            new Authors(List.of("Rohit Tamma", "Oleg Skulkin"), true));
+
+    @Test
+    void roundTrip() {
+        assertEquals(data, TitleDataCodec.decode(TitleDataCodec.encode(data)));
+    }
+
+    @Test
+    void roundTripsTraceContext() {
+        TitleData traced = data.withTrace(new TraceContext("0af7651916cd43dd8448eb211c80319c", "b7ad6b7169203331",
+                1_680_307_200_000L, 1_680_307_201_500L));
+
+        Map<String, Object> map = TitleDataCodec.encode(traced);
+
+        assertEquals("00-0af7651916cd43dd8448eb211c80319c-b7ad6b7169203331-01", map.get("traceparent"));
+        assertEquals(traced, TitleDataCodec.decode(map));
+        assertTrue(traced.sameTitle(data));
+    }
+
+    @Test
+    void ignoresMalformedTraceContext() {
+        Map<String, Object> map = TitleDataCodec.encode(data);
+        map.put("traceparent", "00-" + "0".repeat(32) + "-b7ad6b7169203331-01");
+        map.put("traceStartedAtMs", 1_680_307_200_000L);
+        map.put("traceEmittedAtMs", 1_680_307_201_500L);
+
+        assertEquals(data, TitleDataCodec.decode(map));
+    }
+
+    @Test
+    void passesThroughPublicationDateWithoutYearMonth() {
+        TitleData abbreviated = new TitleData(data.title(), new PublicationDate("Apr", "2020"), data.productPageUrl(),
+                data.authors());
+
+        Map<String, Object> map = TitleDataCodec.encode(abbreviated);
+
+        assertEquals("Apr", map.get("pubDateMonth"));
+        assertFalse(map.containsKey("pubDateYearMonth"));
+        assertEquals(abbreviated, TitleDataCodec.decode(map));
+    }
+
+    @Test
+    void decodesYearMonthWithoutMonthNames() {
+        Map<String, Object> map = TitleDataCodec.encode(data);
+        map.remove("pubDateMonth");
+        map.remove("pubDateYear");
+
+        assertEquals(data, TitleDataCodec.decode(map));
+        assertEquals(data.hashCode(), TitleDataCodec.decode(map).hashCode());
+
+        map.put("pubDateYearMonth", 202013);
+        assertThrows(IllegalArgumentException.class, () -> TitleDataCodec.decode(map));
+    }
+
+    @Test
+    void encodesVersion1Keys() {
+        Map<String, Object> map = TitleDataCodec.encode(data);
+
+        assertEquals(2, map.get("schemaVersion"));
+        assertEquals(202004, map.get("pubDateYearMonth"));
+        assertEquals("April", map.get("pubDateMonth"));
+        assertEquals("2020", map.get("pubDateYear"));
+        assertEquals(true, map.get("hasProductPageUrl"));
+    }
+
+    @Test
+    void decodesVersion1() {
+        Map<String, Object> map = new HashMap<>();
+        map.put("title", "Practical Mobile Forensics - Fourth Edition");
+        map.put("pubDateMonth", "April");
+        map.put("pubDateYear", "2020");
+        map.put("hasProductPageUrl", true);
+        map.put("productPageUrl",
+                "https://www.packtpub.com/product/practical-mobile-forensics-fourth-edition/9781838647520");
+        map.put("authorsNames", List.of("Rohit Tamma", "Oleg Skulkin"));
+        map.put("authorsMore", true);
+
+        assertEquals(data, TitleDataCodec.decode(map));
+    }
+
+    @Test
+    void rejectsWrongTypes() {
+        Map<String, Object> map = TitleDataCodec.encode(data);
+        map.put("authorsNames", List.of(1, 2));
+
+        IllegalArgumentException ex = assertThrows(IllegalArgumentException.class,
+                () -> TitleDataCodec.decode(map));
+        assertEquals("each string in param \"authorsNames\" must be at least one character long", ex.getMessage());
+
+        map.put("authorsNames", List.of("Rohit Tamma"));
+        map.put("authorsMore", "true");
+        assertThrows(IllegalArgumentException.class, () -> TitleDataCodec.decode(map));
+    }
+}
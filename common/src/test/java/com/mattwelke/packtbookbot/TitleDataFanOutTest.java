@@ -0,0 +1,160 @@
+package com.mattwelke.packtbookbot;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+class TitleDataFanOutTest {
+    private static final LocalDate day = LocalDate.of(2023, 3, 28);
+
+    /**
+     * Records the titles it shares, after waiting for a latch, or fails.
+     */
+    private static final class TestSink implements TitleDataSink {
+        final String name;
+        final CountDownLatch release;
+        final boolean fail;
+        final List<String> shared = new CopyOnWriteArrayList<>();
+        volatile boolean closed;
+
+        TestSink(String name, CountDownLatch release, boolean fail) {
+            this.name = name;
+            this.release = release;
+            this.fail = fail;
+        }
+
+        @Override
+        public String name() {
+            return name;
+        }
+
+        @Override
+        public void share(TitleData data, LocalDate day) throws CouldNotShareDataException {
+            try {
+                release.await();
+            } catch (InterruptedException ex) {
+                throw new CouldNotShareDataException("Interrupted.", ex);
+            }
+            if (fail) {
+                throw new CouldNotShareDataException("Sink " + name + " is down.");
+            }
+            shared.add(data.title());
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+
+    @Test
+    void slowSinkDoesNotDelayOthers() throws Exception {
+        CountDownLatch slowRelease = new CountDownLatch(1);
+        TestSink fast = new TestSink("fast", new CountDownLatch(0), false);
+        TestSink slow = new TestSink("slow", slowRelease, false);
+
+        try (TitleDataFanOut fanOut = new TitleDataFanOut(List.of(fast, slow), 4)) {
+            Map<String, CompletableFuture<Void>> deliveries = fanOut.publish(title("A"), day, Duration.ofSeconds(1));
+
+            deliveries.get("fast").get(5, TimeUnit.SECONDS);
+            assertEquals(List.of("A"), fast.shared);
+            assertTrue(slow.shared.isEmpty());
+
+            slowRelease.countDown();
+            deliveries.get("slow").get(5, TimeUnit.SECONDS);
+            assertEquals(List.of("A"), slow.shared);
+        }
+        assertTrue(fast.closed);
+        assertTrue(slow.closed);
+    }
+
+    @Test
+    void failingSinkDoesNotFailOthers() throws Exception {
+        TestSink working = new TestSink("working", new CountDownLatch(0), false);
+        TestSink failing = new TestSink("failing", new CountDownLatch(0), true);
+
+        try (TitleDataFanOut fanOut = new TitleDataFanOut(List.of(working, failing), 4)) {
+            Map<String, CompletableFuture<Void>> deliveries = fanOut.publish(title("A"), day, Duration.ofSeconds(1));
+
+            deliveries.get("working").get(5, TimeUnit.SECONDS);
+            ExecutionException ex = assertThrows(ExecutionException.class,
+                    () -> deliveries.get("failing").get(5, TimeUnit.SECONDS));
+            assertTrue(ex.getCause() instanceof CouldNotShareDataException);
+        }
+    }
+
+    @Test
+    void failsDeliveryWhenQueueStaysFull() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        TestSink blocked = new TestSink("blocked", release, false);
+
+        try (TitleDataFanOut fanOut = new TitleDataFanOut(List.of(blocked), 1)) {
+            // The first title is taken by the sink's thread, and the second fills the queue.
+            CompletableFuture<Void> first = fanOut.publish(title("A"), day, Duration.ZERO).get("blocked");
+            waitUntil(() -> fanOut.queued().get("blocked") == 0);
+            CompletableFuture<Void> second = fanOut.publish(title("B"), day, Duration.ZERO).get("blocked");
+
+            long start = System.nanoTime();
+            CompletableFuture<Void> third = fanOut.publish(title("C"), day, Duration.ofMillis(100)).get("blocked");
+            assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(100));
+            assertTrue(third.isCompletedExceptionally());
+
+            release.countDown();
+            first.get(5, TimeUnit.SECONDS);
+            second.get(5, TimeUnit.SECONDS);
+        }
+        assertEquals(List.of("A", "B"), blocked.shared);
+    }
+
+    @Test
+    void closeSharesQueuedTitles() {
+        TestSink sink = new TestSink("sink", new CountDownLatch(0), false);
+
+        TitleDataFanOut fanOut = new TitleDataFanOut(List.of(sink), 8);
+        try {
+            for (String name : List.of("A", "B", "C")) {
+                fanOut.publish(title(name), day, Duration.ofSeconds(1));
+            }
+        } catch (InterruptedException ex) {
+            throw new AssertionError(ex);
+        }
+        fanOut.close();
+
+        assertEquals(List.of("A", "B", "C"), sink.shared);
+        assertThrows(IllegalStateException.class, () -> fanOut.publish(title("D"), day, Duration.ZERO));
+    }
+
+    @Test
+    void rejectsDuplicateSinkNames() {
+        TestSink sink = new TestSink("sink", new CountDownLatch(0), false);
+
+        assertThrows(IllegalArgumentException.class, () -> new TitleDataFanOut(List.of(sink, sink), 1));
+    }
+
+    private static TitleData title(String title) {
+        return new TitleData(title, new PublicationDate("April", "2020"), Optional.empty(),
+                new Authors(List.of("Rohit Tamma"), false));
+    }
+
+    private static void waitUntil(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, "Timed out waiting.");
+            Thread.sleep(5);
+        }
+    }
+}
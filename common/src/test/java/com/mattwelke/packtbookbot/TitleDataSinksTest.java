@@ -0,0 +1,90 @@
+package com.mattwelke.packtbookbot;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.sun.net.httpserver.HttpServer;
+
+class TitleDataSinksTest {
+    private static final LocalDate day = LocalDate.of(2023, 3, 28);
+    private static final TitleData data = new TitleData("Practical Mobile Forensics - Fourth Edition",
+            new PublicationDate("April", "2020"), Optional.empty(),
+            new Authors(List.of("Rohit Tamma", "Oleg Skulkin"), true));
+
+    @Test
+    void fileSinkAppendsOneLinePerTitle(@TempDir Path dir) throws Exception {
+        Path file = dir.resolve("out").resolve("free-ebooks.jsonl");
+
+        try (FileTitleDataSink sink = new FileTitleDataSink(file)) {
+            sink.share(data, day);
+            sink.share(data, day.plusDays(1));
+        }
+
+        List<String> lines = Files.readAllLines(file);
+        assertEquals(2, lines.size());
+        Map<String, Object> first = Json.readObject(lines.get(0));
+        assertEquals("2023-03-28", first.get("day"));
+        assertEquals(data, TitleData.of(first));
+        assertEquals("2023-03-29", Json.readObject(lines.get(1)).get("day"));
+    }
+
+    @Test
+    void webhookSinkPostsTitle() throws Exception {
+        List<String> bodies = new CopyOnWriteArrayList<>();
+        HttpServer server = webhook(204, bodies);
+        try {
+            new WebhookTitleDataSink(url(server), Duration.ofSeconds(5)).share(data, day);
+        } finally {
+            server.stop(0);
+        }
+
+        assertEquals(1, bodies.size());
+        Map<String, Object> body = Json.readObject(bodies.get(0));
+        assertEquals("2023-03-28", body.get("day"));
+        assertEquals(data, TitleData.of(body));
+    }
+
+    @Test
+    void webhookSinkFailsOnErrorStatus() throws Exception {
+        HttpServer server = webhook(500, new CopyOnWriteArrayList<>());
+        try {
+            WebhookTitleDataSink sink = new WebhookTitleDataSink(url(server), Duration.ofSeconds(5));
+            assertThrows(CouldNotShareDataException.class, () -> sink.share(data, day));
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    private static HttpServer webhook(int status, List<String> bodies) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/webhook", exchange -> {
+            try (exchange; InputStream body = exchange.getRequestBody()) {
+                bodies.add(new String(body.readAllBytes(), StandardCharsets.UTF_8));
+                exchange.sendResponseHeaders(status, -1);
+            }
+        });
+        server.start();
+        return server;
+    }
+
+    private static URI url(HttpServer server) {
+        return URI.create("http://127.0.0.1:" + server.getAddress().getPort() + "/webhook");
+    }
+}
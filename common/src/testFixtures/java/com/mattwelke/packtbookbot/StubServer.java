@@ -0,0 +1,132 @@
+package com.mattwelke.packtbookbot;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A local HTTP server standing in for one of the services the actions call. It serves fixed responses by path, after
+ * a configurable latency, and fails a configurable fraction of requests with a 503, so that the actions can be run
+ * offline under realistic conditions. Used by the load test and by the training runs for the class data sharing
+ * archives.
+ */
+final class StubServer implements AutoCloseable {
+    private final String name;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    private volatile Behavior behavior = new Behavior(Duration.ZERO, 0);
+
+    /**
+     * How the server behaves.
+     *
+     * @param latency     How long the server waits before responding.
+     * @param failureRate The fraction of requests, from 0 to 1, answered with a 503 instead of the response.
+     */
+    record Behavior(Duration latency, double failureRate) {
+    }
+
+    /**
+     * Starts a server on a free local port.
+     *
+     * @param name The name of the service, for reports.
+     * @throws IOException when the server can't be started.
+     */
+    StubServer(String name) throws IOException {
+        this.name = name;
+        // A large accept backlog, so that connections opened in a burst, like a crawl's, wait instead of being
+        // refused.
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 1024);
+        // Many threads, so that the latency of one request doesn't delay the others, like a real service.
+        this.executor = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "stub-" + name);
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    /**
+     * Serves a response for every path starting with a prefix, whatever the method.
+     *
+     * @param pathPrefix  The path prefix.
+     * @param contentType The response's content type.
+     * @param body        The response body.
+     */
+    void route(String pathPrefix, String contentType, byte[] body) {
+        server.createContext(pathPrefix, exchange -> {
+            try (exchange; InputStream request = exchange.getRequestBody()) {
+                request.readAllBytes();
+                requests.incrementAndGet();
+
+                Behavior current = behavior;
+                sleep(current.latency());
+                if (ThreadLocalRandom.current().nextDouble() < current.failureRate()) {
+                    failures.incrementAndGet();
+                    exchange.sendResponseHeaders(503, -1);
+                    return;
+                }
+
+                exchange.getResponseHeaders().add("Content-Type", contentType);
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            }
+        });
+    }
+
+    void behavior(Behavior behavior) {
+        this.behavior = behavior;
+    }
+
+    String name() {
+        return name;
+    }
+
+    /**
+     * Returns the URL of a path on the server.
+     *
+     * @param path The path, starting with a slash.
+     * @return The URL.
+     */
+    String url(String path) {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + path;
+    }
+
+    long requests() {
+        return requests.get();
+    }
+
+    long failures() {
+        return failures.get();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private static void sleep(Duration latency) {
+        if (latency.isZero()) {
+            return;
+        }
+        try {
+            Thread.sleep(latency.toMillis());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,355 @@
+package com.mattwelke.packtbookbot;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.cloud.bigquery.BigQuery;
+import com.google.cloud.bigquery.BigQueryError;
+import com.google.cloud.bigquery.InsertAllRequest;
+import com.google.cloud.bigquery.InsertAllResponse;
+import com.google.cloud.bigquery.TableId;
+
+/**
+ * Collects rows for a BigQuery table and inserts them in batches instead of one insert request per row. A batch is
+ * flushed when it reaches a number of rows, an estimated number of bytes or an age, whichever comes first. Rows are
+ * collected across invocations when the sink is shared by them.
+ * <p>
+ * Rows are batched by the client they're added with and the thresholds they're added under, so that a row is only
+ * ever inserted with the credentials and project of the invocation that added it, and an invocation's thresholds
+ * don't change when the rows of other invocations are flushed. Insert requests are sent without holding the sink's
+ * lock, so adding rows doesn't wait for a flush of another batch.
+ * <p>
+ * Each row is added along with the event it was built from. When BigQuery rejects rows, the flush result maps the
+ * per-row insert errors back to those events so that the caller can retry them.
+ *
+ * @param <E> The type of the events rows are built from.
+ */
+class BigQueryBatchingSink<E> implements AutoCloseable {
+    private final Logger logger = Logger.getLogger(BigQueryBatchingSink.class.getName());
+
+    private final TableId table;
+    private final Limits defaultLimits;
+    private final Consumer<FlushResult<E>> backgroundFlushListener;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "bigquery-batching-sink");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Map<Key, Batch<E>> batches = new HashMap<>();
+
+    /**
+     * The thresholds that trigger a flush.
+     *
+     * @param maxRows  Flush when this many rows are pending.
+     * @param maxBytes Flush when the pending rows are estimated to be at least this many bytes.
+     * @param maxAge   Flush when the oldest pending row has been pending this long.
+     */
+    record Limits(int maxRows, long maxBytes, Duration maxAge) {
+        Limits {
+            if (maxRows < 1) {
+                throw new IllegalArgumentException("maxRows must be at least 1");
+            }
+            if (maxBytes < 1) {
+                throw new IllegalArgumentException("maxBytes must be at least 1");
+            }
+            if (maxAge.isZero() || maxAge.isNegative()) {
+                throw new IllegalArgumentException("maxAge must be positive");
+            }
+        }
+    }
+
+    /**
+     * A row BigQuery rejected, and the event it was built from.
+     *
+     * @param event  The event.
+     * @param errors The insert errors BigQuery reported for the row.
+     */
+    record FailedEvent<E>(E event, List<BigQueryError> errors) {
+    }
+
+    /**
+     * The outcome of a flush.
+     *
+     * @param inserted The events whose rows were inserted.
+     * @param failed   The events whose rows were rejected. Also includes every event in the batch when the insert
+     *                 request itself failed.
+     */
+    record FlushResult<E>(List<E> inserted, List<FailedEvent<E>> failed) {
+        static <E> FlushResult<E> empty() {
+            return new FlushResult<>(List.of(), List.of());
+        }
+
+        boolean isEmpty() {
+            return inserted.isEmpty() && failed.isEmpty();
+        }
+    }
+
+    private record PendingRow<E>(E event, String insertId, Map<String, Object> content, long size) {
+    }
+
+    /**
+     * What rows are batched by.
+     *
+     * @param client The client the rows are inserted with, compared by identity, since each client has its own
+     *               credentials and project.
+     * @param limits The thresholds that trigger a flush of the rows.
+     */
+    private record Key(BigQuery client, Limits limits) {
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key other && client == other.client && limits.equals(other.limits);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(client) + limits.hashCode();
+        }
+    }
+
+    /**
+     * The rows pending for a key.
+     */
+    private static final class Batch<E> {
+        private final List<PendingRow<E>> rows = new ArrayList<>();
+        private long bytes;
+        private ScheduledFuture<?> ageFlush;
+    }
+
+    /**
+     * Creates a sink.
+     *
+     * @param table                   The table to insert rows into.
+     * @param defaultLimits           The thresholds that trigger a flush, for rows added without their own.
+     * @param backgroundFlushListener Receives the results of flushes triggered by age, since there is no caller to
+     *                                return them to.
+     */
+    BigQueryBatchingSink(TableId table, Limits defaultLimits, Consumer<FlushResult<E>> backgroundFlushListener) {
+        this.table = table;
+        this.defaultLimits = defaultLimits;
+        this.backgroundFlushListener = backgroundFlushListener;
+    }
+
+    /**
+     * Adds a row to the batch of its client, under the default thresholds, flushing the batch if that makes it reach
+     * the row count or byte size threshold.
+     *
+     * @param client  The client to insert with.
+     * @param event   The event the row was built from.
+     * @param content The row.
+     * @return The result of the flush, or an empty result if the row is still pending.
+     */
+    FlushResult<E> add(BigQuery client, E event, Map<String, Object> content) {
+        return add(client, defaultLimits, event, null, content);
+    }
+
+    /**
+     * Adds a row with an insert ID to the batch of its client, under the default thresholds. See
+     * {@link #add(BigQuery, Limits, Object, String, Map)}.
+     *
+     * @param client   The client to insert with.
+     * @param event    The event the row was built from.
+     * @param insertId The row's insert ID, or null to insert it without one.
+     * @param content  The row.
+     * @return The result of the flush, or an empty result if the row is still pending.
+     */
+    FlushResult<E> add(BigQuery client, E event, String insertId, Map<String, Object> content) {
+        return add(client, defaultLimits, event, insertId, content);
+    }
+
+    /**
+     * Adds a row with an insert ID to the batch of its client and thresholds, flushing the batch if that makes it
+     * reach the row count or byte size threshold. BigQuery tries to drop a row when a row with the same insert ID was
+     * inserted in about the last minute, so a row that's retried soon with the same insert ID is usually only inserted
+     * once. This is best effort, not a guarantee.
+     *
+     * @param client   The client to insert with.
+     * @param limits   The thresholds that trigger a flush of the row's batch.
+     * @param event    The event the row was built from.
+     * @param insertId The row's insert ID, or null to insert it without one.
+     * @param content  The row.
+     * @return The result of the flush, or an empty result if the row is still pending.
+     */
+    FlushResult<E> add(BigQuery client, Limits limits, E event, String insertId, Map<String, Object> content) {
+        Key key = new Key(client, limits);
+        long size = estimatedSize(content);
+        List<PendingRow<E>> full;
+        synchronized (this) {
+            Batch<E> batch = batches.computeIfAbsent(key, k -> new Batch<>());
+            batch.rows.add(new PendingRow<>(event, insertId, content, size));
+            batch.bytes += size;
+
+            if (batch.rows.size() < limits.maxRows() && batch.bytes < limits.maxBytes()) {
+                if (batch.ageFlush == null) {
+                    batch.ageFlush = scheduler.schedule(() -> flushFromBackground(key, batch),
+                            limits.maxAge().toMillis(), TimeUnit.MILLISECONDS);
+                }
+                return FlushResult.empty();
+            }
+            full = take(key);
+        }
+        return insert(client, full);
+    }
+
+    /**
+     * Inserts every pending row, a batch at a time.
+     *
+     * @return The result of the flush of every batch.
+     */
+    FlushResult<E> flush() {
+        Map<Key, List<PendingRow<E>>> taken = new HashMap<>();
+        synchronized (this) {
+            for (Key key : List.copyOf(batches.keySet())) {
+                taken.put(key, take(key));
+            }
+        }
+        List<E> inserted = new ArrayList<>();
+        List<FailedEvent<E>> failed = new ArrayList<>();
+        taken.forEach((key, rows) -> {
+            FlushResult<E> result = insert(key.client(), rows);
+            inserted.addAll(result.inserted());
+            failed.addAll(result.failed());
+        });
+        return new FlushResult<>(inserted, failed);
+    }
+
+    /**
+     * Removes a batch, to be inserted once the lock is released.
+     */
+    private List<PendingRow<E>> take(Key key) {
+        Batch<E> batch = batches.remove(key);
+        if (batch.ageFlush != null) {
+            batch.ageFlush.cancel(false);
+        }
+        return batch.rows;
+    }
+
+    private FlushResult<E> insert(BigQuery client, List<PendingRow<E>> batch) {
+        if (batch.isEmpty()) {
+            return FlushResult.empty();
+        }
+
+        InsertAllRequest.Builder request = InsertAllRequest.newBuilder(table);
+        for (PendingRow<E> row : batch) {
+            if (row.insertId() != null) {
+                request.addRow(row.insertId(), row.content());
+            } else {
+                request.addRow(row.content());
+            }
+        }
+
+        InsertAllResponse response;
+        // A flush by age runs on the flushing thread, outside any invocation, so its span isn't exported.
+        try (Trace.Span span = InvocationMetrics.current().trace().span("BigQuery insertAll")
+                .attribute("db.system", "bigquery")
+                .attribute("db.collection.name", table.getTable())
+                .attribute("db.operation.batch.size", batch.size())) {
+            try {
+                response = client.insertAll(request.build());
+            } catch (RuntimeException ex) {
+                span.error(ex);
+                logger.log(Level.SEVERE, "BigQuery insert request for a batch of " + batch.size() + " rows failed.",
+                        ex);
+                List<FailedEvent<E>> failed = batch.stream()
+                        .map(row -> new FailedEvent<>(row.event(),
+                                List.of(new BigQueryError("requestFailed", null, String.valueOf(ex.getMessage())))))
+                        .toList();
+                return new FlushResult<>(List.of(), failed);
+            }
+            span.attribute("bigquery.insert_errors", response.getInsertErrors().size());
+        }
+
+        // Insert errors are keyed by the index of the row in the request, which is the index in the batch.
+        Map<Long, List<BigQueryError>> insertErrors = response.getInsertErrors();
+        List<E> inserted = new ArrayList<>(batch.size());
+        List<FailedEvent<E>> failed = new ArrayList<>(insertErrors.size());
+        for (int i = 0; i < batch.size(); i++) {
+            List<BigQueryError> errors = insertErrors.get((long) i);
+            if (errors == null) {
+                inserted.add(batch.get(i).event());
+            } else {
+                failed.add(new FailedEvent<>(batch.get(i).event(), errors));
+            }
+        }
+        return new FlushResult<>(inserted, failed);
+    }
+
+    /**
+     * Returns the number of rows waiting to be flushed.
+     *
+     * @return The number of rows, across every batch.
+     */
+    synchronized int pendingRows() {
+        int rows = 0;
+        for (Batch<E> batch : batches.values()) {
+            rows += batch.rows.size();
+        }
+        return rows;
+    }
+
+    /**
+     * Flushes every pending row and stops the thread that flushes by age.
+     */
+    @Override
+    public void close() {
+        FlushResult<E> result = flush();
+        if (!result.isEmpty()) {
+            backgroundFlushListener.accept(result);
+        }
+        scheduler.shutdown();
+    }
+
+    private void flushFromBackground(Key key, Batch<E> batch) {
+        List<PendingRow<E>> rows;
+        synchronized (this) {
+            // The batch may have been flushed since, and a new batch started for the key.
+            if (batches.get(key) != batch) {
+                return;
+            }
+            rows = take(key);
+        }
+        FlushResult<E> result = insert(key.client(), rows);
+        if (!result.isEmpty()) {
+            backgroundFlushListener.accept(result);
+        }
+    }
+
+    /**
+     * Estimates the size of a row's value as it would be encoded in the insert request. Only needs to be accurate
+     * enough to keep requests well under BigQuery's request size limit.
+     */
+    private static long estimatedSize(Object value) {
+        if (value == null) {
+            return 4;
+        }
+        if (value instanceof CharSequence s) {
+            return s.length() + 2;
+        }
+        if (value instanceof Map<?, ?> map) {
+            long size = 2;
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                size += estimatedSize(entry.getKey()) + estimatedSize(entry.getValue()) + 2;
+            }
+            return size;
+        }
+        if (value instanceof Collection<?> collection) {
+            long size = 2;
+            for (Object element : collection) {
+                size += estimatedSize(element) + 1;
+            }
+            return size;
+        }
+        return String.valueOf(value).length();
+    }
+}
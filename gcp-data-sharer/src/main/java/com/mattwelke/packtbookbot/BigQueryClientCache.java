@@ -0,0 +1,263 @@
+package com.mattwelke.packtbookbot;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.auth.oauth2.AccessToken;
+import com.google.auth.oauth2.GoogleCredentials;
+import com.google.auth.oauth2.ServiceAccountCredentials;
+import com.google.cloud.NoCredentials;
+import com.google.cloud.bigquery.BigQuery;
+import com.google.cloud.bigquery.BigQueryOptions;
+import com.google.cloud.bigquery.InsertAllRequest;
+import com.google.cloud.bigquery.TableId;
+
+/**
+ * Keeps BigQuery clients, and the OAuth tokens of the credentials they were built with, alive between warm
+ * invocations of an action. Without this, every invocation decodes the credentials, builds a new client and waits for
+ * a new token before it can insert anything.
+ * <p>
+ * Clients are keyed by a fingerprint of the encoded credentials, so the credentials themselves are never used as a
+ * map key. A client is evicted when it hasn't been used for longer than the idle timeout, or when a client for a
+ * rotated key of the same service account is created.
+ */
+class BigQueryClientCache {
+    private static final List<String> scopes = List.of(
+            "https://www.googleapis.com/auth/bigquery",
+            "https://www.googleapis.com/auth/cloud-platform");
+
+    private final Duration idleTimeout;
+    private final Duration refreshMargin;
+    private final Clock clock;
+    private final CredentialsFactory credentialsFactory;
+    private final Map<String, CachedClient> clients = new HashMap<>();
+
+    private long hits;
+    private long misses;
+
+    /**
+     * The result of looking up a client.
+     *
+     * @param client The client, ready to use.
+     * @param hit    Whether the client came from the cache.
+     */
+    record Lookup(BigQuery client, boolean hit) {
+    }
+
+    /**
+     * Creates credentials from a service account key.
+     */
+    @FunctionalInterface
+    interface CredentialsFactory {
+        /**
+         * Creates credentials. They're scoped for BigQuery and their first token is fetched afterwards.
+         *
+         * @param keyJson The decoded service account key JSON.
+         * @return The credentials.
+         * @throws IOException when the key can't be parsed.
+         */
+        GoogleCredentials create(byte[] keyJson) throws IOException;
+    }
+
+    /**
+     * A cached client. Building the client and refreshing its token call Google, so they're done holding the entry's
+     * lock instead of the cache's, and lookups for other credentials don't wait for them.
+     */
+    private static final class CachedClient {
+        /**
+         * Guarded by the cache.
+         */
+        private Instant lastUsed;
+
+        /**
+         * Guarded by the entry. Null until the client is built.
+         */
+        private BigQuery client;
+        private GoogleCredentials credentials;
+
+        /**
+         * Set once the client is built, and read by the cache when evicting the clients of rotated keys.
+         */
+        private volatile String principal;
+    }
+
+    /**
+     * Creates a cache.
+     *
+     * @param idleTimeout   How long a client may go unused before it is evicted.
+     * @param refreshMargin How long before its token expires a client's token is refreshed.
+     */
+    BigQueryClientCache(Duration idleTimeout, Duration refreshMargin) {
+        this(idleTimeout, refreshMargin, Clock.systemUTC(),
+                keyJson -> GoogleCredentials.fromStream(new ByteArrayInputStream(keyJson)));
+    }
+
+    /**
+     * Creates a cache with a clock and a way of creating credentials.
+     *
+     * @param idleTimeout        How long a client may go unused before it is evicted.
+     * @param refreshMargin      How long before its token expires a client's token is refreshed.
+     * @param clock              The clock.
+     * @param credentialsFactory Creates the credentials clients are built with.
+     */
+    BigQueryClientCache(Duration idleTimeout, Duration refreshMargin, Clock clock,
+                        CredentialsFactory credentialsFactory) {
+        this.idleTimeout = idleTimeout;
+        this.refreshMargin = refreshMargin;
+        this.clock = clock;
+        this.credentialsFactory = credentialsFactory;
+    }
+
+    /**
+     * Returns a BigQuery client for the encoded credentials, reusing a cached one if possible. The returned client's
+     * token is valid for at least the refresh margin. Safe for concurrent use, and lookups only wait for a token to be
+     * fetched when it's for the same credentials.
+     *
+     * @param encodedCreds The Base64 encoded service account key JSON.
+     * @return The client and whether it came from the cache.
+     * @throws IOException when the credentials can't be parsed or a token can't be fetched.
+     */
+    Lookup client(String encodedCreds) throws IOException {
+        Instant now = clock.instant();
+        String fingerprint = fingerprint(encodedCreds);
+        CachedClient cached;
+        synchronized (this) {
+            evictIdle(now);
+            cached = clients.computeIfAbsent(fingerprint, f -> new CachedClient());
+            cached.lastUsed = now;
+        }
+
+        boolean hit;
+        BigQuery client;
+        synchronized (cached) {
+            hit = cached.client != null;
+            try {
+                if (hit) {
+                    refreshIfExpiring(cached.credentials, now);
+                } else {
+                    build(cached, encodedCreds, fingerprint);
+                }
+            } catch (IOException | RuntimeException ex) {
+                if (!hit) {
+                    // So that the next lookup tries again.
+                    synchronized (this) {
+                        clients.remove(fingerprint, cached);
+                    }
+                }
+                throw ex;
+            }
+            client = cached.client;
+        }
+
+        synchronized (this) {
+            if (hit) {
+                hits++;
+            } else {
+                misses++;
+                // A rotated key has a new fingerprint, so a client built from the old key would never be used again.
+                String principal = cached.principal;
+                clients.values().removeIf(c -> c != cached && principal.equals(c.principal));
+            }
+        }
+        return new Lookup(client, hit);
+    }
+
+    /**
+     * Builds a client for an entry, from the encoded credentials. Must hold the entry's lock.
+     */
+    private void build(CachedClient cached, String encodedCreds, String fingerprint) throws IOException {
+        byte[] gcpCredsBytes = Base64.getDecoder().decode(encodedCreds);
+        GoogleCredentials credentials = credentialsFactory.create(gcpCredsBytes).createScoped(scopes);
+
+        // Fetch the token now so that the first insert doesn't have to.
+        credentials.refresh();
+
+        BigQueryOptions.Builder options = BigQueryOptions.newBuilder().setCredentials(credentials);
+        if (Urls.BIGQUERY != null) {
+            options.setHost(Urls.BIGQUERY);
+        }
+        cached.client = options.build().getService();
+        cached.credentials = credentials;
+        cached.principal = principal(credentials, fingerprint);
+    }
+
+    /**
+     * Loads and initializes the classes a client uses, by building a client that is never used. Meant to run on a
+     * background thread while the first invocation decodes its credentials, so that building and using its client
+     * doesn't have to load them. Failures are ignored, because the invocation will report them if they matter.
+     */
+    static void preload() {
+        try {
+            BigQueryOptions.Builder options = BigQueryOptions.newBuilder()
+                    .setProjectId("preload")
+                    .setCredentials(NoCredentials.getInstance());
+            if (Urls.BIGQUERY != null) {
+                options.setHost(Urls.BIGQUERY);
+            }
+            BigQuery client = options.build().getService();
+            InsertAllRequest.newBuilder(TableId.of("preload", "preload")).addRow(Map.of("preload", 0)).build();
+            client.getOptions().getRpc();
+        } catch (RuntimeException ex) {
+            Logger.getLogger(BigQueryClientCache.class.getName()).log(Level.FINE, "Could not preload BigQuery.", ex);
+        }
+    }
+
+    /**
+     * Returns the cache's counters, for including in action output.
+     *
+     * @return The counters.
+     */
+    synchronized Map<String, Object> stats() {
+        return Map.of(
+                "hits", hits,
+                "misses", misses,
+                "size", clients.size());
+    }
+
+    private void evictIdle(Instant now) {
+        Instant idleCutoff = now.minus(idleTimeout);
+        clients.values().removeIf(c -> c.lastUsed.isBefore(idleCutoff));
+    }
+
+    private void refreshIfExpiring(GoogleCredentials credentials, Instant now) throws IOException {
+        AccessToken token = credentials.getAccessToken();
+        if (token == null || (token.getExpirationTime() != null
+                && token.getExpirationTime().toInstant().isBefore(now.plus(refreshMargin)))) {
+            credentials.refresh();
+        }
+    }
+
+    /**
+     * Identifies who the credentials belong to, so that a rotated key for the same service account can be recognized.
+     * Credentials that aren't service account credentials are identified by their fingerprint alone.
+     */
+    private static String principal(GoogleCredentials credentials, String fingerprint) {
+        if (credentials instanceof ServiceAccountCredentials serviceAccount) {
+            return Objects.requireNonNullElse(serviceAccount.getClientEmail(), fingerprint);
+        }
+        return fingerprint;
+    }
+
+    private static String fingerprint(String encodedCreds) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(encodedCreds.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-256 not available.", ex);
+        }
+    }
+}
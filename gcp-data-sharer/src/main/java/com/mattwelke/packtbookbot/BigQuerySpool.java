@@ -0,0 +1,308 @@
+package com.mattwelke.packtbookbot;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * A write-ahead spool of the rows being inserted into BigQuery, so that a row BigQuery couldn't take isn't lost, and
+ * can be replayed later by a {@link BigQuerySpoolDrainer}.
+ * <p>
+ * A row is appended to the spool, and forced to the disk, before it's sent. Once BigQuery has inserted it, or rejected
+ * it for good, it's acknowledged, which removes it from the spool. Rows are identified by their insert IDs, which are
+ * also sent to BigQuery. BigQuery only uses them to drop duplicates on a best effort basis, within about a minute, so a
+ * row replayed soon after it was inserted is usually dropped, but one replayed later, like after a restart, can be
+ * inserted twice. Delivery is at least once.
+ * <p>
+ * The spool is a directory of segment files, each a log of JSON lines recording appended and acknowledged rows.
+ * Appends go to the newest segment, which is replaced by a new one when it's full, and a new one is started whenever
+ * the spool is opened, so a line torn by a crash is only ever at the end of an older segment. Segments are deleted
+ * oldest first, once none of the rows appended to them are still pending. Since a row is always acknowledged in the
+ * segment it was appended to or a later one, this never brings back an acknowledged row.
+ * <p>
+ * Rows being sent are marked as in flight, so that the drainer doesn't replay a row while its first insert is still
+ * pending. Marks aren't persisted, so every pending row can be replayed after a restart.
+ */
+final class BigQuerySpool implements AutoCloseable {
+    private static final String segmentPrefix = "segment-";
+    private static final String segmentSuffix = ".log";
+
+    private static volatile BigQuerySpool shared;
+
+    private final Logger logger = Logger.getLogger(BigQuerySpool.class.getName());
+
+    private final Path dir;
+    private final long maxSegmentBytes;
+
+    /**
+     * Pending rows by insert ID, in the order they were appended.
+     */
+    private final Map<String, Row> pending = new LinkedHashMap<>();
+    private final Set<String> inFlight = new HashSet<>();
+
+    /**
+     * How many pending rows were appended to each segment, by segment number, including the current segment.
+     */
+    private final TreeMap<Long, Integer> liveRowsBySegment = new TreeMap<>();
+
+    private long segment;
+    private FileChannel channel;
+    private long appended;
+    private long acknowledged;
+
+    /**
+     * A pending row.
+     *
+     * @param insertId The row's insert ID.
+     * @param content  The row.
+     * @param segment  The segment it was appended to.
+     */
+    record Row(String insertId, Map<String, Object> content, long segment) {
+    }
+
+    /**
+     * The counters of the spool.
+     *
+     * @param pendingRows  How many rows are waiting to be inserted.
+     * @param inFlightRows How many of them are being inserted.
+     * @param segments     How many segment files there are.
+     * @param appended     How many rows were appended since the spool was opened.
+     * @param acknowledged How many rows were acknowledged since the spool was opened.
+     */
+    record Stats(int pendingRows, int inFlightRows, int segments, long appended, long acknowledged) {
+        Map<String, Object> toMap() {
+            return Map.of("pendingRows", pendingRows, "inFlightRows", inFlightRows, "segments", segments,
+                    "appended", appended, "acknowledged", acknowledged);
+        }
+    }
+
+    /**
+     * Opens a spool, recovering the rows still pending in its segments.
+     *
+     * @param dir             The spool's directory, created if it doesn't exist.
+     * @param maxSegmentBytes The size at which a segment is replaced by a new one.
+     * @throws IOException when the directory or its segments can't be read, or the new segment can't be created.
+     */
+    BigQuerySpool(Path dir, long maxSegmentBytes) throws IOException {
+        this.dir = dir;
+        this.maxSegmentBytes = maxSegmentBytes;
+        Files.createDirectories(dir);
+
+        List<Long> segments = segments();
+        for (long number : segments) {
+            recover(number);
+        }
+        segment = segments.isEmpty() ? 0 : segments.get(segments.size() - 1);
+        startSegment();
+        deleteFinishedSegments();
+        if (!pending.isEmpty()) {
+            logger.log(Level.INFO, "Recovered {0} pending row(s) from BigQuery spool {1}.",
+                    new Object[]{pending.size(), dir});
+        }
+    }
+
+    /**
+     * Returns the spool shared by all invocations in the JVM, in the directory set by the
+     * "packtbookbot.bigquerySpool.dir" system property, by default "packt-book-bot-bigquery-spool" in the temp
+     * directory.
+     *
+     * @return The spool.
+     * @throws IOException when the spool can't be opened.
+     */
+    static BigQuerySpool shared() throws IOException {
+        BigQuerySpool spool = shared;
+        if (spool == null) {
+            synchronized (BigQuerySpool.class) {
+                spool = shared;
+                if (spool == null) {
+                    Path dir = Path.of(System.getProperty("packtbookbot.bigquerySpool.dir",
+                            Path.of(System.getProperty("java.io.tmpdir"), "packt-book-bot-bigquery-spool").toString()));
+                    spool = new BigQuerySpool(dir, 1024 * 1024);
+                    shared = spool;
+                }
+            }
+        }
+        return spool;
+    }
+
+    /**
+     * Appends a row and forces it to the disk. The row is marked as in flight, until it's acknowledged or released.
+     * Appending a row that's already pending only marks it as in flight.
+     *
+     * @param insertId The row's insert ID.
+     * @param content  The row.
+     * @throws IOException when the row can't be written.
+     */
+    synchronized void append(String insertId, Map<String, Object> content) throws IOException {
+        if (!pending.containsKey(insertId)) {
+            if (channel.size() >= maxSegmentBytes) {
+                startSegment();
+            }
+            Map<String, Object> record = new LinkedHashMap<>();
+            record.put("op", "append");
+            record.put("insertId", insertId);
+            record.put("row", content);
+            write(record);
+            channel.force(false);
+
+            pending.put(insertId, new Row(insertId, content, segment));
+            liveRowsBySegment.merge(segment, 1, Integer::sum);
+            appended++;
+        }
+        inFlight.add(insertId);
+    }
+
+    /**
+     * Acknowledges rows that were inserted, or rejected for good, removing them from the spool. Acknowledgements
+     * aren't forced to the disk, since losing one only means the row is replayed after a restart. That row can then be
+     * inserted twice, since BigQuery's de-duplication by insert ID doesn't last that long.
+     *
+     * @param insertIds The insert IDs of the rows. Rows that aren't pending are ignored.
+     * @throws IOException when the acknowledgements can't be written.
+     */
+    synchronized void acknowledge(Collection<String> insertIds) throws IOException {
+        for (String insertId : insertIds) {
+            Row row = pending.remove(insertId);
+            inFlight.remove(insertId);
+            if (row == null) {
+                continue;
+            }
+            write(Map.of("op", "ack", "insertId", insertId));
+            liveRowsBySegment.merge(row.segment(), -1, Integer::sum);
+            acknowledged++;
+        }
+        deleteFinishedSegments();
+    }
+
+    /**
+     * Clears the in flight marks of rows that couldn't be inserted, so that they're replayed.
+     *
+     * @param insertIds The insert IDs of the rows.
+     */
+    synchronized void release(Collection<String> insertIds) {
+        inFlight.removeAll(insertIds);
+    }
+
+    /**
+     * Takes pending rows to replay, marking them as in flight, oldest first.
+     *
+     * @param max The most rows to take.
+     * @return The rows, empty when every pending row is in flight.
+     */
+    synchronized List<Row> takeForReplay(int max) {
+        List<Row> rows = new ArrayList<>();
+        for (Row row : pending.values()) {
+            if (rows.size() >= max) {
+                break;
+            }
+            if (inFlight.add(row.insertId())) {
+                rows.add(row);
+            }
+        }
+        return rows;
+    }
+
+    synchronized Stats stats() {
+        return new Stats(pending.size(), inFlight.size(), liveRowsBySegment.size(), appended, acknowledged);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+
+    private void recover(long number) throws IOException {
+        List<String> lines = Files.readAllLines(segmentFile(number), StandardCharsets.UTF_8);
+        liveRowsBySegment.putIfAbsent(number, 0);
+        for (int i = 0; i < lines.size(); i++) {
+            Map<String, Object> record;
+            try {
+                record = Json.readObject(lines.get(i));
+            } catch (IllegalArgumentException ex) {
+                // Torn by a crash while it was being written, so the row wasn't sent yet.
+                logger.log(Level.WARNING, "Skipping unreadable line {0} of BigQuery spool segment {1}.",
+                        new Object[]{i + 1, segmentFile(number)});
+                continue;
+            }
+            if (!(record.get("insertId") instanceof String insertId)) {
+                continue;
+            }
+            if ("append".equals(record.get("op")) && record.get("row") instanceof Map<?, ?> row
+                    && !pending.containsKey(insertId)) {
+                // Safe because objects are always read as maps with string keys.
+                @SuppressWarnings("unchecked")
+                Map<String, Object> content = (Map<String, Object>) row;
+                pending.put(insertId, new Row(insertId, content, number));
+                liveRowsBySegment.merge(number, 1, Integer::sum);
+            } else if ("ack".equals(record.get("op")) && pending.containsKey(insertId)) {
+                Row acked = pending.remove(insertId);
+                liveRowsBySegment.merge(acked.segment(), -1, Integer::sum);
+            }
+        }
+    }
+
+    private void startSegment() throws IOException {
+        if (channel != null) {
+            channel.close();
+        }
+        segment++;
+        channel = FileChannel.open(segmentFile(segment), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        // Force the directory entry too, so that the segment is still there after a crash.
+        try (FileChannel dirChannel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            dirChannel.force(true);
+        } catch (IOException ex) {
+            // Not every platform can open a directory. The segment is still forced when rows are appended.
+        }
+        liveRowsBySegment.put(segment, 0);
+    }
+
+    private void deleteFinishedSegments() throws IOException {
+        while (liveRowsBySegment.size() > 1) {
+            Map.Entry<Long, Integer> oldest = liveRowsBySegment.firstEntry();
+            if (oldest.getValue() > 0) {
+                return;
+            }
+            Files.deleteIfExists(segmentFile(oldest.getKey()));
+            liveRowsBySegment.remove(oldest.getKey());
+        }
+    }
+
+    private void write(Map<String, Object> record) throws IOException {
+        ByteBuffer bytes = ByteBuffer.wrap((Json.write(record) + "\n").getBytes(StandardCharsets.UTF_8));
+        while (bytes.hasRemaining()) {
+            channel.write(bytes);
+        }
+    }
+
+    private List<Long> segments() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.map(file -> file.getFileName().toString())
+                    .filter(name -> name.startsWith(segmentPrefix) && name.endsWith(segmentSuffix))
+                    .map(name -> name.substring(segmentPrefix.length(), name.length() - segmentSuffix.length()))
+                    .filter(number -> number.chars().allMatch(Character::isDigit) && !number.isEmpty())
+                    .map(Long::parseLong)
+                    .sorted()
+                    .toList();
+        }
+    }
+
+    private Path segmentFile(long number) {
+        return dir.resolve(String.format("%s%016d%s", segmentPrefix, number, segmentSuffix));
+    }
+}
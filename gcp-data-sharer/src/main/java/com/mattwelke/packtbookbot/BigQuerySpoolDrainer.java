@@ -0,0 +1,238 @@
+package com.mattwelke.packtbookbot;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.cloud.bigquery.BigQuery;
+import com.google.cloud.bigquery.BigQueryError;
+import com.google.cloud.bigquery.InsertAllRequest;
+import com.google.cloud.bigquery.InsertAllResponse;
+import com.google.cloud.bigquery.TableId;
+
+/**
+ * Replays the rows left in a {@link BigQuerySpool} on a background thread, in batches, with their insert IDs, so that
+ * BigQuery can drop the ones it inserted in about the last minute. Older ones may be inserted again.
+ * <p>
+ * While BigQuery fails, the drainer backs off exponentially, with jitter, so that it doesn't add load to a struggling
+ * service, and invocations carry on spooling rows in the meantime. A row BigQuery rejects as invalid is logged and
+ * dropped, since replaying it can't succeed.
+ * <p>
+ * The drainer replays with the most recently provided client, and waits for one when there isn't one yet, like after a
+ * restart, since the credentials only arrive with an invocation. Like age-based flushes, replays don't run while
+ * OpenWhisk has the container paused between activations.
+ */
+final class BigQuerySpoolDrainer implements AutoCloseable {
+    private final Logger logger = Logger.getLogger(BigQuerySpoolDrainer.class.getName());
+
+    private final BigQuerySpool spool;
+    private final TableId table;
+    private final Settings settings;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "bigquery-spool-drainer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private BigQuery client;
+    private ScheduledFuture<?> nextDrain;
+    private int consecutiveFailures;
+    private long replayed;
+    private long dropped;
+
+    /**
+     * How the drainer replays.
+     *
+     * @param batchSize  The most rows to replay in one insert request.
+     * @param minBackoff How long to wait before replaying after the first failed replay.
+     * @param maxBackoff The longest wait between replays, after consecutive failed replays.
+     */
+    record Settings(int batchSize, Duration minBackoff, Duration maxBackoff) {
+        static final Settings defaults = new Settings(500, Duration.ofSeconds(1), Duration.ofMinutes(5));
+    }
+
+    /**
+     * The counters of a drainer.
+     *
+     * @param replayed            How many rows were inserted by replays.
+     * @param dropped             How many rows were dropped because BigQuery rejected them as invalid.
+     * @param consecutiveFailures How many replays in a row failed.
+     */
+    record Stats(long replayed, long dropped, int consecutiveFailures) {
+        Map<String, Object> toMap() {
+            return Map.of("replayed", replayed, "dropped", dropped, "consecutiveFailures", consecutiveFailures);
+        }
+    }
+
+    /**
+     * Creates a drainer. It doesn't replay until it's woken.
+     *
+     * @param spool    The spool to replay.
+     * @param table    The table to insert rows into.
+     * @param settings How to replay.
+     */
+    BigQuerySpoolDrainer(BigQuerySpool spool, TableId table, Settings settings) {
+        this.spool = spool;
+        this.table = table;
+        this.settings = settings;
+    }
+
+    /**
+     * Returns whether BigQuery rejected a row for good, instead of failing to insert it for now, like when a request
+     * timed out, BigQuery had an internal error, or the row was only stopped because another row in its request was
+     * invalid.
+     *
+     * @param errors The insert errors BigQuery reported for the row.
+     * @return Whether replaying the row can't succeed.
+     */
+    static boolean permanent(List<BigQueryError> errors) {
+        return errors.stream().anyMatch(error -> "invalid".equals(error.getReason()));
+    }
+
+    /**
+     * Replaces the client to replay with.
+     *
+     * @param client The client.
+     */
+    synchronized void client(BigQuery client) {
+        this.client = client;
+    }
+
+    /**
+     * Schedules a replay right away, unless one is already scheduled, including one waiting out a backoff.
+     */
+    synchronized void wake() {
+        if (nextDrain == null && !scheduler.isShutdown()) {
+            nextDrain = scheduler.schedule(this::drain, 0, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    synchronized Stats stats() {
+        return new Stats(replayed, dropped, consecutiveFailures);
+    }
+
+    /**
+     * Stops replaying. Rows left in the spool are replayed after the next restart.
+     */
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+    }
+
+    private void drain() {
+        BigQuery client;
+        synchronized (this) {
+            nextDrain = null;
+            client = this.client;
+        }
+        if (client == null) {
+            return;
+        }
+
+        List<BigQuerySpool.Row> batch = spool.takeForReplay(settings.batchSize());
+        if (batch.isEmpty()) {
+            return;
+        }
+        boolean succeeded;
+        try {
+            succeeded = replay(client, batch);
+        } catch (IOException ex) {
+            logger.log(Level.SEVERE, "Could not acknowledge replayed rows in the BigQuery spool.", ex);
+            spool.release(batch.stream().map(BigQuerySpool.Row::insertId).toList());
+            succeeded = false;
+        }
+
+        synchronized (this) {
+            if (scheduler.isShutdown()) {
+                return;
+            }
+            long delayMillis = 0;
+            if (succeeded) {
+                consecutiveFailures = 0;
+            } else {
+                consecutiveFailures++;
+                delayMillis = backoff(consecutiveFailures).toMillis();
+                logger.log(Level.WARNING, "Replaying rows from the BigQuery spool failed {0} time(s) in a row. " +
+                        "Retrying in {1} ms.", new Object[]{consecutiveFailures, delayMillis});
+            }
+            // Keep going while there's more to replay. A drain that finds nothing left stops until it's woken.
+            nextDrain = scheduler.schedule(this::drain, delayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Inserts a batch of spooled rows, acknowledging the ones inserted or rejected for good, and releasing the rest.
+     *
+     * @return Whether every row was inserted or rejected for good.
+     */
+    private boolean replay(BigQuery client, List<BigQuerySpool.Row> batch) throws IOException {
+        InsertAllRequest.Builder request = InsertAllRequest.newBuilder(table);
+        for (BigQuerySpool.Row row : batch) {
+            request.addRow(row.insertId(), row.content());
+        }
+
+        InsertAllResponse response;
+        try {
+            response = client.insertAll(request.build());
+        } catch (RuntimeException ex) {
+            logger.log(Level.WARNING, "BigQuery insert request replaying " + batch.size() + " row(s) failed.", ex);
+            spool.release(batch.stream().map(BigQuerySpool.Row::insertId).toList());
+            return false;
+        }
+
+        // Insert errors are keyed by the index of the row in the request, which is the index in the batch.
+        Map<Long, List<BigQueryError>> insertErrors = response.getInsertErrors();
+        List<String> done = new ArrayList<>(batch.size());
+        List<String> retry = new ArrayList<>();
+        int inserted = 0;
+        int rejected = 0;
+        for (int i = 0; i < batch.size(); i++) {
+            BigQuerySpool.Row row = batch.get(i);
+            List<BigQueryError> errors = insertErrors.get((long) i);
+            if (errors == null) {
+                done.add(row.insertId());
+                inserted++;
+            } else if (permanent(errors)) {
+                logger.log(Level.SEVERE, "Dropping spooled row for title {0} that BigQuery rejected: {1}",
+                        new Object[]{row.content().get("title"), errors});
+                done.add(row.insertId());
+                rejected++;
+            } else {
+                retry.add(row.insertId());
+            }
+        }
+        synchronized (this) {
+            replayed += inserted;
+            dropped += rejected;
+        }
+        spool.acknowledge(done);
+        spool.release(retry);
+        logger.log(Level.INFO, "Replayed {0} row(s) from the BigQuery spool, dropped {1}, {2} left to retry.",
+                new Object[]{inserted, rejected, retry.size()});
+        return retry.isEmpty();
+    }
+
+    /**
+     * Returns how long to wait after a number of consecutive failed replays: the minimum backoff, doubled for each
+     * failure after the first, up to the maximum, with up to a quarter of it subtracted at random, so that containers
+     * that failed together don't all retry together.
+     */
+    private Duration backoff(int failures) {
+        long max = settings.maxBackoff().toMillis();
+        long millis = settings.minBackoff().toMillis();
+        for (int i = 1; i < failures && millis < max; i++) {
+            millis *= 2;
+        }
+        millis = Math.min(millis, max);
+        return Duration.ofMillis(millis - ThreadLocalRandom.current().nextLong(millis / 4 + 1));
+    }
+}
@@ -0,0 +1,278 @@
+package com.mattwelke.packtbookbot;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Shares titles by inserting them as rows into the public BigQuery table. Rows go through a
+ * {@link BigQueryBatchingSink}, so depending on its limits, a row may be left pending, to be inserted with later rows.
+ * <p>
+ * Each row is appended to a {@link BigQuerySpool} before it's sent, with an insert ID derived from its day and title.
+ * When BigQuery can't take the row for now, like during an outage, it stays in the spool and a
+ * {@link BigQuerySpoolDrainer} replays it later, instead of the row being lost. The insert ID is the same every time a
+ * title is shared for a day, but BigQuery only de-duplicates by insert ID on a best effort basis, for about a minute.
+ * So a quick retry is usually dropped, while a row replayed after a restart, or shared again much later, can be
+ * inserted twice. Rows are delivered at least once.
+ * <p>
+ * The client cache, batching sink, spool and drainer are meant to be shared by the sinks of all invocations in a warm
+ * container, and each sink only adds the credentials of its invocation.
+ * <p>
+ * When an inserted row's title has a {@link TraceContext}, the time from the trigger that started its trace to the row
+ * being inserted, after which streamed rows can be queried, is logged and exported as a span of the trace. Rows
+ * replayed from the spool aren't measured.
+ */
+final class BigQueryTitleDataSink implements TitleDataSink {
+    static final String datasetName = "public_data";
+    static final String tableName = "free_ebook_of_the_day";
+
+    private static final String credentialLoadPhase = "credentialLoad";
+    private static final String bigqueryInsertPhase = "bigqueryInsert";
+    private static final String triggerToRowVisiblePhase = "triggerToRowVisible";
+
+    private final Logger logger = Logger.getLogger(BigQueryTitleDataSink.class.getName());
+
+    private final BigQueryClientCache clientCache;
+    private final BigQueryBatchingSink<TitleRow> batchingSink;
+    private final BigQueryBatchingSink.Limits batchLimits;
+    private final BigQuerySpool spool;
+    private final BigQuerySpoolDrainer drainer;
+    private final String gcpCreds;
+
+    /**
+     * A title's row, as the event added to the batching sink.
+     *
+     * @param data     The title data.
+     * @param insertId The row's insert ID.
+     */
+    record TitleRow(TitleData data, String insertId) {
+    }
+
+    /**
+     * The outcome of inserting a row.
+     *
+     * @param lookup  The lookup of the client the row was inserted with.
+     * @param result  The rows flushed by adding the row, which may not include it.
+     * @param spooled Whether BigQuery couldn't take the row for now, and it was left in the spool to be replayed.
+     * @param triggerToRowVisible How long after the trigger that started the title's trace the row was inserted, when
+     *                            it was inserted and the title has a trace.
+     */
+    record Insert(BigQueryClientCache.Lookup lookup, BigQueryBatchingSink.FlushResult<TitleRow> result,
+                  boolean spooled, Optional<Duration> triggerToRowVisible) {
+    }
+
+    /**
+     * Creates a sink.
+     *
+     * @param clientCache  The client cache.
+     * @param batchingSink The batching sink.
+     * @param batchLimits  The thresholds that trigger a flush of the batch of the sink's rows.
+     * @param spool        The spool, or null to send rows without spooling them.
+     * @param drainer      The drainer replaying the spool, or null when there's no spool.
+     * @param gcpCreds     Base64 encoded service account key JSON to insert rows with.
+     */
+    BigQueryTitleDataSink(BigQueryClientCache clientCache, BigQueryBatchingSink<TitleRow> batchingSink,
+                          BigQueryBatchingSink.Limits batchLimits, BigQuerySpool spool, BigQuerySpoolDrainer drainer,
+                          String gcpCreds) {
+        this.clientCache = clientCache;
+        this.batchingSink = batchingSink;
+        this.batchLimits = batchLimits;
+        this.spool = spool;
+        this.drainer = drainer;
+        this.gcpCreds = gcpCreds;
+    }
+
+    @Override
+    public String name() {
+        return "bigquery";
+    }
+
+    @Override
+    public void share(TitleData data, LocalDate day) throws CouldNotShareDataException {
+        insert(data, day);
+    }
+
+    /**
+     * Spools a title's row and adds it to the batching sink, which inserts it, unless it's left pending.
+     *
+     * @param data The title data.
+     * @param day  The day the title was the free eBook of the day.
+     * @return The outcome.
+     * @throws CouldNotShareDataException when no client can be built from the credentials, BigQuery rejected the row
+     *                                    as invalid, or BigQuery couldn't take the row and it couldn't be spooled.
+     */
+    Insert insert(TitleData data, LocalDate day) throws CouldNotShareDataException {
+        InvocationMetrics metrics = InvocationMetrics.current();
+
+        BigQueryClientCache.Lookup lookup;
+        InvocationMetrics.Timer credentialTimer = metrics.time(credentialLoadPhase);
+        try {
+            lookup = clientCache.client(gcpCreds);
+        } catch (IOException ex) {
+            throw new CouldNotShareDataException("Could not build BigQuery client.", ex);
+        } finally {
+            credentialTimer.close();
+        }
+
+        TitleRow titleRow = new TitleRow(data, insertId(day, data.title()));
+        Map<String, Object> row = row(data, day);
+        boolean spooled = false;
+        if (spool != null) {
+            try {
+                spool.append(titleRow.insertId(), row);
+                spooled = true;
+            } catch (IOException ex) {
+                logger.log(Level.WARNING, "Could not spool row for title " + data.title() + ". Sending it anyway.", ex);
+            }
+            drainer.client(lookup.client());
+        }
+
+        BigQueryBatchingSink.FlushResult<TitleRow> result;
+        InvocationMetrics.Timer insertTimer = metrics.time(bigqueryInsertPhase);
+        try {
+            result = batchingSink.add(lookup.client(), batchLimits, titleRow, titleRow.insertId(), row);
+        } finally {
+            insertTimer.close();
+        }
+        settle(result, spool, drainer);
+
+        for (BigQueryBatchingSink.FailedEvent<TitleRow> failed : result.failed()) {
+            if (failed.event() != titleRow) {
+                continue;
+            }
+            if (BigQuerySpoolDrainer.permanent(failed.errors())) {
+                throw new CouldNotShareDataException("BigQuery rejected the row: " + failed.errors());
+            }
+            if (!spooled) {
+                throw new CouldNotShareDataException("BigQuery insert unsuccessful.");
+            }
+            metrics.count("bigquerySpooledRows");
+            return new Insert(lookup, result, true, Optional.empty());
+        }
+        if (spool != null) {
+            // Replay rows left from before, like rows spooled before a restart, now that there's a client.
+            drainer.wake();
+        }
+        Optional<Duration> triggerToRowVisible = Optional.empty();
+        if (result.inserted().contains(titleRow) && data.trace().isPresent()) {
+            triggerToRowVisible = Optional.of(sinceTrigger(data.trace().get()));
+            metrics.record(triggerToRowVisiblePhase, triggerToRowVisible.get().toNanos());
+        }
+        return new Insert(lookup, result, false, triggerToRowVisible);
+    }
+
+    /**
+     * Settles the spooled rows of a flush. Inserted rows, and rows BigQuery rejected as invalid, are removed from the
+     * spool. The others are left for the drainer to replay.
+     *
+     * @param result  The flush result.
+     * @param spool   The spool, or null when rows aren't spooled.
+     * @param drainer The drainer, or null when rows aren't spooled.
+     */
+    static void settle(BigQueryBatchingSink.FlushResult<TitleRow> result, BigQuerySpool spool,
+                       BigQuerySpoolDrainer drainer) {
+        Logger logger = Logger.getLogger(BigQueryTitleDataSink.class.getName());
+        List<String> done = new ArrayList<>(result.inserted().size());
+        for (TitleRow inserted : result.inserted()) {
+            done.add(inserted.insertId());
+            inserted.data().trace().ifPresent(trace -> rowVisible(inserted, trace));
+        }
+        List<String> retry = new ArrayList<>();
+        for (BigQueryBatchingSink.FailedEvent<TitleRow> failed : result.failed()) {
+            if (spool == null || BigQuerySpoolDrainer.permanent(failed.errors())) {
+                logger.log(Level.SEVERE, "Errors from BigQuery insert for title {0}: {1}",
+                        new Object[]{failed.event().data().title(), failed.errors()});
+                done.add(failed.event().insertId());
+            } else {
+                logger.log(Level.WARNING, "Errors from BigQuery insert for title {0}, leaving it spooled to replay: {1}",
+                        new Object[]{failed.event().data().title(), failed.errors()});
+                retry.add(failed.event().insertId());
+            }
+        }
+        if (spool == null) {
+            return;
+        }
+
+        try {
+            spool.acknowledge(done);
+        } catch (IOException ex) {
+            // The rows will be replayed after a restart, and may then be inserted twice.
+            logger.log(Level.WARNING, "Could not acknowledge rows in the BigQuery spool.", ex);
+        }
+        spool.release(retry);
+        if (!retry.isEmpty()) {
+            drainer.wake();
+        }
+    }
+
+    private static void rowVisible(TitleRow row, TraceContext trace) {
+        Logger.getLogger(BigQueryTitleDataSink.class.getName()).log(Level.INFO,
+                "Row for title {0} visible {1} ms after its trigger.",
+                new Object[]{row.data().title(), sinceTrigger(trace).toMillis()});
+        TraceExporter.shared().export(BigQueryTitleDataSink.class.getSimpleName(), List.of(Trace.sinceStart(trace,
+                "BigQuery row visible", Map.of("db.system", "bigquery", "db.collection.name", tableName))));
+    }
+
+    private static Duration sinceTrigger(TraceContext trace) {
+        return Duration.ofMillis(Math.max(System.currentTimeMillis() - trace.startedAtMillis(), 0));
+    }
+
+    /**
+     * Returns the insert ID of the row of a title for a day, which is the same every time the title is shared for the
+     * day, so that BigQuery can drop rows it already has.
+     *
+     * @param day   the day the title was the free eBook of the day.
+     * @param title the title.
+     * @return the insert ID, a hex SHA-256 hash of the day and title.
+     */
+    static String insertId(LocalDate day, String title) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest((day + "|" + title).getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-256 is always available.", ex);
+        }
+    }
+
+    /**
+     * Given title data, returns a row to insert into BigQuery.
+     *
+     * @param data the title data.
+     * @param day  the day the title was the free eBook of the day. Today, except when backfilling past days.
+     * @return the row to insert.
+     */
+    static Map<String, Object> row(TitleData data, LocalDate day) {
+        Authors authors = data.authors();
+
+        Map<String, Object> rowContent = new HashMap<>();
+
+        rowContent.put("day", day.toString());
+
+        rowContent.put("title", data.title());
+
+        int pubDateYearMonth = data.pubDate().yearMonth();
+        rowContent.put("publication_date", String.format("%d-%02d-01", pubDateYearMonth / 100,
+                pubDateYearMonth % 100));
+
+        // TODO: Deprecate this field because we have the new authors_v2 field.
+        rowContent.put("authors", authors.names());
+
+        rowContent.put("inserted_at", Instant.now().toString());
+
+        rowContent.put("authors_v2", Map.of("names", authors.names(), "all_present", !authors.more()));
+
+        return rowContent;
+    }
+}
@@ -1,99 +1,171 @@
 package com.mattwelke.packtbookbot;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
-import java.time.Instant;
+import java.time.Duration;
+import java.time.LocalDate;
 import java.util.*;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import com.google.auth.oauth2.GoogleCredentials;
 import com.google.cloud.bigquery.*;
-import com.mattwelke.owr.java.Action;
 
 
-public class GcpDataSharerAction extends Action {
-    private static final String datasetName = "public_data";
-    private static final String tableName = "free_ebook_of_the_day";
+public class GcpDataSharerAction extends InstrumentedAction {
+    /**
+     * The state shared by all invocations in a warm container. Kept out of the action class, so that loading the
+     * action doesn't load the BigQuery classes on the runtime's thread. They're loaded on a background thread instead,
+     * started when the action is loaded, while the runtime finishes initializing and the first invocation decodes its
+     * credentials.
+     */
+    private static final class Shared {
+        static final TableId table = TableId.of(BigQueryTitleDataSink.datasetName, BigQueryTitleDataSink.tableName);
+
+        /**
+         * Shared so that clients and their tokens outlive a single invocation.
+         */
+        static final BigQueryClientCache clientCache = new BigQueryClientCache(
+                Duration.ofMinutes(30), Duration.ofMinutes(5));
+
+        /**
+         * Shared so that rows can be batched across invocations. By default, each row is flushed as soon as it's
+         * added. Invocations can set the "batchMaxRows", "batchMaxBytes" and "batchMaxAgeMs" params to batch rows
+         * instead. Rows are only batched with the rows of invocations with the same credentials and thresholds.
+         * <p>
+         * Age-based flushes run on a background thread, which doesn't run while OpenWhisk has the container paused
+         * between activations, so a pending row may wait for the next activation before it's inserted.
+         */
+        static final BigQueryBatchingSink<BigQueryTitleDataSink.TitleRow> batchingSink = new BigQueryBatchingSink<>(
+                table, batchLimits(Map.of()), GcpDataSharerAction::settleBackgroundFlush);
+
+        /**
+         * Shared so that rows BigQuery couldn't take are replayed in the background, while later invocations carry on.
+         * Null when the spool can't be opened, like on a read-only file system, in which case rows are sent without
+         * being spooled, and a row BigQuery can't take fails its invocation.
+         */
+        static final BigQuerySpool spool = openSpool();
+
+        static final BigQuerySpoolDrainer drainer = spool != null
+                ? new BigQuerySpoolDrainer(spool, table, BigQuerySpoolDrainer.Settings.defaults)
+                : null;
+
+        static {
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                batchingSink.close();
+                if (drainer != null) {
+                    drainer.close();
+                }
+            }, "bigquery-batching-sink-drain"));
+        }
 
-    private final Logger logger = Logger.getLogger(GcpDataSharerAction.class.getName());
+        private static BigQuerySpool openSpool() {
+            try {
+                return BigQuerySpool.shared();
+            } catch (IOException ex) {
+                Logger.getLogger(GcpDataSharerAction.class.getName()).log(Level.WARNING,
+                        "Could not open BigQuery spool. Rows won't be spooled.", ex);
+                return null;
+            }
+        }
+    }
+
+    static {
+        Thread preload = new Thread(() -> {
+            Shared.batchingSink.pendingRows();
+            BigQueryClientCache.preload();
+        }, "bigquery-preload");
+        preload.setDaemon(true);
+        preload.start();
+    }
 
     /**
      * Given data about the Packt free book of the day, shares it publicly by writing it to Google Cloud Platform. Right
      * now, that means inserting a row into a BigQuery table in a public BigQuery dataset.
+     * <p>
+     * When batching is enabled with params, the row may be left pending, to be inserted with the rows of later
+     * invocations. When BigQuery can't take the row for now, it's left in the spool to be replayed in the background,
+     * and the invocation still succeeds.
      *
      * @param params the OpenWhisk action invocation input.
-     * @return the output. Right now, this is just information about the BigQuery insert response, so that OpenWhisk
-     * logs it.
+     * @return the output. Right now, this is just information about the BigQuery insert batch, the spool and the client
+     * cache, how long after the trigger the row was inserted when the title has a trace, so that OpenWhisk logs it, and
+     * the invocation's metrics.
      * @throws RuntimeException
      */
     @Override
-    public Map<String, Object> invoke(Map<String, Object> params) throws RuntimeException {
+    protected Map<String, Object> run(Map<String, Object> params) throws RuntimeException {
         try {
             TitleData data = TitleData.of(params);
-            BigQuery bigquery = bigqueryClient(params);
-
-            InsertAllResponse response = bigquery.insertAll(InsertAllRequest.newBuilder(
-                    TableId.of(datasetName, tableName)).addRow(row(data)).build());
-
-            if (response.hasErrors()) {
-                logger.log(Level.SEVERE, "Errors from BigQuery insert: {}", response.getInsertErrors());
-                throw new CouldNotShareDataException("BigQuery insert unsuccessful.");
+            BigQueryTitleDataSink.Insert insert = sink(params).insert(data, LocalDate.now());
+            BigQueryBatchingSink.FlushResult<BigQueryTitleDataSink.TitleRow> result = insert.result();
+
+            Map<String, Object> cacheOutput = new HashMap<>(Shared.clientCache.stats());
+            cacheOutput.put("hit", insert.lookup().hit());
+            Map<String, Object> spoolOutput = new HashMap<>();
+            spoolOutput.put("enabled", Shared.spool != null);
+            spoolOutput.put("spooled", insert.spooled());
+            if (Shared.spool != null) {
+                spoolOutput.putAll(Shared.spool.stats().toMap());
+                spoolOutput.putAll(Shared.drainer.stats().toMap());
             }
-            return Map.of("bigqueryInsertResponse", response);
+            Map<String, Object> output = new HashMap<>();
+            output.put("bigqueryBatch", Map.of(
+                    "flushed", !result.isEmpty(),
+                    "insertedRows", result.inserted().size(),
+                    "failedRows", result.failed().size(),
+                    "pendingRows", Shared.batchingSink.pendingRows()));
+            output.put("bigquerySpool", spoolOutput);
+            output.put("bigqueryClientCache", cacheOutput);
+            insert.triggerToRowVisible().ifPresent(latency -> output.put("triggerToRowVisibleMs", latency.toMillis()));
+            return output;
         } catch (Exception ex) {
             throw new RuntimeException("Failed to share data via GCP.", ex);
         }
     }
 
     /**
-     * Returns a BigQuery client authenticated with credentials in an OpenWhisk params map.
+     * Returns a BigQuery sink using the credentials in an OpenWhisk params map. The sink reuses the client from a
+     * previous invocation in the same container when the credentials haven't changed, and batches its rows with the
+     * rows of the other invocations in the container that have the same credentials and batching thresholds, which
+     * are set by the params map.
      *
      * @param params the params map from the action invocation.
-     * @return a BigQuery client built from credentials in the params map.
-     * @throws IOException when GoogleCredentials.fromStream throws the exception.
+     * @return the sink.
+     * @throws IllegalArgumentException when the params map has no credentials.
      */
-    private static BigQuery bigqueryClient(Map<String, Object> params) throws IOException {
-        if (!params.containsKey("gcpCreds") || ((String) params.get("gcpCreds")).length() < 1) {
+    static BigQueryTitleDataSink sink(Map<String, Object> params) throws IllegalArgumentException {
+        if (!(params.get("gcpCreds") instanceof String gcpCreds) || gcpCreds.length() < 1) {
             throw new IllegalArgumentException("missing param gcpCreds");
         }
 
-        byte[] gcpCredsBytes = Base64.getDecoder().decode((String) params.get("gcpCreds"));
-        GoogleCredentials credentials = GoogleCredentials.fromStream(new ByteArrayInputStream(gcpCredsBytes));
-
-        return BigQueryOptions.newBuilder().setCredentials(credentials).build().getService();
+        return new BigQueryTitleDataSink(Shared.clientCache, Shared.batchingSink, batchLimits(params), Shared.spool,
+                Shared.drainer, gcpCreds);
     }
 
     /**
-     * Given title data, returns a row to insert into BigQuery.
+     * Returns the batching thresholds set by an OpenWhisk params map, defaulting to flushing every row immediately.
      *
-     * @param data the title data.
-     * @return the row to insert.
+     * @param params the params map from the action invocation.
+     * @return the thresholds.
      */
-    private static Map<String, Object> row(TitleData data) {
-        Authors authors = data.authors();
-
-        Map<String, Object> rowContent = new HashMap<>();
-
-        DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
-        Date date = new Date();
-        rowContent.put("day", dateFormat.format(date));
-
-        rowContent.put("title", data.title());
-
-        rowContent.put("publication_date", String.format("%s-%s-01", data.pubDate().year(),
-                PublicationDateMonths.monthNumber(data.pubDate().month())));
-
-        // TODO: Deprecate this field because we have the new authors_v2 field.
-        rowContent.put("authors", authors.names());
-
-        rowContent.put("inserted_at", Instant.now().toString());
+    private static BigQueryBatchingSink.Limits batchLimits(Map<String, Object> params) {
+        return new BigQueryBatchingSink.Limits(
+                (int) longParam(params, "batchMaxRows", 1),
+                longParam(params, "batchMaxBytes", 5_000_000),
+                Duration.ofMillis(longParam(params, "batchMaxAgeMs", 1_000)));
+    }
 
-        rowContent.put("authors_v2", Map.of("names", authors.names(), "all_present", !authors.more()));
+    private static long longParam(Map<String, Object> params, String name, long defaultValue) {
+        Object value = params.get(name);
+        return value instanceof Number number ? number.longValue() : defaultValue;
+    }
 
-        return rowContent;
+    /**
+     * Logs and settles the spooled rows of a flush that was triggered by age instead of by an invocation.
+     */
+    private static void settleBackgroundFlush(BigQueryBatchingSink.FlushResult<BigQueryTitleDataSink.TitleRow> result) {
+        Logger logger = Logger.getLogger(GcpDataSharerAction.class.getName());
+        logger.log(Level.INFO, "Background flush inserted {0} row(s).", result.inserted().size());
+        BigQueryTitleDataSink.settle(result, Shared.spool, Shared.drainer);
     }
 
     /**
@@ -0,0 +1,242 @@
+package com.mattwelke.packtbookbot;
+
+import com.google.cloud.NoCredentials;
+import com.google.cloud.ServiceOptions;
+import com.google.cloud.bigquery.BigQuery;
+import com.google.cloud.bigquery.BigQueryOptions;
+import com.google.cloud.bigquery.TableId;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs the sink against a local fake of the BigQuery insertAll endpoint, which rejects rows whose title starts with
+ * "bad".
+ */
+class BigQueryBatchingSinkTest {
+    private HttpServer server;
+    private BigQuery client;
+    private final AtomicInteger requests = new AtomicInteger();
+    private final List<String> requestPaths = new CopyOnWriteArrayList<>();
+    private final CountDownLatch slowInsert = new CountDownLatch(1);
+    private final List<BigQueryBatchingSink.FlushResult<String>> backgroundResults = new CopyOnWriteArrayList<>();
+
+    @BeforeEach
+    void startFakeBigQuery() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", exchange -> {
+            requests.incrementAndGet();
+            requestPaths.add(exchange.getRequestURI().getPath());
+            InputStream requestBody = exchange.getRequestBody();
+            if ("gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+                requestBody = new GZIPInputStream(requestBody);
+            }
+            JsonArray rows = JsonParser.parseString(
+                    new String(requestBody.readAllBytes(), StandardCharsets.UTF_8))
+                    .getAsJsonObject().getAsJsonArray("rows");
+
+            JsonArray insertErrors = new JsonArray();
+            for (int i = 0; i < rows.size(); i++) {
+                String title = rows.get(i).getAsJsonObject().getAsJsonObject("json").get("title").getAsString();
+                if (title.startsWith("slow")) {
+                    try {
+                        slowInsert.await(10, TimeUnit.SECONDS);
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                if (title.startsWith("bad")) {
+                    JsonObject error = new JsonObject();
+                    error.addProperty("reason", "invalid");
+                    error.addProperty("message", "rejected " + title);
+                    JsonArray errors = new JsonArray();
+                    errors.add(error);
+                    JsonObject insertError = new JsonObject();
+                    insertError.addProperty("index", i);
+                    insertError.add("errors", errors);
+                    insertErrors.add(insertError);
+                }
+            }
+            JsonObject response = new JsonObject();
+            response.addProperty("kind", "bigquery#tableDataInsertAllResponse");
+            if (!insertErrors.isEmpty()) {
+                response.add("insertErrors", insertErrors);
+            }
+
+            byte[] body = response.toString().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+
+        client = client("test-project");
+    }
+
+    private BigQuery client(String project) {
+        return BigQueryOptions.newBuilder()
+                .setProjectId(project)
+                .setHost("http://localhost:" + server.getAddress().getPort())
+                .setCredentials(NoCredentials.getInstance())
+                .setRetrySettings(ServiceOptions.getNoRetrySettings())
+                .build().getService();
+    }
+
+    @AfterEach
+    void stopFakeBigQuery() {
+        server.stop(0);
+    }
+
+    private BigQueryBatchingSink<String> sink(int maxRows, long maxBytes, Duration maxAge) {
+        return new BigQueryBatchingSink<>(TableId.of("public_data", "free_ebook_of_the_day"),
+                new BigQueryBatchingSink.Limits(maxRows, maxBytes, maxAge), backgroundResults::add);
+    }
+
+    @Test
+    void flushesWhenRowCountReached() {
+        try (BigQueryBatchingSink<String> sink = sink(3, 1_000_000, Duration.ofHours(1))) {
+            assertTrue(sink.add(client, "a", Map.of("title", "a")).isEmpty());
+            assertTrue(sink.add(client, "b", Map.of("title", "b")).isEmpty());
+            BigQueryBatchingSink.FlushResult<String> result = sink.add(client, "c", Map.of("title", "c"));
+
+            assertEquals(List.of("a", "b", "c"), result.inserted());
+            assertEquals(0, sink.pendingRows());
+            assertEquals(1, requests.get());
+        }
+    }
+
+    @Test
+    void flushesWhenByteSizeReached() {
+        try (BigQueryBatchingSink<String> sink = sink(100, 20, Duration.ofHours(1))) {
+            assertTrue(sink.add(client, "a", Map.of("title", "a")).isEmpty());
+            BigQueryBatchingSink.FlushResult<String> result = sink.add(client, "b",
+                    Map.of("title", "a much longer title"));
+
+            assertEquals(List.of("a", "b"), result.inserted());
+        }
+    }
+
+    @Test
+    void flushesWhenMaxAgeReached() throws InterruptedException {
+        try (BigQueryBatchingSink<String> sink = sink(100, 1_000_000, Duration.ofMillis(50))) {
+            sink.add(client, "a", Map.of("title", "a"));
+
+            for (int i = 0; i < 100 && backgroundResults.isEmpty(); i++) {
+                Thread.sleep(20);
+            }
+
+            assertEquals(1, backgroundResults.size());
+            assertEquals(List.of("a"), backgroundResults.get(0).inserted());
+        }
+    }
+
+    @Test
+    void rejectsMaxAgeThatIsNotPositive() {
+        IllegalArgumentException ex = assertThrows(IllegalArgumentException.class,
+                () -> new BigQueryBatchingSink.Limits(100, 1_000_000, Duration.ZERO));
+        assertEquals("maxAge must be positive", ex.getMessage());
+        assertThrows(IllegalArgumentException.class,
+                () -> new BigQueryBatchingSink.Limits(100, 1_000_000, Duration.ofMillis(-1)));
+    }
+
+    @Test
+    void mapsInsertErrorsBackToEvents() {
+        try (BigQueryBatchingSink<String> sink = sink(3, 1_000_000, Duration.ofHours(1))) {
+            sink.add(client, "a", Map.of("title", "a"));
+            sink.add(client, "bad1", Map.of("title", "bad1"));
+            BigQueryBatchingSink.FlushResult<String> result = sink.add(client, "c", Map.of("title", "c"));
+
+            assertEquals(List.of("a", "c"), result.inserted());
+            assertEquals(1, result.failed().size());
+            assertEquals("bad1", result.failed().get(0).event());
+            assertEquals("invalid", result.failed().get(0).errors().get(0).getReason());
+        }
+    }
+
+    @Test
+    void batchesRowsByClientAndLimits() {
+        BigQuery otherClient = client("other-project");
+        BigQueryBatchingSink.Limits twoRows = new BigQueryBatchingSink.Limits(2, 1_000_000, Duration.ofHours(1));
+        try (BigQueryBatchingSink<String> sink = sink(3, 1_000_000, Duration.ofHours(1))) {
+            assertTrue(sink.add(client, "a", Map.of("title", "a")).isEmpty());
+            assertTrue(sink.add(otherClient, "b", Map.of("title", "b")).isEmpty());
+            assertTrue(sink.add(client, twoRows, "c", null, Map.of("title", "c")).isEmpty());
+            assertTrue(sink.add(otherClient, "d", Map.of("title", "d")).isEmpty());
+            assertEquals(4, sink.pendingRows());
+
+            assertEquals(List.of("c", "g"), sink.add(client, twoRows, "g", null, Map.of("title", "g")).inserted());
+            assertEquals(List.of("b", "d", "e"), sink.add(otherClient, "e", Map.of("title", "e")).inserted());
+
+            assertEquals(1, sink.pendingRows());
+            assertEquals(2, requests.get());
+            assertTrue(requestPaths.get(0).contains("/projects/test-project/"), requestPaths.toString());
+            assertTrue(requestPaths.get(1).contains("/projects/other-project/"), requestPaths.toString());
+        }
+        assertEquals(List.of("a"), backgroundResults.get(0).inserted());
+    }
+
+    @Test
+    void addsWhileAnotherBatchIsBeingInserted() throws Exception {
+        BigQueryBatchingSink<String> sink = sink(1, 1_000_000, Duration.ofHours(1));
+        BigQueryBatchingSink.Limits tenRows = new BigQueryBatchingSink.Limits(10, 1_000_000, Duration.ofHours(1));
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<BigQueryBatchingSink.FlushResult<String>> slow = executor.submit(
+                    () -> sink.add(client, "slow", Map.of("title", "slow")));
+            while (requests.get() == 0) {
+                Thread.sleep(5);
+            }
+
+            long start = System.nanoTime();
+            assertTrue(sink.add(client, tenRows, "fast", null, Map.of("title", "fast")).isEmpty());
+            assertTrue(System.nanoTime() - start < 1_000_000_000L);
+            assertFalse(slow.isDone());
+
+            slowInsert.countDown();
+            assertEquals(List.of("slow"), slow.get(10, TimeUnit.SECONDS).inserted());
+        } finally {
+            slowInsert.countDown();
+            executor.shutdown();
+            sink.close();
+        }
+    }
+
+    @Test
+    void drainsOnClose() {
+        BigQueryBatchingSink<String> sink = sink(100, 1_000_000, Duration.ofHours(1));
+        sink.add(client, "a", Map.of("title", "a"));
+
+        sink.close();
+
+        assertEquals(1, requests.get());
+        assertEquals(List.of("a"), backgroundResults.get(0).inserted());
+    }
+}
@@ -0,0 +1,154 @@
+package com.mattwelke.packtbookbot;
+
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.auth.oauth2.ServiceAccountCredentials;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.Base64;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BigQueryClientCacheTest {
+    private static PrivateKey privateKey;
+
+    private Instant now = Instant.now();
+    private final Clock clock = new Clock() {
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Instant instant() {
+            return now;
+        }
+    };
+
+    private final AtomicInteger created = new AtomicInteger();
+    private final AtomicInteger failuresLeft = new AtomicInteger();
+
+    /**
+     * Stands in for Google's token endpoint.
+     */
+    private final HttpTransport tokenServer = new MockHttpTransport() {
+        @Override
+        public LowLevelHttpRequest buildRequest(String method, String url) {
+            return new MockLowLevelHttpRequest(url).setResponse(new MockLowLevelHttpResponse()
+                    .setContentType("application/json")
+                    .setContent("{\"access_token\":\"token\",\"expires_in\":3600,\"token_type\":\"Bearer\"}"));
+        }
+    };
+
+    /**
+     * Creates service account credentials from keys of the form "client email/key ID", which get their tokens from
+     * the stand-in token endpoint.
+     */
+    private final BigQueryClientCache cache = new BigQueryClientCache(Duration.ofMinutes(30), Duration.ofMinutes(5),
+            clock, keyJson -> {
+                created.incrementAndGet();
+                if (failuresLeft.getAndUpdate(n -> Math.max(n - 1, 0)) > 0) {
+                    throw new IOException("Could not parse key.");
+                }
+                String[] key = new String(keyJson, StandardCharsets.UTF_8).split("/");
+                return ServiceAccountCredentials.newBuilder()
+                        .setClientEmail(key[0])
+                        .setPrivateKeyId(key[1])
+                        .setPrivateKey(privateKey)
+                        .setProjectId("packt-book-bot")
+                        .setHttpTransportFactory(() -> tokenServer)
+                        .build();
+            });
+
+    @BeforeAll
+    static void generateKey() throws NoSuchAlgorithmException {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        privateKey = generator.generateKeyPair().getPrivate();
+    }
+
+    @Test
+    void reusesClientsAndCountsHitsAndMisses() throws IOException {
+        BigQueryClientCache.Lookup first = cache.client(key("bot@packt-book-bot.iam.gserviceaccount.com", "1"));
+        BigQueryClientCache.Lookup second = cache.client(key("bot@packt-book-bot.iam.gserviceaccount.com", "1"));
+
+        assertFalse(first.hit());
+        assertTrue(second.hit());
+        assertSame(first.client(), second.client());
+        assertEquals(1, created.get());
+        assertEquals(1L, cache.stats().get("hits"));
+        assertEquals(1L, cache.stats().get("misses"));
+        assertEquals(1, cache.stats().get("size"));
+    }
+
+    @Test
+    void evictsIdleClients() throws IOException {
+        cache.client(key("bot@packt-book-bot.iam.gserviceaccount.com", "1"));
+        now = now.plus(Duration.ofMinutes(20));
+        cache.client(key("other@packt-book-bot.iam.gserviceaccount.com", "1"));
+
+        now = now.plus(Duration.ofMinutes(15));
+        BigQueryClientCache.Lookup lookup = cache.client(key("other@packt-book-bot.iam.gserviceaccount.com", "1"));
+
+        // Only the client unused for longer than the idle timeout is gone.
+        assertTrue(lookup.hit());
+        assertEquals(1, cache.stats().get("size"));
+        assertFalse(cache.client(key("bot@packt-book-bot.iam.gserviceaccount.com", "1")).hit());
+    }
+
+    @Test
+    void evictsClientsOfRotatedKeys() throws IOException {
+        cache.client(key("bot@packt-book-bot.iam.gserviceaccount.com", "1"));
+        cache.client(key("other@packt-book-bot.iam.gserviceaccount.com", "1"));
+
+        cache.client(key("bot@packt-book-bot.iam.gserviceaccount.com", "2"));
+
+        // The old key's client is gone, but not the other service account's.
+        assertEquals(2, cache.stats().get("size"));
+        assertTrue(cache.client(key("other@packt-book-bot.iam.gserviceaccount.com", "1")).hit());
+        assertTrue(cache.client(key("bot@packt-book-bot.iam.gserviceaccount.com", "2")).hit());
+    }
+
+    @Test
+    void triesAgainAfterAFailedBuild() throws IOException {
+        failuresLeft.set(1);
+
+        assertThrows(IOException.class, () -> cache.client(key("bot@packt-book-bot.iam.gserviceaccount.com", "1")));
+        assertEquals(0, cache.stats().get("size"));
+
+        BigQueryClientCache.Lookup lookup = cache.client(key("bot@packt-book-bot.iam.gserviceaccount.com", "1"));
+
+        assertFalse(lookup.hit());
+        assertEquals(2, created.get());
+        assertEquals(1L, cache.stats().get("misses"));
+        assertEquals(1, cache.stats().get("size"));
+    }
+
+    private static String key(String clientEmail, String keyId) {
+        return Base64.getEncoder().encodeToString((clientEmail + "/" + keyId).getBytes(StandardCharsets.UTF_8));
+    }
+}
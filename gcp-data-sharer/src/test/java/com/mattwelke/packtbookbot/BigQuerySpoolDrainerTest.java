@@ -0,0 +1,185 @@
+package com.mattwelke.packtbookbot;
+
+import com.google.cloud.NoCredentials;
+import com.google.cloud.ServiceOptions;
+import com.google.cloud.bigquery.BigQuery;
+import com.google.cloud.bigquery.BigQueryOptions;
+import com.google.cloud.bigquery.TableId;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs the drainer against a local fake of the BigQuery insertAll endpoint, which fails a number of requests with a
+ * server error first, then rejects rows whose title starts with "bad".
+ */
+class BigQuerySpoolDrainerTest {
+    @TempDir
+    Path dir;
+
+    private HttpServer server;
+    private BigQuery client;
+    private final AtomicInteger failuresLeft = new AtomicInteger();
+    private final AtomicInteger requests = new AtomicInteger();
+    private final List<String> insertedIds = new CopyOnWriteArrayList<>();
+
+    @BeforeEach
+    void startFakeBigQuery() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", exchange -> {
+            requests.incrementAndGet();
+            InputStream requestBody = exchange.getRequestBody();
+            if ("gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+                requestBody = new GZIPInputStream(requestBody);
+            }
+            byte[] requestBytes = requestBody.readAllBytes();
+
+            JsonObject response = new JsonObject();
+            int status = 200;
+            if (failuresLeft.getAndUpdate(left -> Math.max(left - 1, 0)) > 0) {
+                status = 503;
+                JsonObject error = new JsonObject();
+                error.addProperty("code", 503);
+                error.addProperty("message", "backend unavailable");
+                response.add("error", error);
+            } else {
+                JsonArray rows = JsonParser.parseString(new String(requestBytes, StandardCharsets.UTF_8))
+                        .getAsJsonObject().getAsJsonArray("rows");
+                JsonArray insertErrors = new JsonArray();
+                for (int i = 0; i < rows.size(); i++) {
+                    JsonObject row = rows.get(i).getAsJsonObject();
+                    String title = row.getAsJsonObject("json").get("title").getAsString();
+                    if (title.startsWith("bad")) {
+                        JsonObject error = new JsonObject();
+                        error.addProperty("reason", "invalid");
+                        error.addProperty("message", "rejected " + title);
+                        JsonArray errors = new JsonArray();
+                        errors.add(error);
+                        JsonObject insertError = new JsonObject();
+                        insertError.addProperty("index", i);
+                        insertError.add("errors", errors);
+                        insertErrors.add(insertError);
+                    } else {
+                        insertedIds.add(row.get("insertId").getAsString());
+                    }
+                }
+                response.addProperty("kind", "bigquery#tableDataInsertAllResponse");
+                if (!insertErrors.isEmpty()) {
+                    response.add("insertErrors", insertErrors);
+                }
+            }
+
+            byte[] body = response.toString().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(status, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+
+        client = BigQueryOptions.newBuilder()
+                .setProjectId("test-project")
+                .setHost("http://localhost:" + server.getAddress().getPort())
+                .setCredentials(NoCredentials.getInstance())
+                .setRetrySettings(ServiceOptions.getNoRetrySettings())
+                .build().getService();
+    }
+
+    @AfterEach
+    void stopFakeBigQuery() {
+        server.stop(0);
+    }
+
+    private BigQuerySpoolDrainer drainer(BigQuerySpool spool, int batchSize) {
+        return new BigQuerySpoolDrainer(spool, TableId.of("public_data", "free_ebook_of_the_day"),
+                new BigQuerySpoolDrainer.Settings(batchSize, Duration.ofMillis(20), Duration.ofMillis(100)));
+    }
+
+    private static void awaitEmpty(BigQuerySpool spool) throws InterruptedException {
+        long deadline = System.nanoTime() + Duration.ofSeconds(10).toNanos();
+        while (spool.stats().pendingRows() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    void replaysInBatchesAfterFailures() throws Exception {
+        try (BigQuerySpool spool = new BigQuerySpool(dir, 1024 * 1024);
+             BigQuerySpoolDrainer drainer = drainer(spool, 2)) {
+            for (String id : List.of("a", "b", "c")) {
+                spool.append(id, Map.of("title", id));
+            }
+            spool.release(List.of("a", "b", "c"));
+            failuresLeft.set(2);
+
+            drainer.client(client);
+            drainer.wake();
+            awaitEmpty(spool);
+
+            assertEquals(0, spool.stats().pendingRows());
+            assertEquals(List.of("a", "b", "c"), insertedIds);
+            // Two failed requests, then two batches.
+            assertEquals(4, requests.get());
+            assertEquals(3, drainer.stats().replayed());
+            assertEquals(0, drainer.stats().consecutiveFailures());
+        }
+    }
+
+    @Test
+    void dropsRowsRejectedAsInvalid() throws Exception {
+        try (BigQuerySpool spool = new BigQuerySpool(dir, 1024 * 1024);
+             BigQuerySpoolDrainer drainer = drainer(spool, 10)) {
+            spool.append("good", Map.of("title", "good"));
+            spool.append("bad", Map.of("title", "bad"));
+            spool.release(List.of("good", "bad"));
+
+            drainer.client(client);
+            drainer.wake();
+            awaitEmpty(spool);
+
+            assertEquals(List.of("good"), insertedIds);
+            assertEquals(1, drainer.stats().dropped());
+        }
+    }
+
+    @Test
+    void waitsForClient() throws Exception {
+        try (BigQuerySpool spool = new BigQuerySpool(dir, 1024 * 1024);
+             BigQuerySpoolDrainer drainer = drainer(spool, 10)) {
+            spool.append("a", Map.of("title", "a"));
+            spool.release(List.of("a"));
+
+            drainer.wake();
+            Thread.sleep(50);
+            assertEquals(0, requests.get());
+            assertTrue(spool.stats().pendingRows() > 0);
+
+            drainer.client(client);
+            drainer.wake();
+            awaitEmpty(spool);
+            assertEquals(List.of("a"), insertedIds);
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.mattwelke.packtbookbot;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BigQuerySpoolTest {
+    @TempDir
+    Path dir;
+
+    private static List<String> insertIds(List<BigQuerySpool.Row> rows) {
+        return rows.stream().map(BigQuerySpool.Row::insertId).toList();
+    }
+
+    private long segmentFiles() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.count();
+        }
+    }
+
+    @Test
+    void recoversRowsThatWereNotAcknowledged() throws IOException {
+        try (BigQuerySpool spool = new BigQuerySpool(dir, 1024 * 1024)) {
+            spool.append("a", Map.of("title", "A"));
+            spool.append("b", Map.of("title", "B"));
+            spool.append("c", Map.of("title", "C"));
+            spool.acknowledge(List.of("b"));
+        }
+
+        try (BigQuerySpool spool = new BigQuerySpool(dir, 1024 * 1024)) {
+            assertEquals(2, spool.stats().pendingRows());
+            List<BigQuerySpool.Row> rows = spool.takeForReplay(10);
+            assertEquals(List.of("a", "c"), insertIds(rows));
+            assertEquals(Map.of("title", "A"), rows.get(0).content());
+        }
+    }
+
+    @Test
+    void doesNotReplayRowsInFlight() throws IOException {
+        try (BigQuerySpool spool = new BigQuerySpool(dir, 1024 * 1024)) {
+            spool.append("a", Map.of("title", "A"));
+            spool.append("b", Map.of("title", "B"));
+            assertEquals(List.of(), spool.takeForReplay(10));
+
+            spool.release(List.of("b"));
+            assertEquals(List.of("b"), insertIds(spool.takeForReplay(10)));
+            assertEquals(List.of(), spool.takeForReplay(10));
+
+            // Appending a row that's already pending doesn't spool it twice.
+            spool.release(List.of("a", "b"));
+            spool.append("a", Map.of("title", "A"));
+            assertEquals(2, spool.stats().pendingRows());
+            assertEquals(List.of("b"), insertIds(spool.takeForReplay(10)));
+        }
+    }
+
+    @Test
+    void skipsLineTornByCrash() throws IOException {
+        try (BigQuerySpool spool = new BigQuerySpool(dir, 1024 * 1024)) {
+            spool.append("a", Map.of("title", "A"));
+        }
+        try (Stream<Path> files = Files.list(dir)) {
+            Path segment = files.filter(file -> file.toString().endsWith(".log")).sorted().findFirst().orElseThrow();
+            Files.writeString(segment, "{\"op\":\"append\",\"insertId\":\"b\",\"ro", StandardCharsets.UTF_8,
+                    StandardOpenOption.APPEND);
+        }
+
+        try (BigQuerySpool spool = new BigQuerySpool(dir, 1024 * 1024)) {
+            assertEquals(List.of("a"), insertIds(spool.takeForReplay(10)));
+        }
+    }
+
+    @Test
+    void deletesSegmentsOnceTheirRowsAreAcknowledged() throws IOException {
+        try (BigQuerySpool spool = new BigQuerySpool(dir, 1)) {
+            // Every append after the first starts a new segment.
+            spool.append("a", Map.of("title", "A"));
+            spool.append("b", Map.of("title", "B"));
+            spool.append("c", Map.of("title", "C"));
+            assertEquals(3, segmentFiles());
+
+            // The oldest segment still has a pending row, so none can be deleted yet.
+            spool.acknowledge(List.of("b"));
+            assertEquals(3, segmentFiles());
+
+            spool.acknowledge(List.of("a"));
+            assertEquals(1, segmentFiles());
+
+            spool.acknowledge(List.of("c"));
+            assertEquals(1, segmentFiles());
+            assertEquals(0, spool.stats().pendingRows());
+        }
+
+        try (BigQuerySpool spool = new BigQuerySpool(dir, 1)) {
+            assertEquals(0, spool.stats().pendingRows());
+            assertEquals(1, segmentFiles());
+        }
+    }
+
+    @Test
+    void insertIdIsDeterministic() {
+        LocalDate day = LocalDate.of(2023, 4, 1);
+        String insertId = BigQueryTitleDataSink.insertId(day, "Practical Mobile Forensics");
+
+        assertEquals(insertId, BigQueryTitleDataSink.insertId(day, "Practical Mobile Forensics"));
+        assertNotEquals(insertId, BigQueryTitleDataSink.insertId(day.plusDays(1), "Practical Mobile Forensics"));
+        assertNotEquals(insertId, BigQueryTitleDataSink.insertId(day, "Practical Mobile Forensics 2"));
+        assertTrue(insertId.matches("[0-9a-f]{64}"));
+    }
+}
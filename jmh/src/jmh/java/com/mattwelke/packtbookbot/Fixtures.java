@@ -0,0 +1,30 @@
+package com.mattwelke.packtbookbot;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+
+/**
+ * Loads the recorded pages in the title fetcher's test resources.
+ */
+final class Fixtures {
+    private Fixtures() {
+    }
+
+    /**
+     * Reads a recorded page.
+     *
+     * @param name The file name of the page, e.g. "free-learning.html".
+     * @return The page.
+     */
+    static byte[] read(String name) {
+        try (InputStream in = Fixtures.class.getResourceAsStream("/fixtures/" + name)) {
+            if (in == null) {
+                throw new IllegalArgumentException("No fixture named " + name);
+            }
+            return in.readAllBytes();
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.mattwelke.packtbookbot;
+
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Benchmarks parsing the recorded pages, which happens on every title fetcher invocation.
+ */
+@State(Scope.Benchmark)
+public class PageParsingBenchmark {
+    private static final String searchedTitle = "Practical Mobile Forensics - Fourth Edition";
+
+    private byte[] freeLearningPage;
+    private byte[] productPage;
+    private byte[] googleSearchPage;
+    private FreeLearningPageDataFetcher freeLearningFetcher;
+
+    @Setup
+    public void setup() throws IOException {
+        freeLearningPage = Fixtures.read("free-learning.html");
+        productPage = Fixtures.read("product-page.html");
+        googleSearchPage = Fixtures.read("google-search.html");
+        freeLearningFetcher = new FreeLearningPageDataFetcher(new ByteArrayInputStream(freeLearningPage));
+    }
+
+    @Benchmark
+    public Authors parseAuthorsString() {
+        return FreeLearningPageDataFetcher.parseAuthorsString("Rohit Tamma, Oleg Skulkin, Heather Mahalik and 1 more");
+    }
+
+    /**
+     * Reading the page and parsing every field, as the action does.
+     */
+    @Benchmark
+    public void freeLearningPage(Blackhole bh) throws IOException {
+        FreeLearningPageDataFetcher fetcher = new FreeLearningPageDataFetcher(
+                new ByteArrayInputStream(freeLearningPage));
+        bh.consume(fetcher.title());
+        bh.consume(fetcher.pubDate());
+        bh.consume(fetcher.authors());
+    }
+
+    /**
+     * Parsing the page into a DOM and querying it with a selector per field, followed by string splitting, the way the
+     * fetcher did before its extraction rules. For comparison with {@link #freeLearningPage}.
+     */
+    @Benchmark
+    public void freeLearningPageSelectPerField(Blackhole bh) throws IOException {
+        Document doc = Jsoup.parse(new ByteArrayInputStream(freeLearningPage), "UTF-8", Urls.FREE_LEARNING);
+        bh.consume(doc.select("h3.product-info__title").first().text().replace("Free eBook - ", ""));
+
+        String[] pubDate = doc.select("div.free_learning__product_pages_date").first().children().first().html()
+                .split("Publication date: ")[1].split(" ");
+        bh.consume(new PublicationDate(PublicationDateMonths.monthName(pubDate[0]), pubDate[1]));
+
+        bh.consume(FreeLearningPageDataFetcher.parseAuthorsString(
+                doc.select("span.product-info__author").first().html().trim().split("By ")[1]));
+    }
+
+    @Benchmark
+    public String title() {
+        return freeLearningFetcher.title();
+    }
+
+    @Benchmark
+    public PublicationDate pubDate() {
+        return freeLearningFetcher.pubDate();
+    }
+
+    @Benchmark
+    public Authors authors() {
+        return freeLearningFetcher.authors();
+    }
+
+    @Benchmark
+    public Object productPageAuthors() throws IOException {
+        return new ProductPageDataFetcher(new ByteArrayInputStream(productPage), "https://www.packtpub.com/")
+                .authors();
+    }
+
+    /**
+     * Filtering the h3s of a saved Google results page for the product page URL.
+     */
+    @Benchmark
+    public String googleSearchH3Filtering() throws Exception {
+        return ProductPageUrlFetcher.productPageUrl(
+                new InputStreamReader(new ByteArrayInputStream(googleSearchPage), StandardCharsets.UTF_8),
+                searchedTitle);
+    }
+}
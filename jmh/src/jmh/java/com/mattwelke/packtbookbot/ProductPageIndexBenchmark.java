@@ -0,0 +1,58 @@
+package com.mattwelke.packtbookbot;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Optional;
+import java.util.stream.Stream;
+
+/**
+ * Benchmarks looking up a product page URL in an index the size of Packt's catalog, which replaces the Google search
+ * when the title is indexed.
+ */
+@State(Scope.Benchmark)
+public class ProductPageIndexBenchmark {
+    private static final int catalogSize = 10_000;
+
+    private final PublicationDate pubDate = new PublicationDate("April", "2020");
+
+    private Path dir;
+    private ProductPageIndex index;
+
+    @Setup
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("product-page-index");
+        index = new ProductPageIndex(dir.resolve("index"));
+        for (int i = 0; i < catalogSize; i++) {
+            index.put("Synthetic Title " + i, PublicationDate.ofYearMonth((2015 + i / 12 % 8) * 100 + i % 12 + 1),
+                    "https://www.packtpub.com/product/synthetic-title-" + i + "/978" + (1000000000 + i));
+        }
+        index.put("Practical Mobile Forensics - Fourth Edition", pubDate,
+                "https://www.packtpub.com/product/practical-mobile-forensics-fourth-edition/9781838647520");
+        index.flush();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(f -> f.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public Optional<String> hit() {
+        return index.lookup("Practical Mobile Forensics - Fourth Edition", pubDate);
+    }
+
+    @Benchmark
+    public Optional<String> miss() {
+        return index.lookup("Mastering Something Unindexed - Second Edition", pubDate);
+    }
+}
@@ -0,0 +1,68 @@
+package com.mattwelke.packtbookbot;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Benchmarks moving title data between actions and turning it into a BigQuery row.
+ */
+@State(Scope.Benchmark)
+public class SerializationBenchmark {
+    private static final String[] shortMonthNames = {
+            "Jan", "Feb", "Mar", "Apr", "May", "Jun", "Jul", "Aug", "Sep", "Oct", "Nov", "Dec"};
+    private static final String[] fullMonthNames = {
+            "January", "February", "March", "April", "May", "June", "July", "August", "September", "October",
+            "November", "December"};
+
+    private TitleData data;
+    private Map<String, Object> params;
+    private LocalDate day;
+
+    @Setup
+    public void setup() {
+        data = new TitleData(
+                "Practical Mobile Forensics - Fourth Edition",
+                new PublicationDate("April", "2020"),
+                Optional.of("https://www.packtpub.com/product/practical-mobile-forensics-fourth-edition/9781838647520"),
+                new Authors(List.of("Rohit Tamma", "Oleg Skulkin", "Heather Mahalik", "Satish Bommisetty"), false));
+        params = data.toMap();
+        day = LocalDate.of(2023, 4, 1);
+    }
+
+    @Benchmark
+    public TitleData titleDataOf() {
+        return TitleData.of(params);
+    }
+
+    @Benchmark
+    public Map<String, Object> titleDataToMap() {
+        return data.toMap();
+    }
+
+    @Benchmark
+    public void monthName(Blackhole bh) {
+        for (String shortMonthName : shortMonthNames) {
+            bh.consume(PublicationDateMonths.monthName(shortMonthName));
+        }
+    }
+
+    @Benchmark
+    public void monthNumber(Blackhole bh) {
+        for (String fullMonthName : fullMonthNames) {
+            bh.consume(PublicationDateMonths.monthNumber(fullMonthName));
+        }
+    }
+
+    @Benchmark
+    public Map<String, Object> bigqueryRow() {
+        return BigQueryTitleDataSink.row(data, day);
+    }
+}
@@ -0,0 +1,100 @@
+package com.mattwelke.packtbookbot;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the throughput of questions about the history of the free eBook of the day, answered from memory instead
+ * of by querying BigQuery. The history is ten years of synthetic titles, by authors picked from a pool with a skewed
+ * distribution, like a few authors having many free eBooks.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class TitleHistoryIndexBenchmark {
+    private static final int days = 3650;
+    private static final int authorPool = 2000;
+    private static final String[] words = {
+            "Mastering", "Learning", "Practical", "Hands-On", "Python", "Java", "Kubernetes", "Machine", "Deep",
+            "Data", "Science", "Cloud", "Native", "Microservices", "React", "Security", "Mobile", "Forensics",
+            "Penetration", "Testing", "Azure", "DevOps", "Go", "Rust", "Programming", "Cookbook", "Linux", "Unity",
+            "Algorithms", "Architecture", "Patterns", "Spring", "Docker", "Terraform", "Serverless", "Automation"};
+    private static final LocalDate firstDay = LocalDate.of(2015, 1, 1);
+
+    private final List<TitleData> history = new ArrayList<>();
+    private TitleHistoryIndex index;
+    private LocalDate day;
+    private TitleData title;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        index = new TitleHistoryIndex();
+        for (int i = 0; i < days; i++) {
+            String name = words[random.nextInt(words.length)] + " " + words[random.nextInt(words.length)] + " "
+                    + words[random.nextInt(words.length)] + " " + i;
+            List<String> authors = new ArrayList<>();
+            int authorCount = 1 + random.nextInt(3);
+            for (int a = 0; a < authorCount; a++) {
+                // Squaring a uniform number skews the picks towards the first authors.
+                double skewed = random.nextDouble() * random.nextDouble();
+                authors.add("Author" + (int) (skewed * authorPool) + " Surname");
+            }
+            TitleData data = new TitleData(name, PublicationDate.ofYearMonth(201501 + i / 365 * 100 + i % 12),
+                    Optional.empty(), new Authors(authors, false));
+            history.add(data);
+            index.put(data, firstDay.plusDays(i));
+        }
+        day = firstDay.plusDays(days / 2);
+        title = index.onDay(day).orElseThrow().data();
+    }
+
+    @Benchmark
+    public Optional<TitleHistoryIndex.Entry> onDay() {
+        return index.onDay(day);
+    }
+
+    @Benchmark
+    public Optional<TitleHistoryIndex.Entry> lastFree() {
+        return index.lastFree(title.title());
+    }
+
+    @Benchmark
+    public List<TitleHistoryIndex.Entry> byFrequentAuthor() {
+        return index.byAuthor("Author0 Surname");
+    }
+
+    @Benchmark
+    public List<TitleHistoryIndex.Entry> searchTitles() {
+        return index.searchTitles("mobile foren", 20);
+    }
+
+    @Benchmark
+    public List<String> searchAuthors() {
+        return index.searchAuthors("author19", 20);
+    }
+
+    /**
+     * Applying the whole history, a title at a time, like when starting from an export.
+     */
+    @Benchmark
+    public TitleHistoryIndex build() {
+        TitleHistoryIndex built = new TitleHistoryIndex();
+        for (int i = 0; i < history.size(); i++) {
+            built.put(history.get(i), firstDay.plusDays(i));
+        }
+        return built;
+    }
+}
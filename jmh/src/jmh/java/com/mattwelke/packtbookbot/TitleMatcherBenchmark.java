@@ -0,0 +1,90 @@
+package com.mattwelke.packtbookbot;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+
+/**
+ * Benchmarks matching a title against a synthetic catalog of Packt-like titles. Titles are made of a few common
+ * technology words and a long tail of generated words, picked with a skewed distribution like the words of real
+ * titles, and a quarter of them are each of the first to fourth editions.
+ */
+@State(Scope.Benchmark)
+public class TitleMatcherBenchmark {
+    private static final String[] syllables = {
+            "ka", "lo", "mi", "ter", "an", "son", "ri", "ve", "tex", "po", "ly", "nar", "cu", "dis", "ge", "ba", "zu",
+            "qua", "fen", "gro", "hil", "jor", "wex", "yam", "pri", "stu", "ob", "ic", "ath", "om", "un", "ev", "sca",
+            "blo", "dre", "fli", "gna", "kro", "mur", "plo", "sny", "tro", "vy", "wha", "xe", "zor", "chi", "sho"};
+    private static final String[] commonWords = {
+            "Mastering", "Learning", "Practical", "Hands-On", "Python", "Java", "Kubernetes", "Machine", "Learning",
+            "Deep", "Data", "Science", "Cloud", "Native", "Microservices", "React", "Angular", "Security", "Mobile",
+            "Forensics", "Penetration", "Testing", "Azure", "AWS", "Google", "DevOps", "Go", "Rust", "Programming",
+            "Cookbook", "Essentials", "Guide", "Networking", "Linux", "Administration", "Blockchain", "Unity", "Game",
+            "Development", "Algorithms", "Analytics", "Engineering", "Architecture", "Patterns", "Spring", "Boot",
+            "Docker", "Terraform", "Ansible", "Serverless", "Tableau", "Power", "BI", "Excel", "Automation", "Modern",
+            "Effective", "Advanced", "Beginning", "Applied", "Statistics", "Computer", "Vision", "NLP", "Transformers"};
+    private static final String[] editions = {"", " - Second Edition", " - Third Edition", " - Fourth Edition"};
+
+    @Param({"300000"})
+    public int catalogSize;
+
+    private TitleMatcher matcher;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        String[] words = new String[commonWords.length + 5000];
+        System.arraycopy(commonWords, 0, words, 0, commonWords.length);
+        for (int i = commonWords.length; i < words.length; i++) {
+            StringBuilder word = new StringBuilder();
+            for (int s = 0, n = 2 + random.nextInt(3); s < n; s++) {
+                word.append(syllables[random.nextInt(syllables.length)]);
+            }
+            words[i] = Character.toUpperCase(word.charAt(0)) + word.substring(1);
+        }
+
+        List<TitleMatcher.Candidate> candidates = new ArrayList<>(catalogSize + 1);
+        for (int i = 0; i < catalogSize; i++) {
+            StringBuilder title = new StringBuilder();
+            int wordCount = 3 + random.nextInt(4);
+            for (int w = 0; w < wordCount; w++) {
+                title.append(w == 0 ? "" : " ")
+                        .append(words[(int) (Math.pow(random.nextDouble(), 3) * words.length)]);
+            }
+            title.append(editions[random.nextInt(editions.length)]);
+            int yearMonth = (2010 + random.nextInt(14)) * 100 + 1 + random.nextInt(12);
+            candidates.add(new TitleMatcher.Candidate(title.toString(), yearMonth, "https://www.packtpub.com/product/" + i));
+        }
+        candidates.add(new TitleMatcher.Candidate("Practical Mobile Forensics - Fourth Edition", 202004,
+                "https://www.packtpub.com/product/practical-mobile-forensics-fourth-edition/9781838647520"));
+        matcher = new TitleMatcher(candidates);
+    }
+
+    @Benchmark
+    public Optional<TitleMatcher.Match> best() {
+        return matcher.best("Practical Mobile Forensics - Fourth Edition", 202004);
+    }
+
+    /**
+     * A title as it might appear in a search result, with different punctuation and a site name.
+     */
+    @Benchmark
+    public Optional<TitleMatcher.Match> noisy() {
+        return matcher.best("Practical Mobile Forensics: Fourth edition | Packt", 0);
+    }
+
+    /**
+     * A title that isn't in the catalog.
+     */
+    @Benchmark
+    public Optional<TitleMatcher.Match> miss() {
+        return matcher.best("Learning Quantum Basket Weaving", 202004);
+    }
+}
@@ -0,0 +1,61 @@
+package com.mattwelke.packtbookbot;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+
+/**
+ * Crawls a catalog of many product pages served by a local stub of packtpub.com, which serves the recorded product
+ * page, to check that the crawl scheduler sustains thousands of requests in flight without exhausting memory. Reports
+ * the crawl's counters, the peak heap usage and the garbage collection pauses.
+ * <p>
+ * Usage: {@code [<product pages> [<max in flight> [<latency ms>]]]}
+ */
+final class CrawlLoadTest {
+    private CrawlLoadTest() {
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int products = args.length > 0 ? Integer.parseInt(args[0]) : 20_000;
+        int maxInFlight = args.length > 1 ? Integer.parseInt(args[1]) : 1_000;
+        long latencyMillis = args.length > 2 ? Long.parseLong(args[2]) : 200;
+
+        try (StubServer packt = new StubServer("packt"); GcPauses pauses = new GcPauses()) {
+            StringBuilder catalog = new StringBuilder("<html><body>");
+            for (int i = 0; i < products; i++) {
+                catalog.append("<a href=\"/product/book-").append(i).append('/').append(i).append("\">Book</a>");
+            }
+            catalog.append("</body></html>");
+            packt.route("/robots.txt", "text/plain", new byte[0]);
+            packt.route("/catalog", "text/html; charset=utf-8", catalog.toString().getBytes(StandardCharsets.UTF_8));
+            packt.route("/product/", "text/html; charset=utf-8", Stubs.fixture("product-page.html"));
+            packt.behavior(new StubServer.Behavior(Duration.ofMillis(latencyMillis), 0));
+
+            CrawlScheduler.Settings settings = new CrawlScheduler.Settings("packt-book-bot", maxInFlight,
+                    products + 1, 1, 1_000_000, maxInFlight, Duration.ofSeconds(60), Duration.ofHours(24),
+                    Duration.ofMinutes(1));
+            List<MemoryPoolMXBean> heapPools = ManagementFactory.getMemoryPoolMXBeans().stream()
+                    .filter(pool -> pool.getType() == MemoryType.HEAP)
+                    .toList();
+            heapPools.forEach(MemoryPoolMXBean::resetPeakUsage);
+
+            CatalogCrawl.Result result = CatalogCrawl.crawl(settings, List.of(packt.url("/catalog")));
+
+            long peakHeapBytes = heapPools.stream().mapToLong(pool -> pool.getPeakUsage().getUsed()).sum();
+            CrawlScheduler.Stats stats = result.stats();
+            System.out.printf("Crawled %d product page(s) in %d ms: %d fetched, %d failed, peak %d in flight.%n",
+                    result.products().size(), stats.elapsed().toMillis(), stats.fetched(), stats.failed(),
+                    stats.peakInFlight());
+            System.out.printf("Throughput: %.0f pages/s. Peak heap: %d MiB of %d MiB.%n",
+                    stats.fetched() / (stats.elapsed().toNanos() / 1e9), peakHeapBytes / (1024 * 1024),
+                    Runtime.getRuntime().maxMemory() / (1024 * 1024));
+            GcPauses.Summary gc = pauses.summary();
+            System.out.printf("GC pauses: %d, total %d ms, max %d ms.%n", gc.count(), gc.totalMillis(),
+                    gc.maxMillis());
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.mattwelke.packtbookbot;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+/**
+ * Records the duration of every garbage collection pause while it's open.
+ * <p>
+ * Collectors that mostly run concurrently with the application, like G1's concurrent cycle and ZGC's cycles, report
+ * their cycles through their own beans. Those are skipped, because their duration isn't time the application was
+ * stopped.
+ */
+final class GcPauses implements AutoCloseable {
+    private final List<NotificationEmitter> emitters = new ArrayList<>();
+    private final NotificationListener listener = this::handle;
+
+    private long count;
+    private long totalMillis;
+    private long maxMillis;
+
+    /**
+     * The pauses recorded.
+     *
+     * @param count       The number of pauses.
+     * @param totalMillis Their total duration.
+     * @param maxMillis   The longest one.
+     */
+    record Summary(long count, long totalMillis, long maxMillis) {
+    }
+
+    /**
+     * Starts recording.
+     */
+    GcPauses() {
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (collector instanceof NotificationEmitter emitter && !isConcurrent(collector.getName())) {
+                emitter.addNotificationListener(listener, null, null);
+                emitters.add(emitter);
+            }
+        }
+    }
+
+    synchronized Summary summary() {
+        return new Summary(count, totalMillis, maxMillis);
+    }
+
+    private synchronized void handle(Notification notification, Object handback) {
+        if (!GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType())) {
+            return;
+        }
+        GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo.from(
+                (CompositeData) notification.getUserData());
+        long millis = info.getGcInfo().getDuration();
+        count++;
+        totalMillis += millis;
+        maxMillis = Math.max(maxMillis, millis);
+    }
+
+    private static boolean isConcurrent(String collectorName) {
+        return collectorName.contains("Concurrent") || collectorName.contains("Cycles");
+    }
+
+    @Override
+    public void close() {
+        for (NotificationEmitter emitter : emitters) {
+            try {
+                emitter.removeNotificationListener(listener);
+            } catch (ListenerNotFoundException ex) {
+                // Already removed.
+            }
+        }
+    }
+}
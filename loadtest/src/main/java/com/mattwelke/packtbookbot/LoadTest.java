@@ -0,0 +1,287 @@
+package com.mattwelke.packtbookbot;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.mattwelke.owr.java.Action;
+
+/**
+ * Runs an action in-process many times, concurrently, against local stubs of the services it calls, and reports its
+ * latency, throughput and garbage collection pauses. Runs fully offline.
+ * <p>
+ * The action runs in an {@link ActionHost}, like in a container with a per-container concurrency above one: it's
+ * created once, then invoked repeatedly, each activation with its own cluster context. The first invocation is
+ * reported separately as the cold start, because it includes class loading and the first connections, then the
+ * remaining invocations run as warm invocations, as many at once as the concurrency.
+ */
+public class LoadTest {
+    private static final Map<String, String> actionAliases = Map.of(
+            "title-fetcher", "com.mattwelke.packtbookbot.TitleFetcherAction",
+            "gcp-data-sharer", "com.mattwelke.packtbookbot.GcpDataSharerAction",
+            "pipeline", "com.mattwelke.packtbookbot.TitleDataPipelineAction");
+
+    private final Logger logger = Logger.getLogger(LoadTest.class.getName());
+
+    private final Options options;
+
+    /**
+     * The load test's settings.
+     *
+     * @param actionClass  The fully qualified name of the Action subclass to run.
+     * @param invocations  How many warm invocations to run, after the cold start.
+     * @param concurrency  How many invocations to run at once.
+     * @param behaviors    How each stub behaves, by stub name. Stubs not listed respond immediately and never fail.
+     * @param params       Params added to, or replacing, the default params for the action.
+     */
+    record Options(String actionClass, int invocations, int concurrency, Map<String, StubServer.Behavior> behaviors,
+                   Map<String, Object> params) {
+    }
+
+    /**
+     * The results of a load test.
+     *
+     * @param coldStartMillis   How long creating the action and its first invocation took.
+     * @param coldStartFailed   Whether the first invocation threw.
+     * @param invocations       How many warm invocations ran.
+     * @param failures          How many warm invocations threw.
+     * @param wallMillis        How long the warm invocations took overall.
+     * @param latencyMillis     Latency percentiles of the warm invocations, in milliseconds, by name (p50 etc.).
+     * @param gcPauses          Garbage collection pauses during the whole test.
+     * @param stubRequests      How many requests each stub received, by stub name.
+     */
+    record Report(long coldStartMillis, boolean coldStartFailed, int invocations, int failures, long wallMillis,
+                  Map<String, Double> latencyMillis, GcPauses.Summary gcPauses, Map<String, Long> stubRequests) {
+        double throughput() {
+            return wallMillis > 0 ? invocations * 1000.0 / wallMillis : 0;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder report = new StringBuilder();
+            report.append(String.format("Cold start: %d ms%s%n", coldStartMillis, coldStartFailed ? " (failed)" : ""));
+            report.append(String.format("Warm invocations: %d (%d failed) in %d ms, %.1f/s%n", invocations, failures,
+                    wallMillis, throughput()));
+            latencyMillis.forEach((name, millis) -> report.append(String.format("  %s: %.1f ms%n", name, millis)));
+            report.append(String.format("GC pauses: %d, total %d ms, max %d ms%n", gcPauses.count(),
+                    gcPauses.totalMillis(), gcPauses.maxMillis()));
+            report.append("Stub requests: ").append(stubRequests);
+            return report.toString();
+        }
+    }
+
+    LoadTest(Options options) {
+        this.options = options;
+    }
+
+    /**
+     * Runs the load test.
+     *
+     * @return The results.
+     * @throws Exception when the stubs can't be started or the action can't be created.
+     */
+    Report run() throws Exception {
+        // Before the action is loaded, so that it reads the stubs' URLs.
+        Stubs stubs = Stubs.start();
+        Map<String, Long> requestsBefore = new HashMap<>();
+        for (StubServer stub : stubs.all()) {
+            stub.behavior(options.behaviors().getOrDefault(stub.name(), new StubServer.Behavior(Duration.ZERO, 0)));
+            requestsBefore.put(stub.name(), stub.requests());
+        }
+
+        Map<String, Object> params = new HashMap<>(defaultParams(options.actionClass(), stubs));
+        params.putAll(options.params());
+
+        try (GcPauses gcPauses = new GcPauses(); ActionHost host = new ActionHost()) {
+            long coldStart = System.nanoTime();
+            Action action = Class.forName(options.actionClass()).asSubclass(Action.class)
+                    .getDeclaredConstructor().newInstance();
+            String actionName = action.getClass().getSimpleName();
+            host.register(actionName, action, options.concurrency(), 0);
+            boolean coldStartFailed = false;
+            try {
+                host.invoke(actionName, params, clusterContext(actionName, 0)).join();
+            } catch (CompletionException ex) {
+                coldStartFailed = true;
+                logger.log(Level.WARNING, "Cold start invocation failed.", ex.getCause());
+            }
+            long coldStartMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - coldStart);
+
+            long[] latencies = new long[options.invocations()];
+            int failures = 0;
+            // Keeps the host at its limit, without queueing, so that latencies don't include time spent queued.
+            Semaphore running = new Semaphore(options.concurrency());
+            long start = System.nanoTime();
+            List<CompletableFuture<Long>> futures = new ArrayList<>(options.invocations());
+            for (int i = 0; i < options.invocations(); i++) {
+                running.acquire();
+                long invocationStart = System.nanoTime();
+                futures.add(host.invoke(actionName, params, clusterContext(actionName, i + 1))
+                        .thenApply(output -> System.nanoTime() - invocationStart)
+                        .whenComplete((latency, ex) -> running.release()));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    latencies[i] = futures.get(i).get();
+                } catch (ExecutionException ex) {
+                    failures++;
+                    latencies[i] = -1;
+                    logger.log(Level.FINE, "Invocation failed.", ex.getCause());
+                }
+            }
+            long wallMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+            Map<String, Long> stubRequests = new LinkedHashMap<>();
+            for (StubServer stub : stubs.all()) {
+                stubRequests.put(stub.name(), stub.requests() - requestsBefore.get(stub.name()));
+            }
+            return new Report(coldStartMillis, coldStartFailed, options.invocations(), failures, wallMillis,
+                    percentiles(latencies), gcPauses.summary(), stubRequests);
+        }
+    }
+
+    /**
+     * Returns the cluster context OpenWhisk would give an activation.
+     */
+    private static Map<String, Object> clusterContext(String actionName, int activation) {
+        return Map.of(
+                "namespace", "loadtest",
+                "action_name", "/loadtest/" + actionName,
+                "activation_id", String.format("%032x", activation));
+    }
+
+    /**
+     * Returns the params an action needs to succeed against the stubs.
+     */
+    private static Map<String, Object> defaultParams(String actionClass, Stubs stubs) {
+        if (actionClass.equals(actionAliases.get("gcp-data-sharer"))) {
+            TitleData data = new TitleData("Practical Mobile Forensics - Fourth Edition",
+                    new PublicationDate("April", "2020"),
+                    Optional.of(stubs.packt.url("/product/practical-mobile-forensics-fourth-edition/9781838647520")),
+                    new Authors(List.of("Rohit Tamma", "Oleg Skulkin", "Heather Mahalik", "Satish Bommisetty"),
+                            false));
+            Map<String, Object> params = data.toMap();
+            params.put("gcpCreds", stubs.gcpCreds);
+            return params;
+        }
+        if (actionClass.equals(actionAliases.get("pipeline"))) {
+            return Map.of(
+                    "gcpCreds", stubs.gcpCreds,
+                    "sinkFile", stubs.stateDir.resolve("free-ebooks.jsonl").toString(),
+                    "webhookUrl", stubs.webhook.url("/webhook"));
+        }
+        return Map.of();
+    }
+
+    /**
+     * Returns nearest-rank latency percentiles of the successful invocations.
+     */
+    static Map<String, Double> percentiles(long[] latencyNanos) {
+        long[] sorted = Arrays.stream(latencyNanos).filter(nanos -> nanos >= 0).sorted().toArray();
+        Map<String, Double> percentiles = new LinkedHashMap<>();
+        if (sorted.length == 0) {
+            return percentiles;
+        }
+        for (double p : new double[]{50, 90, 99}) {
+            int rank = (int) Math.ceil(p / 100 * sorted.length);
+            percentiles.put(String.format("p%.0f", p), sorted[Math.max(rank, 1) - 1] / 1e6);
+        }
+        percentiles.put("max", sorted[sorted.length - 1] / 1e6);
+        return percentiles;
+    }
+
+    /**
+     * Parses the command line arguments.
+     *
+     * @param args The arguments.
+     * @return The options.
+     * @throws IllegalArgumentException when the arguments are invalid.
+     */
+    static Options options(String[] args) throws IllegalArgumentException {
+        String actionClass = actionAliases.get("title-fetcher");
+        int invocations = 100;
+        int concurrency = 4;
+        Map<String, Duration> latencies = new HashMap<>();
+        Map<String, Double> failureRates = new HashMap<>();
+        Map<String, Object> params = new HashMap<>();
+
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + arg + ".");
+            }
+            String value = args[++i];
+            switch (arg) {
+                case "--action" -> actionClass = actionAliases.getOrDefault(value, value);
+                case "--invocations" -> invocations = Integer.parseInt(value);
+                case "--concurrency" -> concurrency = Integer.parseInt(value);
+                case "--latency-ms" -> perStub(value, latencies, v -> Duration.ofMillis(Long.parseLong(v)));
+                case "--failure-rate" -> perStub(value, failureRates, Double::parseDouble);
+                case "--param" -> {
+                    String[] nameAndValue = value.split("=", 2);
+                    if (nameAndValue.length != 2) {
+                        throw new IllegalArgumentException("Expected name=value after --param.");
+                    }
+                    params.put(nameAndValue[0], nameAndValue[1]);
+                }
+                default -> throw new IllegalArgumentException("Unknown argument " + arg + ".");
+            }
+        }
+        if (invocations < 1 || concurrency < 1) {
+            throw new IllegalArgumentException("--invocations and --concurrency must be at least 1.");
+        }
+
+        Map<String, StubServer.Behavior> behaviors = new HashMap<>();
+        for (String stub : List.of("packt", "google", "token", "bigquery", "webhook")) {
+            behaviors.put(stub, new StubServer.Behavior(
+                    latencies.getOrDefault(stub, latencies.getOrDefault("*", Duration.ZERO)),
+                    failureRates.getOrDefault(stub, failureRates.getOrDefault("*", 0.0))));
+        }
+        return new Options(actionClass, invocations, concurrency, behaviors, params);
+    }
+
+    /**
+     * Parses a value that applies to every stub ("50") or to one stub ("google=50").
+     */
+    private static <T> void perStub(String value, Map<String, T> values,
+                                    Function<String, T> parse) {
+        String[] stubAndValue = value.split("=", 2);
+        if (stubAndValue.length == 2) {
+            values.put(stubAndValue[0], parse.apply(stubAndValue[1]));
+        } else {
+            values.put("*", parse.apply(value));
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options;
+        try {
+            options = options(args);
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            System.err.println("Usage: loadtest [--action title-fetcher|gcp-data-sharer|<class>] [--invocations <n>]"
+                    + " [--concurrency <n>] [--latency-ms [<stub>=]<ms>]... [--failure-rate [<stub>=]<0..1>]..."
+                    + " [--param <name>=<value>]...");
+            System.err.println("Stubs: packt, google, token, bigquery.");
+            System.exit(2);
+            return;
+        }
+
+        System.out.println(new LoadTest(options).run());
+        // The actions' shared executors and the stubs use daemon threads, but the BigQuery client may not.
+        System.exit(0);
+    }
+}
@@ -0,0 +1,180 @@
+package com.mattwelke.packtbookbot;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the title fetcher's native executable with the title fetcher on the JVM, both run through
+ * {@link TitleFetcherNative}'s stdin and stdout contract against the stubs serving the recorded pages. Starts a new
+ * process of each kind per run, alternating between them so that both see the same machine conditions, and reports:
+ * <ul>
+ *     <li>startup: from starting the process to receiving the output of its first invocation</li>
+ *     <li>latency percentiles of the warm invocations that follow in the same process</li>
+ *     <li>peak RSS of the process, from /proc, so only on Linux</li>
+ * </ul>
+ * When there's no native executable, only reports the JVM.
+ */
+public class NativeComparison {
+    private static final String params = "{}";
+
+    /**
+     * The measurements of one process.
+     *
+     * @param startupNanos     From starting the process to receiving the output of its first invocation.
+     * @param warmLatencyNanos The latencies of the invocations after the first.
+     * @param peakRssKb        The process's peak resident set size, or -1 when it can't be read.
+     */
+    record Run(long startupNanos, long[] warmLatencyNanos, long peakRssKb) {
+    }
+
+    /**
+     * Runs the comparison.
+     *
+     * @param args The number of runs per kind, the number of invocations per run, the class path of the title fetcher
+     *             on the JVM (its shadow jar and the jars its runtime provides) and optionally the native executable.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.err.println("Usage: NativeComparison <runs> <invocations> <jvm class path> [native executable]");
+            System.exit(2);
+        }
+        int runs = Integer.parseInt(args[0]);
+        int invocations = Integer.parseInt(args[1]);
+        List<String> jvm = List.of(ProcessHandle.current().info().command().orElse("java"), "-cp", args[2],
+                TitleFetcherNative.class.getName());
+        List<String> nativeExecutable = args.length > 3 && Files.isExecutable(Path.of(args[3]))
+                ? List.of(Path.of(args[3]).toAbsolutePath().toString())
+                : null;
+
+        Stubs stubs = Stubs.start();
+        List<Run> jvmRuns = new ArrayList<>();
+        List<Run> nativeRuns = new ArrayList<>();
+        // The first process of each kind warms up the OS file cache, so it isn't counted.
+        for (int i = 0; i <= runs; i++) {
+            Run jvmRun = run(jvm, stubs, invocations);
+            Run nativeRun = nativeExecutable != null ? run(nativeExecutable, stubs, invocations) : null;
+            if (i > 0) {
+                jvmRuns.add(jvmRun);
+                if (nativeRun != null) {
+                    nativeRuns.add(nativeRun);
+                }
+            }
+        }
+
+        report("JVM", jvmRuns);
+        if (nativeExecutable != null) {
+            report("Native", nativeRuns);
+        } else {
+            System.out.println("  Native: no executable, build it with GraalVM and GRAALVM_HOME set");
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Starts a process, invokes the title fetcher in it the given number of times and measures it.
+     *
+     * @param command     The command starting the process, without the system properties pointing it at the stubs.
+     * @param stubs       The stubs.
+     * @param invocations The number of invocations, including the first.
+     * @return The measurements.
+     * @throws IOException when the process can't be started or an invocation fails.
+     */
+    static Run run(List<String> command, Stubs stubs, int invocations) throws IOException, InterruptedException {
+        // Fresh state, so that the first invocation goes through Google and the product page like a new container.
+        Path stateDir = Files.createTempDirectory(stubs.stateDir, "native-comparison");
+        List<String> fullCommand = new ArrayList<>(command.subList(0, 1));
+        fullCommand.addAll(List.of(
+                "-Dpacktbookbot.url.freeLearning=" + stubs.packt.url("/free-learning"),
+                "-Dpacktbookbot.url.googleSearch=" + stubs.google.url("/search"),
+                "-Dpacktbookbot.httpCache.dir=" + stateDir.resolve("http-cache"),
+                "-Dpacktbookbot.productPageIndex.file=" + stateDir.resolve("product-pages.idx")));
+        fullCommand.addAll(command.subList(1, command.size()));
+
+        long start = System.nanoTime();
+        Process process = new ProcessBuilder(fullCommand).redirectError(ProcessBuilder.Redirect.DISCARD).start();
+        try (Writer in = new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8);
+             BufferedReader out = new BufferedReader(
+                     new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            long startupNanos = invoke(in, out) - start;
+            long[] warmLatencyNanos = new long[invocations - 1];
+            for (int i = 0; i < warmLatencyNanos.length; i++) {
+                long invokeStart = System.nanoTime();
+                warmLatencyNanos[i] = invoke(in, out) - invokeStart;
+            }
+            long peakRssKb = peakRssKb(process.pid());
+            return new Run(startupNanos, warmLatencyNanos, peakRssKb);
+        } finally {
+            // Closing stdin ends the process, unless it's stuck.
+            if (!process.waitFor(10, TimeUnit.SECONDS)) {
+                process.destroyForcibly();
+            }
+        }
+    }
+
+    /**
+     * Sends the params for one invocation and waits for its output.
+     *
+     * @return When the output was received, from {@link System#nanoTime()}.
+     * @throws IOException when the process exits or the invocation fails.
+     */
+    private static long invoke(Writer in, BufferedReader out) throws IOException {
+        in.write(params + "\n");
+        in.flush();
+        String output = out.readLine();
+        long received = System.nanoTime();
+        if (output == null) {
+            throw new IOException("The process exited before responding.");
+        }
+        Map<String, Object> result = Json.readObject(output);
+        if (result.containsKey("error")) {
+            throw new IOException("Invocation failed: " + result.get("error"));
+        }
+        return received;
+    }
+
+    /**
+     * Reads the peak resident set size (VmHWM) of a process from /proc.
+     *
+     * @return The peak resident set size in KB, or -1 when it can't be read.
+     */
+    static long peakRssKb(long pid) {
+        try {
+            for (String line : Files.readAllLines(Path.of("/proc", Long.toString(pid), "status"))) {
+                if (line.startsWith("VmHWM:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", ""));
+                }
+            }
+        } catch (IOException | NumberFormatException ex) {
+            // Not Linux, or the process already exited.
+        }
+        return -1;
+    }
+
+    private static void report(String name, List<Run> runs) {
+        long[] warm = runs.stream().flatMapToLong(run -> Arrays.stream(run.warmLatencyNanos())).toArray();
+        long peakRssKb = median(runs.stream().mapToLong(Run::peakRssKb).toArray());
+        System.out.printf("  %s: startup to first output %d ms, peak RSS %s (medians of %d), warm invocations %s ms%n",
+                name,
+                median(runs.stream().mapToLong(Run::startupNanos).toArray()) / 1_000_000,
+                peakRssKb >= 0 ? peakRssKb / 1024 + " MB" : "unknown",
+                runs.size(),
+                LoadTest.percentiles(warm));
+    }
+
+    private static long median(long[] values) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+}
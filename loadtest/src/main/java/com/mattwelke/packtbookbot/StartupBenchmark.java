@@ -0,0 +1,116 @@
+package com.mattwelke.packtbookbot;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Measures how long it takes a new JVM to finish an action's first invocation, with and without the action's class
+ * data sharing archive. Runs the action's training main in new JVMs from the directory the archive was built in,
+ * alternating between with and without the archive so that both see the same machine conditions, and reports the
+ * medians.
+ */
+public class StartupBenchmark {
+    private static final Pattern firstInvoke = Pattern.compile("firstInvokeMs=(\\d+) sinceJvmStartMs=(-?\\d+)");
+
+    /**
+     * The timings of one JVM.
+     *
+     * @param firstInvokeMillis    How long the first invocation took.
+     * @param sinceJvmStartMillis  How long after the JVM started the first invocation finished.
+     */
+    record Run(long firstInvokeMillis, long sinceJvmStartMillis) {
+    }
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args The number of runs per configuration, the directory with the archive and its jars, the training
+     *             run's classpath file written by the cdsClassList task, the training main class and the training
+     *             main's args.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 4) {
+            System.err.println("Usage: StartupBenchmark <runs> <cds dir> <training classpath file> "
+                    + "<training main class> [training args...]");
+            System.exit(2);
+        }
+        int runs = Integer.parseInt(args[0]);
+        Path cdsDir = Path.of(args[1]);
+        // The action's jars, which the archive was dumped with, followed by the training main and its stubs.
+        String classpath = Files.readString(Path.of(args[2])).trim();
+        String mainClass = args[3];
+        List<String> mainArgs = Arrays.asList(args).subList(4, args.length);
+
+        Path archive;
+        try (Stream<Path> files = Files.list(cdsDir)) {
+            archive = files.filter(file -> file.getFileName().toString().endsWith(".jsa")).findFirst()
+                    .orElseThrow(() -> new IOException("No archive in " + cdsDir + "."));
+        }
+
+        List<Run> without = new ArrayList<>();
+        List<Run> with = new ArrayList<>();
+        // The first JVM of each kind warms up the OS file cache, so it isn't counted.
+        for (int i = 0; i <= runs; i++) {
+            Run withoutRun = run(cdsDir, List.of(), classpath, mainClass, mainArgs);
+            Run withRun = run(cdsDir, List.of("-XX:SharedArchiveFile=" + archive.getFileName()), classpath,
+                    mainClass, mainArgs);
+            if (i > 0) {
+                without.add(withoutRun);
+                with.add(withRun);
+            }
+        }
+
+        System.out.println(mainClass);
+        report("Without archive", without);
+        report("With archive", with);
+    }
+
+    private static Run run(Path dir, List<String> jvmArgs, String classpath, String mainClass, List<String> mainArgs)
+            throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(ProcessHandle.current().info().command().orElse("java"));
+        command.addAll(jvmArgs);
+        command.addAll(List.of("-cp", classpath, mainClass));
+        command.addAll(mainArgs);
+
+        Process process = new ProcessBuilder(command).directory(dir.toFile())
+                .redirectError(ProcessBuilder.Redirect.DISCARD).start();
+        Run run = null;
+        try (BufferedReader out = new BufferedReader(
+                new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = out.readLine()) != null) {
+                Matcher matcher = firstInvoke.matcher(line);
+                if (matcher.find()) {
+                    run = new Run(Long.parseLong(matcher.group(1)), Long.parseLong(matcher.group(2)));
+                }
+            }
+        }
+        if (process.waitFor() != 0 || run == null) {
+            throw new IOException("Training run failed: " + String.join(" ", command));
+        }
+        return run;
+    }
+
+    private static void report(String name, List<Run> runs) {
+        System.out.printf("  %s: first invocation %d ms, finished %d ms after JVM start (median of %d)%n", name,
+                median(runs.stream().mapToLong(Run::firstInvokeMillis).toArray()),
+                median(runs.stream().mapToLong(Run::sinceJvmStartMillis).toArray()), runs.size());
+    }
+
+    private static long median(long[] values) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+}
@@ -0,0 +1,99 @@
+package com.mattwelke.packtbookbot;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * The stub servers standing in for packtpub.com, Google search, the Google OAuth token endpoint, the BigQuery API and a
+ * webhook the title data pipeline shares with.
+ * <p>
+ * The actions read the URLs of the services from system properties when they're loaded, so the stubs are started once
+ * per JVM, before any action is loaded, and their behavior is changed between runs instead.
+ */
+final class Stubs {
+    private static final String fixtures = "/fixtures/";
+    private static final String packtBaseUrl = "https://www.packtpub.com";
+
+    private static Stubs started;
+
+    final StubServer packt;
+    final StubServer google;
+    final StubServer token;
+    final StubServer bigquery;
+    final StubServer webhook;
+
+    /**
+     * Base64 encoded service account key JSON whose tokens come from the token stub, to pass as the "gcpCreds" param.
+     */
+    final String gcpCreds;
+
+    /**
+     * The directory holding the title fetcher's HTTP cache and product page index, so that runs don't use the ones of
+     * real runs.
+     */
+    final Path stateDir;
+
+    private Stubs() throws IOException {
+        packt = new StubServer("packt");
+        packt.route("/free-learning", "text/html; charset=utf-8", fixture("free-learning.html"));
+        packt.route("/product/", "text/html; charset=utf-8", fixture("product-page.html"));
+
+        // The search results link to the Packt stub, so that the product page is fetched from it too.
+        google = new StubServer("google");
+        google.route("/search", "text/html; charset=utf-8", new String(fixture("google-search.html"),
+                StandardCharsets.UTF_8).replace(packtBaseUrl, packt.url("")).getBytes(StandardCharsets.UTF_8));
+
+        token = new StubServer("token");
+        token.route("/token", "application/json", """
+                {"access_token": "loadtest", "expires_in": 3600, "token_type": "Bearer"}"""
+                .getBytes(StandardCharsets.UTF_8));
+
+        bigquery = new StubServer("bigquery");
+        bigquery.route("/bigquery/", "application/json", """
+                {"kind": "bigquery#tableDataInsertAllResponse"}""".getBytes(StandardCharsets.UTF_8));
+
+        webhook = new StubServer("webhook");
+        webhook.route("/webhook", "application/json", "{}".getBytes(StandardCharsets.UTF_8));
+
+        gcpCreds = GcpDataSharerTraining.gcpCreds(token.url("/token"));
+        stateDir = Files.createTempDirectory("packt-book-bot-loadtest");
+    }
+
+    /**
+     * Starts the stubs and points the actions at them, unless that was already done in this JVM.
+     *
+     * @return The stubs.
+     * @throws IOException when a stub can't be started.
+     */
+    static synchronized Stubs start() throws IOException {
+        if (started == null) {
+            Stubs stubs = new Stubs();
+            System.setProperty("packtbookbot.url.freeLearning", stubs.packt.url("/free-learning"));
+            System.setProperty("packtbookbot.url.googleSearch", stubs.google.url("/search"));
+            System.setProperty("packtbookbot.url.bigquery", stubs.bigquery.url(""));
+            System.setProperty("packtbookbot.httpCache.dir", stubs.stateDir.resolve("http-cache").toString());
+            System.setProperty("packtbookbot.productPageIndex.file",
+                    stubs.stateDir.resolve("product-pages.idx").toString());
+            System.setProperty("packtbookbot.bigquerySpool.dir", stubs.stateDir.resolve("bigquery-spool").toString());
+            started = stubs;
+        }
+        return started;
+    }
+
+    List<StubServer> all() {
+        return List.of(packt, google, token, bigquery, webhook);
+    }
+
+    static byte[] fixture(String name) throws IOException {
+        try (InputStream in = Stubs.class.getResourceAsStream(fixtures + name)) {
+            if (in == null) {
+                throw new IOException("Missing fixture " + name + ".");
+            }
+            return in.readAllBytes();
+        }
+    }
+}
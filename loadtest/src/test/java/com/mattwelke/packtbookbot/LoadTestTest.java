@@ -0,0 +1,59 @@
+package com.mattwelke.packtbookbot;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LoadTestTest {
+    @Test
+    void runsTitleFetcherOffline() throws Exception {
+        LoadTest.Report report = new LoadTest(LoadTest.options(new String[]{
+                "--action", "title-fetcher", "--invocations", "8", "--concurrency", "4",
+                "--latency-ms", "google=20"})).run();
+
+        assertEquals(0, report.failures(), report.toString());
+        // The cold start and every warm invocation fetch the free learning page.
+        assertEquals(9, report.stubRequests().get("packt") - productPageRequests(report), report.toString());
+        assertTrue(report.latencyMillis().get("p99") >= report.latencyMillis().get("p50"), report.toString());
+    }
+
+    @Test
+    void runsGcpDataSharerOffline() throws Exception {
+        LoadTest.Report report = new LoadTest(LoadTest.options(new String[]{
+                "--action", "gcp-data-sharer", "--invocations", "8", "--concurrency", "4"})).run();
+
+        assertEquals(0, report.failures(), report.toString());
+        assertEquals(9, report.stubRequests().get("bigquery"), report.toString());
+        // The client cache keeps the token between invocations.
+        assertEquals(1, report.stubRequests().get("token"), report.toString());
+    }
+
+    @Test
+    void runsPipelineOffline() throws Exception {
+        LoadTest.Report report = new LoadTest(LoadTest.options(new String[]{
+                "--action", "pipeline", "--invocations", "8", "--concurrency", "4"})).run();
+
+        assertEquals(0, report.failures(), report.toString());
+        // Every invocation shares the title with every sink.
+        assertEquals(9, report.stubRequests().get("bigquery"), report.toString());
+        assertEquals(9, report.stubRequests().get("webhook"), report.toString());
+    }
+
+    @Test
+    void countsFailures() throws Exception {
+        LoadTest.Report report = new LoadTest(LoadTest.options(new String[]{
+                "--action", "title-fetcher", "--invocations", "4", "--concurrency", "2",
+                "--failure-rate", "packt=1"})).run();
+
+        assertEquals(4, report.failures(), report.toString());
+    }
+
+    /**
+     * The product page is only fetched when the free learning page doesn't list every author, and is cached after
+     * the first fetch, so it's fetched at most once.
+     */
+    private static long productPageRequests(LoadTest.Report report) {
+        return Math.min(1, report.stubRequests().get("google"));
+    }
+}
@@ -0,0 +1,251 @@
+package com.mattwelke.packtbookbot;
+
+import java.net.URI;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Fetches the data about the Packt free book of the day and shares it with every configured sink, in one action. The
+ * title fetcher, invoker and GCP data sharer actions do the same with two more container hops, and share with one sink
+ * each.
+ * <p>
+ * The sinks are configured by params:
+ * <ul>
+ *     <li>"gcpCreds": shares with BigQuery, like the GCP data sharer, including its batching params</li>
+ *     <li>"sinkFile": appends to a local file, one JSON object per line</li>
+ *     <li>"webhookUrl": posts to a webhook, as a JSON object</li>
+ * </ul>
+ * The title is fetched once and shared with the sinks concurrently, through a {@link TitleDataFanOut} kept between
+ * invocations in a warm container. Fetching and sharing together must finish within the deadline, the "deadlineMs"
+ * param. The invocation fails when any sink couldn't share the title in time, after every sink was tried.
+ * <p>
+ * When an invocation configures different sinks than the fan-out kept, a new fan-out replaces it. The old one is
+ * closed in the background once the invocations still using it are done with it.
+ */
+public class TitleDataPipelineAction extends InstrumentedAction {
+    private final Logger logger = Logger.getLogger(TitleDataPipelineAction.class.getName());
+
+    /**
+     * How long an invocation may spend fetching and sharing when the "deadlineMs" param isn't provided. Comfortably
+     * below the OpenWhisk default action time limit of one minute.
+     */
+    private static final Duration defaultDeadline = Duration.ofSeconds(30);
+
+    /**
+     * How many titles may wait for each sink. Invocations are rarely concurrent, so this is only reached when a sink is
+     * down.
+     */
+    private static final int sinkQueueCapacity = 16;
+
+    /**
+     * The params that configure the sinks. The fan-out is rebuilt when they change.
+     */
+    private static final List<String> sinkParams = List.of("gcpCreds", "batchMaxRows", "batchMaxBytes",
+            "batchMaxAgeMs", "sinkFile", "webhookUrl");
+
+    /**
+     * Shared so that the sinks' threads, connections and BigQuery batches outlive a single invocation.
+     */
+    private static SharedFanOut shared;
+
+    /**
+     * A fan-out, the sink params it was built from, and how many invocations are using it.
+     */
+    static final class SharedFanOut {
+        private final Map<String, Object> params;
+        private final TitleDataFanOut fanOut;
+        private int users;
+        private boolean replaced;
+
+        private SharedFanOut(Map<String, Object> params, TitleDataFanOut fanOut) {
+            this.params = params;
+            this.fanOut = fanOut;
+        }
+
+        TitleDataFanOut fanOut() {
+            return fanOut;
+        }
+    }
+
+    private final TitleFetchOrchestrator orchestrator = new TitleFetchOrchestrator();
+
+    /**
+     * Implementation of action invoke method.
+     *
+     * @param params the OpenWhisk action invocation input.
+     * @return the title data, how long each fetch stage took, whether the data is partial, whether each sink shared
+     * it, and the invocation's metrics.
+     * @throws RuntimeException when the title can't be fetched or a sink couldn't share it.
+     */
+    @Override
+    protected Map<String, Object> run(Map<String, Object> params) throws RuntimeException {
+        try {
+            Duration timeout = params.get("deadlineMs") instanceof Number deadlineMs
+                    ? Duration.ofMillis(deadlineMs.longValue())
+                    : defaultDeadline;
+            long deadline = System.nanoTime() + timeout.toNanos();
+            SharedFanOut fanOut = acquire(params);
+            try {
+                return fetchAndShare(timeout, deadline, fanOut.fanOut());
+            } finally {
+                release(fanOut);
+            }
+        } catch (Exception ex) {
+            throw new RuntimeException("Failed to fetch and share title data.", ex);
+        }
+    }
+
+    /**
+     * Fetches the title and shares it with the fan-out's sinks within the deadline.
+     */
+    private Map<String, Object> fetchAndShare(Duration timeout, long deadline, TitleDataFanOut fanOut)
+            throws Exception {
+        TitleFetchOrchestrator.Result result = orchestrator.fetch(timeout);
+        // So that sinks can tell how long after the trigger they shared the title.
+        TitleData data = result.data().withTrace(InvocationMetrics.current().trace().context());
+
+        Map<String, CompletableFuture<Void>> deliveries = fanOut.publish(data, LocalDate.now(),
+                Duration.ofNanos(Math.max(deadline - System.nanoTime(), 0)));
+        Map<String, Object> sinks = new LinkedHashMap<>();
+        List<String> failed = new ArrayList<>();
+        for (Map.Entry<String, CompletableFuture<Void>> delivery : deliveries.entrySet()) {
+            String error = await(delivery.getValue(), deadline);
+            if (error == null) {
+                sinks.put(delivery.getKey(), Map.of("shared", true));
+            } else {
+                sinks.put(delivery.getKey(), Map.of("shared", false, "error", error));
+                failed.add(delivery.getKey());
+            }
+        }
+
+        logger.log(Level.INFO, "Done sharing title {0}. Partial = {1}. Sinks = {2}.",
+                new Object[]{data.title(), result.partial(), sinks});
+        if (!failed.isEmpty()) {
+            throw new CouldNotShareDataException("Could not share title with sink(s) " + failed + ": " + sinks);
+        }
+
+        Map<String, Object> output = data.toMap();
+        output.put("partial", result.partial());
+        output.put("stageWallTimesMs", result.stageWallTimes());
+        output.put("sinks", sinks);
+        return output;
+    }
+
+    /**
+     * Waits for a delivery until the deadline.
+     *
+     * @return Why the delivery failed, or null when it succeeded.
+     */
+    private static String await(CompletableFuture<Void> delivery, long deadline) throws InterruptedException {
+        try {
+            delivery.get(Math.max(deadline - System.nanoTime(), 0), TimeUnit.NANOSECONDS);
+            return null;
+        } catch (ExecutionException ex) {
+            return String.valueOf(ex.getCause().getMessage());
+        } catch (TimeoutException ex) {
+            return "Deadline reached before the title was shared.";
+        }
+    }
+
+    /**
+     * Returns the fan-out to the sinks configured by an OpenWhisk params map, for an invocation to use until it
+     * releases it. Reuses the fan-out of previous invocations in the same container when the sink params haven't
+     * changed, and otherwise replaces it. A replaced fan-out is closed once it's released by every invocation using it,
+     * after it shares the titles already queued.
+     *
+     * @param params the params map from the action invocation.
+     * @return the fan-out, to be released with {@link #release(SharedFanOut)}.
+     * @throws IllegalArgumentException when the params map configures no sinks.
+     */
+    static SharedFanOut acquire(Map<String, Object> params) throws IllegalArgumentException {
+        Map<String, Object> current = new HashMap<>();
+        for (String param : sinkParams) {
+            if (params.get(param) != null) {
+                current.put(param, params.get(param));
+            }
+        }
+
+        SharedFanOut unused = null;
+        SharedFanOut acquired;
+        synchronized (TitleDataPipelineAction.class) {
+            if (shared != null && current.equals(shared.params)) {
+                shared.users++;
+                return shared;
+            }
+
+            List<TitleDataSink> sinks = new ArrayList<>();
+            if (params.containsKey("gcpCreds")) {
+                sinks.add(GcpDataSharerAction.sink(params));
+            }
+            if (params.get("sinkFile") instanceof String file && !file.isEmpty()) {
+                sinks.add(new FileTitleDataSink(Path.of(file)));
+            }
+            if (params.get("webhookUrl") instanceof String url && !url.isEmpty()) {
+                sinks.add(new WebhookTitleDataSink(URI.create(url), Duration.ofSeconds(10)));
+            }
+            if (sinks.isEmpty()) {
+                throw new IllegalArgumentException("no sinks configured, set at least one of params gcpCreds, "
+                        + "sinkFile and webhookUrl");
+            }
+
+            if (shared != null) {
+                shared.replaced = true;
+                if (shared.users == 0) {
+                    unused = shared;
+                }
+            }
+            acquired = new SharedFanOut(current, new TitleDataFanOut(sinks, sinkQueueCapacity));
+            acquired.users = 1;
+            shared = acquired;
+        }
+        if (unused != null) {
+            closeInBackground(unused);
+        }
+        return acquired;
+    }
+
+    /**
+     * Releases a fan-out an invocation is done with, closing it when it was replaced and this was its last user.
+     *
+     * @param fanOut the fan-out.
+     */
+    static void release(SharedFanOut fanOut) {
+        synchronized (TitleDataPipelineAction.class) {
+            fanOut.users--;
+            if (!fanOut.replaced || fanOut.users > 0) {
+                return;
+            }
+        }
+        closeInBackground(fanOut);
+    }
+
+    /**
+     * Closes a fan-out on its own thread, since closing waits for its sinks, which may take a while.
+     */
+    private static void closeInBackground(SharedFanOut fanOut) {
+        Thread closer = new Thread(fanOut.fanOut()::close, "title-data-fan-out-close");
+        closer.setDaemon(true);
+        closer.start();
+    }
+
+    /**
+     * For local testing.
+     */
+    public static void main(String[] args) {
+        Map<String, Object> data = new TitleDataPipelineAction().invoke(Map.of(
+                "sinkFile", "free-ebooks.jsonl"));
+        System.out.println("Fetched and shared data for title = " + data);
+    }
+}
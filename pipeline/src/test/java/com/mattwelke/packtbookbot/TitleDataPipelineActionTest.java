@@ -0,0 +1,66 @@
+package com.mattwelke.packtbookbot;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TitleDataPipelineActionTest {
+    @TempDir
+    Path dir;
+
+    private Map<String, Object> params(String sinkFile) {
+        return Map.of("sinkFile", dir.resolve(sinkFile).toString());
+    }
+
+    private static void awaitClosed(TitleDataFanOut fanOut) throws InterruptedException {
+        long deadline = System.nanoTime() + 10_000_000_000L;
+        while (!fanOut.isClosed() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(fanOut.isClosed());
+    }
+
+    @Test
+    void failsWithoutSinks() {
+        IllegalArgumentException ex = assertThrows(IllegalArgumentException.class,
+                () -> TitleDataPipelineAction.acquire(Map.of("deadlineMs", 1000)));
+        assertEquals("no sinks configured, set at least one of params gcpCreds, sinkFile and webhookUrl",
+                ex.getMessage());
+    }
+
+    @Test
+    void reusesFanOutWhileSinkParamsAreTheSame() {
+        TitleDataPipelineAction.SharedFanOut first = TitleDataPipelineAction.acquire(params("titles.jsonl"));
+        TitleDataPipelineAction.release(first);
+        TitleDataPipelineAction.SharedFanOut second = TitleDataPipelineAction.acquire(params("titles.jsonl"));
+        TitleDataPipelineAction.release(second);
+
+        assertSame(first, second);
+        assertFalse(second.fanOut().isClosed());
+    }
+
+    @Test
+    void closesReplacedFanOutOnceItsLastUserReleasesIt() throws InterruptedException {
+        TitleDataPipelineAction.SharedFanOut old = TitleDataPipelineAction.acquire(params("old.jsonl"));
+        TitleDataPipelineAction.SharedFanOut current = TitleDataPipelineAction.acquire(params("new.jsonl"));
+
+        assertNotSame(old, current);
+        // Still in use by the first invocation.
+        assertFalse(old.fanOut().isClosed());
+
+        TitleDataPipelineAction.release(old);
+        awaitClosed(old.fanOut());
+
+        TitleDataPipelineAction.release(current);
+        assertFalse(current.fanOut().isClosed());
+    }
+}
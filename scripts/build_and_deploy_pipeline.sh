@@ -0,0 +1,33 @@
+#/bin/bash
+
+# Builds and deploys the title data pipeline action as an IBM Cloud Functions function using the Java 17
+# runtime from the extended runtimes project. Assumes triggers, sequences, etc
+# that are related to this action have already been created. Shares with BigQuery
+# using the GCP credentials passed as the second param.
+
+# Script uses command line params instead of env vars to help with running it
+# locally too, not just with CI/CD.
+
+REGION="us-south"
+RESOURCE_GROUP="book-bot"
+FUNCTIONS_NAMESPACE="book-bot"
+ACTION_NAME="title-data-pipeline"
+
+BUILD_DIR="pipeline/build"
+JAR_PATH="${BUILD_DIR}/libs/pipeline-all.jar"
+
+rm -r $BUILD_DIR 2> /dev/null
+
+./gradlew pipeline:shadowJar
+
+ibmcloud login --apikey $1
+
+ibmcloud target -r $REGION
+ibmcloud target -g $RESOURCE_GROUP
+ibmcloud fn namespace target $FUNCTIONS_NAMESPACE
+
+# Do deploy using action update (aka create or update) command
+ibmcloud fn action update $ACTION_NAME $JAR_PATH \
+  --main "com.mattwelke.packtbookbot.TitleDataPipelineAction" \
+  --docker "mwelke/openwhisk-runtime-java-19:202303271624" \
+  --param gcpCreds $2
@@ -0,0 +1,114 @@
+package com.mattwelke.packtbookbot;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Crawls Packt catalog and category pages for product pages, and extracts the authors of every title from its product
+ * page, the same way the title fetcher does for the free eBook of the day.
+ * <p>
+ * Listing pages are the seeds and the pages under their paths on the same host, like the later pages of a category.
+ * Their links are followed. Product pages are the pages with "/product/" in their path. Their links aren't followed.
+ */
+final class CatalogCrawl {
+    private static final StreamingHtmlExtractor listingExtractor = new StreamingHtmlExtractor(List.of(
+            StreamingHtmlExtractor.Rule.all("links", "a")));
+
+    /**
+     * A crawled product page.
+     *
+     * @param url          The page URL.
+     * @param canonicalUrl The URL the page declares as canonical, if it declares one.
+     * @param authors      The authors of the title.
+     */
+    record Product(String url, Optional<String> canonicalUrl, List<String> authors) {
+        Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("url", url);
+            map.put("canonicalUrl", canonicalUrl.orElse(null));
+            map.put("authors", authors);
+            return map;
+        }
+    }
+
+    /**
+     * The outcome of a crawl.
+     *
+     * @param products The product pages crawled, in the order they were crawled.
+     * @param stats    The crawl's counters.
+     */
+    record Result(List<Product> products, CrawlScheduler.Stats stats) {
+    }
+
+    private CatalogCrawl() {
+    }
+
+    /**
+     * Crawls from catalog or category pages.
+     *
+     * @param settings The limits of the crawl.
+     * @param seeds    The catalog or category page URLs.
+     * @return The outcome.
+     * @throws InterruptedException when interrupted while crawling.
+     */
+    static Result crawl(CrawlScheduler.Settings settings, List<String> seeds) throws InterruptedException {
+        List<URI> listings = seeds.stream().map(seed -> CrawlScheduler.normalize(null, seed)).toList();
+        Queue<Product> products = new ConcurrentLinkedQueue<>();
+
+        CrawlScheduler.Route productRoute = new CrawlScheduler.Route("product",
+                url -> url.getRawPath().contains("/product/"),
+                ProductPageDataFetcher.extractor,
+                page -> {
+                    ProductPageDataFetcher fetcher = new ProductPageDataFetcher(page.extraction(),
+                            page.url().toString());
+                    products.add(new Product(page.url().toString(), fetcher.canonicalUrl(), fetcher.authors()));
+                    return List.of();
+                });
+        CrawlScheduler.Route listingRoute = new CrawlScheduler.Route("listing",
+                url -> listings.stream().anyMatch(listing -> listing != null
+                        && listing.getRawAuthority().equals(url.getRawAuthority())
+                        && url.getRawPath().startsWith(listing.getRawPath())),
+                listingExtractor,
+                page -> page.extraction().all("links").stream()
+                        .map(link -> link.attributes().getOrDefault("href", ""))
+                        .filter(href -> !href.isEmpty())
+                        .toList());
+
+        try (CrawlScheduler scheduler = new CrawlScheduler(settings, List.of(productRoute, listingRoute))) {
+            CrawlScheduler.Stats stats = scheduler.crawl(seeds);
+            return new Result(List.copyOf(products), stats);
+        }
+    }
+
+    /**
+     * Crawls from catalog or category pages, writing each product page's data to a file as a JSON object per line.
+     * <p>
+     * Usage: {@code <output file> <seed url>...}
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 2) {
+            System.err.println("Usage: <output file> <seed url>...");
+            System.exit(2);
+        }
+
+        Result result = crawl(CrawlScheduler.Settings.defaults, Arrays.asList(args).subList(1, args.length));
+        try (Writer out = Files.newBufferedWriter(Path.of(args[0]), StandardCharsets.UTF_8)) {
+            for (Product product : result.products()) {
+                out.write(Json.write(product.toMap()));
+                out.write('\n');
+            }
+        }
+        System.out.println("Crawled " + result.products().size() + " product page(s). " + result.stats());
+    }
+}
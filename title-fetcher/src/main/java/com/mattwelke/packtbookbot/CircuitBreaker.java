@@ -0,0 +1,152 @@
+package com.mattwelke.packtbookbot;
+
+import java.time.Duration;
+import java.util.function.LongSupplier;
+
+/**
+ * Stops calls to a service while it's failing, so that callers fail right away instead of waiting for each call to
+ * fail, and the service isn't asked for more while it's throttling.
+ * <p>
+ * The breaker opens after a number of consecutive failures. While it's open, calls are rejected. Once it has been open
+ * for a while, it lets one call through as a probe. If the probe succeeds, the breaker closes. If it fails, the
+ * breaker opens again, for twice as long as before, up to a maximum.
+ */
+final class CircuitBreaker {
+    /**
+     * The state of a breaker.
+     */
+    enum State {
+        /**
+         * Calls go through.
+         */
+        CLOSED,
+        /**
+         * Calls are rejected.
+         */
+        OPEN,
+        /**
+         * One call is going through as a probe, and the others are rejected.
+         */
+        HALF_OPEN
+    }
+
+    /**
+     * When a breaker opens.
+     *
+     * @param failureThreshold How many consecutive failures open the breaker.
+     * @param openDuration     How long the breaker stays open before the first probe.
+     * @param maxOpenDuration  The longest the breaker stays open before a probe, after failed probes.
+     */
+    record Settings(int failureThreshold, Duration openDuration, Duration maxOpenDuration) {
+    }
+
+    /**
+     * The counters of a breaker.
+     *
+     * @param state      The state.
+     * @param trips      How many times the breaker opened, including after failed probes.
+     * @param rejections How many calls were rejected.
+     */
+    record Stats(State state, long trips, long rejections) {
+    }
+
+    private final Settings settings;
+    private final LongSupplier nanoClock;
+
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long openNanos;
+    private long openedAt;
+    private long trips;
+    private long rejections;
+
+    /**
+     * Creates a closed breaker.
+     *
+     * @param settings  When the breaker opens.
+     * @param nanoClock The clock, like {@link System#nanoTime()}.
+     */
+    CircuitBreaker(Settings settings, LongSupplier nanoClock) {
+        this.settings = settings;
+        this.nanoClock = nanoClock;
+        this.openNanos = settings.openDuration().toNanos();
+    }
+
+    /**
+     * Returns whether a call may go through. When it may, the caller must report how it went with
+     * {@link #succeeded()} or {@link #failed()}, or that it ended without an outcome with {@link #abandoned()}.
+     *
+     * @return Whether the call may go through.
+     */
+    synchronized boolean allow() {
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (nanoClock.getAsLong() - openedAt >= openNanos) {
+                    state = State.HALF_OPEN;
+                    return true;
+                }
+                break;
+            case HALF_OPEN:
+                break;
+        }
+        rejections++;
+        return false;
+    }
+
+    /**
+     * Reports that a call succeeded, closing the breaker.
+     */
+    synchronized void succeeded() {
+        state = State.CLOSED;
+        consecutiveFailures = 0;
+        openNanos = settings.openDuration().toNanos();
+    }
+
+    /**
+     * Reports that a call failed.
+     *
+     * @return Whether the failure opened the breaker.
+     */
+    synchronized boolean failed() {
+        consecutiveFailures++;
+        if (state == State.HALF_OPEN) {
+            openNanos = Math.min(openNanos * 2, settings.maxOpenDuration().toNanos());
+        } else if (state == State.OPEN || consecutiveFailures < settings.failureThreshold()) {
+            // A call let through before the breaker opened can fail after it opened.
+            return false;
+        }
+        state = State.OPEN;
+        openedAt = nanoClock.getAsLong();
+        trips++;
+        return true;
+    }
+
+    /**
+     * Reports that a call ended without an outcome, like when its caller was interrupted. When the call was the probe,
+     * the breaker opens again without backing off, so that the next call after it can probe instead.
+     */
+    synchronized void abandoned() {
+        if (state == State.HALF_OPEN) {
+            state = State.OPEN;
+            openedAt = nanoClock.getAsLong() - openNanos;
+        }
+    }
+
+    /**
+     * Returns how long until the breaker lets a probe through.
+     *
+     * @return The time, zero when the breaker isn't open or a probe may go through now.
+     */
+    synchronized Duration untilProbe() {
+        if (state != State.OPEN) {
+            return Duration.ZERO;
+        }
+        return Duration.ofNanos(Math.max(0, openNanos - (nanoClock.getAsLong() - openedAt)));
+    }
+
+    synchronized Stats stats() {
+        return new Stats(state, trips, rejections);
+    }
+}
@@ -0,0 +1,452 @@
+package com.mattwelke.packtbookbot;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Crawls pages, starting from seed URLs and following the links found in them. Each page is fetched once, within the
+ * limits set for its host, and handed to the route for its URL, which extracts from the page in a single streaming
+ * pass and returns the links to follow.
+ * <ul>
+ *     <li>URLs wait in a frontier, in the order they were found. A URL is only added once, after normalization, and
+ *     only when a route matches it and the crawl hasn't reached its page limit, which also bounds the frontier.</li>
+ *     <li>Each host's robots.txt is fetched before its first page, and cached. Pages it disallows aren't fetched, and
+ *     a crawl delay it sets slows the host down. While it can't be fetched, the host's URLs wait and are tried again
+ *     later.</li>
+ *     <li>Each host has a {@link TokenBucket}. A request that has to wait for a token is scheduled for later instead
+ *     of blocking a thread.</li>
+ *     <li>Requests are sent asynchronously with the shared {@link HttpTransport}, so thousands can be in flight on a
+ *     handful of threads. A semaphore bounds how many are in flight, which bounds memory too, since a response's body
+ *     is only buffered a little at a time, as it's read.</li>
+ *     <li>Pages are read and extracted on a pool with a thread per processor, and reading stops as soon as the
+ *     route's extractor has what it needs.</li>
+ * </ul>
+ */
+final class CrawlScheduler implements AutoCloseable {
+    /**
+     * How many times a URL is tried while its host's robots.txt can't be fetched, before it's counted as failed.
+     */
+    private static final int robotsAttempts = 3;
+
+    private final Logger logger = Logger.getLogger(CrawlScheduler.class.getName());
+
+    private final Settings settings;
+    private final List<Route> routes;
+    private final HttpTransport transport = HttpTransport.shared();
+    private final Map<String, CompletableFuture<Host>> hosts = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "crawl-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final ExecutorService parsers = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(), r -> {
+                Thread thread = new Thread(r, "crawl-parser");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    /**
+     * The limits of a crawl.
+     *
+     * @param userAgent        The user agent sent with requests and matched against robots.txt groups.
+     * @param maxInFlight      How many requests may be in flight at once, across hosts.
+     * @param maxPages         How many URLs a crawl may fetch, including seeds.
+     * @param maxDepth         How many links away from a seed a crawl may go.
+     * @param hostRate         How many requests per second may go to a host, unless its robots.txt asks for less.
+     * @param hostBurst        How many requests may go to a host at once after it was idle.
+     * @param requestTimeout   How long to wait for a response's headers.
+     * @param robotsMaxAge     How long a host's robots.txt is cached.
+     * @param robotsRetryDelay How long to wait before fetching a host's robots.txt again, after it couldn't be
+     *                         fetched, and trying the URLs that waited for it.
+     */
+    record Settings(String userAgent, int maxInFlight, int maxPages, int maxDepth, double hostRate, int hostBurst,
+                    Duration requestTimeout, Duration robotsMaxAge, Duration robotsRetryDelay) {
+        static final Settings defaults = new Settings("packt-book-bot", 64, 10_000, 3, 2, 4,
+                Duration.ofSeconds(10), Duration.ofHours(24), Duration.ofMinutes(1));
+    }
+
+    /**
+     * A crawled page.
+     *
+     * @param url        The page URL.
+     * @param depth      How many links away from a seed the page is.
+     * @param extraction What the route's extractor extracted from the page.
+     */
+    record Page(URI url, int depth, StreamingHtmlExtractor.Extraction extraction) {
+    }
+
+    /**
+     * What to do with the pages whose URLs match.
+     *
+     * @param name      The route's name, for logs.
+     * @param matches   Whether the route handles a URL.
+     * @param extractor What to extract from the pages.
+     * @param handler   Handles each page.
+     */
+    record Route(String name, Predicate<URI> matches, StreamingHtmlExtractor extractor, Handler handler) {
+    }
+
+    /**
+     * Handles a crawled page.
+     */
+    @FunctionalInterface
+    interface Handler {
+        /**
+         * Handles a page. Called on the parser threads, so it must be safe to call concurrently.
+         *
+         * @param page The page.
+         * @return The links to follow, absolute or relative to the page.
+         * @throws Exception when the page can't be handled, which is counted as a failed page.
+         */
+        List<String> handle(Page page) throws Exception;
+    }
+
+    /**
+     * The counters of a crawl.
+     *
+     * @param fetched      How many pages were fetched and handled.
+     * @param failed       How many pages couldn't be fetched or handled.
+     * @param disallowed   How many URLs weren't fetched because robots.txt disallows them.
+     * @param duplicates   How many links were already in the crawl.
+     * @param dropped      How many new links weren't added because the crawl reached its page or depth limit.
+     * @param peakInFlight The most requests in flight at once.
+     * @param elapsed      How long the crawl took.
+     */
+    record Stats(long fetched, long failed, long disallowed, long duplicates, long dropped, int peakInFlight,
+                 Duration elapsed) {
+    }
+
+    /**
+     * A URL to crawl.
+     *
+     * @param attempts How many times the URL was tried while its host's robots.txt couldn't be fetched.
+     */
+    private record Request(URI url, int depth, Route route, int attempts) {
+    }
+
+    /**
+     * A host's robots.txt rules and rate limit. The rules are fetched again when they expire, but the rate limit is
+     * kept for the whole crawl, so that fetching them again doesn't reset it.
+     *
+     * @param reachable Whether the robots.txt could be fetched. When it couldn't, the rules disallow everything.
+     */
+    private record Host(RobotsRules robots, TokenBucket bucket, long expiresAt, boolean reachable) {
+    }
+
+    /**
+     * Creates a scheduler.
+     *
+     * @param settings The limits of each crawl.
+     * @param routes   The routes, tried in order. URLs no route matches aren't crawled.
+     */
+    CrawlScheduler(Settings settings, List<Route> routes) {
+        this.settings = settings;
+        this.routes = List.copyOf(routes);
+    }
+
+    /**
+     * Crawls from seed URLs until there's nothing left to crawl or the page limit is reached.
+     *
+     * @param seeds The URLs to start from.
+     * @return The crawl's counters.
+     * @throws InterruptedException when interrupted while crawling. Requests in flight are abandoned.
+     */
+    Stats crawl(List<String> seeds) throws InterruptedException {
+        return new Crawl().run(seeds);
+    }
+
+    @Override
+    public void close() {
+        timer.shutdownNow();
+        parsers.shutdownNow();
+    }
+
+    /**
+     * Normalizes a URL, so that the same page reached by different links is crawled once: resolves it against the
+     * page it was found in, lowercases the scheme and host, drops the default port and the fragment, and uses "/" for
+     * an empty path.
+     *
+     * @param base The URL of the page the link was found in, or null for a seed.
+     * @param link The link.
+     * @return The normalized URL, or null when it isn't an HTTP URL or can't be parsed.
+     */
+    static URI normalize(URI base, String link) {
+        try {
+            URI uri = base == null ? new URI(link.trim()) : base.resolve(link.trim());
+            String scheme = uri.getScheme() == null ? null : uri.getScheme().toLowerCase(Locale.ROOT);
+            if (!"http".equals(scheme) && !"https".equals(scheme) || uri.getHost() == null) {
+                return null;
+            }
+            int port = uri.getPort();
+            if (("http".equals(scheme) && port == 80) || ("https".equals(scheme) && port == 443)) {
+                port = -1;
+            }
+            String path = uri.getRawPath() == null || uri.getRawPath().isEmpty() ? "/" : uri.getRawPath();
+            String query = uri.getRawQuery() == null ? "" : "?" + uri.getRawQuery();
+            return new URI(scheme + "://" + uri.getHost().toLowerCase(Locale.ROOT) + (port == -1 ? "" : ":" + port)
+                    + path + query);
+        } catch (URISyntaxException | IllegalArgumentException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * The state of one crawl.
+     */
+    private final class Crawl {
+        private final LinkedBlockingQueue<Request> frontier = new LinkedBlockingQueue<>();
+        private final Set<URI> seen = ConcurrentHashMap.newKeySet();
+        /**
+         * How many URLs were added to the frontier, or tried to be once the page limit was reached.
+         */
+        private final AtomicInteger admitted = new AtomicInteger();
+        private final Semaphore inFlightPermits = new Semaphore(settings.maxInFlight());
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        /**
+         * URLs in the frontier or in flight. The crawl is done when it drops to zero.
+         */
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final AtomicInteger peakInFlight = new AtomicInteger();
+        private final AtomicLong fetched = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+        private final AtomicLong disallowed = new AtomicLong();
+        private final AtomicLong duplicates = new AtomicLong();
+        private final AtomicLong dropped = new AtomicLong();
+
+        Stats run(List<String> seeds) throws InterruptedException {
+            long start = System.nanoTime();
+            // Held while the seeds are added, so that the crawl can't finish between two seeds.
+            outstanding.incrementAndGet();
+            for (String seed : seeds) {
+                add(null, seed, 0);
+            }
+            finished();
+
+            try {
+                while (!done.isDone()) {
+                    Request request = frontier.poll(50, TimeUnit.MILLISECONDS);
+                    if (request == null) {
+                        continue;
+                    }
+                    inFlightPermits.acquire();
+                    dispatch(request);
+                }
+            } finally {
+                frontier.clear();
+            }
+            return new Stats(fetched.get(), failed.get(), disallowed.get(), duplicates.get(), dropped.get(),
+                    peakInFlight.get(), Duration.ofNanos(System.nanoTime() - start));
+        }
+
+        /**
+         * Adds a link to the frontier, unless it was already added, no route matches it, or a limit was reached.
+         */
+        private void add(URI base, String link, int depth) {
+            URI url = normalize(base, link);
+            if (url == null) {
+                return;
+            }
+            Route route = routes.stream().filter(r -> r.matches().test(url)).findFirst().orElse(null);
+            if (route == null) {
+                return;
+            }
+            if (depth > settings.maxDepth()) {
+                if (!seen.contains(url)) {
+                    dropped.incrementAndGet();
+                }
+                return;
+            }
+            if (!seen.add(url)) {
+                duplicates.incrementAndGet();
+                return;
+            }
+            // Counted after the URL is known to be new, so that pages handled concurrently can't both take the last
+            // place.
+            if (admitted.getAndIncrement() >= settings.maxPages()) {
+                seen.remove(url);
+                dropped.incrementAndGet();
+                return;
+            }
+            outstanding.incrementAndGet();
+            frontier.add(new Request(url, depth, route, 0));
+        }
+
+        /**
+         * Sends a request once its host's robots.txt allows it and its host's rate limit lets it go. Holds an in
+         * flight permit until the page is handled. While the host's robots.txt can't be fetched, the request goes back
+         * to the frontier after a delay instead, without holding a permit meanwhile.
+         */
+        private void dispatch(Request request) {
+            host(request.url()).whenComplete((host, ex) -> {
+                if (ex != null || !host.reachable()) {
+                    retry(request);
+                    return;
+                }
+                String pathAndQuery = request.url().getRawPath()
+                        + (request.url().getRawQuery() == null ? "" : "?" + request.url().getRawQuery());
+                if (!host.robots().allows(pathAndQuery)) {
+                    disallowed.incrementAndGet();
+                    release();
+                    return;
+                }
+                long waitNanos = host.bucket().reserve();
+                if (waitNanos == 0) {
+                    send(request);
+                } else {
+                    timer.schedule(() -> send(request), waitNanos, TimeUnit.NANOSECONDS);
+                }
+            });
+        }
+
+        private void retry(Request request) {
+            if (request.attempts() + 1 >= robotsAttempts) {
+                failed.incrementAndGet();
+                logger.log(Level.FINE, "Could not crawl {0}, since its host's robots.txt could not be fetched.",
+                        request.url());
+                release();
+                return;
+            }
+            // Still outstanding, so that the crawl doesn't finish while the request waits.
+            inFlightPermits.release();
+            timer.schedule(() -> frontier.add(new Request(request.url(), request.depth(), request.route(),
+                    request.attempts() + 1)), settings.robotsRetryDelay().toNanos(), TimeUnit.NANOSECONDS);
+        }
+
+        private void send(Request request) {
+            peakInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            HttpRequest httpRequest = HttpTransport.get(request.url(), settings.requestTimeout())
+                    .setHeader("User-Agent", settings.userAgent())
+                    .build();
+            transport.sendAsync(httpRequest)
+                    .thenAcceptAsync(response -> handle(request, response), parsers)
+                    .whenComplete((ignored, ex) -> {
+                        inFlight.decrementAndGet();
+                        if (ex != null) {
+                            failed.incrementAndGet();
+                            logger.log(Level.FINE, "Could not crawl " + request.url() + ".", ex);
+                        }
+                        release();
+                    });
+        }
+
+        private void handle(Request request, HttpTransport.Response response) {
+            try (response) {
+                if (response.statusCode() / 100 != 2) {
+                    failed.incrementAndGet();
+                    logger.log(Level.FINE, "Crawling {0} got status {1}.",
+                            new Object[]{request.url(), response.statusCode()});
+                    return;
+                }
+                // Closing the body before it's all read, when extraction stops early, abandons the rest.
+                StreamingHtmlExtractor.Extraction extraction = request.route().extractor().extract(response.reader());
+                // Links are resolved against the URL the page ended up at, after redirects.
+                URI base = response.uri();
+                List<String> links = request.route().handler().handle(new Page(request.url(), request.depth(),
+                        extraction));
+                fetched.incrementAndGet();
+                for (String link : links) {
+                    add(base, link, request.depth() + 1);
+                }
+            } catch (Exception ex) {
+                failed.incrementAndGet();
+                logger.log(Level.FINE, "Route " + request.route().name() + " could not handle " + request.url() + ".",
+                        ex);
+            }
+        }
+
+        private void release() {
+            inFlightPermits.release();
+            finished();
+        }
+
+        private void finished() {
+            if (outstanding.decrementAndGet() == 0) {
+                done.complete(null);
+            }
+        }
+    }
+
+    /**
+     * Returns a host's robots.txt rules and rate limit, fetching its robots.txt the first time, or when the cached one
+     * is too old.
+     */
+    private CompletableFuture<Host> host(URI url) {
+        String origin = url.getScheme() + "://" + url.getRawAuthority();
+        return hosts.compute(origin, (key, existing) -> {
+            // A failed fetch is fetched again, instead of failing the host's URLs for the rest of the crawl.
+            if (existing != null && (!existing.isDone() || (!existing.isCompletedExceptionally()
+                    && System.nanoTime() - existing.join().expiresAt() < 0))) {
+                return existing;
+            }
+            TokenBucket bucket = existing == null || existing.isCompletedExceptionally() ? null
+                    : existing.join().bucket();
+            return fetchRobots(origin, bucket);
+        });
+    }
+
+    /**
+     * Fetches a host's robots.txt. Like RFC 9309 says, a host without one, or with a client error, allows everything,
+     * and a host whose robots.txt can't be fetched because of a server or network error allows nothing, for now.
+     *
+     * @param bucket The host's rate limit, when its robots.txt was fetched before, or null to create it.
+     */
+    private CompletableFuture<Host> fetchRobots(String origin, TokenBucket bucket) {
+        HttpRequest request = HttpTransport.get(URI.create(origin + "/robots.txt"), settings.requestTimeout())
+                .setHeader("User-Agent", settings.userAgent())
+                .build();
+        // Sent with the transport's client, so that the small body can be read as a string.
+        return transport.client().sendAsync(request, HttpResponse.BodyHandlers.ofString())
+                .handle((response, ex) -> {
+                    RobotsRules rules;
+                    Duration maxAge = settings.robotsMaxAge();
+                    boolean reachable = true;
+                    if (ex != null || response.statusCode() >= 500) {
+                        logger.log(Level.WARNING, "Could not fetch robots.txt of {0}. Not crawling it for now.",
+                                origin);
+                        rules = RobotsRules.disallowAll;
+                        maxAge = settings.robotsRetryDelay();
+                        reachable = false;
+                    } else if (response.statusCode() >= 400) {
+                        rules = RobotsRules.allowAll;
+                    } else {
+                        rules = RobotsRules.parse(response.body(), settings.userAgent());
+                    }
+                    double rate = settings.hostRate();
+                    // A delay that isn't positive can't slow the host down, so it's ignored.
+                    if (rules.crawlDelay().isPresent() && rules.crawlDelay().get().toNanos() > 0) {
+                        rate = Math.min(rate, 1e9 / rules.crawlDelay().get().toNanos());
+                    }
+                    TokenBucket hostBucket = bucket;
+                    if (hostBucket == null) {
+                        hostBucket = new TokenBucket(rate, settings.hostBurst(), System::nanoTime);
+                    } else if (reachable) {
+                        hostBucket.rate(rate);
+                    }
+                    return new Host(rules, hostBucket, System.nanoTime() + maxAge.toNanos(), reachable);
+                });
+    }
+}
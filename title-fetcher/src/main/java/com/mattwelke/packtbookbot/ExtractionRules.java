@@ -0,0 +1,230 @@
+package com.mattwelke.packtbookbot;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The fields to extract from a page, each defined as a selector and a post-processor, loaded from a config file so
+ * that when Packt changes its markup, the rules change instead of the code.
+ * <p>
+ * A rules file is a JSON object with a member per field:
+ * <pre>
+ * {
+ *   "title": {"selector": "h3.product-info__title", "value": "text", "pattern": "^(?:Free eBook - )?(.+)$"},
+ *   "authors": {"selector": "h5.accordion__title", "value": "html", "all": true}
+ * }
+ * </pre>
+ * <ul>
+ *     <li>"selector" is a selector {@link StreamingHtmlExtractor.Selector} understands.</li>
+ *     <li>"value" is what's taken from a matched element: "text" (the default), "html", or "attr:" and an attribute
+ *     name.</li>
+ *     <li>"pattern", if set, is a regular expression found in the value. The field's value becomes its first group, or
+ *     the whole match when it has no groups. A value the pattern isn't found in is skipped.</li>
+ *     <li>"all", if true, keeps every match in the page instead of the first.</li>
+ * </ul>
+ * Values are trimmed. The fields compile into one {@link StreamingHtmlExtractor}, so that every field is collected in a
+ * single pass over the page, however many fields share a selector. A field keeping its first value gets a rule that
+ * keeps the first element the field has a value for, so elements its pattern isn't found in don't stop the search.
+ * Fields sharing a selector with a field keeping every match are taken from that field's rule instead.
+ * <p>
+ * Rules are read from the "extraction-rules" directory of the classpath. A directory set with the
+ * {@code packtbookbot.extractionRules.dir} system property takes precedence, so rules can be fixed without a release.
+ */
+final class ExtractionRules {
+    private static final String resourceDir = "/extraction-rules/";
+
+    private final List<Field> fields;
+    private final Map<String, String> ruleNames = new LinkedHashMap<>();
+    private final StreamingHtmlExtractor extractor;
+
+    /**
+     * A field to extract.
+     *
+     * @param name      The field's name.
+     * @param selector  The selector, as written in the rules.
+     * @param attribute The attribute the value is taken from, or null for the element's contents.
+     * @param html      Whether the value is the element's HTML instead of its text, when there's no attribute.
+     * @param pattern   The pattern the value is found with, or null.
+     * @param all       Whether every match is kept.
+     */
+    private record Field(String name, String selector, String attribute, boolean html, Pattern pattern, boolean all) {
+        Optional<String> value(StreamingHtmlExtractor.Match match) {
+            String value;
+            if (attribute != null) {
+                value = match.attributes().get(attribute);
+                if (value == null) {
+                    return Optional.empty();
+                }
+            } else {
+                value = html ? match.html() : match.text();
+            }
+            if (pattern != null) {
+                Matcher matcher = pattern.matcher(value);
+                if (!matcher.find()) {
+                    return Optional.empty();
+                }
+                value = matcher.groupCount() > 0 ? matcher.group(1) : matcher.group();
+                if (value == null) {
+                    return Optional.empty();
+                }
+            }
+            return Optional.of(value.trim());
+        }
+    }
+
+    /**
+     * The values of the fields extracted from a page.
+     *
+     * @param values The values of each field, by field name, in page order.
+     */
+    record Values(Map<String, List<String>> values) {
+        /**
+         * Returns a field's first value.
+         *
+         * @param name The field's name.
+         * @return The value, if the page had one.
+         */
+        Optional<String> first(String name) {
+            List<String> fieldValues = all(name);
+            return fieldValues.isEmpty() ? Optional.empty() : Optional.of(fieldValues.get(0));
+        }
+
+        /**
+         * Returns every value of a field.
+         *
+         * @param name The field's name.
+         * @return The values, in page order. Empty if the page had none.
+         */
+        List<String> all(String name) {
+            return values.getOrDefault(name, List.of());
+        }
+    }
+
+    private ExtractionRules(List<Field> fields) {
+        this.fields = List.copyOf(fields);
+
+        // One rule per selector a field keeps every match of, which the other fields with that selector share, and one
+        // per other field, keeping the first element it has a value for.
+        List<StreamingHtmlExtractor.Rule> rules = new ArrayList<>();
+        Set<String> allSelectors = new HashSet<>();
+        for (Field field : fields) {
+            if (field.all() && allSelectors.add(field.selector())) {
+                rules.add(StreamingHtmlExtractor.Rule.all("selector:" + field.selector(), field.selector()));
+            }
+        }
+        for (Field field : fields) {
+            if (allSelectors.contains(field.selector())) {
+                ruleNames.put(field.name(), "selector:" + field.selector());
+            } else {
+                rules.add(new StreamingHtmlExtractor.Rule("field:" + field.name(),
+                        StreamingHtmlExtractor.Selector.parse(field.selector()), 1, m -> field.value(m).isPresent()));
+                ruleNames.put(field.name(), "field:" + field.name());
+            }
+        }
+        this.extractor = new StreamingHtmlExtractor(rules);
+    }
+
+    /**
+     * Loads the rules for a kind of page.
+     *
+     * @param name The rules' name, like "free-learning-page", which is their file name without ".json".
+     * @return The rules.
+     * @throws UncheckedIOException     when the rules can't be read. Loaded once per class, so there's nothing a caller
+     *                                  could do about it.
+     * @throws IllegalArgumentException when the rules aren't valid.
+     */
+    static ExtractionRules load(String name) {
+        String fileName = name + ".json";
+        try {
+            String dir = System.getProperty("packtbookbot.extractionRules.dir");
+            if (dir != null && Files.exists(Path.of(dir, fileName))) {
+                return parse(Files.readString(Path.of(dir, fileName)));
+            }
+            try (InputStream in = ExtractionRules.class.getResourceAsStream(resourceDir + fileName)) {
+                if (in == null) {
+                    throw new IOException("Missing extraction rules " + fileName + ".");
+                }
+                return parse(new String(in.readAllBytes(), StandardCharsets.UTF_8));
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /**
+     * Parses rules.
+     *
+     * @param json The rules, as a JSON object with a member per field.
+     * @return The rules.
+     * @throws IllegalArgumentException when the rules aren't valid.
+     */
+    static ExtractionRules parse(String json) throws IllegalArgumentException {
+        List<Field> fields = new ArrayList<>();
+        for (Map.Entry<String, Object> entry : Json.readObject(json).entrySet()) {
+            String name = entry.getKey();
+            if (!(entry.getValue() instanceof Map<?, ?> rule) || !(rule.get("selector") instanceof String selector)) {
+                throw new IllegalArgumentException("Field " + name + " needs a selector.");
+            }
+            // Fails on selectors the extractor doesn't support, now instead of on the first page.
+            StreamingHtmlExtractor.Selector.parse(selector);
+
+            String value = rule.get("value") instanceof String v ? v : "text";
+            String attribute = null;
+            if (value.startsWith("attr:")) {
+                attribute = value.substring("attr:".length());
+            } else if (!value.equals("text") && !value.equals("html")) {
+                throw new IllegalArgumentException("Field " + name + " has an unknown value: " + value);
+            }
+            Pattern pattern = rule.get("pattern") instanceof String p ? Pattern.compile(p) : null;
+            boolean all = Boolean.TRUE.equals(rule.get("all"));
+            fields.add(new Field(name, selector, attribute, value.equals("html"), pattern, all));
+        }
+        return new ExtractionRules(fields);
+    }
+
+    /**
+     * Returns the extractor that collects what every field needs in a single pass over a page.
+     *
+     * @return The extractor.
+     */
+    StreamingHtmlExtractor extractor() {
+        return extractor;
+    }
+
+    /**
+     * Applies each field's post-processor to what the {@link #extractor()} extracted from a page.
+     *
+     * @param extraction The extraction.
+     * @return The values of the fields.
+     */
+    Values evaluate(StreamingHtmlExtractor.Extraction extraction) {
+        Map<String, List<String>> values = new LinkedHashMap<>();
+        for (Field field : fields) {
+            List<String> fieldValues = new ArrayList<>();
+            for (StreamingHtmlExtractor.Match match : extraction.all(ruleNames.get(field.name()))) {
+                Optional<String> value = field.value(match);
+                if (value.isPresent()) {
+                    fieldValues.add(value.get());
+                    if (!field.all()) {
+                        break;
+                    }
+                }
+            }
+            values.put(field.name(), fieldValues);
+        }
+        return new Values(values);
+    }
+}
@@ -1,10 +1,9 @@
 package com.mattwelke.packtbookbot;
 
-import org.jsoup.Jsoup;
-import org.jsoup.nodes.Document;
-import org.jsoup.select.Elements;
-
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -13,15 +12,39 @@ import static com.mattwelke.packtbookbot.Urls.FREE_LEARNING;
 
 public class FreeLearningPageDataFetcher {
     private static final String freeLearningURL = FREE_LEARNING;
-    private Document doc;
+    private static final ExtractionRules rules = ExtractionRules.load("free-learning-page");
+
+    private final ExtractionRules.Values values;
 
     /**
-     * Creates an instance of the fetcher.
+     * Creates an instance of the fetcher. The free learning page changes every day, so a cached copy is always
+     * revalidated, and only served from the cache when Packt says it hasn't changed.
      *
-     * @throws IOException when Jsoup fails to load the free learning page URL.
+     * @throws IOException when the free learning page can't be loaded.
      */
     FreeLearningPageDataFetcher() throws IOException {
-        doc = Jsoup.connect(freeLearningURL).get();
+        values = rules.evaluate(rules.extractor().fetchCached(freeLearningURL, Duration.ZERO));
+    }
+
+    /**
+     * Creates an instance of the fetcher from a saved copy of the free learning page instead of loading it.
+     *
+     * @param in The saved page, encoded as UTF-8.
+     * @throws IOException when the saved page can't be read.
+     */
+    FreeLearningPageDataFetcher(InputStream in) throws IOException {
+        values = rules.evaluate(rules.extractor().extract(in));
+    }
+
+    /**
+     * Creates an instance of the fetcher from the free learning page as it's read, like by a poller that requested it
+     * itself. Reading stops as soon as every field is found.
+     *
+     * @param reader The page.
+     * @throws IOException when the page can't be read.
+     */
+    FreeLearningPageDataFetcher(Reader reader) throws IOException {
+        values = rules.evaluate(rules.extractor().extract(reader));
     }
 
     /**
@@ -30,8 +53,7 @@ public class FreeLearningPageDataFetcher {
      * @return The title of the book.
      */
     String title() {
-        Elements freeBookPageTitleEls = doc.select("h3.product-info__title");
-        return freeBookPageTitleEls.first().text().replace("Free eBook - ", "");
+        return values.first("title").orElseThrow();
     }
 
     /**
@@ -40,19 +62,12 @@ public class FreeLearningPageDataFetcher {
      * @return The publication date of the book.
      */
     PublicationDate pubDate() {
-        Elements freeBookPagePubDateEls = doc.select("div.free_learning__product_pages_date");
-        String shortPubDateStr = freeBookPagePubDateEls.first().children().first().html()
-                .split("Publication date: ")[1];
-        String[] shortPubDateMonthSplit = shortPubDateStr.split(" ");
-
-        String shortPubDateMonth = shortPubDateMonthSplit[0];
+        String shortPubDateMonth = values.first("pubDateMonth").orElseThrow();
         String pubDateMonth = shortPubDateMonth.length() == 3
                 ? PublicationDateMonths.monthName(shortPubDateMonth)
                 : shortPubDateMonth;
 
-        String pubDateYear = shortPubDateMonthSplit[1];
-
-        return new PublicationDate(pubDateMonth, pubDateYear);
+        return new PublicationDate(pubDateMonth, values.first("pubDateYear").orElseThrow());
     }
 
     /**
@@ -63,11 +78,7 @@ public class FreeLearningPageDataFetcher {
      * @return The authors this fetcher was able to parse from the free learning page.
      */
     Authors authors() {
-        String authorsStr = doc.select("span.product-info__author")
-                .first().html().trim()
-                .split("By ")[1];
-
-        return parseAuthorsString(authorsStr);
+        return parseAuthorsString(values.first("authors").orElseThrow());
     }
 
     /**
@@ -0,0 +1,433 @@
+package com.mattwelke.packtbookbot;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Watches the free learning page for a new free eBook of the day, as a long-running alternative to the daily trigger,
+ * so that a book Packt rotates late, or a day the triggered run failed, is still shared within seconds.
+ * <p>
+ * Each poll is a conditional request, with the ETag and Last-Modified date of the previous response, so an unchanged
+ * page costs a 304 and no body. When the page did change, only as much of it is read as it takes to extract the
+ * title, publication date and authors, and those fields are hashed. Only a new hash is a new book: markup, ads and
+ * tokens that change on every request don't count. For a new book, the title data is fetched in full, like the title
+ * fetcher action does, and shared with the sinks. The full fetch downloads the page again, so around the rotation, or
+ * behind a lagging CDN, it can find another book than the poll did. Then the poll fails instead of sharing a book
+ * under the other one's hash. The hash of the last book shared is kept in a state file, so a restarted poller doesn't
+ * share it again. A book that couldn't be fetched in full or shared by every sink isn't recorded, so it's tried again
+ * on the next poll.
+ * <p>
+ * Polls are most frequent around the time Packt rotates the book, and after it until the new book is seen, and back
+ * off further from it, so that most of the day costs a request every few minutes.
+ */
+final class FreeLearningPagePoller implements AutoCloseable {
+    private static final Logger logger = Logger.getLogger(FreeLearningPagePoller.class.getName());
+
+    /**
+     * How long to wait for the sinks to share a new book.
+     */
+    private static final Duration shareTimeout = Duration.ofSeconds(30);
+
+    private final Settings settings;
+    private final String url;
+    private final Fetch fetch;
+    private final TitleDataFanOut fanOut;
+    private final Path stateFile;
+    private final Clock clock;
+
+    private final AtomicLong polls = new AtomicLong();
+    private final AtomicLong notModified = new AtomicLong();
+    private final AtomicLong unchanged = new AtomicLong();
+    private final AtomicLong changes = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    private String etag;
+    private String lastModified;
+    private String sharedHash;
+    private Instant sharedAt;
+    private int consecutiveFailures;
+    private volatile boolean closed;
+
+    /**
+     * When and how often to poll.
+     *
+     * @param rotationTime When Packt rotates the book each day.
+     * @param zone         The zone of the rotation time.
+     * @param earlyWindow  How long before the rotation time to poll at the shortest interval.
+     * @param lateWindow   How long after the rotation time to keep polling at the shortest interval while the new book
+     *                     hasn't been seen.
+     * @param minInterval  The shortest interval.
+     * @param maxInterval  The longest interval.
+     */
+    record Settings(LocalTime rotationTime, ZoneId zone, Duration earlyWindow, Duration lateWindow,
+                    Duration minInterval, Duration maxInterval) {
+        static final Settings defaults = new Settings(LocalTime.MIDNIGHT, ZoneOffset.UTC, Duration.ofMinutes(2),
+                Duration.ofMinutes(30), Duration.ofSeconds(2), Duration.ofMinutes(5));
+    }
+
+    /**
+     * What a poll found.
+     */
+    enum Outcome {
+        /**
+         * The server said the page hasn't changed.
+         */
+        NOT_MODIFIED,
+        /**
+         * The page changed, but not its book.
+         */
+        UNCHANGED,
+        /**
+         * A new book, which was shared.
+         */
+        CHANGED,
+        /**
+         * The page, or a new book's data, couldn't be fetched, or a sink couldn't share the new book.
+         */
+        FAILED
+    }
+
+    /**
+     * The poller's counters.
+     *
+     * @param polls       Polls made.
+     * @param notModified Polls answered with 304 Not Modified.
+     * @param unchanged   Polls that downloaded the page, but found the same book.
+     * @param changes     New books shared.
+     * @param failures    Polls that failed.
+     */
+    record Stats(long polls, long notModified, long unchanged, long changes, long failures) {
+        Map<String, Object> toMap() {
+            return Map.of("polls", polls, "notModified", notModified, "unchanged", unchanged, "changes", changes,
+                    "failures", failures);
+        }
+    }
+
+    /**
+     * Fetches the full data of the new book.
+     */
+    @FunctionalInterface
+    interface Fetch {
+        /**
+         * Fetches the title data.
+         *
+         * @return The title data.
+         * @throws CouldNotFetchException when it can't be fetched.
+         */
+        TitleData fetch() throws CouldNotFetchException;
+    }
+
+    /**
+     * Creates a poller, picking up the last book shared from the state file.
+     *
+     * @param settings  When and how often to poll.
+     * @param url       The free learning page URL.
+     * @param fetch     Fetches a new book's full data.
+     * @param sinks     The sinks to share new books with, with unique names. Closed when the poller is.
+     * @param stateFile The file the hash of the last book shared is kept in.
+     * @param clock     The clock.
+     * @throws IOException when the state file exists but can't be read.
+     */
+    FreeLearningPagePoller(Settings settings, String url, Fetch fetch, List<? extends TitleDataSink> sinks,
+                           Path stateFile, Clock clock) throws IOException {
+        this.settings = settings;
+        this.url = url;
+        this.fetch = fetch;
+        this.stateFile = stateFile;
+        this.clock = clock;
+        Properties state = readState(stateFile);
+        if (state != null) {
+            sharedHash = state.getProperty("hash");
+            sharedAt = state.getProperty("sharedAt") != null ? Instant.parse(state.getProperty("sharedAt")) : null;
+        }
+        this.fanOut = new TitleDataFanOut(sinks, 4);
+    }
+
+    /**
+     * Polls until closed.
+     *
+     * @throws InterruptedException when interrupted while waiting for the next poll.
+     */
+    void run() throws InterruptedException {
+        while (!closed) {
+            poll();
+            Duration interval = interval(clock.instant());
+            synchronized (this) {
+                if (!closed) {
+                    TimeUnit.NANOSECONDS.timedWait(this, interval.toNanos());
+                }
+            }
+        }
+    }
+
+    /**
+     * Polls once.
+     *
+     * @return What the poll found.
+     */
+    synchronized Outcome poll() {
+        polls.incrementAndGet();
+        Outcome outcome;
+        try {
+            outcome = check();
+        } catch (IOException | CouldNotFetchException | CouldNotShareDataException | RuntimeException ex) {
+            // Including bugs, so that one bad poll doesn't end the polling.
+            logger.log(Level.WARNING, "Could not poll the free learning page.", ex);
+            outcome = Outcome.FAILED;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            outcome = Outcome.FAILED;
+        }
+
+        switch (outcome) {
+            case NOT_MODIFIED -> notModified.incrementAndGet();
+            case UNCHANGED -> unchanged.incrementAndGet();
+            case CHANGED -> changes.incrementAndGet();
+            case FAILED -> failures.incrementAndGet();
+        }
+        consecutiveFailures = outcome == Outcome.FAILED ? consecutiveFailures + 1 : 0;
+        return outcome;
+    }
+
+    private Outcome check() throws IOException, CouldNotFetchException, CouldNotShareDataException,
+            InterruptedException {
+        HttpRequest.Builder request = HttpTransport.get(URI.create(url), Duration.ofSeconds(10));
+        if (etag != null) {
+            request.header("If-None-Match", etag);
+        }
+        if (lastModified != null) {
+            request.header("If-Modified-Since", lastModified);
+        }
+
+        String hash;
+        String polledTitle;
+        PublicationDate polledPubDate;
+        String responseEtag;
+        String responseLastModified;
+        try (HttpTransport.Response response = HttpTransport.shared().send(request.build())) {
+            if (response.statusCode() == 304) {
+                return Outcome.NOT_MODIFIED;
+            }
+            if (response.statusCode() / 100 != 2) {
+                throw new IOException(String.format("HTTP status %d polling %s.", response.statusCode(), url));
+            }
+            // Closing the response when the fields are found abandons the rest of the page.
+            FreeLearningPageDataFetcher page = new FreeLearningPageDataFetcher(response.reader());
+            polledTitle = page.title();
+            polledPubDate = page.pubDate();
+            hash = hash(polledTitle, polledPubDate, page.authors());
+            responseEtag = response.headers().firstValue("ETag").orElse(null);
+            responseLastModified = response.headers().firstValue("Last-Modified").orElse(null);
+        } catch (RuntimeException ex) {
+            // A field is missing, like when Packt is between books or changed its markup.
+            throw new IOException("Could not extract the book from " + url + ".", ex);
+        }
+        if (hash.equals(sharedHash)) {
+            etag = responseEtag;
+            lastModified = responseLastModified;
+            return Outcome.UNCHANGED;
+        }
+
+        TitleData data = fetch.fetch();
+        // The authors may differ, since the full fetch completes them from the product page.
+        if (!data.title().equals(polledTitle) || !data.pubDate().equals(polledPubDate)) {
+            throw new CouldNotFetchException("Fetched title " + data.title() + " instead of the polled title "
+                    + polledTitle + ". Trying again on the next poll.");
+        }
+        logger.log(Level.INFO, "New free eBook of the day: {0}.", data.title());
+        share(data);
+        sharedHash = hash;
+        sharedAt = clock.instant();
+        writeState();
+        // Only now, so that a page with a book that wasn't shared is downloaded again instead of being not modified.
+        etag = responseEtag;
+        lastModified = responseLastModified;
+        return Outcome.CHANGED;
+    }
+
+    private void share(TitleData data) throws CouldNotShareDataException, InterruptedException {
+        LocalDate day = LocalDate.ofInstant(clock.instant(), settings.zone());
+        List<String> failed = new ArrayList<>();
+        long deadline = System.nanoTime() + shareTimeout.toNanos();
+        for (Map.Entry<String, CompletableFuture<Void>> delivery
+                : fanOut.publish(data, day, shareTimeout).entrySet()) {
+            try {
+                delivery.getValue().get(Math.max(deadline - System.nanoTime(), 0), TimeUnit.NANOSECONDS);
+            } catch (ExecutionException | TimeoutException ex) {
+                failed.add(delivery.getKey());
+            }
+        }
+        if (!failed.isEmpty()) {
+            throw new CouldNotShareDataException("Could not share title " + data.title() + " with sink(s) " + failed
+                    + ". Trying again on the next poll.");
+        }
+    }
+
+    /**
+     * Returns how long to wait before the next poll. The shortest interval within the early window before the rotation
+     * time, and within the late window after it until the new book is seen. Before the early window, a tenth of the
+     * time until it, so polls get closer together as it approaches. After failures, backs off exponentially.
+     *
+     * @param now The time of the poll that just finished.
+     * @return The interval.
+     */
+    synchronized Duration interval(Instant now) {
+        ZonedDateTime time = now.atZone(settings.zone());
+        ZonedDateTime rotation = time.toLocalDate().atTime(settings.rotationTime()).atZone(settings.zone());
+        if (time.isBefore(rotation)) {
+            rotation = rotation.minusDays(1);
+        }
+        Instant previousRotation = rotation.toInstant();
+        Instant nextWindow = rotation.plusDays(1).toInstant().minus(settings.earlyWindow());
+
+        boolean seen = sharedAt != null && !sharedAt.isBefore(previousRotation.minus(settings.earlyWindow()));
+        Duration interval;
+        if (!seen && now.isBefore(previousRotation.plus(settings.lateWindow()))) {
+            interval = settings.minInterval();
+        } else {
+            Duration untilWindow = Duration.between(now, nextWindow);
+            interval = untilWindow.isNegative() ? settings.minInterval() : min(untilWindow.dividedBy(10),
+                    untilWindow);
+        }
+
+        if (consecutiveFailures > 0) {
+            Duration backoff = settings.minInterval().multipliedBy(1L << Math.min(consecutiveFailures, 20));
+            interval = interval.compareTo(backoff) > 0 ? interval : backoff;
+        }
+        return clamp(interval);
+    }
+
+    /**
+     * Returns the poller's counters.
+     *
+     * @return The counters.
+     */
+    Stats stats() {
+        return new Stats(polls.get(), notModified.get(), unchanged.get(), changes.get(), failures.get());
+    }
+
+    /**
+     * Stops polling, after the poll in progress, and closes the sinks.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        synchronized (this) {
+            notifyAll();
+        }
+        fanOut.close();
+    }
+
+    private Duration clamp(Duration interval) {
+        if (interval.compareTo(settings.minInterval()) < 0) {
+            return settings.minInterval();
+        }
+        return min(interval, settings.maxInterval());
+    }
+
+    private static Duration min(Duration a, Duration b) {
+        return a.compareTo(b) <= 0 ? a : b;
+    }
+
+    /**
+     * Hashes the fields that identify a book.
+     */
+    static String hash(String title, PublicationDate pubDate, Authors authors) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            String fields = String.join("\n", title, pubDate.month(), pubDate.year(),
+                    String.join("\u001f", authors.names()), Boolean.toString(authors.more()));
+            return HexFormat.of().formatHex(digest.digest(fields.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-256 is always available.", ex);
+        }
+    }
+
+    private void writeState() throws IOException {
+        Properties state = new Properties();
+        state.setProperty("hash", sharedHash);
+        state.setProperty("sharedAt", sharedAt.toString());
+        Path dir = stateFile.toAbsolutePath().getParent();
+        Files.createDirectories(dir);
+        Path tmp = Files.createTempFile(dir, stateFile.getFileName().toString(), ".tmp");
+        try {
+            try (OutputStream out = Files.newOutputStream(tmp)) {
+                state.store(out, null);
+            }
+            Files.move(tmp, stateFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    private static Properties readState(Path stateFile) throws IOException {
+        Properties state = new Properties();
+        try (InputStream in = Files.newInputStream(stateFile)) {
+            state.load(in);
+            return state;
+        } catch (NoSuchFileException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Polls the free learning page until the process is stopped, sharing each new book with a file, a webhook, or
+     * both. The state file is named by the "packtbookbot.poller.stateFile" system property.
+     * <p>
+     * Usage: {@code [--sink-file <file>] [--webhook-url <url>]}
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        List<TitleDataSink> sinks = new ArrayList<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--sink-file" -> sinks.add(new FileTitleDataSink(Path.of(args[i + 1])));
+                case "--webhook-url" -> sinks.add(new WebhookTitleDataSink(URI.create(args[i + 1]),
+                        Duration.ofSeconds(10)));
+                default -> throw new IllegalArgumentException("Unknown option " + args[i] + ".");
+            }
+        }
+        if (sinks.isEmpty()) {
+            System.err.println("Usage: [--sink-file <file>] [--webhook-url <url>]");
+            System.exit(2);
+        }
+
+        Path stateFile = Path.of(System.getProperty("packtbookbot.poller.stateFile",
+                Path.of(System.getProperty("java.io.tmpdir"), "packt-book-bot-poller.properties").toString()));
+        TitleFetchOrchestrator orchestrator = new TitleFetchOrchestrator();
+        try (FreeLearningPagePoller poller = new FreeLearningPagePoller(Settings.defaults, Urls.FREE_LEARNING,
+                () -> orchestrator.fetch(Duration.ofSeconds(30)).data(), sinks, stateFile, Clock.systemUTC())) {
+            Runtime.getRuntime().addShutdownHook(new Thread(poller::close));
+            poller.run();
+        }
+    }
+}
@@ -0,0 +1,397 @@
+package com.mattwelke.packtbookbot;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Caches pages on local disk, keyed by URL, so that pages that haven't changed aren't downloaded again.
+ * <p>
+ * A cached page younger than the max age the caller asks for is served without touching the network. An older one is
+ * revalidated with a conditional request using the ETag and Last-Modified date the server sent with it, and served
+ * from the cache when the server responds with 304 Not Modified. Pages are stored as a body file and a metadata file
+ * per URL. The least recently used pages are evicted when the bodies take up more than the size limit.
+ * <p>
+ * The cache directory outlives the JVM, so a cold start in a container that already has the directory, and every
+ * warm invocation, benefit from it. Safe for concurrent use by the fetch stages.
+ */
+class HttpCache {
+    private static final String bodySuffix = ".body";
+    private static final String metaSuffix = ".meta";
+
+    /**
+     * The cache used by the fetchers, in the directory named by the "packtbookbot.httpCache.dir" system property,
+     * limited to the number of bytes in the "packtbookbot.httpCache.maxBytes" system property.
+     */
+    private static volatile HttpCache shared;
+
+    private final Logger logger = Logger.getLogger(HttpCache.class.getName());
+
+    /**
+     * How long to wait for a response's headers, like the streaming fetches.
+     */
+    private static final Duration requestTimeout = Duration.ofSeconds(30);
+
+    private final Path dir;
+    private final long maxBytes;
+    /**
+     * Downloads the pages, keeping connections to their hosts alive between them.
+     */
+    private final HttpTransport transport;
+
+    /**
+     * Body sizes by cache key, in least recently used order.
+     */
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong revalidations = new AtomicLong();
+    private final AtomicLong bytesSaved = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * A page from the cache or the network.
+     *
+     * @param body      The page body.
+     * @param charset   The charset the body is encoded with.
+     * @param fromCache Whether the body was served from the cache instead of downloaded.
+     */
+    record Page(byte[] body, Charset charset, boolean fromCache) {
+        /**
+         * Returns a reader over the body.
+         *
+         * @return The reader.
+         */
+        Reader reader() {
+            return new InputStreamReader(new ByteArrayInputStream(body), charset);
+        }
+    }
+
+    /**
+     * The cache's counters.
+     *
+     * @param hits          Pages served from the cache, with or without revalidating them.
+     * @param misses        Pages downloaded because they weren't cached or had changed.
+     * @param revalidations Hits that were revalidated with a conditional request.
+     * @param bytesSaved    Body bytes that didn't need to be downloaded because of hits.
+     * @param evictions     Pages evicted to stay under the size limit.
+     * @param entries       Pages currently cached.
+     * @param bytes         Body bytes currently cached.
+     */
+    record Stats(long hits, long misses, long revalidations, long bytesSaved, long evictions, int entries,
+                 long bytes) {
+        Map<String, Object> toMap() {
+            return Map.of("hits", hits, "misses", misses, "revalidations", revalidations, "bytesSaved", bytesSaved,
+                    "evictions", evictions, "entries", entries, "bytes", bytes);
+        }
+    }
+
+    /**
+     * Opens a cache, picking up the pages already cached in its directory.
+     *
+     * @param dir      The directory to cache pages in. Created if it doesn't exist.
+     * @param maxBytes How many body bytes may be cached before pages are evicted.
+     * @throws IOException when the directory can't be created or listed.
+     */
+    HttpCache(Path dir, long maxBytes) throws IOException {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        this.transport = HttpTransport.shared();
+        Files.createDirectories(dir);
+
+        // Rebuild the LRU order from the bodies' modified times, which are touched on every hit.
+        record Existing(String key, long size, FileTime lastUsed) {
+        }
+        List<Existing> existing = new ArrayList<>();
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path body : (Iterable<Path>) files.filter(f -> f.toString().endsWith(bodySuffix))::iterator) {
+                String fileName = body.getFileName().toString();
+                String key = fileName.substring(0, fileName.length() - bodySuffix.length());
+                if (Files.exists(dir.resolve(key + metaSuffix))) {
+                    existing.add(new Existing(key, Files.size(body), Files.getLastModifiedTime(body)));
+                }
+            }
+        }
+        existing.sort((a, b) -> a.lastUsed().compareTo(b.lastUsed()));
+        synchronized (this) {
+            for (Existing e : existing) {
+                entries.put(e.key(), e.size());
+                totalBytes += e.size();
+            }
+            evict();
+        }
+    }
+
+    /**
+     * Returns the cache shared by the fetchers, opening it on first use.
+     *
+     * @return The cache.
+     * @throws IOException when the cache directory can't be opened.
+     */
+    static HttpCache shared() throws IOException {
+        HttpCache cache = shared;
+        if (cache == null) {
+            synchronized (HttpCache.class) {
+                cache = shared;
+                if (cache == null) {
+                    Path dir = Path.of(System.getProperty("packtbookbot.httpCache.dir",
+                            Path.of(System.getProperty("java.io.tmpdir"), "packt-book-bot-http-cache").toString()));
+                    long maxBytes = Long.getLong("packtbookbot.httpCache.maxBytes", 64L * 1024 * 1024);
+                    cache = new HttpCache(dir, maxBytes);
+                    shared = cache;
+                }
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * Gets a page, from the cache if it's cached and fresh or unchanged, otherwise from the network.
+     *
+     * @param url    The page URL.
+     * @param maxAge How long after being downloaded or revalidated a cached page is served without revalidating it.
+     *               Zero to always revalidate.
+     * @return The page.
+     * @throws IOException when the page isn't cached and can't be downloaded.
+     */
+    Page get(String url, Duration maxAge) throws IOException {
+        String key = key(url);
+        Properties meta;
+        long storedAt;
+        byte[] cachedBody;
+        // Read both files under the lock they're replaced under, so that the ETag sent to revalidate the body is the
+        // body's own, and not the one of a newer body being stored at the same time.
+        synchronized (this) {
+            meta = readMeta(key);
+            // A page whose metadata is corrupt is downloaded again, as if it weren't cached.
+            storedAt = meta != null ? storedAt(meta) : -1;
+            cachedBody = storedAt >= 0 ? readBody(key) : null;
+        }
+
+        if (cachedBody != null) {
+            if (System.currentTimeMillis() - storedAt < maxAge.toMillis()) {
+                return hit(key, cachedBody, meta, false);
+            }
+        }
+
+        HttpRequest.Builder request;
+        try {
+            request = HttpTransport.get(URI.create(url), requestTimeout);
+        } catch (IllegalArgumentException ex) {
+            throw new IOException("Invalid URL " + url + ".", ex);
+        }
+        if (cachedBody != null) {
+            if (meta.getProperty("etag") != null) {
+                request.header("If-None-Match", meta.getProperty("etag"));
+            }
+            if (meta.getProperty("lastModified") != null) {
+                request.header("If-Modified-Since", meta.getProperty("lastModified"));
+            }
+        }
+
+        byte[] body;
+        Charset charset;
+        Optional<String> etag;
+        Optional<String> lastModified;
+        // The body is read whole, because it's cached whole. The transport counts the bytes downloaded.
+        try (HttpTransport.Response response = transport.send(request.build())) {
+            if (response.statusCode() == 304 && cachedBody != null) {
+                meta.setProperty("storedAt", Long.toString(System.currentTimeMillis()));
+                try {
+                    writeMeta(key, meta, storedAt);
+                } catch (IOException ex) {
+                    // The page is still good. It's only revalidated again sooner.
+                    logger.log(Level.WARNING, "Could not record revalidation of " + url + ".", ex);
+                }
+                return hit(key, cachedBody, meta, true);
+            }
+            if (response.statusCode() < 200 || response.statusCode() >= 300) {
+                throw new IOException(String.format("HTTP status %d fetching %s.", response.statusCode(), url));
+            }
+            body = response.body().readAllBytes();
+            charset = response.charset();
+            etag = response.headers().firstValue("ETag");
+            lastModified = response.headers().firstValue("Last-Modified");
+        }
+        misses.incrementAndGet();
+
+        if (etag.isPresent() || lastModified.isPresent() || maxAge.toMillis() > 0) {
+            Properties newMeta = new Properties();
+            newMeta.setProperty("url", url);
+            newMeta.setProperty("charset", charset.name());
+            newMeta.setProperty("storedAt", Long.toString(System.currentTimeMillis()));
+            etag.ifPresent(value -> newMeta.setProperty("etag", value));
+            lastModified.ifPresent(value -> newMeta.setProperty("lastModified", value));
+            try {
+                store(key, body, newMeta);
+            } catch (IOException ex) {
+                logger.log(Level.WARNING, "Could not cache " + url + ".", ex);
+            }
+        }
+        return new Page(body, charset, false);
+    }
+
+    /**
+     * Returns the cache's counters.
+     *
+     * @return The counters.
+     */
+    synchronized Stats stats() {
+        return new Stats(hits.get(), misses.get(), revalidations.get(), bytesSaved.get(), evictions.get(),
+                entries.size(), totalBytes);
+    }
+
+    private Page hit(String key, byte[] body, Properties meta, boolean revalidated) {
+        hits.incrementAndGet();
+        if (revalidated) {
+            revalidations.incrementAndGet();
+        }
+        bytesSaved.addAndGet(body.length);
+        synchronized (this) {
+            entries.get(key);
+        }
+        try {
+            Files.setLastModifiedTime(dir.resolve(key + bodySuffix), FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException ex) {
+            // Only affects the eviction order after a restart.
+        }
+        return new Page(body, Charset.forName(meta.getProperty("charset", "UTF-8")), true);
+    }
+
+    private void store(String key, byte[] body, Properties meta) throws IOException {
+        if (body.length > maxBytes) {
+            return;
+        }
+        // Write both files next to their final names first, so a crash never leaves a half written entry.
+        Path bodyTmp = Files.createTempFile(dir, key, ".tmp");
+        Path metaTmp = Files.createTempFile(dir, key, ".tmp");
+        try {
+            Files.write(bodyTmp, body);
+            try (OutputStream out = Files.newOutputStream(metaTmp)) {
+                meta.store(out, null);
+            }
+            synchronized (this) {
+                Files.move(bodyTmp, dir.resolve(key + bodySuffix), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+                Files.move(metaTmp, dir.resolve(key + metaSuffix), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+                Long previous = entries.put(key, (long) body.length);
+                totalBytes += body.length - (previous != null ? previous : 0);
+                evict();
+            }
+        } finally {
+            Files.deleteIfExists(bodyTmp);
+            Files.deleteIfExists(metaTmp);
+        }
+    }
+
+    /**
+     * Evicts the least recently used pages until the bodies fit in the size limit. Must hold the lock.
+     */
+    private void evict() {
+        Iterator<Map.Entry<String, Long>> lru = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && lru.hasNext()) {
+            Map.Entry<String, Long> eldest = lru.next();
+            try {
+                Files.deleteIfExists(dir.resolve(eldest.getKey() + metaSuffix));
+                Files.deleteIfExists(dir.resolve(eldest.getKey() + bodySuffix));
+            } catch (IOException ex) {
+                logger.log(Level.WARNING, "Could not evict cached page " + eldest.getKey() + ".", ex);
+            }
+            totalBytes -= eldest.getValue();
+            evictions.incrementAndGet();
+            lru.remove();
+        }
+    }
+
+    /**
+     * Replaces the metadata of a revalidated page, unless the page was stored again or evicted since its metadata was
+     * read, in which case the metadata belongs to another body.
+     */
+    private void writeMeta(String key, Properties meta, long readStoredAt) throws IOException {
+        Path metaTmp = Files.createTempFile(dir, key, ".tmp");
+        try {
+            try (OutputStream out = Files.newOutputStream(metaTmp)) {
+                meta.store(out, null);
+            }
+            synchronized (this) {
+                Properties current = readMeta(key);
+                if (current != null && storedAt(current) == readStoredAt) {
+                    Files.move(metaTmp, dir.resolve(key + metaSuffix), StandardCopyOption.REPLACE_EXISTING,
+                            StandardCopyOption.ATOMIC_MOVE);
+                }
+            }
+        } finally {
+            Files.deleteIfExists(metaTmp);
+        }
+    }
+
+    /**
+     * Returns when a cached page was downloaded or last revalidated, in epoch millis, or -1 when its metadata doesn't
+     * say.
+     */
+    private static long storedAt(Properties meta) {
+        try {
+            return Long.parseLong(meta.getProperty("storedAt", ""));
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    private Properties readMeta(String key) throws IOException {
+        Properties meta = new Properties();
+        try (InputStream in = Files.newInputStream(dir.resolve(key + metaSuffix))) {
+            meta.load(in);
+            return meta;
+        } catch (NoSuchFileException ex) {
+            return null;
+        }
+    }
+
+    private byte[] readBody(String key) throws IOException {
+        try {
+            return Files.readAllBytes(dir.resolve(key + bodySuffix));
+        } catch (NoSuchFileException ex) {
+            // Deleted by something other than the cache, like a temp directory cleaner.
+            return null;
+        }
+    }
+
+    private static String key(String url) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(url.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-256 is always available.", ex);
+        }
+    }
+}
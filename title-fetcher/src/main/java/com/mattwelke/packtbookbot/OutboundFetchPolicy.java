@@ -0,0 +1,314 @@
+package com.mattwelke.packtbookbot;
+
+import java.io.IOException;
+import java.net.URI;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps fetches from one host within a latency budget:
+ * <ul>
+ *     <li>When a fetch hasn't finished after the host's recent p95 latency, a duplicate fetch is started, and whichever
+ *     finishes first wins. This cuts the tail latency caused by the occasional slow request.</li>
+ *     <li>Each fetch times out after a multiple of the host's recent p99 latency, within bounds, instead of a fixed
+ *     timeout that's either too short for a slow host or much too long for a fast one.</li>
+ *     <li>A {@link CircuitBreaker} skips the host right away while it's failing, and probes it again later. Only
+ *     timeouts and I/O errors, like connection failures and error statuses, count as the host failing.</li>
+ * </ul>
+ * Policies are kept per host for the life of the JVM, so the latencies and breaker state carry over between warm
+ * invocations. Hedges, timeouts, breaker trips and rejected fetches are counted as events in the invocation's
+ * metrics, named after the fetch, like "googleSearchHedges".
+ */
+final class OutboundFetchPolicy {
+    private static final Map<String, OutboundFetchPolicy> byHost = new ConcurrentHashMap<>();
+
+    /**
+     * Runs the fetches, so that the caller can stop waiting for a fetch, or start a second one, while the first is
+     * blocked on the network. Threads are daemons so that a stuck fetch can't keep the JVM alive.
+     */
+    private static final ExecutorService executor = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "outbound-fetch");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Logger logger = Logger.getLogger(OutboundFetchPolicy.class.getName());
+
+    private final String host;
+    private final Settings settings;
+    private final CircuitBreaker breaker;
+    private final LatencyWindow latencies;
+    private final AtomicLong fetches = new AtomicLong();
+    private final AtomicLong hedges = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+
+    /**
+     * The budget of a host.
+     *
+     * @param initialTimeout    The timeout until enough fetches have succeeded to know the host's latency.
+     * @param minTimeout        The shortest timeout.
+     * @param maxTimeout        The longest timeout.
+     * @param timeoutMultiplier The timeout as a multiple of the host's p99 latency.
+     * @param initialHedgeDelay How long to wait before hedging until the host's latency is known.
+     * @param minHedgeDelay     The shortest wait before hedging, so that fast hosts aren't asked twice for everything.
+     * @param minSamples        How many fetches must have succeeded before their latencies are used.
+     * @param breaker           When the host's circuit breaker opens.
+     */
+    record Settings(Duration initialTimeout, Duration minTimeout, Duration maxTimeout, double timeoutMultiplier,
+                    Duration initialHedgeDelay, Duration minHedgeDelay, int minSamples,
+                    CircuitBreaker.Settings breaker) {
+        static final Settings defaults = new Settings(Duration.ofSeconds(5), Duration.ofSeconds(1),
+                Duration.ofSeconds(10), 3, Duration.ofSeconds(1), Duration.ofMillis(50), 8,
+                new CircuitBreaker.Settings(3, Duration.ofSeconds(30), Duration.ofMinutes(10)));
+    }
+
+    /**
+     * One attempt at a fetch.
+     *
+     * @param <T> The type of the result.
+     */
+    @FunctionalInterface
+    interface Fetch<T> {
+        /**
+         * Fetches.
+         *
+         * @param timeout How long the attempt may take, to set as the timeout of its connection.
+         * @return The result.
+         * @throws Exception when the attempt fails.
+         */
+        T fetch(Duration timeout) throws Exception;
+    }
+
+    /**
+     * The counters of a policy, across every invocation in the JVM.
+     *
+     * @param fetches       How many fetches were asked for, including rejected ones.
+     * @param hedges        How many duplicate fetches were started.
+     * @param timeouts      How many fetches timed out.
+     * @param timeoutMillis The current timeout.
+     * @param hedgeMillis   The current wait before hedging.
+     * @param breaker       The circuit breaker's counters.
+     */
+    record Stats(long fetches, long hedges, long timeouts, long timeoutMillis, long hedgeMillis,
+                 CircuitBreaker.Stats breaker) {
+        Map<String, Object> toMap() {
+            Map<String, Object> map = new HashMap<>();
+            map.put("fetches", fetches);
+            map.put("hedges", hedges);
+            map.put("timeouts", timeouts);
+            map.put("timeoutMs", timeoutMillis);
+            map.put("hedgeMs", hedgeMillis);
+            map.put("breakerState", breaker.state().toString());
+            map.put("breakerTrips", breaker.trips());
+            map.put("breakerRejections", breaker.rejections());
+            return map;
+        }
+    }
+
+    OutboundFetchPolicy(String host, Settings settings) {
+        this.host = host;
+        this.settings = settings;
+        this.breaker = new CircuitBreaker(settings.breaker(), System::nanoTime);
+        this.latencies = new LatencyWindow(64);
+    }
+
+    /**
+     * Returns the policy for the host of a URL, shared by all fetches from the host in the JVM.
+     *
+     * @param url The URL.
+     * @return The policy.
+     */
+    static OutboundFetchPolicy forHost(String url) {
+        String host = URI.create(url).getHost();
+        return byHost.computeIfAbsent(host != null ? host : url, h -> new OutboundFetchPolicy(h, Settings.defaults));
+    }
+
+    /**
+     * Fetches within the host's budget.
+     *
+     * @param name  The name of the fetch, for the metrics, like "googleSearch".
+     * @param fetch The fetch. May be run twice at the same time when hedged, so it must not have side effects that
+     *              would be wrong to do twice.
+     * @param <T>   The type of the result.
+     * @return The result of the first attempt to succeed.
+     * @throws CouldNotFetchException when the breaker is open, the attempts failed or the fetch timed out.
+     * @throws InterruptedException   when interrupted while waiting for the attempts.
+     */
+    <T> T fetch(String name, Fetch<T> fetch) throws CouldNotFetchException, InterruptedException {
+        InvocationMetrics metrics = InvocationMetrics.current();
+        fetches.incrementAndGet();
+        if (!breaker.allow()) {
+            metrics.count(name + "BreakerRejections");
+            throw new CouldNotFetchException(String.format("Skipped %s because %s is failing. Probing again in %d ms.",
+                    name, host, breaker.untilProbe().toMillis()));
+        }
+
+        long start = System.nanoTime();
+        long timeoutNanos = timeout().toNanos();
+        long deadline = start + timeoutNanos;
+        long hedgeAt = start + hedgeDelay().toNanos();
+
+        CompletionService<T> completion = new ExecutorCompletionService<>(executor);
+        List<Future<T>> attempts = new ArrayList<>(2);
+        attempts.add(completion.submit(metrics.bind(() -> attempt(fetch, Duration.ofNanos(timeoutNanos)))));
+        boolean hedged = false;
+        boolean reported = false;
+        Throwable failure = null;
+        try {
+            while (true) {
+                long waitUntil = hedged ? deadline : Math.min(hedgeAt, deadline);
+                Future<T> done = completion.poll(Math.max(0, waitUntil - System.nanoTime()), TimeUnit.NANOSECONDS);
+                if (done == null) {
+                    long now = System.nanoTime();
+                    if (!hedged && now < deadline) {
+                        hedged = true;
+                        hedges.incrementAndGet();
+                        metrics.count(name + "Hedges");
+                        Duration remaining = Duration.ofNanos(deadline - now);
+                        attempts.add(completion.submit(metrics.bind(() -> attempt(fetch, remaining))));
+                        continue;
+                    }
+                    timeouts.incrementAndGet();
+                    metrics.count(name + "Timeouts");
+                    reported = true;
+                    failed(name, metrics);
+                    throw new CouldNotFetchException(String.format("%s from %s timed out after %d ms.", name, host,
+                            TimeUnit.NANOSECONDS.toMillis(timeoutNanos)), failure);
+                }
+
+                try {
+                    T result = done.get();
+                    reported = true;
+                    breaker.succeeded();
+                    return result;
+                } catch (ExecutionException ex) {
+                    failure = ex.getCause();
+                    if (!(failure instanceof IOException)) {
+                        // The host answered, but with something unusable, which says nothing about its health.
+                        reported = true;
+                        breaker.succeeded();
+                        if (failure instanceof CouldNotFetchException couldNotFetch) {
+                            throw couldNotFetch;
+                        }
+                        throw new CouldNotFetchException(String.format("%s from %s failed.", name, host), failure);
+                    }
+                    // A fetch that failed quickly, like one that was refused, isn't hedged. Only wait for a hedge
+                    // already running.
+                    if (!hedged || attempts.stream().allMatch(Future::isDone)) {
+                        reported = true;
+                        failed(name, metrics);
+                        throw new CouldNotFetchException(String.format("%s from %s failed.", name, host), failure);
+                    }
+                }
+            }
+        } finally {
+            for (Future<T> attempt : attempts) {
+                attempt.cancel(true);
+            }
+            if (!reported) {
+                // Like when interrupted because the invocation's deadline passed. Without this, a probe that's
+                // interrupted would leave the breaker half open, rejecting every fetch.
+                breaker.abandoned();
+            }
+        }
+    }
+
+    /**
+     * Runs one attempt, recording its latency when it succeeds.
+     */
+    private <T> T attempt(Fetch<T> fetch, Duration timeout) throws Exception {
+        long start = System.nanoTime();
+        T result = fetch.fetch(timeout);
+        latencies.add(System.nanoTime() - start);
+        return result;
+    }
+
+    private void failed(String name, InvocationMetrics metrics) {
+        if (breaker.failed()) {
+            metrics.count(name + "BreakerTrips");
+            logger.log(Level.WARNING, "Circuit breaker for {0} opened. Skipping it for {1} ms.",
+                    new Object[]{host, breaker.untilProbe().toMillis()});
+        }
+    }
+
+    /**
+     * Returns how long a fetch may take, based on the host's recent latencies.
+     *
+     * @return The timeout.
+     */
+    Duration timeout() {
+        long p99 = latencies.percentile(0.99, settings.minSamples());
+        if (p99 < 0) {
+            return settings.initialTimeout();
+        }
+        long nanos = (long) (p99 * settings.timeoutMultiplier());
+        return Duration.ofNanos(Math.max(settings.minTimeout().toNanos(),
+                Math.min(settings.maxTimeout().toNanos(), nanos)));
+    }
+
+    /**
+     * Returns how long to wait for a fetch before hedging it, based on the host's recent latencies.
+     *
+     * @return The delay.
+     */
+    Duration hedgeDelay() {
+        long p95 = latencies.percentile(0.95, settings.minSamples());
+        if (p95 < 0) {
+            return settings.initialHedgeDelay();
+        }
+        return Duration.ofNanos(Math.max(settings.minHedgeDelay().toNanos(), p95));
+    }
+
+    Stats stats() {
+        return new Stats(fetches.get(), hedges.get(), timeouts.get(), timeout().toMillis(), hedgeDelay().toMillis(),
+                breaker.stats());
+    }
+
+    /**
+     * The latencies of a host's most recent successful fetches.
+     */
+    private static final class LatencyWindow {
+        private final long[] nanos;
+        private int next;
+        private int size;
+
+        LatencyWindow(int capacity) {
+            this.nanos = new long[capacity];
+        }
+
+        synchronized void add(long latencyNanos) {
+            nanos[next] = latencyNanos;
+            next = (next + 1) % nanos.length;
+            size = Math.min(size + 1, nanos.length);
+        }
+
+        /**
+         * Returns a nearest-rank percentile of the latencies.
+         *
+         * @return The percentile in nanoseconds, or -1 when there are fewer latencies than the minimum.
+         */
+        synchronized long percentile(double p, int minSamples) {
+            if (size < Math.max(minSamples, 1)) {
+                return -1;
+            }
+            long[] sorted = Arrays.copyOf(nanos, size);
+            Arrays.sort(sorted);
+            return sorted[Math.max((int) Math.ceil(p * size), 1) - 1];
+        }
+    }
+}
@@ -1,22 +1,63 @@
 package com.mattwelke.packtbookbot;
 
-import org.jsoup.Jsoup;
-import org.jsoup.nodes.Document;
-import org.jsoup.nodes.Element;
+import org.jsoup.internal.StringUtil;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.time.Duration;
 import java.util.List;
+import java.util.Optional;
 
 public class ProductPageDataFetcher {
-    private final Document doc;
+    /**
+     * Product pages rarely change once a title is published, so a cached copy is used without revalidating it for
+     * this long.
+     */
+    private static final Duration cacheMaxAge = Duration.ofDays(30);
+
+    private static final ExtractionRules rules = ExtractionRules.load("product-page");
 
     /**
-     * Given a URL for the product page, creates an instance of the fetcher.
+     * Extracts what the fetcher needs from a product page. Also used by crawls, which fetch product pages themselves.
+     */
+    static final StreamingHtmlExtractor extractor = rules.extractor();
+
+    private final ExtractionRules.Values values;
+    private final String baseUri;
+
+    /**
+     * Given a URL for the product page, creates an instance of the fetcher. Repeat lookups of a product page are
+     * served from the HTTP cache without touching the network.
      *
-     * @throws IOException when Jsoup fails to load the provided URL.
+     * @throws IOException when the product page can't be loaded.
      */
     ProductPageDataFetcher(String url) throws IOException {
-        doc = Jsoup.connect(url).get();
+        values = rules.evaluate(extractor.fetchCached(url, cacheMaxAge));
+        baseUri = url;
+    }
+
+    /**
+     * Creates an instance of the fetcher from a saved copy of a product page instead of loading it.
+     *
+     * @param in      The saved page, encoded as UTF-8.
+     * @param baseUri The URL the page was saved from.
+     * @throws IOException when the saved page can't be read.
+     */
+    ProductPageDataFetcher(InputStream in, String baseUri) throws IOException {
+        values = rules.evaluate(extractor.extract(in));
+        this.baseUri = baseUri;
+    }
+
+    /**
+     * Creates an instance of the fetcher from a product page already extracted with {@link #extractor}, like by a
+     * crawl.
+     *
+     * @param extraction The extraction.
+     * @param baseUri    The URL of the page.
+     */
+    ProductPageDataFetcher(StreamingHtmlExtractor.Extraction extraction, String baseUri) {
+        this.values = rules.evaluate(extraction);
+        this.baseUri = baseUri;
     }
 
     /**
@@ -24,8 +65,18 @@ public class ProductPageDataFetcher {
      * @return The authors of the book.
      */
     List<String> authors() {
-        return doc.select("h5.accordion__title").stream()
-                .map(Element::html).map(String::trim).toList();
+        return values.all("authors");
+    }
+
+    /**
+     * Parses the URL the product page declares as its canonical URL. Used to recover the product page URL of a saved
+     * product page.
+     * @return The canonical URL, if the page has one.
+     */
+    Optional<String> canonicalUrl() {
+        return values.first("canonical")
+                .map(href -> StringUtil.resolve(baseUri, href))
+                .filter(url -> !url.isEmpty());
     }
 
     /**
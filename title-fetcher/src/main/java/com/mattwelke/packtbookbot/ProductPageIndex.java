@@ -0,0 +1,439 @@
+package com.mattwelke.packtbookbot;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Scanner;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A persistent index of product page URLs by title, so that the product page URL of a title that was looked up
+ * before, or imported in bulk, is found without searching Google.
+ * <p>
+ * Titles are normalized by removing the "- nth Edition" suffix the same way the Google result matching does, then
+ * lowercasing them and collapsing punctuation and whitespace. Because different editions then normalize to the same
+ * title, each URL is keyed by the normalized title and the publication year-month. Each URL is also keyed by the
+ * complete normalized title without a date, for sources that don't have publication dates, like Packt's sitemap.
+ * <p>
+ * The index is a hash table in a memory-mapped file, so a lookup is a few reads from the page cache with no parsing.
+ * The file starts with a header, followed by a table of slots, followed by the records the slots point to:
+ * <pre>
+ * header: int magic, int format version, int slot count, int entry count, int end of records
+ * slot:   int key hash, int record position (0 when empty)
+ * record: unsigned short key length, key (UTF-8), unsigned short URL length, URL (UTF-8)
+ * </pre>
+ * When the table gets half full or the records run out of room, the index is rewritten to a bigger file, which
+ * replaces the old one.
+ */
+class ProductPageIndex {
+    private static final int magic = 0x50504958;
+    private static final int formatVersion = 1;
+    private static final int headerBytes = 20;
+    private static final int slotBytes = 8;
+    private static final int initialSlots = 1024;
+    private static final int initialRecordBytes = 64 * 1024;
+
+    private static final Pattern nonAlphanumeric = Pattern.compile("[^\\p{L}\\p{N}]+");
+    private static final Pattern sitemapLoc = Pattern.compile("<loc>\\s*([^<]+?)\\s*</loc>");
+    private static final Pattern productPageUrl =
+            Pattern.compile("https://www\\.packtpub\\.com/product/([a-z0-9-]+)/[0-9]{9}[0-9Xx]+/?");
+    private static final Pattern yearMonth = Pattern.compile("(\\d{4})-(\\d{2})");
+
+    private static volatile ProductPageIndex shared;
+
+    private final Path file;
+    private MappedByteBuffer buffer;
+    private int slotCount;
+    private int entryCount;
+    private int recordsEnd;
+
+    private long hits;
+    private long misses;
+
+    /**
+     * The index's counters.
+     *
+     * @param hits    Lookups that found a URL.
+     * @param misses  Lookups that didn't.
+     * @param entries Keys in the index.
+     */
+    record Stats(long hits, long misses, int entries) {
+        Map<String, Object> toMap() {
+            return Map.of("hits", hits, "misses", misses, "entries", entries);
+        }
+    }
+
+    private record Entry(byte[] key, byte[] url) {
+    }
+
+    /**
+     * Opens an index, creating its file if it doesn't exist yet.
+     *
+     * @param file The index file.
+     * @throws IOException when the file can't be created or mapped, or isn't an index.
+     */
+    ProductPageIndex(Path file) throws IOException {
+        this.file = file;
+        if (Files.exists(file) && Files.size(file) > 0) {
+            map(file);
+            if (buffer.getInt(0) != magic || buffer.getInt(4) != formatVersion) {
+                throw new IOException(file + " is not a product page index.");
+            }
+            slotCount = buffer.getInt(8);
+            entryCount = buffer.getInt(12);
+            recordsEnd = buffer.getInt(16);
+        } else {
+            if (file.getParent() != null) {
+                Files.createDirectories(file.getParent());
+            }
+            create(file, initialSlots, initialRecordBytes);
+        }
+    }
+
+    /**
+     * Returns the index used by the title fetcher, in the file named by the "packtbookbot.productPageIndex.file"
+     * system property, opening it on first use.
+     *
+     * @return The index.
+     * @throws IOException when the index can't be opened.
+     */
+    static ProductPageIndex shared() throws IOException {
+        ProductPageIndex index = shared;
+        if (index == null) {
+            synchronized (ProductPageIndex.class) {
+                index = shared;
+                if (index == null) {
+                    index = new ProductPageIndex(Path.of(System.getProperty("packtbookbot.productPageIndex.file",
+                            Path.of(System.getProperty("java.io.tmpdir"), "packt-book-bot-product-pages.idx")
+                                    .toString())));
+                    shared = index;
+                }
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Looks up the product page URL of a title, preferring a URL recorded for the title's publication date. When the
+     * date has no year-month, only the URL recorded without a date is looked up.
+     *
+     * @param title   The Packt book title.
+     * @param pubDate The title's publication date.
+     * @return The product page URL, if the index has one for the title.
+     */
+    synchronized Optional<String> lookup(String title, PublicationDate pubDate) {
+        String url = pubDate.hasYearMonth() ? find(datedKey(title, pubDate.yearMonth())) : null;
+        if (url == null) {
+            url = find(undatedKey(title));
+        }
+        if (url == null) {
+            misses++;
+            return Optional.empty();
+        }
+        hits++;
+        return Optional.of(url);
+    }
+
+    /**
+     * Records the product page URL of a title. Not written to disk until {@link #flush()} is called. When the
+     * publication date has no year-month, the URL is only recorded without a date.
+     *
+     * @param title   The Packt book title.
+     * @param pubDate The title's publication date.
+     * @param url     The product page URL.
+     * @throws IOException when the index needs to grow and its file can't be rewritten.
+     */
+    synchronized void put(String title, PublicationDate pubDate, String url) throws IOException {
+        if (pubDate.hasYearMonth()) {
+            put(datedKey(title, pubDate.yearMonth()), url);
+        }
+        put(undatedKey(title), url);
+    }
+
+    /**
+     * Writes changes to disk.
+     */
+    synchronized void flush() {
+        buffer.force();
+    }
+
+    /**
+     * Returns the index's counters.
+     *
+     * @return The counters.
+     */
+    synchronized Stats stats() {
+        return new Stats(hits, misses, entryCount);
+    }
+
+    /**
+     * Imports product page URLs from tab separated lines of title, publication date and URL. The publication date is
+     * either a year-month like "2020-04" or a month and year like "April 2020". Blank lines and lines starting with
+     * "#" are skipped.
+     *
+     * @param tsv The lines.
+     * @return How many URLs were imported.
+     * @throws IOException when the lines can't be read or the index can't grow.
+     */
+    synchronized int importTsv(Reader tsv) throws IOException {
+        int imported = 0;
+        BufferedReader lines = new BufferedReader(tsv);
+        String line;
+        while ((line = lines.readLine()) != null) {
+            if (line.isBlank() || line.startsWith("#")) {
+                continue;
+            }
+            String[] columns = line.split("\t");
+            if (columns.length < 3) {
+                throw new IOException("Expected title, publication date and URL in line: " + line);
+            }
+            put(columns[0].trim(), parsePubDate(columns[1].trim()), columns[2].trim());
+            imported++;
+        }
+        flush();
+        return imported;
+    }
+
+    /**
+     * Imports the product page URLs in a Packt sitemap. Sitemaps don't have titles or publication dates, so the title
+     * is recovered from the URL's slug, and the URL is only keyed by the title.
+     *
+     * @param sitemap The sitemap XML.
+     * @return How many URLs were imported.
+     * @throws IOException when the index can't grow.
+     */
+    synchronized int importSitemap(Reader sitemap) throws IOException {
+        int imported = 0;
+        try (Scanner scanner = new Scanner(sitemap)) {
+            for (String loc : (Iterable<String>) scanner.findAll(sitemapLoc).map(m -> m.group(1))::iterator) {
+                Matcher product = productPageUrl.matcher(loc);
+                if (product.matches()) {
+                    put(undatedKey(product.group(1)), loc);
+                    imported++;
+                }
+            }
+        }
+        flush();
+        return imported;
+    }
+
+    /**
+     * Normalizes a title for matching, by lowercasing it and collapsing everything that isn't a letter or digit to
+     * single spaces. A product page URL slug normalizes to the same string as the title it was made from.
+     *
+     * @param title The title.
+     * @return The normalized title.
+     */
+    static String normalize(String title) {
+        return nonAlphanumeric.matcher(title.toLowerCase(Locale.ROOT)).replaceAll(" ").trim();
+    }
+
+    private static String datedKey(String title, int yearMonth) {
+        return yearMonth + "|" + normalize(ProductPageUrlFetcher.withoutEditionSuffix(title));
+    }
+
+    private static String undatedKey(String title) {
+        return "0|" + normalize(title);
+    }
+
+    /**
+     * Parses a publication date in a catalog dump, either a year-month like "2020-04" or a month and year like "April
+     * 2020".
+     *
+     * @param str The publication date.
+     * @return The parsed publication date.
+     */
+    static PublicationDate parsePubDate(String str) {
+        Matcher m = yearMonth.matcher(str);
+        if (m.matches()) {
+            return PublicationDate.ofYearMonth(Integer.parseInt(m.group(1)) * 100 + Integer.parseInt(m.group(2)));
+        }
+        String[] monthYear = str.split(" ");
+        if (monthYear.length != 2) {
+            throw new IllegalArgumentException("Unsupported publication date: " + str);
+        }
+        return new PublicationDate(monthYear[0], monthYear[1]);
+    }
+
+    private String find(String key) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        int slot = slot(keyBytes);
+        return slot < 0 ? null : readUrl(buffer.getInt(slotPosition(slot) + 4));
+    }
+
+    /**
+     * Finds the slot for a key.
+     *
+     * @return The slot index if the key is in the table, otherwise -(index of the empty slot it would go in) - 1.
+     */
+    private int slot(byte[] key) {
+        int hash = hash(key);
+        int mask = slotCount - 1;
+        for (int i = hash & mask; ; i = (i + 1) & mask) {
+            int position = slotPosition(i);
+            int record = buffer.getInt(position + 4);
+            if (record == 0) {
+                return -i - 1;
+            }
+            if (buffer.getInt(position) == hash && keyEquals(record, key)) {
+                return i;
+            }
+        }
+    }
+
+    private void put(String key, String url) throws IOException {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        byte[] urlBytes = url.getBytes(StandardCharsets.UTF_8);
+        int slot = slot(keyBytes);
+        if (slot >= 0 && url.equals(readUrl(buffer.getInt(slotPosition(slot) + 4)))) {
+            return;
+        }
+
+        int recordBytes = 4 + keyBytes.length + urlBytes.length;
+        boolean tableFull = slot < 0 && (entryCount + 1) * 2 > slotCount;
+        if (tableFull || recordsEnd + recordBytes > buffer.capacity()) {
+            grow(recordBytes);
+            slot = slot(keyBytes);
+        }
+
+        // A changed URL gets a new record. The old one is dropped the next time the index grows.
+        int record = recordsEnd;
+        buffer.putShort(record, (short) keyBytes.length);
+        buffer.put(record + 2, keyBytes);
+        buffer.putShort(record + 2 + keyBytes.length, (short) urlBytes.length);
+        buffer.put(record + 4 + keyBytes.length, urlBytes);
+        recordsEnd += recordBytes;
+
+        int position = slotPosition(slot < 0 ? -slot - 1 : slot);
+        buffer.putInt(position, hash(keyBytes));
+        buffer.putInt(position + 4, record);
+        if (slot < 0) {
+            entryCount++;
+        }
+        buffer.putInt(12, entryCount);
+        buffer.putInt(16, recordsEnd);
+    }
+
+    /**
+     * Rewrites the index to a file with twice as many slots and enough room for the live records plus the next one,
+     * then replaces the index file with it.
+     */
+    private void grow(int nextRecordBytes) throws IOException {
+        List<Entry> entries = new ArrayList<>(entryCount);
+        int liveRecordBytes = 0;
+        for (int i = 0; i < slotCount; i++) {
+            int record = buffer.getInt(slotPosition(i) + 4);
+            if (record != 0) {
+                byte[] key = new byte[Short.toUnsignedInt(buffer.getShort(record))];
+                buffer.get(record + 2, key);
+                byte[] url = new byte[Short.toUnsignedInt(buffer.getShort(record + 2 + key.length))];
+                buffer.get(record + 4 + key.length, url);
+                entries.add(new Entry(key, url));
+                liveRecordBytes += 4 + key.length + url.length;
+            }
+        }
+
+        int newSlotCount = (entryCount + 1) * 2 > slotCount ? slotCount * 2 : slotCount;
+        int newRecordBytes = Math.max(initialRecordBytes, (liveRecordBytes + nextRecordBytes) * 2);
+
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        create(tmp, newSlotCount, newRecordBytes);
+        for (Entry entry : entries) {
+            put(new String(entry.key(), StandardCharsets.UTF_8), new String(entry.url(), StandardCharsets.UTF_8));
+        }
+        buffer.force();
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void create(Path path, int slots, int recordBytes) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(path.toFile(), "rw")) {
+            raf.setLength(0);
+            raf.setLength((long) headerBytes + (long) slots * slotBytes + recordBytes);
+        }
+        map(path);
+        slotCount = slots;
+        entryCount = 0;
+        recordsEnd = headerBytes + slots * slotBytes;
+        buffer.putInt(0, magic);
+        buffer.putInt(4, formatVersion);
+        buffer.putInt(8, slotCount);
+        buffer.putInt(12, entryCount);
+        buffer.putInt(16, recordsEnd);
+    }
+
+    private void map(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // The mapping stays valid after the channel is closed.
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+        }
+    }
+
+    private static int slotPosition(int slot) {
+        return headerBytes + slot * slotBytes;
+    }
+
+    private boolean keyEquals(int record, byte[] key) {
+        if (Short.toUnsignedInt(buffer.getShort(record)) != key.length) {
+            return false;
+        }
+        for (int i = 0; i < key.length; i++) {
+            if (buffer.get(record + 2 + i) != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String readUrl(int record) {
+        int urlLengthPosition = record + 2 + Short.toUnsignedInt(buffer.getShort(record));
+        byte[] url = new byte[Short.toUnsignedInt(buffer.getShort(urlLengthPosition))];
+        buffer.get(urlLengthPosition + 2, url);
+        return new String(url, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * FNV-1a, mixed so that keys differing only in their last bytes spread across the table.
+     */
+    private static int hash(byte[] key) {
+        int hash = 0x811c9dc5;
+        for (byte b : key) {
+            hash ^= b;
+            hash *= 0x01000193;
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Imports product page URLs into an index.
+     * <p>
+     * Usage: {@code <index file> tsv|sitemap <file>...}
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3 || !(args[1].equals("tsv") || args[1].equals("sitemap"))) {
+            System.err.println("Usage: <index file> tsv|sitemap <file>...");
+            System.exit(2);
+        }
+        ProductPageIndex index = new ProductPageIndex(Path.of(args[0]));
+        for (int i = 2; i < args.length; i++) {
+            try (Reader reader = Files.newBufferedReader(Path.of(args[i]), StandardCharsets.UTF_8)) {
+                int imported = args[1].equals("tsv") ? index.importTsv(reader) : index.importSitemap(reader);
+                System.out.printf("Imported %d product page URL(s) from %s.%n", imported, args[i]);
+            }
+        }
+        System.out.printf("Index has %d key(s).%n", index.stats().entries());
+    }
+}
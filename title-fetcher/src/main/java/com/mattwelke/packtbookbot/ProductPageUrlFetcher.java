@@ -1,18 +1,25 @@
 package com.mattwelke.packtbookbot;
 
+import java.io.IOException;
+import java.io.Reader;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
-import java.util.Optional;
-
-import org.jsoup.Jsoup;
-import org.jsoup.nodes.Document;
-import org.jsoup.nodes.Element;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
 
 /**
  * Responsible for trying to fetch the product page URL given a title. Used to
  * get more data for the tweet if possible so that it renders nicer.
  */
 public class ProductPageUrlFetcher {
+    /**
+     * The name of the Google search in metrics.
+     */
+    static final String fetchName = "googleSearch";
+
+    private static final Pattern editionSuffix = Pattern.compile("(?i)- (Second|Third|Fourth|Fifth|Sixth) Edition");
+
     private String title;
     private String pubDateMonth;
     private String pubDateYear;
@@ -47,50 +54,83 @@ public class ProductPageUrlFetcher {
             // Create Google search URL
             String googleSearchQuery = String.format("\"%s\" %s %s site:packtpub.com -site:subscription.packtpub.com",
                     title, pubDateMonth, pubDateYear);
-            String googleSearchURL = String.format("https://google.com/search?q=%s",
+            String googleSearchURL = String.format("%s?q=%s", Urls.GOOGLE_SEARCH,
                     URLEncoder.encode(googleSearchQuery, StandardCharsets.UTF_8));
 
-            // Use Google search URL to get a page of search results.
-            Document searchDoc = Jsoup.connect(googleSearchURL).get();
-
-            // Sometimes, the book in the Google search results doesn't have the "- nth Edition"
-            // suffix, but we still want that result to be chosen. We trust that because we included
-            // the publication month and day in the search query, the first result that matches will be
-            // the edition intended, even if multiple editions of the book have been published.
-            String titleForH3Match = title.replaceAll("(?i)- (Second|Third|Fourth|Fifth|Sixth) Edition", "");
-
-            // Include only the h3s with the title, but exclude ones with "Images for" because
-            // sometimes an h3 with that will come up before the actual search result links.
-            Optional<Element> firstH3WithTitle = searchDoc.select("h3").stream()
-                    .filter(e -> !e.text().toLowerCase().contains("images for"))
-                    .filter(e -> e.html().contains(titleForH3Match))
-                    .findFirst();
-
-            if (firstH3WithTitle.isEmpty()) {
-                throw new CouldNotFetchException("Google search results page did not have a usable h3 with the book's title.");
-            }
-
-            Element titleH3 = firstH3WithTitle.get();
-
-            if (titleH3.parent() == null) {
-                throw new CouldNotFetchException("Chosen h3 on Google search results page did not have a parent element.");
-            }
-
-            Element titleH3Parent = titleH3.parent();
-
-            // Get the link from the search result - parent element is <a>
-            String hrefValue = titleH3Parent.attr("href");
-
-            if (hrefValue.equals("")) {
-                throw new CouldNotFetchException("href value on parent element of chosen h3 on Google search results page was an empty string.");
-            }
-
-            return hrefValue;
+            // Use Google search URL to get a page of search results, reading only up to the result we want. The
+            // search is hedged and timed out based on Google's recent latency, and skipped while Google is failing.
+            return OutboundFetchPolicy.forHost(googleSearchURL).fetch(fetchName, timeout -> {
+                try (Reader searchResults = StreamingHtmlExtractor.open(googleSearchURL, timeout)) {
+                    return productPageUrl(searchResults, title);
+                }
+            });
         } catch (CouldNotFetchException ex) {
             throw ex;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new CouldNotFetchException(
+                    String.format("Interrupted fetching product page URL for title %s.", title), ex);
         } catch (Exception ex) {
             throw new CouldNotFetchException(
                     String.format("Failed to fetch product page URL for title %s.", title), ex);
         }
     }
+
+    /**
+     * Finds the product page URL for a title in a page of Google search results. The result whose title best matches
+     * the title wins, rather than the first one containing it, so that an older edition listed first isn't chosen.
+     *
+     * @param searchResults The search results page.
+     * @param title         The Packt book title.
+     * @return The product page URL.
+     * @throws IOException            when the search results page can't be read.
+     * @throws CouldNotFetchException when the search results don't have a usable result for the title.
+     */
+    static String productPageUrl(Reader searchResults, String title) throws IOException, CouldNotFetchException {
+        // Exclude the h3s with "Images for" because sometimes an h3 with that will come up before the actual search
+        // result links. Sometimes, the book in the Google search results doesn't have the "- nth Edition" suffix, but
+        // we still want that result to be chosen, so the h3s are matched with the suffix removed.
+        String titleForH3Match = withoutEditionSuffix(title).trim();
+        StreamingHtmlExtractor extractor = new StreamingHtmlExtractor(List.of(new StreamingHtmlExtractor.Rule(
+                "titleH3", StreamingHtmlExtractor.Selector.parse("h3"), -1, match -> {
+                    String text = match.text();
+                    return !text.toLowerCase().contains("images for")
+                            && ProductPageIndex.normalize(text).contains(ProductPageIndex.normalize(titleForH3Match));
+                })));
+        List<StreamingHtmlExtractor.Match> titleH3s = extractor.extract(searchResults).all("titleH3");
+
+        // Get the link from each search result - parent element is <a>. Results without a link can't be used, but
+        // the others still can.
+        List<TitleMatcher.Candidate> candidates = new ArrayList<>(titleH3s.size());
+        for (StreamingHtmlExtractor.Match titleH3 : titleH3s) {
+            String href = titleH3.parentAttributes().getOrDefault("href", "");
+            if (!href.isEmpty()) {
+                candidates.add(new TitleMatcher.Candidate(titleH3.text(), 0, href));
+            }
+        }
+
+        if (candidates.isEmpty()) {
+            throw new CouldNotFetchException(titleH3s.isEmpty()
+                    ? "Google search results page did not have a usable h3 with the book's title."
+                    : "No h3 with the book's title on Google search results page had a parent element with a link.");
+        }
+
+        // Fall back to the first result when no result matches well, which is what was always chosen before.
+        String hrefValue = new TitleMatcher(candidates).best(title, 0)
+                .map(match -> match.candidate().url())
+                .orElse(candidates.get(0).url());
+
+        return hrefValue;
+    }
+
+    /**
+     * Removes the "- nth Edition" suffix from a title, so that titles can be matched whether or not the edition is
+     * part of them.
+     *
+     * @param title The Packt book title.
+     * @return The title without the suffix.
+     */
+    static String withoutEditionSuffix(String title) {
+        return editionSuffix.matcher(title).replaceAll("");
+    }
 }
@@ -1,4 +0,0 @@
-package com.mattwelke.packtbookbot;
-
-public record PublicationDate(String month, String year) {
-}
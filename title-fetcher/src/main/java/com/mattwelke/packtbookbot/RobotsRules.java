@@ -0,0 +1,157 @@
+package com.mattwelke.packtbookbot;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.regex.Pattern;
+
+/**
+ * The rules a host's robots.txt sets for a crawler, following RFC 9309: the group for the most specific user agent
+ * matching the crawler's applies, or else the "*" group. Of the rules matching a path, the longest wins, and allow wins
+ * a tie. Paths may use "*" wildcards and a "$" end anchor. A "Crawl-delay" in the group is kept too, although it isn't
+ * part of the RFC, since the crawler uses it to slow down.
+ */
+final class RobotsRules {
+    /**
+     * Allows everything, like when a host has no robots.txt.
+     */
+    static final RobotsRules allowAll = new RobotsRules(List.of(), Optional.empty());
+
+    /**
+     * Allows nothing, like when a host's robots.txt can't be fetched because of a server error.
+     */
+    static final RobotsRules disallowAll = new RobotsRules(List.of(new Rule(false, "/", Pattern.compile("/.*"))),
+            Optional.empty());
+
+    private final List<Rule> rules;
+    private final Optional<Duration> crawlDelay;
+
+    private record Rule(boolean allow, String path, Pattern pattern) {
+    }
+
+    private RobotsRules(List<Rule> rules, Optional<Duration> crawlDelay) {
+        // Longest first, with allow first among rules of the same length, so the first match wins.
+        this.rules = rules.stream()
+                .sorted(Comparator.comparingInt((Rule rule) -> rule.path().length()).reversed()
+                        .thenComparing(rule -> !rule.allow()))
+                .toList();
+        this.crawlDelay = crawlDelay;
+    }
+
+    /**
+     * Parses a robots.txt for a crawler.
+     *
+     * @param robotsTxt The robots.txt contents.
+     * @param userAgent The crawler's product token, like "packt-book-bot".
+     * @return The rules for the crawler.
+     */
+    static RobotsRules parse(String robotsTxt, String userAgent) {
+        String agent = userAgent.toLowerCase(Locale.ROOT);
+        List<String> groupAgents = new ArrayList<>();
+        boolean inRules = false;
+
+        String bestAgent = null;
+        List<Rule> bestRules = null;
+        Duration bestDelay = null;
+        List<Rule> rules = new ArrayList<>();
+        Duration delay = null;
+
+        List<String> lines = new ArrayList<>(robotsTxt.lines().toList());
+        // An extra user agent line ends the last group.
+        lines.add("user-agent:");
+        for (String line : lines) {
+            int comment = line.indexOf('#');
+            if (comment >= 0) {
+                line = line.substring(0, comment);
+            }
+            int colon = line.indexOf(':');
+            if (colon < 0) {
+                continue;
+            }
+            String key = line.substring(0, colon).trim().toLowerCase(Locale.ROOT);
+            String value = line.substring(colon + 1).trim();
+
+            if (key.equals("user-agent")) {
+                if (inRules) {
+                    // The group ended. Keep it if it's the most specific match so far.
+                    for (String groupAgent : groupAgents) {
+                        boolean matches = groupAgent.equals("*") || agent.contains(groupAgent);
+                        if (matches && (bestAgent == null || bestAgent.equals("*")
+                                || (!groupAgent.equals("*") && groupAgent.length() > bestAgent.length()))) {
+                            bestAgent = groupAgent;
+                            bestRules = rules;
+                            bestDelay = delay;
+                        }
+                    }
+                    groupAgents = new ArrayList<>();
+                    rules = new ArrayList<>();
+                    delay = null;
+                    inRules = false;
+                }
+                if (!value.isEmpty()) {
+                    groupAgents.add(value.toLowerCase(Locale.ROOT));
+                }
+            } else if (key.equals("allow") || key.equals("disallow")) {
+                inRules = true;
+                // An empty disallow allows everything, which is the same as no rule.
+                if (!value.isEmpty()) {
+                    rules.add(new Rule(key.equals("allow"), value, pattern(value)));
+                }
+            } else if (key.equals("crawl-delay")) {
+                inRules = true;
+                try {
+                    delay = Duration.ofMillis((long) (Double.parseDouble(value) * 1000));
+                } catch (NumberFormatException ex) {
+                    // Ignored, like any other line that can't be understood.
+                }
+            }
+        }
+        return bestRules == null ? allowAll : new RobotsRules(bestRules, Optional.ofNullable(bestDelay));
+    }
+
+    /**
+     * Returns whether the crawler may fetch a path.
+     *
+     * @param pathAndQuery The path, with the query if there is one, like "/product/x?y=1".
+     * @return Whether it's allowed.
+     */
+    boolean allows(String pathAndQuery) {
+        for (Rule rule : rules) {
+            if (rule.pattern().matcher(pathAndQuery).matches()) {
+                return rule.allow();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns how long the host asks crawlers to wait between requests.
+     *
+     * @return The delay, if the host set one.
+     */
+    Optional<Duration> crawlDelay() {
+        return crawlDelay;
+    }
+
+    /**
+     * Converts a rule's path to a pattern matching the paths it applies to, which are the paths it's a prefix of.
+     */
+    private static Pattern pattern(String path) {
+        boolean anchored = path.endsWith("$");
+        String body = anchored ? path.substring(0, path.length() - 1) : path;
+        StringBuilder regex = new StringBuilder();
+        for (String part : body.split("\\*", -1)) {
+            if (!regex.isEmpty()) {
+                regex.append(".*");
+            }
+            regex.append(Pattern.quote(part));
+        }
+        if (!anchored) {
+            regex.append(".*");
+        }
+        return Pattern.compile(regex.toString(), Pattern.DOTALL);
+    }
+}
@@ -0,0 +1,653 @@
+package com.mattwelke.packtbookbot;
+
+import org.jsoup.Jsoup;
+import org.jsoup.internal.StringUtil;
+import org.jsoup.nodes.Element;
+import org.jsoup.parser.Parser;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Extracts the few elements the fetchers need from a page in a single pass over the page as it's read, instead of
+ * building a DOM of the whole page. Each rule's matches are kept as the raw HTML inside the matched element, which is
+ * small enough to parse on its own when the caller needs it. Reading stops as soon as every rule has all the matches
+ * it needs, so the rest of the page is never downloaded.
+ * <p>
+ * The tokenizer only understands as much HTML as needed to find elements: tags, attributes, comments and raw text
+ * elements like scripts. It doesn't build a tree, so it only tracks the open elements, to know which element a match
+ * is in and where a matched element ends.
+ */
+class StreamingHtmlExtractor {
+    private static final Logger logger = Logger.getLogger(StreamingHtmlExtractor.class.getName());
+
+    private static final Set<String> voidElements = Set.of(
+            "area", "base", "br", "col", "embed", "hr", "img", "input", "link", "meta", "param", "source", "track",
+            "wbr");
+    private static final Set<String> rawTextElements = Set.of("script", "style", "textarea", "title");
+
+    private final List<Rule> rules;
+
+    /**
+     * A simple CSS selector. Supports the forms "tag", "tag.class" and "tag[attr=value]".
+     *
+     * @param tag            The lowercase tag name.
+     * @param className      The class the element must have, or null.
+     * @param attributeName  The attribute the element must have, or null.
+     * @param attributeValue The value the attribute must have.
+     */
+    record Selector(String tag, String className, String attributeName, String attributeValue) {
+        /**
+         * Parses a selector.
+         *
+         * @param css The selector.
+         * @return The parsed selector.
+         */
+        static Selector parse(String css) {
+            int bracket = css.indexOf('[');
+            if (bracket >= 0) {
+                if (!css.endsWith("]") || css.indexOf('=', bracket) < 0) {
+                    throw new IllegalArgumentException("Unsupported selector: " + css);
+                }
+                String[] attribute = css.substring(bracket + 1, css.length() - 1).split("=", 2);
+                return new Selector(css.substring(0, bracket).toLowerCase(Locale.ROOT), null,
+                        attribute[0].toLowerCase(Locale.ROOT), attribute[1].replace("\"", "").replace("'", ""));
+            }
+            int dot = css.indexOf('.');
+            if (dot >= 0) {
+                return new Selector(css.substring(0, dot).toLowerCase(Locale.ROOT), css.substring(dot + 1), null,
+                        null);
+            }
+            return new Selector(css.toLowerCase(Locale.ROOT), null, null, null);
+        }
+
+        private boolean matches(String tagName, Map<String, String> attributes) {
+            if (!tag.equals(tagName)) {
+                return false;
+            }
+            if (className != null && !hasClass(attributes.get("class"), className)) {
+                return false;
+            }
+            return attributeName == null || attributeValue.equals(attributes.get(attributeName));
+        }
+
+        private static boolean hasClass(String classAttribute, String className) {
+            if (classAttribute == null) {
+                return false;
+            }
+            for (String c : classAttribute.split("\\s+")) {
+                if (c.equals(className)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * What to extract.
+     *
+     * @param name     The name the matches are returned under.
+     * @param selector The elements to match.
+     * @param limit    How many matches are needed, or -1 for every match in the page.
+     * @param filter   Matches that don't pass the filter aren't kept or counted towards the limit.
+     */
+    record Rule(String name, Selector selector, int limit, Predicate<Match> filter) {
+        /**
+         * Creates a rule that keeps the first match.
+         */
+        static Rule first(String name, String css) {
+            return new Rule(name, Selector.parse(css), 1, m -> true);
+        }
+
+        /**
+         * Creates a rule that keeps every match.
+         */
+        static Rule all(String name, String css) {
+            return new Rule(name, Selector.parse(css), -1, m -> true);
+        }
+    }
+
+    /**
+     * A matched element.
+     *
+     * @param attributes       The element's attributes.
+     * @param innerHtml        The raw HTML inside the element.
+     * @param parentAttributes The attributes of the element the matched element was in. Empty when it wasn't in one.
+     */
+    record Match(Map<String, String> attributes, String innerHtml, Map<String, String> parentAttributes) {
+        /**
+         * Parses the HTML inside the element.
+         *
+         * @return An element whose children are the contents of the matched element.
+         */
+        Element fragment() {
+            return Jsoup.parseBodyFragment(innerHtml).body();
+        }
+
+        /**
+         * Returns the text of the element, the way Jsoup's Element.text does.
+         */
+        String text() {
+            if (innerHtml.indexOf('<') < 0 && innerHtml.indexOf('&') < 0) {
+                // Plain text, so there's nothing to parse.
+                return StringUtil.normaliseWhitespace(innerHtml).trim();
+            }
+            return fragment().text();
+        }
+
+        /**
+         * Returns the HTML inside the element, normalized the way Jsoup's Element.html does.
+         */
+        String html() {
+            return fragment().html();
+        }
+    }
+
+    /**
+     * The matches for each rule, by rule name.
+     */
+    record Extraction(Map<String, List<Match>> matches) {
+        /**
+         * Returns the first match for a rule.
+         *
+         * @param name The rule name.
+         * @return The first match, if there was one.
+         */
+        Optional<Match> first(String name) {
+            List<Match> ruleMatches = matches.getOrDefault(name, List.of());
+            return ruleMatches.isEmpty() ? Optional.empty() : Optional.of(ruleMatches.get(0));
+        }
+
+        /**
+         * Returns every match for a rule.
+         *
+         * @param name The rule name.
+         * @return The matches, in page order.
+         */
+        List<Match> all(String name) {
+            return matches.getOrDefault(name, List.of());
+        }
+    }
+
+    /**
+     * Creates an extractor.
+     *
+     * @param rules What to extract.
+     */
+    StreamingHtmlExtractor(List<Rule> rules) {
+        this.rules = List.copyOf(rules);
+    }
+
+    /**
+     * Loads a page and extracts from it as it's downloaded. The connection is closed as soon as extraction stops.
+     *
+     * @param url The page URL.
+     * @return The extraction.
+     * @throws IOException when the page can't be loaded.
+     */
+    Extraction fetch(String url) throws IOException {
+        try (Reader reader = open(url)) {
+            return extract(reader);
+        }
+    }
+
+    /**
+     * Loads a page through a cache and extracts from it. Unlike {@link #fetch(String)}, the whole page is read, because
+     * the cache stores whole pages.
+     *
+     * @param url    The page URL.
+     * @param cache  The cache.
+     * @param maxAge How long a cached copy of the page is used without revalidating it.
+     * @return The extraction.
+     * @throws IOException when the page isn't cached and can't be loaded.
+     */
+    Extraction fetch(String url, HttpCache cache, Duration maxAge) throws IOException {
+        try (Reader reader = cache.get(url, maxAge).reader()) {
+            return extract(reader);
+        }
+    }
+
+    /**
+     * Loads a page through the shared {@link HttpCache} like {@link #fetch(String, HttpCache, Duration)}, or, when the
+     * cache can't be opened, like {@link #fetch(String)}, so that a broken cache directory doesn't fail the fetch.
+     *
+     * @param url    The page URL.
+     * @param maxAge How long a cached copy of the page is used without revalidating it.
+     * @return The extraction.
+     * @throws IOException when the page isn't cached and can't be loaded.
+     */
+    Extraction fetchCached(String url, Duration maxAge) throws IOException {
+        HttpCache cache;
+        try {
+            cache = HttpCache.shared();
+        } catch (IOException | RuntimeException ex) {
+            logger.log(Level.WARNING, "Could not open HTTP cache. Fetching " + url + " without it.", ex);
+            return fetch(url);
+        }
+        return fetch(url, cache, maxAge);
+    }
+
+    /**
+     * Loads a page without reading its body, so that it can be read as it's downloaded, over the shared
+     * {@link HttpTransport}. The bytes read are added to the current invocation's bytes downloaded.
+     *
+     * @param url The page URL.
+     * @return The page body, decoded with the charset from the response. Closing it abandons the rest of the body.
+     * @throws IOException when the page can't be loaded or the response isn't successful.
+     */
+    static Reader open(String url) throws IOException {
+        return open(url, Duration.ofSeconds(30));
+    }
+
+    /**
+     * Loads a page like {@link #open(String)}, with a timeout.
+     *
+     * @param url     The page URL.
+     * @param timeout How long to wait for the response's headers.
+     * @return The page body, decoded with the charset from the response. Closing it abandons the rest of the body.
+     * @throws IOException when the page can't be loaded, the response isn't successful or it times out.
+     */
+    static Reader open(String url, Duration timeout) throws IOException {
+        URI uri;
+        try {
+            uri = URI.create(url);
+        } catch (IllegalArgumentException ex) {
+            throw new IOException("Invalid URL " + url + ".", ex);
+        }
+        HttpTransport.Response response = HttpTransport.shared().send(HttpTransport.get(uri, timeout).build());
+        if (response.statusCode() / 100 != 2) {
+            response.close();
+            throw new IOException(String.format("HTTP status %d fetching %s.", response.statusCode(), url));
+        }
+        return response.reader();
+    }
+
+    /**
+     * Extracts from a UTF-8 encoded page.
+     *
+     * @param in The page.
+     * @return The extraction.
+     * @throws IOException when the page can't be read.
+     */
+    Extraction extract(InputStream in) throws IOException {
+        return extract(new InputStreamReader(in, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Extracts from a page.
+     *
+     * @param reader The page.
+     * @return The extraction.
+     * @throws IOException when the page can't be read.
+     */
+    Extraction extract(Reader reader) throws IOException {
+        return new Pass(reader).run();
+    }
+
+    private record OpenElement(String name, Map<String, String> attributes) {
+    }
+
+    private static final class Capture {
+        private final Rule rule;
+        private final int depth;
+        private final Map<String, String> attributes;
+        private final Map<String, String> parentAttributes;
+        private final StringBuilder innerHtml = new StringBuilder();
+
+        private Capture(Rule rule, int depth, Map<String, String> attributes, Map<String, String> parentAttributes) {
+            this.rule = rule;
+            this.depth = depth;
+            this.attributes = attributes;
+            this.parentAttributes = parentAttributes;
+        }
+    }
+
+    /**
+     * The state of one extraction.
+     */
+    private final class Pass {
+        private final Reader reader;
+        private final char[] buffer = new char[8192];
+        private int position;
+        private int length;
+
+        private final List<OpenElement> openElements = new ArrayList<>();
+        private final List<Capture> captures = new ArrayList<>();
+        private final Map<String, List<Match>> matches = new LinkedHashMap<>();
+        private int rulesSatisfied;
+
+        // Reused for every tag, since most tags are read only to be skipped.
+        private final StringBuilder raw = new StringBuilder(256);
+        private final StringBuilder name = new StringBuilder(16);
+        private final StringBuilder attributeName = new StringBuilder(16);
+        private final StringBuilder attributeValue = new StringBuilder(64);
+
+        private Pass(Reader reader) {
+            this.reader = reader;
+            for (Rule rule : rules) {
+                matches.put(rule.name(), new ArrayList<>());
+            }
+        }
+
+        private Extraction run() throws IOException {
+            int c;
+            while (rulesSatisfied < rules.size() && (c = read()) != -1) {
+                if (c == '<') {
+                    markup();
+                } else if (!captures.isEmpty()) {
+                    appendToCaptures((char) c);
+                }
+            }
+            // Elements still open at the end of the page end there.
+            while (!captures.isEmpty()) {
+                finish(captures.get(captures.size() - 1));
+            }
+            return new Extraction(matches);
+        }
+
+        private void markup() throws IOException {
+            int next = peek();
+            if (next == '!') {
+                read();
+                if (peek() == '-') {
+                    skipPastCommentEnd();
+                } else {
+                    skipPast('>');
+                }
+            } else if (next == '?') {
+                skipPast('>');
+            } else if (next == '/') {
+                read();
+                raw.setLength(0);
+                raw.append("</");
+                endTag(readUntilTagEnd(), raw);
+            } else if (isLetter(next)) {
+                startTag();
+            } else if (!captures.isEmpty()) {
+                appendToCaptures('<');
+            }
+        }
+
+        private void startTag() throws IOException {
+            raw.setLength(0);
+            raw.append('<');
+            name.setLength(0);
+            int c;
+            while ((c = peek()) != -1 && !Character.isWhitespace(c) && c != '>' && c != '/') {
+                raw.append((char) read());
+                name.append(Character.toLowerCase((char) c));
+            }
+            String tagName = name.toString();
+
+            Map<String, String> attributes = Map.of();
+            boolean selfClosing = false;
+            while ((c = read()) != -1) {
+                raw.append((char) c);
+                if (c == '>') {
+                    break;
+                }
+                if (c == '/') {
+                    selfClosing = peek() == '>';
+                    continue;
+                }
+                if (!Character.isWhitespace(c)) {
+                    if (attributes.isEmpty()) {
+                        attributes = new HashMap<>(4);
+                    }
+                    attribute((char) c, attributes);
+                }
+            }
+
+            appendToCaptures(raw);
+
+            Map<String, String> parentAttributes = openElements.isEmpty()
+                    ? Map.of()
+                    : openElements.get(openElements.size() - 1).attributes();
+            List<Capture> started = List.of();
+            for (Rule rule : rules) {
+                if (!isSatisfied(rule) && rule.selector().matches(tagName, attributes)) {
+                    if (started.isEmpty()) {
+                        started = new ArrayList<>(1);
+                    }
+                    started.add(new Capture(rule, openElements.size(), attributes, parentAttributes));
+                }
+            }
+
+            if (voidElements.contains(tagName) || selfClosing) {
+                for (Capture capture : started) {
+                    captures.add(capture);
+                    finish(capture);
+                }
+                return;
+            }
+
+            openElements.add(new OpenElement(tagName, attributes));
+            captures.addAll(started);
+
+            if (rawTextElements.contains(tagName)) {
+                rawText(tagName);
+            }
+        }
+
+        /**
+         * Reads one attribute, starting with the first character of its name, into the attributes map.
+         */
+        private void attribute(char first, Map<String, String> attributes) throws IOException {
+            StringBuilder name = attributeName;
+            name.setLength(0);
+            name.append(Character.toLowerCase(first));
+            int c;
+            while ((c = peek()) != -1 && !Character.isWhitespace(c) && c != '=' && c != '>' && c != '/') {
+                raw.append((char) read());
+                name.append(Character.toLowerCase((char) c));
+            }
+            while ((c = peek()) != -1 && Character.isWhitespace(c)) {
+                raw.append((char) read());
+            }
+            if (peek() != '=') {
+                attributes.putIfAbsent(name.toString(), "");
+                return;
+            }
+            raw.append((char) read());
+            while ((c = peek()) != -1 && Character.isWhitespace(c)) {
+                raw.append((char) read());
+            }
+
+            StringBuilder value = attributeValue;
+            value.setLength(0);
+            int quote = peek();
+            if (quote == '"' || quote == '\'') {
+                raw.append((char) read());
+                while ((c = read()) != -1) {
+                    raw.append((char) c);
+                    if (c == quote) {
+                        break;
+                    }
+                    value.append((char) c);
+                }
+            } else {
+                while ((c = peek()) != -1 && !Character.isWhitespace(c) && c != '>') {
+                    raw.append((char) read());
+                    value.append((char) c);
+                }
+            }
+            String unescaped = value.indexOf("&") < 0
+                    ? value.toString()
+                    : Parser.unescapeEntities(value.toString(), true);
+            attributes.putIfAbsent(name.toString(), unescaped);
+        }
+
+        private void endTag(String name, CharSequence rawTag) {
+            int index = openElements.size() - 1;
+            while (index >= 0 && !openElements.get(index).name().equals(name)) {
+                index--;
+            }
+            if (index < 0) {
+                // A stray end tag, which browsers ignore too.
+                appendToCaptures(rawTag);
+                return;
+            }
+
+            // Ending an element also ends the elements still open inside it.
+            for (int i = captures.size() - 1; i >= 0; i--) {
+                Capture capture = captures.get(i);
+                if (capture.depth >= index) {
+                    finish(capture);
+                }
+            }
+            appendToCaptures(rawTag);
+            while (openElements.size() > index) {
+                openElements.remove(openElements.size() - 1);
+            }
+        }
+
+        private void rawText(String tagName) throws IOException {
+            String endTag = "</" + tagName;
+            // Raw text is only kept when it's inside a match. Scripts can be most of a page.
+            StringBuilder text = captures.isEmpty() ? null : new StringBuilder();
+            int matched = 0;
+            int c;
+            while ((c = read()) != -1) {
+                if (text != null) {
+                    text.append((char) c);
+                }
+                if (Character.toLowerCase(c) != endTag.charAt(matched)) {
+                    matched = c == '<' ? 1 : 0;
+                } else if (++matched == endTag.length()) {
+                    if (text != null) {
+                        appendToCaptures(text.substring(0, text.length() - endTag.length()));
+                    }
+                    raw.setLength(0);
+                    raw.append(endTag);
+                    readUntilTagEnd();
+                    endTag(tagName, raw);
+                    return;
+                }
+            }
+            if (text != null) {
+                appendToCaptures(text.toString());
+            }
+        }
+
+        /**
+         * Reads the rest of an end tag into the raw tag, returning the tag name.
+         */
+        private String readUntilTagEnd() throws IOException {
+            name.setLength(0);
+            boolean inName = true;
+            int c;
+            while ((c = read()) != -1) {
+                raw.append((char) c);
+                if (c == '>') {
+                    break;
+                }
+                if (Character.isWhitespace(c) || c == '/') {
+                    inName = false;
+                } else if (inName) {
+                    name.append(Character.toLowerCase((char) c));
+                }
+            }
+            return name.toString();
+        }
+
+        private void finish(Capture capture) {
+            captures.remove(capture);
+            Rule rule = capture.rule;
+            if (isSatisfied(rule)) {
+                return;
+            }
+            Match match = new Match(capture.attributes, capture.innerHtml.toString(), capture.parentAttributes);
+            if (!rule.filter().test(match)) {
+                return;
+            }
+            List<Match> ruleMatches = matches.get(rule.name());
+            ruleMatches.add(match);
+            if (ruleMatches.size() == rule.limit()) {
+                rulesSatisfied++;
+            }
+        }
+
+        private boolean isSatisfied(Rule rule) {
+            return rule.limit() >= 0 && matches.get(rule.name()).size() >= rule.limit();
+        }
+
+        private void appendToCaptures(char c) {
+            for (Capture capture : captures) {
+                capture.innerHtml.append(c);
+            }
+        }
+
+        private void appendToCaptures(CharSequence s) {
+            for (Capture capture : captures) {
+                capture.innerHtml.append(s);
+            }
+        }
+
+        private void skipPast(char terminator) throws IOException {
+            int c;
+            do {
+                c = read();
+            } while (c != -1 && c != terminator);
+        }
+
+        /**
+         * Skips to just after the "-->" ending a comment. Any run of two or more dashes followed by '>' ends it, so
+         * that "--->" does too.
+         */
+        private void skipPastCommentEnd() throws IOException {
+            int dashes = 0;
+            int c;
+            while ((c = read()) != -1) {
+                if (c == '>' && dashes >= 2) {
+                    return;
+                }
+                dashes = c == '-' ? dashes + 1 : 0;
+            }
+        }
+
+        private int read() throws IOException {
+            if (position == length && !fill()) {
+                return -1;
+            }
+            return buffer[position++];
+        }
+
+        private int peek() throws IOException {
+            if (position == length && !fill()) {
+                return -1;
+            }
+            return buffer[position];
+        }
+
+        private boolean fill() throws IOException {
+            int n = reader.read(buffer);
+            if (n <= 0) {
+                return false;
+            }
+            position = 0;
+            length = n;
+            return true;
+        }
+
+        private static boolean isLetter(int c) {
+            return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+        }
+    }
+}
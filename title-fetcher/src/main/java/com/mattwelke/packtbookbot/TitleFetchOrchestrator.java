@@ -0,0 +1,283 @@
+package com.mattwelke.packtbookbot;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.jsoup.Jsoup;
+
+/**
+ * Runs the stages of fetching the title data concurrently, within an overall deadline.
+ * <p>
+ * The free learning page is mandatory, because it has the title, publication date and at least some of the authors.
+ * As soon as the title and publication date are parsed, the product page URL lookup starts, while the authors are
+ * parsed. The lookup checks the product page index and catalog before searching Google. When the free learning page
+ * doesn't list all the authors, the product page is fetched to get the complete list. If the deadline is reached
+ * before the optional stages finish, the data from the mandatory stage is returned as partial data instead of
+ * failing.
+ * <p>
+ * Every stage started by a fetch is cancelled before the fetch returns, so no stage outlives the fetch that started
+ * it.
+ */
+class TitleFetchOrchestrator {
+    private static final String freeLearningPageStage = "freeLearningPage";
+    private static final String parseStage = "parseFreeLearningPage";
+    private static final String productPageUrlStage = "productPageUrl";
+    private static final String productPageAuthorsStage = "productPageAuthors";
+    private static final String googleSearchPhase = "googleSearch";
+
+    /**
+     * Shared by all fetches in a warm container. Threads are daemons so that a stage blocked on a slow connection
+     * can't keep the JVM alive.
+     */
+    private static final ExecutorService executor = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "title-fetch-stage");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        executor.submit(TitleFetchOrchestrator::preload);
+    }
+
+    private final Logger logger = Logger.getLogger(TitleFetchOrchestrator.class.getName());
+
+    private final Stages stages;
+
+    /**
+     * What each stage does, apart from how the stages are scheduled, so that tests can stand in for slow stages.
+     */
+    interface Stages {
+        FreeLearningPageDataFetcher freeLearningPage() throws Exception;
+
+        String productPageUrl(String title, PublicationDate pubDate) throws Exception;
+
+        List<String> productPageAuthors(String url) throws Exception;
+    }
+
+    /**
+     * The outcome of a fetch.
+     *
+     * @param data           The title data.
+     * @param partial        Whether the deadline was reached before all the optional stages finished.
+     * @param stageWallTimes How long each stage that finished took, in milliseconds.
+     */
+    record Result(TitleData data, boolean partial, Map<String, Long> stageWallTimes) {
+    }
+
+    /**
+     * Creates an orchestrator that fetches from Packt and Google.
+     */
+    TitleFetchOrchestrator() {
+        stages = new Stages() {
+            @Override
+            public FreeLearningPageDataFetcher freeLearningPage() throws IOException {
+                return new FreeLearningPageDataFetcher();
+            }
+
+            @Override
+            public String productPageUrl(String title, PublicationDate pubDate) throws CouldNotFetchException {
+                return TitleFetchOrchestrator.this.productPageUrl(title, pubDate);
+            }
+
+            @Override
+            public List<String> productPageAuthors(String url) throws IOException {
+                return new ProductPageDataFetcher(url).authors();
+            }
+        };
+    }
+
+    /**
+     * Creates an orchestrator that runs other stages.
+     *
+     * @param stages The stages.
+     */
+    TitleFetchOrchestrator(Stages stages) {
+        this.stages = stages;
+    }
+
+    /**
+     * Fetches the title data.
+     *
+     * @param timeout How long the fetch may take overall.
+     * @return The title data, which may be partial.
+     * @throws CouldNotFetchException when the free learning page can't be fetched and parsed before the deadline.
+     */
+    Result fetch(Duration timeout) throws CouldNotFetchException {
+        long deadline = System.nanoTime() + timeout.toNanos();
+        Map<String, Long> stageWallTimes = new ConcurrentHashMap<>();
+        List<Future<?>> started = new ArrayList<>();
+
+        try {
+            FreeLearningPageDataFetcher freeLearningFetcher;
+            try {
+                freeLearningFetcher = await(start(freeLearningPageStage, stageWallTimes, started,
+                        stages::freeLearningPage), deadline);
+            } catch (ExecutionException ex) {
+                throw new CouldNotFetchException("Could not fetch free learning page.", ex.getCause());
+            } catch (TimeoutException ex) {
+                throw new CouldNotFetchException("Deadline reached before free learning page was fetched.", ex);
+            }
+
+            long parseStart = System.nanoTime();
+            String title = freeLearningFetcher.title();
+            PublicationDate pubDate = freeLearningFetcher.pubDate();
+
+            // The lookup only needs the title and publication date, so it can run while the authors are parsed.
+            Future<String> productPageUrlFuture = start(productPageUrlStage, stageWallTimes, started,
+                    () -> stages.productPageUrl(title, pubDate));
+
+            Authors authors = freeLearningFetcher.authors();
+            stageWallTimes.put(parseStage, millisSince(parseStart));
+            InvocationMetrics.current().record(parseStage, System.nanoTime() - parseStart);
+
+            boolean partial = false;
+            Optional<String> productPageUrl = Optional.empty();
+            try {
+                productPageUrl = Optional.of(await(productPageUrlFuture, deadline));
+                logger.log(Level.INFO, "Was able to fetch product page URL successfully. Can provide all author data.");
+            } catch (ExecutionException ex) {
+                logger.log(Level.INFO, "Could not fetch product page URL. Falling back to providing data without the product page URL and potentially without all authors.", ex.getCause());
+            } catch (TimeoutException ex) {
+                partial = true;
+                logger.log(Level.INFO, "Deadline reached before product page URL was fetched. Falling back to providing data without the product page URL and potentially without all authors.");
+            }
+
+            if (authors.more() && productPageUrl.isPresent()) {
+                // Try to get the complete author data.
+                String url = productPageUrl.get();
+                try {
+                    List<String> completeAuthorNames = await(start(productPageAuthorsStage, stageWallTimes, started,
+                            () -> stages.productPageAuthors(url)), deadline);
+                    authors = new Authors(completeAuthorNames, false);
+                } catch (ExecutionException ex) {
+                    logger.log(Level.INFO, "Could not fetch complete author data from product page.", ex.getCause());
+                } catch (TimeoutException ex) {
+                    partial = true;
+                    logger.log(Level.INFO, "Deadline reached before complete author data was fetched.");
+                }
+            }
+
+            return new Result(new TitleData(title, pubDate, productPageUrl, authors), partial,
+                    Map.copyOf(stageWallTimes));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new CouldNotFetchException("Interrupted while fetching title data.", ex);
+        } finally {
+            for (Future<?> stage : started) {
+                stage.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Looks up the product page URL in the product page index, then matches the title against the catalog, if one is
+     * configured, and only searches Google when neither has it. URLs found are added to the index. A broken index or
+     * catalog is skipped instead of failing the stage.
+     */
+    private String productPageUrl(String title, PublicationDate pubDate) throws CouldNotFetchException {
+        ProductPageIndex index = null;
+        try {
+            index = ProductPageIndex.shared();
+            Optional<String> indexed = index.lookup(title, pubDate);
+            if (indexed.isPresent()) {
+                logger.log(Level.INFO, "Found product page URL in index.");
+                return indexed.get();
+            }
+        } catch (IOException | RuntimeException ex) {
+            logger.log(Level.WARNING, "Could not look up product page URL in index. Searching Google instead.", ex);
+        }
+
+        Optional<TitleMatcher.Match> catalogMatch = Optional.empty();
+        try {
+            int yearMonth = pubDate.hasYearMonth() ? pubDate.yearMonth() : 0;
+            catalogMatch = TitleMatcher.shared().flatMap(matcher -> matcher.best(title, yearMonth));
+        } catch (RuntimeException ex) {
+            logger.log(Level.WARNING, "Could not match title against catalog. Searching Google instead.", ex);
+        }
+        String url;
+        if (catalogMatch.isPresent()) {
+            logger.log(Level.INFO, "Matched title to catalog title {0} with score {1}.",
+                    new Object[]{catalogMatch.get().candidate().title(), catalogMatch.get().score()});
+            url = catalogMatch.get().candidate().url();
+        } else {
+            InvocationMetrics.Timer timer = InvocationMetrics.current().time(googleSearchPhase);
+            try {
+                url = new ProductPageUrlFetcher(title, String.format("%s %s", pubDate.month(), pubDate.year()))
+                        .fetch();
+            } finally {
+                timer.close();
+            }
+        }
+
+        if (index != null) {
+            try {
+                index.put(title, pubDate, url);
+                index.flush();
+            } catch (IOException | RuntimeException ex) {
+                logger.log(Level.WARNING, "Could not add product page URL to index.", ex);
+            }
+        }
+        return url;
+    }
+
+    /**
+     * Opens the shared HTTP cache, which creates the shared HTTP transport, product page index and catalog, and loads
+     * the jsoup classes the stages use, so that a cold container does this in the background, from when the action is
+     * created, instead of in the stages that need them. Failures are left for the stages to report.
+     */
+    private static void preload() {
+        Logger logger = Logger.getLogger(TitleFetchOrchestrator.class.getName());
+        try {
+            HttpCache.shared();
+            ProductPageIndex.shared();
+            TitleMatcher.shared();
+            Jsoup.parseBodyFragment("<p>preload</p>");
+        } catch (IOException | RuntimeException ex) {
+            logger.log(Level.FINE, "Could not preload.", ex);
+        }
+    }
+
+    /**
+     * Starts a stage, recording its wall time when it finishes. The stage records to the metrics of the invocation
+     * that started it, with its wall time recorded as a phase named after it.
+     */
+    private <T> Future<T> start(String name, Map<String, Long> stageWallTimes, List<Future<?>> started,
+                                Callable<T> stage) {
+        InvocationMetrics metrics = InvocationMetrics.current();
+        Future<T> future = executor.submit(metrics.bind(() -> {
+            long start = System.nanoTime();
+            try {
+                return stage.call();
+            } finally {
+                long elapsed = System.nanoTime() - start;
+                stageWallTimes.put(name, TimeUnit.NANOSECONDS.toMillis(elapsed));
+                metrics.record(name, elapsed);
+            }
+        }));
+        started.add(future);
+        return future;
+    }
+
+    private static <T> T await(Future<T> future, long deadline)
+            throws ExecutionException, TimeoutException, InterruptedException {
+        return future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+    }
+
+    private static long millisSince(long startNanos) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+}
@@ -1,67 +1,68 @@
 package com.mattwelke.packtbookbot;
 
-import java.util.List;
+import java.time.Duration;
+import java.util.Arrays;
 import java.util.Map;
-import java.util.Optional;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import com.mattwelke.owr.java.Action;
-
-
 /**
  * Gets data about the Packt free book of the day and returns it to the action
  * invoker.
  */
-public class TitleFetcherAction extends Action {
+public class TitleFetcherAction extends InstrumentedAction {
     private final Logger logger = Logger.getLogger(TitleFetcherAction.class.getName());
 
     /**
-     * Implementation of action invoke method.
+     * How long an invocation may spend fetching when the "deadlineMs" param isn't provided. Comfortably below the
+     * OpenWhisk default action time limit of one minute.
      */
-    @Override
-    public Map<String, Object> invoke(Map<String, Object> params) {
-        try {
-            FreeLearningPageDataFetcher freeLearningFetcher = new FreeLearningPageDataFetcher();
-
-            String title = freeLearningFetcher.title();
-            PublicationDate pubDate = freeLearningFetcher.pubDate();
-            Authors authors = freeLearningFetcher.authors();
+    private static final Duration defaultDeadline = Duration.ofSeconds(30);
 
-            // Fall back to not having a product page URL if the step to get it fails.
-            Optional<String> productPageUrl = Optional.empty();
+    private final TitleFetchOrchestrator orchestrator = new TitleFetchOrchestrator();
 
-            try {
-                productPageUrl = Optional.of(new ProductPageUrlFetcher(title,
-                        String.format("%s %s", pubDate.month(), pubDate.year())).fetch());
-                logger.log(Level.INFO, "Was able to fetch product page URL successfully. Can provide all author data.");
-            } catch (CouldNotFetchException ex) {
-                logger.log(Level.INFO, "Could not fetch product page URL. Falling back to providing data without the product page URL and potentially without all authors.", ex);
-            }
+    /**
+     * Implementation of action invoke method. The fetch stages run concurrently within a deadline, after which the
+     * data fetched so far is returned with "partial" set to true. The wall time of each stage and the HTTP cache's,
+     * product page index's and Google search policy's counters are included in the output, along with the
+     * invocation's metrics.
+     */
+    @Override
+    protected Map<String, Object> run(Map<String, Object> params) {
+        try {
+            Duration deadline = params.get("deadlineMs") instanceof Number deadlineMs
+                    ? Duration.ofMillis(deadlineMs.longValue())
+                    : defaultDeadline;
 
-            if (authors.more() && productPageUrl.isPresent()) {
-                // Try to get the complete author data.
-                List<String> completeAuthorNames = new ProductPageDataFetcher(productPageUrl.get()).authors();
-                authors = new Authors(completeAuthorNames, false);
-            }
+            TitleFetchOrchestrator.Result result = orchestrator.fetch(deadline);
+            // The trace context tells the next action which trace it continues, and when the trigger started it.
+            TitleData data = result.data().withTrace(InvocationMetrics.current().trace().context());
 
-            logger.log(Level.INFO, "Done parsing page(s) for data. Title = {0}. Publication date = {1}. Author(s) = {2}.", new Object[]{title, pubDate, authors});
+            logger.log(Level.INFO, "Done parsing page(s) for data. Title = {0}. Publication date = {1}. Author(s) = {2}. Partial = {3}. Stage wall times (ms) = {4}.",
+                    new Object[]{data.title(), data.pubDate(), data.authors(), result.partial(), result.stageWallTimes()});
 
-            return new TitleData(
-                    title,
-                    pubDate,
-                    productPageUrl,
-                    authors
-            ).toMap();
+            Map<String, Object> output = data.toMap();
+            output.put("partial", result.partial());
+            output.put("stageWallTimesMs", result.stageWallTimes());
+            output.put("httpCache", HttpCache.shared().stats().toMap());
+            output.put("productPageIndex", ProductPageIndex.shared().stats().toMap());
+            output.put("googleSearch", OutboundFetchPolicy.forHost(Urls.GOOGLE_SEARCH).stats().toMap());
+            output.put("http", HttpTransport.shared().statsMap());
+            return output;
         } catch (Exception ex) {
             throw new RuntimeException("Failed to fetch title data.", ex);
         }
     }
 
     /**
-     * For local testing.
+     * For local testing. With "poll" and {@link FreeLearningPagePoller}'s options, runs the poller instead, until the
+     * process is stopped.
      */
-    public static void main(String[] args) {
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("poll")) {
+            FreeLearningPagePoller.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
         Map<String, Object> data = new TitleFetcherAction().invoke(Map.of());
         System.out.println("Fetched data for title = " + data);
     }
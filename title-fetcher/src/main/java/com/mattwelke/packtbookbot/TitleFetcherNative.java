@@ -0,0 +1,61 @@
+package com.mattwelke.packtbookbot;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Entrypoint of the title fetcher's native executable, which runs without the OpenWhisk Java runtime. Speaks the same
+ * params map contract as {@link TitleFetcherAction#invoke(Map)}: reads one params map per line from stdin, as a JSON
+ * object, and writes the action's output for it as one line of JSON to stdout. When an invocation fails, writes an
+ * object with an "error" member instead, like the OpenWhisk runtime does.
+ * <p>
+ * The action is created once and reused for every line, so that a process handling several lines behaves like a warm
+ * container. Logs go to stderr, so that stdout only has the outputs.
+ */
+public class TitleFetcherNative {
+    private static final Logger logger = Logger.getLogger(TitleFetcherNative.class.getName());
+
+    /**
+     * Handles params maps until stdin is closed.
+     *
+     * @param args Unused.
+     */
+    public static void main(String[] args) throws IOException {
+        TitleFetcherAction action = new TitleFetcherAction();
+        PrintStream out = new PrintStream(System.out, false, StandardCharsets.UTF_8);
+        BufferedReader in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (line.isBlank()) {
+                continue;
+            }
+            out.println(handle(action, line));
+            out.flush();
+        }
+        // Exit even if a library left a non-daemon thread running, like the training run does.
+        System.exit(0);
+    }
+
+    /**
+     * Invokes the action with one params map.
+     *
+     * @param action The action.
+     * @param params The params map, as a JSON object.
+     * @return The action's output, or the error, as a JSON object.
+     */
+    static String handle(TitleFetcherAction action, String params) {
+        try {
+            return Json.write(action.invoke(Json.readObject(params)));
+        } catch (RuntimeException ex) {
+            logger.log(Level.SEVERE, "Invocation failed.", ex);
+            return Json.write(Map.of("error", String.valueOf(ex.getMessage())));
+        }
+    }
+}
@@ -0,0 +1,538 @@
+package com.mattwelke.packtbookbot;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * The history of the free eBook of the day in memory, indexed to answer questions like "which free books did this
+ * author have" or "when was this title last free" without querying BigQuery, which takes seconds and is billed per
+ * query.
+ * <p>
+ * The history fits in memory many times over, a row per day since 2015, so it's kept in arrays by row number instead
+ * of as objects. Each author name is stored once and referred to by number, so a row's authors are an int array. Rows
+ * are found by day through an array indexed by the number of days since the first day, by author through a list of
+ * row numbers per author, and by title through a list of row numbers per word of the title. Words are kept sorted, so
+ * a prefix search is a range of them. Lookups take microseconds.
+ * <p>
+ * It's filled from a local export, in the format of {@link FileTitleDataSink}, or of a BigQuery table export, and as a
+ * sink, from the stream of titles as they're shared. A day shared again replaces the day's row, so repeated deliveries
+ * don't show up twice. Safe for concurrent lookups while titles are added.
+ */
+final class TitleHistoryIndex implements TitleDataSink {
+    private static final int[] noAuthors = new int[0];
+    private static final int noRow = -1;
+    private static final int noYearMonth = 0;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // The rows, by row number, in the order they were added. A row replaced by a later row for the same day stays,
+    // but isn't live anymore, and is skipped by lookups.
+    private int rows;
+    private int[] rowDays = new int[256];
+    private String[] rowTitles = new String[256];
+    private int[] rowPubDates = new int[256];
+    // The publication dates without a year-month, like an abbreviated month name, as they were. Null for the others.
+    private PublicationDate[] rowOtherPubDates = new PublicationDate[256];
+    private int[][] rowAuthors = new int[256][];
+    private boolean[] rowAuthorsMore = new boolean[256];
+    private String[] rowProductPageUrls = new String[256];
+
+    // The live row of each day, from the first day.
+    private long firstDay;
+    private int[] rowByDay = new int[0];
+
+    private final Map<String, Integer> authorIds = new HashMap<>();
+    private final List<String> authorNames = new ArrayList<>();
+    private final List<IntList> rowsByAuthor = new ArrayList<>();
+    private final NavigableMap<String, IntList> authorsByWord = new TreeMap<>();
+
+    private final Map<String, IntList> rowsByTitle = new HashMap<>();
+    private final NavigableMap<String, IntList> rowsByTitleWord = new TreeMap<>();
+
+    /**
+     * A title and the day it was the free eBook of the day.
+     *
+     * @param day  The day.
+     * @param data The title data.
+     */
+    record Entry(LocalDate day, TitleData data) {
+    }
+
+    /**
+     * The size of the index.
+     *
+     * @param days       Days with a title.
+     * @param authors    Distinct authors.
+     * @param titleWords Distinct words in titles.
+     */
+    record Stats(int days, int authors, int titleWords) {
+        Map<String, Object> toMap() {
+            return Map.of("days", days, "authors", authors, "titleWords", titleWords);
+        }
+    }
+
+    @Override
+    public String name() {
+        return "history";
+    }
+
+    @Override
+    public void share(TitleData data, LocalDate day) {
+        put(data, day);
+    }
+
+    /**
+     * Loads the history from a file of JSON objects, one per line. Each line is either a line written by
+     * {@link FileTitleDataSink}, or a row of the BigQuery table exported as newline delimited JSON.
+     *
+     * @param file The file.
+     * @return The index.
+     * @throws IOException              when the file can't be read.
+     * @throws IllegalArgumentException when a line isn't a title.
+     */
+    static TitleHistoryIndex load(Path file) throws IOException, IllegalArgumentException {
+        TitleHistoryIndex index = new TitleHistoryIndex();
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.isBlank()) {
+                    continue;
+                }
+                try {
+                    Map<String, Object> row = Json.readObject(line);
+                    index.put(row.containsKey("publication_date") ? tableRow(row) : TitleData.of(row),
+                            LocalDate.parse((String) row.get("day")));
+                } catch (RuntimeException ex) {
+                    throw new IllegalArgumentException(String.format("Line %d of %s isn't a title.", lineNumber,
+                            file), ex);
+                }
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Decodes a row of the BigQuery table. See {@code BigQueryTitleDataSink}.
+     */
+    private static TitleData tableRow(Map<String, Object> row) {
+        String publicationDate = (String) row.get("publication_date");
+        int yearMonth = Integer.parseInt(publicationDate.substring(0, 4)) * 100
+                + Integer.parseInt(publicationDate.substring(5, 7));
+        List<String> names = new ArrayList<>();
+        boolean more = false;
+        if (row.get("authors_v2") instanceof Map<?, ?> authors) {
+            ((List<?>) authors.get("names")).forEach(name -> names.add((String) name));
+            more = Boolean.FALSE.equals(authors.get("all_present"));
+        } else if (row.get("authors") instanceof List<?> authors) {
+            authors.forEach(name -> names.add((String) name));
+        }
+        return new TitleData((String) row.get("title"), PublicationDate.ofYearMonth(yearMonth), Optional.empty(),
+                new Authors(names, more));
+    }
+
+    /**
+     * Adds a title, replacing the day's title if it already has one.
+     *
+     * @param data The title data.
+     * @param day  The day it was the free eBook of the day.
+     */
+    void put(TitleData data, LocalDate day) {
+        lock.writeLock().lock();
+        try {
+            int existing = rowOn(day.toEpochDay());
+            if (existing != noRow && entry(existing).data().sameTitle(data)) {
+                return;
+            }
+            int row = rows;
+            grow(row + 1);
+            rowDays[row] = (int) day.toEpochDay();
+            rowTitles[row] = data.title();
+            PublicationDate pubDate = data.pubDate();
+            rowPubDates[row] = pubDate.hasYearMonth() ? pubDate.yearMonth() : noYearMonth;
+            rowOtherPubDates[row] = pubDate.hasYearMonth() ? null : pubDate;
+            rowAuthorsMore[row] = data.authors().more();
+            rowProductPageUrls[row] = data.productPageUrl().orElse(null);
+
+            int[] authors = data.authors().names().isEmpty() ? noAuthors : new int[data.authors().names().size()];
+            for (int i = 0; i < authors.length; i++) {
+                authors[i] = internAuthor(data.authors().names().get(i));
+                IntList authorRows = rowsByAuthor.get(authors[i]);
+                if (authorRows.last() != row) {
+                    authorRows.add(row);
+                }
+            }
+            rowAuthors[row] = authors;
+
+            String title = ProductPageIndex.normalize(data.title());
+            rowsByTitle.computeIfAbsent(title, t -> new IntList()).add(row);
+            for (String word : words(title)) {
+                IntList titleRows = rowsByTitleWord.computeIfAbsent(word, w -> new IntList());
+                // A word repeated in a title is only indexed once.
+                if (titleRows.last() != row) {
+                    titleRows.add(row);
+                }
+            }
+
+            setRowByDay(day.toEpochDay(), row);
+            rows++;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private int internAuthor(String name) {
+        String key = ProductPageIndex.normalize(name);
+        Integer id = authorIds.get(key);
+        if (id != null) {
+            return id;
+        }
+        id = authorNames.size();
+        authorIds.put(key, id);
+        authorNames.add(name);
+        rowsByAuthor.add(new IntList());
+        for (String word : words(key)) {
+            IntList authors = authorsByWord.computeIfAbsent(word, w -> new IntList());
+            if (authors.last() != id) {
+                authors.add(id);
+            }
+        }
+        return id;
+    }
+
+    private void setRowByDay(long day, int row) {
+        if (rowByDay.length == 0) {
+            firstDay = day;
+            rowByDay = new int[366];
+            Arrays.fill(rowByDay, noRow);
+        } else if (day < firstDay) {
+            // Rows usually arrive in order, but a backfill may add earlier days. Leaves room for a year more of them.
+            int shift = (int) (firstDay - day) + 365;
+            int[] shifted = new int[rowByDay.length + shift];
+            Arrays.fill(shifted, 0, shift, noRow);
+            System.arraycopy(rowByDay, 0, shifted, shift, rowByDay.length);
+            rowByDay = shifted;
+            firstDay -= shift;
+        }
+        int offset = (int) (day - firstDay);
+        if (offset >= rowByDay.length) {
+            int length = Math.max(offset + 1, rowByDay.length * 2);
+            int oldLength = rowByDay.length;
+            rowByDay = Arrays.copyOf(rowByDay, length);
+            Arrays.fill(rowByDay, oldLength, length, noRow);
+        }
+        rowByDay[offset] = row;
+    }
+
+    private void grow(int capacity) {
+        if (capacity <= rowDays.length) {
+            return;
+        }
+        int length = rowDays.length * 2;
+        rowDays = Arrays.copyOf(rowDays, length);
+        rowTitles = Arrays.copyOf(rowTitles, length);
+        rowPubDates = Arrays.copyOf(rowPubDates, length);
+        rowOtherPubDates = Arrays.copyOf(rowOtherPubDates, length);
+        rowAuthors = Arrays.copyOf(rowAuthors, length);
+        rowAuthorsMore = Arrays.copyOf(rowAuthorsMore, length);
+        rowProductPageUrls = Arrays.copyOf(rowProductPageUrls, length);
+    }
+
+    /**
+     * Returns the free eBook of a day.
+     *
+     * @param day The day.
+     * @return The title, if the index has the day.
+     */
+    Optional<Entry> onDay(LocalDate day) {
+        lock.readLock().lock();
+        try {
+            int row = rowOn(day.toEpochDay());
+            return row == noRow ? Optional.empty() : Optional.of(entry(row));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the free eBooks of a range of days.
+     *
+     * @param from The first day.
+     * @param to   The last day, included.
+     * @return The titles, oldest first.
+     */
+    List<Entry> between(LocalDate from, LocalDate to) {
+        lock.readLock().lock();
+        try {
+            List<Entry> entries = new ArrayList<>();
+            for (long day = Math.max(from.toEpochDay(), firstDay); day <= to.toEpochDay(); day++) {
+                int row = rowOn(day);
+                if (row != noRow) {
+                    entries.add(entry(row));
+                } else if (day - firstDay >= rowByDay.length) {
+                    break;
+                }
+            }
+            return entries;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the free eBooks by an author.
+     *
+     * @param name The author's name. Case and punctuation don't matter.
+     * @return The titles, oldest first.
+     */
+    List<Entry> byAuthor(String name) {
+        lock.readLock().lock();
+        try {
+            Integer id = authorIds.get(ProductPageIndex.normalize(name));
+            return id == null ? List.of() : entries(rowsByAuthor.get(id), Integer.MAX_VALUE, false);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns when a title was last the free eBook of the day.
+     *
+     * @param title The title. Case and punctuation don't matter.
+     * @return The last day it was, if it ever was.
+     */
+    Optional<Entry> lastFree(String title) {
+        lock.readLock().lock();
+        try {
+            IntList titleRows = rowsByTitle.get(ProductPageIndex.normalize(title));
+            if (titleRows == null) {
+                return Optional.empty();
+            }
+            List<Entry> entries = entries(titleRows, 1, true);
+            return entries.isEmpty() ? Optional.empty() : Optional.of(entries.get(0));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Finds the free eBooks whose titles have every word of a query, with the last word of the query matching any word
+     * it's a prefix of, so that a query can be searched as it's typed.
+     *
+     * @param query The query, like "mobile foren".
+     * @param limit The most titles to return.
+     * @return The titles, newest first.
+     */
+    List<Entry> searchTitles(String query, int limit) {
+        List<String> words = words(ProductPageIndex.normalize(query));
+        if (words.isEmpty()) {
+            return List.of();
+        }
+        lock.readLock().lock();
+        try {
+            BitSet matches = prefixMatches(rowsByTitleWord, words.get(words.size() - 1));
+            for (String word : words.subList(0, words.size() - 1)) {
+                IntList wordRows = rowsByTitleWord.get(word);
+                if (wordRows == null) {
+                    return List.of();
+                }
+                matches.and(wordRows.toBitSet());
+            }
+            List<Entry> entries = new ArrayList<>();
+            for (int row = matches.previousSetBit(rows - 1); row >= 0; row = matches.previousSetBit(row - 1)) {
+                if (isLive(row)) {
+                    entries.add(entry(row));
+                }
+            }
+            entries.sort(Comparator.comparing(Entry::day).reversed());
+            return entries.size() > limit ? entries.subList(0, limit) : entries;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Finds authors with a word of their name starting with a prefix.
+     *
+     * @param prefix The prefix, like "skul".
+     * @param limit  The most authors to return.
+     * @return The authors' names, as first seen, sorted.
+     */
+    List<String> searchAuthors(String prefix, int limit) {
+        String normalized = ProductPageIndex.normalize(prefix);
+        if (normalized.isEmpty()) {
+            return List.of();
+        }
+        lock.readLock().lock();
+        try {
+            BitSet matches = prefixMatches(authorsByWord, normalized);
+            List<String> names = new ArrayList<>();
+            for (int id = matches.nextSetBit(0); id >= 0; id = matches.nextSetBit(id + 1)) {
+                names.add(authorNames.get(id));
+            }
+            names.sort(String.CASE_INSENSITIVE_ORDER);
+            return names.size() > limit ? names.subList(0, limit) : names;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the size of the index.
+     *
+     * @return The size.
+     */
+    Stats stats() {
+        lock.readLock().lock();
+        try {
+            int days = 0;
+            for (int row : rowByDay) {
+                if (row != noRow) {
+                    days++;
+                }
+            }
+            return new Stats(days, authorNames.size(), rowsByTitleWord.size());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private static BitSet prefixMatches(NavigableMap<String, IntList> postings, String prefix) {
+        BitSet matches = new BitSet();
+        // Every word starting with the prefix sorts between the prefix and the prefix followed by the last char.
+        for (IntList ids : postings.subMap(prefix, true, prefix + Character.MAX_VALUE, false).values()) {
+            ids.addTo(matches);
+        }
+        return matches;
+    }
+
+    private int rowOn(long day) {
+        long offset = day - firstDay;
+        return offset < 0 || offset >= rowByDay.length ? noRow : rowByDay[(int) offset];
+    }
+
+    private boolean isLive(int row) {
+        return rowOn(rowDays[row]) == row;
+    }
+
+    /**
+     * Returns the entries of the live rows in a list of rows, oldest first, or newest first, up to a limit.
+     */
+    private List<Entry> entries(IntList rowList, int limit, boolean newestFirst) {
+        List<Entry> entries = new ArrayList<>();
+        for (int i = 0; i < rowList.size(); i++) {
+            int row = rowList.get(i);
+            if (isLive(row)) {
+                entries.add(entry(row));
+            }
+        }
+        Comparator<Entry> byDay = Comparator.comparing(Entry::day);
+        entries.sort(newestFirst ? byDay.reversed() : byDay);
+        return entries.size() > limit ? entries.subList(0, limit) : entries;
+    }
+
+    private Entry entry(int row) {
+        int[] authors = rowAuthors[row];
+        List<String> names = new ArrayList<>(authors.length);
+        for (int author : authors) {
+            names.add(authorNames.get(author));
+        }
+        PublicationDate pubDate = rowPubDates[row] == noYearMonth ? rowOtherPubDates[row]
+                : PublicationDate.ofYearMonth(rowPubDates[row]);
+        TitleData data = new TitleData(rowTitles[row], pubDate, Optional.ofNullable(rowProductPageUrls[row]),
+                new Authors(names, rowAuthorsMore[row]));
+        return new Entry(LocalDate.ofEpochDay(rowDays[row]), data);
+    }
+
+    private static List<String> words(String normalized) {
+        return normalized.isEmpty() ? List.of() : Arrays.asList(normalized.split(" "));
+    }
+
+    /**
+     * A growable list of ints, to keep row and author numbers without boxing them. Only ever appended to, in
+     * increasing order.
+     */
+    private static final class IntList {
+        private int[] values = new int[2];
+        private int size;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        int get(int index) {
+            return values[index];
+        }
+
+        int size() {
+            return size;
+        }
+
+        int last() {
+            return size == 0 ? -1 : values[size - 1];
+        }
+
+        void addTo(BitSet bits) {
+            for (int i = 0; i < size; i++) {
+                bits.set(values[i]);
+            }
+        }
+
+        BitSet toBitSet() {
+            BitSet bits = new BitSet();
+            addTo(bits);
+            return bits;
+        }
+    }
+
+    /**
+     * Answers a question about the history in a file. See {@link #load(Path)}.
+     * <p>
+     * Usage: {@code <file> day <yyyy-mm-dd> | author <name> | title <title> | search <words> | authors <prefix>}
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            System.err.println("Usage: <file> day <yyyy-mm-dd> | author <name> | title <title> | search <words>"
+                    + " | authors <prefix>");
+            System.exit(2);
+        }
+        TitleHistoryIndex index = load(Path.of(args[0]));
+        String query = String.join(" ", Arrays.asList(args).subList(2, args.length));
+        List<?> results = switch (args[1]) {
+            case "day" -> index.onDay(LocalDate.parse(query)).stream().toList();
+            case "author" -> index.byAuthor(query);
+            case "title" -> index.lastFree(query).stream().toList();
+            case "search" -> index.searchTitles(query, 20);
+            case "authors" -> index.searchAuthors(query, 20);
+            default -> throw new IllegalArgumentException("Unknown question " + args[1] + ".");
+        };
+        for (Object result : results) {
+            if (result instanceof Entry entry) {
+                System.out.println(entry.day() + "\t" + entry.data().title() + "\t"
+                        + String.join(", ", entry.data().authors().names()));
+            } else {
+                System.out.println(result);
+            }
+        }
+    }
+}
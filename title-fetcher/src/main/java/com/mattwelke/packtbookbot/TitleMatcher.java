@@ -0,0 +1,473 @@
+package com.mattwelke.packtbookbot;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Finds the title in a catalog that best matches a title, to resolve its product page without relying on the order
+ * of Google's results.
+ * <p>
+ * Titles are normalized like the product page index normalizes them, then their edition ("- Fourth Edition",
+ * "4th edition") is taken off and kept separately. Candidates are found through an inverted index of the trigrams of
+ * the remaining words, and scored by the Dice coefficient of their trigrams with the title's. The score is then
+ * adjusted for the edition, when both titles have one, and weighted by how close the publication dates are, when
+ * both are known. This way the right edition wins even when an older edition is listed first, and small differences
+ * in punctuation or a missing subtitle don't prevent a match.
+ * <p>
+ * Immutable once built, so one matcher can be shared by concurrent lookups.
+ */
+class TitleMatcher {
+    /**
+     * The score a match needs before it's trusted. Below it, titles share some words but are probably different
+     * books.
+     */
+    static final double minScore = 0.6;
+
+    private static final Pattern edition = Pattern.compile(
+            "\\b(first|second|third|fourth|fifth|sixth|seventh|eighth|ninth|tenth|(\\d+)(?:st|nd|rd|th)) edition\\b");
+    private static final double sameEditionBonus = 0.15;
+    private static final double differentEditionPenalty = 0.3;
+    private static final int[] noIds = new int[0];
+    private static final Comparator<int[]> rarestFirst = Comparator.comparingInt(ids -> ids.length);
+    /**
+     * How few candidates must share the most of the trigrams counted so far for them to be scored early.
+     */
+    private static final int probeSize = 32;
+    private static final List<String> editionWords = List.of(
+            "first", "second", "third", "fourth", "fifth", "sixth", "seventh", "eighth", "ninth", "tenth");
+
+    private static volatile Optional<TitleMatcher> shared;
+
+    private final Candidate[] candidates;
+    private final int[] trigramCounts;
+    private final int[] editions;
+    private final int[] yearMonths;
+    private final Map<Long, int[]> postings;
+
+    private final ThreadLocal<Scratch> sharedScratch;
+
+    /**
+     * A title that can be matched.
+     *
+     * @param title     The title.
+     * @param yearMonth The publication year-month, like 202004, or 0 when unknown.
+     * @param url       The product page URL.
+     */
+    record Candidate(String title, int yearMonth, String url) {
+    }
+
+    /**
+     * The best match for a title.
+     *
+     * @param candidate The matched title.
+     * @param score     How well it matched, from 0 up. Scores at or above {@link #minScore} are trusted.
+     */
+    record Match(Candidate candidate, double score) {
+    }
+
+    private record Normalized(String words, int edition) {
+    }
+
+    /**
+     * Builds a matcher over candidates.
+     *
+     * @param candidates The candidates.
+     */
+    TitleMatcher(List<Candidate> candidates) {
+        this.candidates = candidates.toArray(new Candidate[0]);
+        trigramCounts = new int[this.candidates.length];
+        editions = new int[this.candidates.length];
+        yearMonths = new int[this.candidates.length];
+
+        Map<Long, IntList> building = new HashMap<>();
+        for (int id = 0; id < this.candidates.length; id++) {
+            Normalized normalized = normalize(this.candidates[id].title());
+            long[] trigrams = trigrams(normalized.words());
+            trigramCounts[id] = trigrams.length;
+            editions[id] = normalized.edition();
+            yearMonths[id] = this.candidates[id].yearMonth();
+            for (long trigram : trigrams) {
+                building.computeIfAbsent(trigram, t -> new IntList()).add(id);
+            }
+        }
+        postings = new HashMap<>(building.size() * 2);
+        building.forEach((trigram, ids) -> postings.put(trigram, ids.toArray()));
+
+        int size = this.candidates.length;
+        sharedScratch = ThreadLocal.withInitial(() -> new Scratch(size));
+    }
+
+    /**
+     * Loads a matcher from a catalog dump of tab separated title, publication date and product page URL lines, like
+     * the ones the product page index imports. The publication date may be left empty.
+     *
+     * @param tsv The catalog dump.
+     * @return The matcher.
+     * @throws IOException when the dump can't be read.
+     */
+    static TitleMatcher load(Reader tsv) throws IOException {
+        List<Candidate> candidates = new ArrayList<>();
+        BufferedReader lines = new BufferedReader(tsv);
+        String line;
+        while ((line = lines.readLine()) != null) {
+            if (line.isBlank() || line.startsWith("#")) {
+                continue;
+            }
+            String[] columns = line.split("\t");
+            if (columns.length < 3) {
+                throw new IOException("Expected title, publication date and URL in line: " + line);
+            }
+            String pubDate = columns[1].trim();
+            candidates.add(new Candidate(columns[0].trim(),
+                    pubDate.isEmpty() ? 0 : ProductPageIndex.parsePubDate(pubDate).yearMonth(), columns[2].trim()));
+        }
+        return new TitleMatcher(candidates);
+    }
+
+    /**
+     * Returns the matcher over the catalog dump named by the "packtbookbot.catalog.file" system property, loading it
+     * on first use.
+     *
+     * @return The matcher, or nothing when no catalog is configured or it can't be loaded.
+     */
+    static Optional<TitleMatcher> shared() {
+        Optional<TitleMatcher> matcher = shared;
+        if (matcher == null) {
+            synchronized (TitleMatcher.class) {
+                matcher = shared;
+                if (matcher == null) {
+                    matcher = Optional.empty();
+                    String file = System.getProperty("packtbookbot.catalog.file");
+                    if (file != null) {
+                        try (Reader reader = Files.newBufferedReader(Path.of(file), StandardCharsets.UTF_8)) {
+                            matcher = Optional.of(load(reader));
+                        } catch (IOException | RuntimeException ex) {
+                            Logger.getLogger(TitleMatcher.class.getName()).log(Level.WARNING,
+                                    "Could not load catalog " + file + ". Matching titles without it.", ex);
+                        }
+                    }
+                    shared = matcher;
+                }
+            }
+        }
+        return matcher;
+    }
+
+    /**
+     * Finds the candidate that best matches a title.
+     *
+     * @param title     The title.
+     * @param yearMonth The title's publication year-month, or 0 when unknown.
+     * @return The best match scoring at least {@link #minScore}, if there is one. When candidates score the same, the
+     * first one wins.
+     */
+    Optional<Match> best(String title, int yearMonth) {
+        Normalized query = normalize(title);
+        long[] trigrams = trigrams(query.words());
+        if (trigrams.length == 0) {
+            return Optional.empty();
+        }
+
+        // Prefix filtering: a candidate sharing enough trigrams to reach a minimum Dice coefficient must share at least
+        // one of the rarest (q - needed + 1) trigrams, so only their postings generate candidates. The commonest
+        // trigrams are then only checked for the candidates found, instead of walking their long postings.
+        int q = trigrams.length;
+        int[][] lists = new int[q][];
+        for (int i = 0; i < q; i++) {
+            lists[i] = postings.getOrDefault(trigrams[i], noIds);
+        }
+        Arrays.sort(lists, rarestFirst);
+
+        Lookup lookup = new Lookup(query.edition(), yearMonth, lists, sharedScratch.get());
+        try {
+            // Count the rarest trigrams' postings one at a time. Whenever only a few candidates share the most of them,
+            // score those, since a good match found early means only the candidates that could beat it need to be
+            // found, which usually means only a few more postings. Trigrams that aren't in the catalog at all are
+            // sorted first and have nothing to count.
+            int counted = 0;
+            while (counted < q && lists[counted].length == 0) {
+                counted++;
+            }
+            while (counted < prefix(q, lookup.minDiceToBeat())) {
+                lookup.count(counted);
+                counted++;
+                lookup.verifyMostShared(counted);
+            }
+            lookup.verifyAll(counted);
+        } finally {
+            lookup.reset();
+        }
+        return lookup.bestId < 0
+                ? Optional.empty()
+                : Optional.of(new Match(candidates[lookup.bestId], lookup.bestScore));
+    }
+
+    /**
+     * Returns how many of the rarest of q trigrams a candidate must share at least one of to have a Dice coefficient
+     * of at least minDice.
+     */
+    private static int prefix(int q, double minDice) {
+        // Shared trigrams m can't exceed the candidate's count c, so 2m / (q + c) >= d means m >= d q / (2 - d).
+        int needed = (int) Math.ceil(minDice * q / (2 - minDice) - 1e-9);
+        return Math.max(1, Math.min(q, q - needed + 1));
+    }
+
+    /**
+     * The state of one lookup.
+     */
+    private final class Lookup {
+        private final int queryEdition;
+        private final int queryYearMonth;
+        private final int[][] lists;
+        private final int[] counts;
+        private final int[] touched;
+        private final boolean[] verified;
+        private final int[] mostSharedIds;
+        private int touchedCount;
+        private int mostShared;
+        private int mostSharedCount;
+
+        private int bestId = -1;
+        private double bestScore = minScore;
+
+        Lookup(int queryEdition, int queryYearMonth, int[][] lists, Scratch scratch) {
+            this.queryEdition = queryEdition;
+            this.queryYearMonth = queryYearMonth;
+            this.lists = lists;
+            counts = scratch.counts;
+            touched = scratch.touched;
+            verified = scratch.verified;
+            mostSharedIds = scratch.mostSharedIds;
+        }
+
+        /**
+         * Counts the trigrams each candidate shares with one of the lists, keeping track of the candidates sharing the
+         * most. A candidate first found in the list can share at most the trigrams from it on, so candidates with too
+         * many or too few trigrams to beat the best match so far that way aren't counted at all. Misses then only score
+         * the few candidates left, instead of everything sharing a trigram.
+         */
+        void count(int i) {
+            double minDice = minDiceToBeat();
+            int q = lists.length;
+            // With m shared trigrams out of the candidate's c, 2m / (q + c) >= d needs c <= 2m / d - q, and since
+            // m <= c, also c >= d q / (2 - d).
+            int fewestTrigrams = (int) Math.ceil(minDice * q / (2 - minDice) - 1e-9);
+            int mostTrigrams = minDice == 0 ? Integer.MAX_VALUE : (int) Math.floor(2 * (q - i) / minDice - q + 1e-9);
+            for (int id : lists[i]) {
+                int count = counts[id];
+                if (count == 0) {
+                    if (trigramCounts[id] < fewestTrigrams || trigramCounts[id] > mostTrigrams) {
+                        continue;
+                    }
+                    touched[touchedCount++] = id;
+                }
+                counts[id] = ++count;
+                if (count > mostShared) {
+                    mostShared = count;
+                    mostSharedCount = 0;
+                }
+                if (count == mostShared) {
+                    mostSharedIds[mostSharedCount++] = id;
+                }
+            }
+        }
+
+        /**
+         * Scores the candidates sharing the most of the counted trigrams, if there are only a few of them.
+         */
+        void verifyMostShared(int counted) {
+            if (mostSharedCount <= probeSize) {
+                for (int i = 0; i < mostSharedCount; i++) {
+                    if (!verified[mostSharedIds[i]]) {
+                        verify(mostSharedIds[i], counted);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Returns the lowest Dice coefficient any candidate needs to beat the best match so far, given the best
+         * edition adjustment and date weight this query allows.
+         */
+        double minDiceToBeat() {
+            double bestAdjustment = queryEdition != 0 ? sameEditionBonus : 0;
+            double bestDateFactor = queryYearMonth != 0 ? 1 : dateFactor(0, 0);
+            return Math.max(0, (bestScore - bestAdjustment) / bestDateFactor);
+        }
+
+        /**
+         * Scores every counted candidate that could beat the best match so far.
+         */
+        void verifyAll(int counted) {
+            int rest = lists.length - counted;
+            for (int t = 0; t < touchedCount; t++) {
+                int id = touched[t];
+                int mostPossiblyShared = Math.min(counts[id] + rest, trigramCounts[id]);
+                double bestPossibleDice = 2.0 * mostPossiblyShared / (lists.length + trigramCounts[id]);
+                if (!verified[id] && bestPossibleDice * dateFactor(queryYearMonth, yearMonths[id])
+                        + editionAdjustment(queryEdition, editions[id]) >= bestScore) {
+                    verify(id, counted);
+                }
+            }
+        }
+
+        private void verify(int id, int counted) {
+            verified[id] = true;
+            int q = lists.length;
+            double dateFactor = dateFactor(queryYearMonth, yearMonths[id]);
+            double editionAdjustment = editionAdjustment(queryEdition, editions[id]);
+
+            // Stop checking as soon as the candidate can't share enough trigrams to beat the best match so far.
+            double requiredDice = (bestScore - editionAdjustment) / dateFactor;
+            int required = (int) Math.ceil(requiredDice * (q + trigramCounts[id]) / 2 - 1e-9);
+            int shared = counts[id];
+            for (int i = counted; i < q && shared + (q - i) >= required; i++) {
+                if (Arrays.binarySearch(lists[i], id) >= 0) {
+                    shared++;
+                }
+            }
+            if (shared < required) {
+                return;
+            }
+            double score = 2.0 * shared / (q + trigramCounts[id]) * dateFactor + editionAdjustment;
+            if (score > bestScore || (score == bestScore && (bestId < 0 || id < bestId))) {
+                bestId = id;
+                bestScore = score;
+            }
+        }
+
+        void reset() {
+            for (int t = 0; t < touchedCount; t++) {
+                counts[touched[t]] = 0;
+                verified[touched[t]] = false;
+            }
+        }
+    }
+
+    /**
+     * Returns how many candidates the matcher has.
+     *
+     * @return The number of candidates.
+     */
+    int size() {
+        return candidates.length;
+    }
+
+    /**
+     * Returns what a candidate's Dice coefficient is multiplied by for its publication date. Dates weigh a fifth of the
+     * score, at half weight when a date is unknown, and falling off with the months between the dates otherwise.
+     */
+    private static double dateFactor(int queryYearMonth, int candidateYearMonth) {
+        double dateWeight = 0.5;
+        if (queryYearMonth != 0 && candidateYearMonth != 0) {
+            int months = Math.abs((queryYearMonth / 100 * 12 + queryYearMonth % 100)
+                    - (candidateYearMonth / 100 * 12 + candidateYearMonth % 100));
+            dateWeight = 1 / (1 + months / 6.0);
+        }
+        return 0.8 + 0.2 * dateWeight;
+    }
+
+    /**
+     * Returns what's added to a candidate's score for its edition, when both titles have one.
+     */
+    private static double editionAdjustment(int queryEdition, int candidateEdition) {
+        if (queryEdition == 0 || candidateEdition == 0) {
+            return 0;
+        }
+        return queryEdition == candidateEdition ? sameEditionBonus : -differentEditionPenalty;
+    }
+
+    /**
+     * Normalizes a title into its words and its edition, which is 0 when the title doesn't say.
+     */
+    private static Normalized normalize(String title) {
+        String words = ProductPageIndex.normalize(title);
+        Matcher m = edition.matcher(words);
+        if (!m.find()) {
+            return new Normalized(words, 0);
+        }
+        int editionNumber = m.group(2) != null
+                ? Integer.parseInt(m.group(2))
+                : editionWords.indexOf(m.group(1)) + 1;
+        String withoutEdition = (words.substring(0, m.start()).trim() + " " + words.substring(m.end()).trim()).trim();
+        return new Normalized(withoutEdition, editionNumber);
+    }
+
+    /**
+     * Returns the distinct trigrams of the words, padded so that the start and end of each word count, each encoded
+     * as a long.
+     */
+    private static long[] trigrams(String words) {
+        if (words.isEmpty()) {
+            return new long[0];
+        }
+        String padded = "  " + words + " ";
+        long[] trigrams = new long[padded.length() - 2];
+        for (int i = 0; i < trigrams.length; i++) {
+            long packed = ((long) padded.charAt(i) << 32) | ((long) padded.charAt(i + 1) << 16) | padded.charAt(i + 2);
+            // Multiplying by an odd constant keeps trigrams distinct, and spreads them across the postings map's
+            // buckets, which Long.hashCode alone wouldn't for packed chars.
+            trigrams[i] = packed * 0x9E3779B97F4A7C15L;
+        }
+        Arrays.sort(trigrams);
+        int distinct = 0;
+        for (int i = 0; i < trigrams.length; i++) {
+            if (i == 0 || trigrams[i] != trigrams[i - 1]) {
+                trigrams[distinct++] = trigrams[i];
+            }
+        }
+        return Arrays.copyOf(trigrams, distinct);
+    }
+
+    /**
+     * Per thread arrays reused by every lookup, indexed by candidate id, so that lookups don't allocate arrays the
+     * size of the catalog. They're reset after each lookup.
+     */
+    private static final class Scratch {
+        final int[] counts;
+        final int[] touched;
+        final boolean[] verified;
+        final int[] mostSharedIds;
+
+        Scratch(int size) {
+            counts = new int[size];
+            touched = new int[size];
+            verified = new boolean[size];
+            mostSharedIds = new int[size];
+        }
+    }
+
+    /**
+     * A growable list of ints, to avoid boxing candidate ids while building the postings.
+     */
+    private static final class IntList {
+        private int[] values = new int[4];
+        private int size;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+}
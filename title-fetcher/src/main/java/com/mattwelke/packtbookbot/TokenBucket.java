@@ -0,0 +1,68 @@
+package com.mattwelke.packtbookbot;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Limits the rate of requests to a host. Tokens are added at a steady rate, up to a burst, and each request takes one.
+ * <p>
+ * Instead of making callers wait, a request reserves a token ahead of time, and is told how long to wait before it may
+ * go, so that a scheduler can queue many requests to a rate limited host without a thread blocked for each one.
+ */
+final class TokenBucket {
+    private final double burst;
+    private final LongSupplier nanoClock;
+
+    private double tokensPerNano;
+    private double tokens;
+    private long refilledAt;
+
+    /**
+     * Creates a full bucket.
+     *
+     * @param ratePerSecond How many requests may go per second, on average.
+     * @param burst         How many requests may go at once after the host was idle.
+     * @param nanoClock     The clock, like {@link System#nanoTime()}.
+     */
+    TokenBucket(double ratePerSecond, double burst, LongSupplier nanoClock) {
+        if (ratePerSecond <= 0 || burst < 1) {
+            throw new IllegalArgumentException("rate must be positive and burst at least 1");
+        }
+        this.tokensPerNano = ratePerSecond / 1e9;
+        this.burst = burst;
+        this.nanoClock = nanoClock;
+        this.tokens = burst;
+        this.refilledAt = nanoClock.getAsLong();
+    }
+
+    /**
+     * Reserves a token.
+     *
+     * @return How long the caller must wait before its request may go, in nanoseconds. Zero when it may go now.
+     */
+    synchronized long reserve() {
+        refill();
+        tokens -= 1;
+        // A negative balance is the tokens reserved ahead of time, which are paid back as tokens are added.
+        return tokens >= 0 ? 0 : (long) Math.ceil(-tokens / tokensPerNano);
+    }
+
+    /**
+     * Changes the rate, like when a host's robots.txt asks for another crawl delay. The tokens added so far, or
+     * reserved ahead of time, are kept, so that the change doesn't let a burst through.
+     *
+     * @param ratePerSecond How many requests may go per second, on average.
+     */
+    synchronized void rate(double ratePerSecond) {
+        if (ratePerSecond <= 0) {
+            throw new IllegalArgumentException("rate must be positive");
+        }
+        refill();
+        tokensPerNano = ratePerSecond / 1e9;
+    }
+
+    private void refill() {
+        long now = nanoClock.getAsLong();
+        tokens = Math.min(burst, tokens + (now - refilledAt) * tokensPerNano);
+        refilledAt = now;
+    }
+}
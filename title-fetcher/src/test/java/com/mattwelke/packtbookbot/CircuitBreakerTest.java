@@ -0,0 +1,97 @@
+package com.mattwelke.packtbookbot;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+
+class CircuitBreakerTest {
+    private final AtomicLong now = new AtomicLong();
+    private final CircuitBreaker breaker = new CircuitBreaker(
+            new CircuitBreaker.Settings(3, Duration.ofSeconds(30), Duration.ofSeconds(90)), now::get);
+
+    @Test
+    void opensAfterConsecutiveFailures() {
+        for (int i = 0; i < 2; i++) {
+            assertTrue(breaker.allow());
+            assertFalse(breaker.failed());
+        }
+        assertTrue(breaker.allow());
+        breaker.succeeded();
+
+        for (int i = 0; i < 2; i++) {
+            assertTrue(breaker.allow());
+            assertFalse(breaker.failed());
+        }
+        assertTrue(breaker.allow());
+        assertTrue(breaker.failed());
+
+        assertFalse(breaker.allow());
+        assertEquals(new CircuitBreaker.Stats(CircuitBreaker.State.OPEN, 1, 1), breaker.stats());
+        assertEquals(Duration.ofSeconds(30), breaker.untilProbe());
+    }
+
+    @Test
+    void letsOneProbeThroughAndClosesWhenItSucceeds() {
+        trip();
+        advance(Duration.ofSeconds(30));
+
+        assertTrue(breaker.allow());
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.stats().state());
+        assertFalse(breaker.allow());
+
+        breaker.succeeded();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.stats().state());
+        assertTrue(breaker.allow());
+    }
+
+    @Test
+    void backsOffAfterFailedProbes() {
+        trip();
+        advance(Duration.ofSeconds(30));
+        assertTrue(breaker.allow());
+        assertTrue(breaker.failed());
+        assertEquals(Duration.ofSeconds(60), breaker.untilProbe());
+
+        advance(Duration.ofSeconds(60));
+        assertTrue(breaker.allow());
+        assertTrue(breaker.failed());
+        // Capped at the maximum.
+        assertEquals(Duration.ofSeconds(90), breaker.untilProbe());
+        assertEquals(3, breaker.stats().trips());
+
+        advance(Duration.ofSeconds(89));
+        assertFalse(breaker.allow());
+    }
+
+    @Test
+    void handsBackAbandonedProbe() {
+        trip();
+        advance(Duration.ofSeconds(30));
+        assertTrue(breaker.allow());
+        assertFalse(breaker.allow());
+
+        breaker.abandoned();
+
+        assertEquals(CircuitBreaker.State.OPEN, breaker.stats().state());
+        assertEquals(Duration.ZERO, breaker.untilProbe());
+        assertTrue(breaker.allow());
+        breaker.succeeded();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.stats().state());
+    }
+
+    private void trip() {
+        for (int i = 0; i < 3; i++) {
+            breaker.allow();
+            breaker.failed();
+        }
+    }
+
+    private void advance(Duration duration) {
+        now.addAndGet(duration.toNanos());
+    }
+}
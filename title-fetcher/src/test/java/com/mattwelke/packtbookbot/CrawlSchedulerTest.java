@@ -0,0 +1,146 @@
+package com.mattwelke.packtbookbot;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CrawlSchedulerTest {
+    private static final int products = 2_000;
+
+    private static final String productPage = """
+            <html><head>
+            <link rel="canonical" href="https://www.packtpub.com/product/practical-mobile-forensics/9781838647520">
+            </head><body>
+            <h5 class="accordion__title">Rohit Tamma</h5>
+            <h5 class="accordion__title">Oleg Skulkin</h5>
+            <a href="/catalog">Back to the catalog</a>
+            </body></html>
+            """;
+
+    private StubServer server;
+
+    @BeforeEach
+    void startServer() throws IOException {
+        StringBuilder catalog = new StringBuilder("<html><body>");
+        for (int i = 0; i < products; i++) {
+            catalog.append("<a href=\"/product/book-").append(i).append("/").append(i).append("\">Book</a>");
+            // The same product linked again, differently, is only crawled once.
+            catalog.append("<a href=\"").append("/product/book-").append(i).append("/").append(i)
+                    .append("#reviews\">Reviews</a>");
+        }
+        catalog.append("<a href=\"/product/private/1\">Private</a>");
+        catalog.append("<a href=\"https://example.com/elsewhere\">Elsewhere</a>");
+        catalog.append("</body></html>");
+
+        server = new StubServer("catalog");
+        server.route("/robots.txt", "text/plain", "User-agent: *\nDisallow: /product/private\n"
+                .getBytes(StandardCharsets.UTF_8));
+        server.route("/catalog", "text/html; charset=utf-8", catalog.toString().getBytes(StandardCharsets.UTF_8));
+        server.route("/product/", "text/html; charset=utf-8", productPage.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @AfterEach
+    void stopServer() {
+        server.close();
+    }
+
+    @Test
+    void crawlsManyPagesConcurrentlyOnceEach() throws InterruptedException {
+        server.behavior(new StubServer.Behavior(Duration.ofMillis(100), 0));
+        CrawlScheduler.Settings settings = new CrawlScheduler.Settings("packt-book-bot", 1_000, 10_000, 3,
+                100_000, 10_000, Duration.ofSeconds(30), Duration.ofHours(24), Duration.ofMinutes(1));
+
+        CatalogCrawl.Result result = CatalogCrawl.crawl(settings, List.of(server.url("/catalog")));
+
+        CrawlScheduler.Stats stats = result.stats();
+        assertEquals(products, result.products().size());
+        assertEquals(products + 1, stats.fetched());
+        assertEquals(0, stats.failed());
+        assertEquals(1, stats.disallowed());
+        assertTrue(stats.duplicates() >= products, "duplicates: " + stats.duplicates());
+        // Robots.txt, the catalog and each product page, each fetched once.
+        assertEquals(products + 2, server.requests());
+        // With 100 ms of latency, requests have to overlap a lot for the crawl to finish in reasonable time.
+        assertTrue(stats.peakInFlight() >= 200, "peak in flight: " + stats.peakInFlight());
+
+        Set<List<String>> authors = result.products().stream()
+                .map(CatalogCrawl.Product::authors)
+                .collect(Collectors.toSet());
+        assertEquals(Set.of(List.of("Rohit Tamma", "Oleg Skulkin")), authors);
+    }
+
+    @Test
+    void stopsAtThePageLimit() throws InterruptedException {
+        CrawlScheduler.Settings settings = new CrawlScheduler.Settings("packt-book-bot", 64, 101, 3,
+                100_000, 10_000, Duration.ofSeconds(30), Duration.ofHours(24), Duration.ofMinutes(1));
+
+        CatalogCrawl.Result result = CatalogCrawl.crawl(settings, List.of(server.url("/catalog")));
+
+        assertEquals(100, result.products().size());
+        assertTrue(result.stats().dropped() > 0);
+    }
+
+    @Test
+    void triesAgainWhenRobotsTxtCouldNotBeFetched() throws InterruptedException {
+        // Fails the first requests, robots.txt among them, until one of them failed.
+        server.behavior(new StubServer.Behavior(Duration.ZERO, 1));
+        Thread recover = new Thread(() -> {
+            while (server.failures() == 0) {
+                Thread.onSpinWait();
+            }
+            server.behavior(new StubServer.Behavior(Duration.ZERO, 0));
+        });
+        recover.setDaemon(true);
+        recover.start();
+        CrawlScheduler.Settings settings = new CrawlScheduler.Settings("packt-book-bot", 64, 11, 3,
+                100_000, 10_000, Duration.ofSeconds(30), Duration.ofHours(24), Duration.ofMillis(200));
+
+        CatalogCrawl.Result result = CatalogCrawl.crawl(settings, List.of(server.url("/catalog")));
+
+        assertEquals(10, result.products().size());
+        assertEquals(0, result.stats().disallowed());
+        assertEquals(0, result.stats().failed());
+        assertEquals(1, server.failures());
+    }
+
+    @Test
+    void ignoresCrawlDelaysThatAreNotPositive() throws IOException, InterruptedException {
+        try (StubServer negativeDelay = new StubServer("catalog")) {
+            negativeDelay.route("/robots.txt", "text/plain", "User-agent: *\nCrawl-delay: -1\n"
+                    .getBytes(StandardCharsets.UTF_8));
+            negativeDelay.route("/catalog", "text/html; charset=utf-8",
+                    "<html><body><a href=\"/product/book-1/1\">Book</a></body></html>"
+                            .getBytes(StandardCharsets.UTF_8));
+            negativeDelay.route("/product/", "text/html; charset=utf-8", productPage.getBytes(StandardCharsets.UTF_8));
+
+            CatalogCrawl.Result result = CatalogCrawl.crawl(CrawlScheduler.Settings.defaults,
+                    List.of(negativeDelay.url("/catalog")));
+
+            assertEquals(1, result.products().size());
+            assertEquals(0, result.stats().failed());
+        }
+    }
+
+    @Test
+    void normalizesUrls() {
+        URI base = URI.create("http://Example.com:80/catalog/page-2");
+
+        assertEquals(URI.create("http://example.com/product/x/1"), CrawlScheduler.normalize(base, "/product/x/1#top"));
+        assertEquals(URI.create("http://example.com/catalog/page-3?sort=new"),
+                CrawlScheduler.normalize(base, "page-3?sort=new"));
+        assertEquals(URI.create("https://example.com/"), CrawlScheduler.normalize(null, "HTTPS://example.com:443"));
+        assertNull(CrawlScheduler.normalize(base, "mailto:someone@example.com"));
+    }
+}
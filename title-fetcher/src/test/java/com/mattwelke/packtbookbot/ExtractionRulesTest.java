@@ -0,0 +1,92 @@
+package com.mattwelke.packtbookbot;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.List;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ExtractionRulesTest {
+    private static final String page = """
+            <html><head><link rel="canonical" href="/product/x/1"></head><body>
+            <div class="date"><span>Publication date: Apr 2020</span><span>Pages: 400</span></div>
+            <h5 class="author">Rohit Tamma</h5>
+            <h5 class="author">Oleg &amp; Skulkin</h5>
+            </body></html>
+            """;
+
+    private static ExtractionRules.Values evaluate(String rulesJson) throws IOException {
+        ExtractionRules rules = ExtractionRules.parse(rulesJson);
+        return rules.evaluate(rules.extractor().extract(new StringReader(page)));
+    }
+
+    @Test
+    void fieldsSharingASelectorAreExtractedTogether() throws IOException {
+        ExtractionRules.Values values = evaluate("""
+                {
+                  "month": {"selector": "div.date", "pattern": "Publication date:\\\\s*(\\\\p{L}+)"},
+                  "year": {"selector": "div.date", "pattern": "Publication date:\\\\s*\\\\p{L}+\\\\s+(\\\\d{4})"},
+                  "pages": {"selector": "div.date", "pattern": "Pages: \\\\d+"}
+                }
+                """);
+
+        assertEquals(Optional.of("Apr"), values.first("month"));
+        assertEquals(Optional.of("2020"), values.first("year"));
+        assertEquals(Optional.of("Pages: 400"), values.first("pages"));
+    }
+
+    @Test
+    void takesTextHtmlOrAttributes() throws IOException {
+        ExtractionRules.Values values = evaluate("""
+                {
+                  "authorText": {"selector": "h5.author", "all": true},
+                  "authorHtml": {"selector": "h5.author", "value": "html", "all": true},
+                  "firstAuthor": {"selector": "h5.author"},
+                  "canonical": {"selector": "link[rel=canonical]", "value": "attr:href"}
+                }
+                """);
+
+        assertEquals(List.of("Rohit Tamma", "Oleg & Skulkin"), values.all("authorText"));
+        assertEquals(List.of("Rohit Tamma", "Oleg &amp; Skulkin"), values.all("authorHtml"));
+        assertEquals(List.of("Rohit Tamma"), values.all("firstAuthor"));
+        assertEquals(Optional.of("/product/x/1"), values.first("canonical"));
+    }
+
+    @Test
+    void valuesThePatternIsNotFoundInAreSkipped() throws IOException {
+        ExtractionRules.Values values = evaluate("""
+                {"isbn": {"selector": "div.date", "pattern": "ISBN: (\\\\d+)"}, "missing": {"selector": "h1"}}
+                """);
+
+        assertEquals(Optional.empty(), values.first("isbn"));
+        assertEquals(List.of(), values.all("missing"));
+    }
+
+    @Test
+    void singleValuedFieldsSkipElementsThePatternIsNotFoundIn() throws IOException {
+        ExtractionRules.Values values = evaluate("""
+                {
+                  "pageCount": {"selector": "span", "pattern": "Pages: (\\\\d+)"},
+                  "coAuthor": {"selector": "h5.author", "pattern": "^(\\\\p{L}+) &"},
+                  "firstAuthor": {"selector": "h5.author"}
+                }
+                """);
+
+        assertEquals(Optional.of("400"), values.first("pageCount"));
+        assertEquals(Optional.of("Oleg"), values.first("coAuthor"));
+        assertEquals(Optional.of("Rohit Tamma"), values.first("firstAuthor"));
+    }
+
+    @Test
+    void rejectsInvalidRules() {
+        assertThrows(IllegalArgumentException.class, () -> ExtractionRules.parse("{\"title\": {}}"));
+        assertThrows(IllegalArgumentException.class,
+                () -> ExtractionRules.parse("{\"title\": {\"selector\": \"h3\", \"value\": \"json\"}}"));
+        assertThrows(IllegalArgumentException.class,
+                () -> ExtractionRules.parse("{\"title\": {\"selector\": \"h3[id]\"}}"));
+    }
+}
@@ -4,6 +4,8 @@ import org.junit.jupiter.api.Test;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.List;
 
 class FreeLearningPageDataFetcherTest {
@@ -17,4 +19,15 @@ class FreeLearningPageDataFetcherTest {
     void parseAuthorsString1() {
         assertEquals(new Authors(List.of("John Doe"), true), FreeLearningPageDataFetcher.parseAuthorsString("John Doe and 1 more"));
     }
-}
\ No newline at end of file
+
+    @Test
+    void recordedPage() throws IOException {
+        try (InputStream in = getClass().getResourceAsStream("/fixtures/free-learning.html")) {
+            FreeLearningPageDataFetcher fetcher = new FreeLearningPageDataFetcher(in);
+
+            assertEquals("Practical Mobile Forensics - Fourth Edition", fetcher.title());
+            assertEquals(new PublicationDate("April", "2020"), fetcher.pubDate());
+            assertEquals(new Authors(List.of("Rohit Tamma", "Oleg Skulkin", "Heather Mahalik"), true), fetcher.authors());
+        }
+    }
+}
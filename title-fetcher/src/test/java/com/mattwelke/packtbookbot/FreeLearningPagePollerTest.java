@@ -0,0 +1,218 @@
+package com.mattwelke.packtbookbot;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class FreeLearningPagePollerTest {
+    private static final String title = "Practical Mobile Forensics - Fourth Edition";
+    private static final Instant afterRotation = Instant.parse("2023-04-02T00:01:00Z");
+
+    @TempDir
+    Path dir;
+
+    private HttpServer server;
+    private volatile String page;
+    private volatile String etag = "\"v1\"";
+    private final AtomicInteger fetches = new AtomicInteger();
+    private volatile RuntimeException fetchFailure;
+    /**
+     * The page the full fetch sees, when it's not the polled one.
+     */
+    private volatile String fetchedPage;
+    private final RecordingSink sink = new RecordingSink();
+
+    private static final class RecordingSink implements TitleDataSink {
+        final List<TitleData> shared = new CopyOnWriteArrayList<>();
+        volatile boolean failing;
+
+        @Override
+        public String name() {
+            return "recording";
+        }
+
+        @Override
+        public void share(TitleData data, java.time.LocalDate day) throws CouldNotShareDataException {
+            if (failing) {
+                throw new CouldNotShareDataException("Failing on purpose.");
+            }
+            shared.add(data);
+        }
+    }
+
+    @BeforeEach
+    void startServer() throws IOException {
+        try (InputStream in = getClass().getResourceAsStream("/fixtures/free-learning.html")) {
+            page = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            String currentEtag = etag;
+            exchange.getResponseHeaders().add("Content-Type", "text/html; charset=utf-8");
+            exchange.getResponseHeaders().add("ETag", currentEtag);
+            if (currentEtag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                exchange.sendResponseHeaders(304, -1);
+            } else {
+                byte[] body = page.getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                } catch (IOException ex) {
+                    // The poller stops reading once it has the fields it hashes.
+                }
+            }
+            exchange.close();
+        });
+        server.start();
+    }
+
+    @AfterEach
+    void stopServer() {
+        server.stop(0);
+    }
+
+    private FreeLearningPagePoller poller(Instant now) throws IOException {
+        String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/free-learning";
+        FreeLearningPagePoller.Fetch fetch = () -> {
+            fetches.incrementAndGet();
+            if (fetchFailure != null) {
+                throw fetchFailure;
+            }
+            FreeLearningPageDataFetcher fetcher;
+            String fetched = fetchedPage != null ? fetchedPage : page;
+            try (InputStream in = new java.io.ByteArrayInputStream(fetched.getBytes(StandardCharsets.UTF_8))) {
+                fetcher = new FreeLearningPageDataFetcher(in);
+            } catch (IOException ex) {
+                throw new CouldNotFetchException("Could not read the page.", ex);
+            }
+            return new TitleData(fetcher.title(), fetcher.pubDate(), Optional.empty(), fetcher.authors());
+        };
+        return new FreeLearningPagePoller(FreeLearningPagePoller.Settings.defaults, url, fetch, List.of(sink),
+                dir.resolve("poller.properties"), Clock.fixed(now, ZoneOffset.UTC));
+    }
+
+    @Test
+    void sharesOnlyNewBooks() throws IOException {
+        try (FreeLearningPagePoller poller = poller(afterRotation)) {
+            assertEquals(FreeLearningPagePoller.Outcome.CHANGED, poller.poll());
+            assertEquals(FreeLearningPagePoller.Outcome.NOT_MODIFIED, poller.poll());
+
+            // A new ETag for the same book, like when only the page's markup changed.
+            etag = "\"v2\"";
+            page = page.replace("</body>", "<p>Ad</p></body>");
+            assertEquals(FreeLearningPagePoller.Outcome.UNCHANGED, poller.poll());
+
+            etag = "\"v3\"";
+            page = page.replace(title, "Mastering Java 17");
+            assertEquals(FreeLearningPagePoller.Outcome.CHANGED, poller.poll());
+
+            assertEquals(new FreeLearningPagePoller.Stats(4, 1, 1, 2, 0), poller.stats());
+            assertEquals(2, fetches.get());
+            assertEquals(List.of(title, "Mastering Java 17"), sink.shared.stream().map(TitleData::title).toList());
+        }
+    }
+
+    @Test
+    void doesNotShareABookAgainAfterRestarting() throws IOException {
+        try (FreeLearningPagePoller poller = poller(afterRotation)) {
+            assertEquals(FreeLearningPagePoller.Outcome.CHANGED, poller.poll());
+        }
+        try (FreeLearningPagePoller poller = poller(afterRotation.plusSeconds(60))) {
+            assertEquals(FreeLearningPagePoller.Outcome.UNCHANGED, poller.poll());
+            // The book was seen since the rotation, so there's no need to keep polling at the shortest interval.
+            assertEquals(Duration.ofMinutes(5), poller.interval(afterRotation.plusSeconds(60)));
+        }
+        assertEquals(1, sink.shared.size());
+    }
+
+    @Test
+    void failsWhenTheFullFetchFindsAnotherBook() throws IOException {
+        try (FreeLearningPagePoller poller = poller(afterRotation)) {
+            // Like a CDN node still serving yesterday's book to the full fetch.
+            fetchedPage = page.replace(title, "Mastering Java 17");
+            assertEquals(FreeLearningPagePoller.Outcome.FAILED, poller.poll());
+            assertEquals(List.of(), sink.shared);
+
+            fetchedPage = null;
+            assertEquals(FreeLearningPagePoller.Outcome.CHANGED, poller.poll());
+            assertEquals(List.of(title), sink.shared.stream().map(TitleData::title).toList());
+        }
+    }
+
+    @Test
+    void triesAgainWhenASinkFails() throws IOException {
+        sink.failing = true;
+        try (FreeLearningPagePoller poller = poller(afterRotation)) {
+            assertEquals(FreeLearningPagePoller.Outcome.FAILED, poller.poll());
+
+            sink.failing = false;
+            // The page wasn't modified, but its book wasn't shared, so the poll must download it again.
+            assertEquals(FreeLearningPagePoller.Outcome.CHANGED, poller.poll());
+            assertEquals(1, sink.shared.size());
+        }
+    }
+
+    @Test
+    void keepsPollingAfterAnUnexpectedException() throws IOException {
+        fetchFailure = new IllegalStateException("Bug on purpose.");
+        try (FreeLearningPagePoller poller = poller(afterRotation)) {
+            assertEquals(FreeLearningPagePoller.Outcome.FAILED, poller.poll());
+
+            fetchFailure = null;
+            assertEquals(FreeLearningPagePoller.Outcome.CHANGED, poller.poll());
+            assertEquals(new FreeLearningPagePoller.Stats(2, 0, 0, 1, 1), poller.stats());
+        }
+    }
+
+    @Test
+    void pollsMostOftenAroundTheRotation() throws IOException {
+        try (FreeLearningPagePoller poller = poller(afterRotation)) {
+            Instant midnight = Instant.parse("2023-04-02T00:00:00Z");
+
+            // Until the new book is seen, for up to 30 minutes after the rotation.
+            assertEquals(Duration.ofSeconds(2), poller.interval(midnight.plusSeconds(60)));
+            assertEquals(Duration.ofSeconds(2), poller.interval(midnight.plus(Duration.ofMinutes(29))));
+
+            // Far from the rotation, a tenth of the time until the next one, up to 5 minutes.
+            assertEquals(Duration.ofMinutes(5), poller.interval(midnight.plus(Duration.ofHours(12))));
+            assertEquals(Duration.ofMinutes(1), poller.interval(Instant.parse("2023-04-02T23:48:00Z")));
+
+            // Within 2 minutes before the rotation.
+            assertEquals(Duration.ofSeconds(2), poller.interval(Instant.parse("2023-04-02T23:59:00Z")));
+
+            poller.poll();
+            assertEquals(Duration.ofMinutes(5), poller.interval(midnight.plus(Duration.ofMinutes(10))));
+        }
+    }
+
+    @Test
+    void backsOffAfterFailures() throws IOException {
+        server.stop(0);
+        try (FreeLearningPagePoller poller = poller(afterRotation)) {
+            Instant midnight = Instant.parse("2023-04-02T00:00:00Z");
+            for (int i = 0; i < 3; i++) {
+                assertEquals(FreeLearningPagePoller.Outcome.FAILED, poller.poll());
+            }
+            assertEquals(Duration.ofSeconds(16), poller.interval(midnight.plusSeconds(60)));
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package com.mattwelke.packtbookbot;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+class HttpCacheTest {
+    private static final byte[] page = "<html><body><h3>Title</h3></body></html>".getBytes(StandardCharsets.UTF_8);
+
+    @TempDir
+    Path dir;
+
+    private HttpServer server;
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger notModified = new AtomicInteger();
+
+    @BeforeEach
+    void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            requests.incrementAndGet();
+            exchange.getResponseHeaders().add("Content-Type", "text/html; charset=utf-8");
+            exchange.getResponseHeaders().add("ETag", "\"v1\"");
+            if ("\"v1\"".equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                notModified.incrementAndGet();
+                exchange.sendResponseHeaders(304, -1);
+            } else {
+                exchange.sendResponseHeaders(200, page.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(page);
+                }
+            }
+            exchange.close();
+        });
+        server.start();
+    }
+
+    @AfterEach
+    void stopServer() {
+        server.stop(0);
+    }
+
+    private String url(String path) {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + path;
+    }
+
+    @Test
+    void revalidatesWithETag() throws IOException {
+        HttpCache cache = new HttpCache(dir, 1024 * 1024);
+
+        HttpCache.Page first = cache.get(url("/free-learning"), Duration.ZERO);
+        HttpCache.Page second = cache.get(url("/free-learning"), Duration.ZERO);
+
+        assertFalse(first.fromCache());
+        assertTrue(second.fromCache());
+        assertArrayEquals(page, second.body());
+        assertEquals(2, requests.get());
+        assertEquals(1, notModified.get());
+
+        HttpCache.Stats stats = cache.stats();
+        assertEquals(1, stats.hits());
+        assertEquals(1, stats.misses());
+        assertEquals(1, stats.revalidations());
+        assertEquals(page.length, stats.bytesSaved());
+    }
+
+    @Test
+    void freshPagesSkipTheNetwork() throws IOException {
+        HttpCache cache = new HttpCache(dir, 1024 * 1024);
+        cache.get(url("/product/1"), Duration.ofDays(1));
+
+        // A new instance over the same directory, like a new container picking up the cache.
+        HttpCache reopened = new HttpCache(dir, 1024 * 1024);
+        HttpCache.Page page = reopened.get(url("/product/1"), Duration.ofDays(1));
+
+        assertTrue(page.fromCache());
+        assertEquals(1, requests.get());
+        assertEquals(1, reopened.stats().entries());
+    }
+
+    @Test
+    void evictsLeastRecentlyUsed() throws IOException {
+        HttpCache cache = new HttpCache(dir, page.length * 2L);
+        cache.get(url("/product/1"), Duration.ofDays(1));
+        cache.get(url("/product/2"), Duration.ofDays(1));
+        cache.get(url("/product/1"), Duration.ofDays(1));
+        cache.get(url("/product/3"), Duration.ofDays(1));
+
+        assertEquals(1, cache.stats().evictions());
+        assertEquals(2, cache.stats().entries());
+
+        // Product 2 was the least recently used, so it's the one downloaded again.
+        requests.set(0);
+        assertTrue(cache.get(url("/product/1"), Duration.ofDays(1)).fromCache());
+        assertFalse(cache.get(url("/product/2"), Duration.ofDays(1)).fromCache());
+        assertEquals(1, requests.get());
+    }
+
+    @Test
+    void downloadsAgainWhenMetadataIsCorrupt() throws IOException {
+        HttpCache cache = new HttpCache(dir, 1024 * 1024);
+        cache.get(url("/product/1"), Duration.ofDays(1));
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path meta : (Iterable<Path>) files.filter(f -> f.toString().endsWith(".meta"))::iterator) {
+                Files.writeString(meta, Files.readString(meta).replaceAll("storedAt=\\d+", "storedAt=yesterday"));
+            }
+        }
+
+        HttpCache.Page page = cache.get(url("/product/1"), Duration.ofDays(1));
+
+        assertFalse(page.fromCache());
+        assertArrayEquals(HttpCacheTest.page, page.body());
+        assertEquals(2, requests.get());
+        assertEquals(0, notModified.get());
+    }
+}
@@ -0,0 +1,157 @@
+package com.mattwelke.packtbookbot;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class OutboundFetchPolicyTest {
+    private static final String name = "search";
+
+    private static OutboundFetchPolicy policy(Duration initialTimeout, Duration initialHedgeDelay) {
+        return policy(initialTimeout, initialHedgeDelay, Duration.ofMinutes(1));
+    }
+
+    private static OutboundFetchPolicy policy(Duration initialTimeout, Duration initialHedgeDelay,
+                                              Duration openDuration) {
+        return new OutboundFetchPolicy("example.com", new OutboundFetchPolicy.Settings(initialTimeout,
+                Duration.ofMillis(200), Duration.ofSeconds(2), 3, initialHedgeDelay, Duration.ofMillis(20), 8,
+                new CircuitBreaker.Settings(2, openDuration, Duration.ofMinutes(5))));
+    }
+
+    @Test
+    void hedgesSlowFetch() throws Exception {
+        OutboundFetchPolicy policy = policy(Duration.ofSeconds(5), Duration.ofMillis(50));
+        AtomicInteger attempts = new AtomicInteger();
+        InvocationMetrics metrics = new InvocationMetrics();
+
+        long start = System.nanoTime();
+        String result = call(metrics, () -> policy.fetch(name, timeout -> {
+            if (attempts.incrementAndGet() == 1) {
+                // Only ends when the fetch cancels it.
+                Thread.sleep(10_000);
+            }
+            return "hedge";
+        }));
+
+        assertEquals("hedge", result);
+        assertTrue(System.nanoTime() - start < 5_000_000_000L);
+        assertEquals(2, attempts.get());
+        assertEquals(1, policy.stats().hedges());
+        assertEquals(Map.of("searchHedges", 1L), metrics.eventCounts());
+    }
+
+    @Test
+    void timesOutAndTripsBreaker() throws Exception {
+        OutboundFetchPolicy policy = policy(Duration.ofMillis(100), Duration.ofSeconds(1));
+        AtomicInteger attempts = new AtomicInteger();
+        InvocationMetrics metrics = new InvocationMetrics();
+        OutboundFetchPolicy.Fetch<String> slow = timeout -> {
+            attempts.incrementAndGet();
+            Thread.sleep(10_000);
+            return "slow";
+        };
+
+        for (int i = 0; i < 2; i++) {
+            assertThrows(CouldNotFetchException.class, () -> call(metrics, () -> policy.fetch(name, slow)));
+        }
+        long start = System.nanoTime();
+        assertThrows(CouldNotFetchException.class, () -> call(metrics, () -> policy.fetch(name, slow)));
+
+        // Rejected without trying.
+        assertTrue(System.nanoTime() - start < 100_000_000L);
+        assertEquals(2, attempts.get());
+        assertEquals(CircuitBreaker.State.OPEN, policy.stats().breaker().state());
+        assertEquals(Map.of("searchTimeouts", 2L, "searchBreakerTrips", 1L, "searchBreakerRejections", 1L),
+                metrics.eventCounts());
+    }
+
+    @Test
+    void tripsBreakerOnIoErrors() {
+        OutboundFetchPolicy policy = policy(Duration.ofSeconds(1), Duration.ofSeconds(1));
+
+        for (int i = 0; i < 2; i++) {
+            assertThrows(CouldNotFetchException.class, () -> policy.fetch(name, timeout -> {
+                throw new IOException("HTTP error fetching URL. Status=429");
+            }));
+        }
+
+        assertEquals(CircuitBreaker.State.OPEN, policy.stats().breaker().state());
+    }
+
+    @Test
+    void interruptedProbeDoesNotLeaveBreakerHalfOpen() throws Exception {
+        OutboundFetchPolicy policy = policy(Duration.ofSeconds(5), Duration.ofSeconds(5), Duration.ofMillis(50));
+        for (int i = 0; i < 2; i++) {
+            assertThrows(CouldNotFetchException.class, () -> policy.fetch(name, timeout -> {
+                throw new IOException("HTTP error fetching URL. Status=429");
+            }));
+        }
+        Thread.sleep(100);
+        CountDownLatch probing = new CountDownLatch(1);
+        Thread prober = new Thread(() -> {
+            try {
+                policy.fetch(name, timeout -> {
+                    probing.countDown();
+                    Thread.sleep(10_000);
+                    return "slow";
+                });
+            } catch (CouldNotFetchException | InterruptedException ex) {
+                // Expected, like a stage cancelled at the deadline.
+            }
+        });
+        prober.start();
+        assertTrue(probing.await(5, TimeUnit.SECONDS));
+        assertEquals(CircuitBreaker.State.HALF_OPEN, policy.stats().breaker().state());
+
+        prober.interrupt();
+        prober.join(5_000);
+
+        assertEquals(CircuitBreaker.State.OPEN, policy.stats().breaker().state());
+        assertEquals("probe", policy.fetch(name, timeout -> "probe"));
+        assertEquals(CircuitBreaker.State.CLOSED, policy.stats().breaker().state());
+    }
+
+    @Test
+    void unusableAnswerDoesNotTripBreaker() {
+        OutboundFetchPolicy policy = policy(Duration.ofSeconds(1), Duration.ofSeconds(1));
+        CouldNotFetchException unusable = new CouldNotFetchException("No usable result.");
+
+        for (int i = 0; i < 3; i++) {
+            assertSame(unusable, assertThrows(CouldNotFetchException.class, () -> policy.fetch(name, timeout -> {
+                throw unusable;
+            })));
+        }
+
+        assertEquals(CircuitBreaker.State.CLOSED, policy.stats().breaker().state());
+    }
+
+    @Test
+    void adaptsTimeoutAndHedgeDelayToLatency() throws Exception {
+        OutboundFetchPolicy policy = policy(Duration.ofSeconds(1), Duration.ofMillis(500));
+        assertEquals(Duration.ofSeconds(1), policy.timeout());
+        assertEquals(Duration.ofMillis(500), policy.hedgeDelay());
+
+        for (int i = 0; i < 8; i++) {
+            policy.fetch(name, timeout -> "fast");
+        }
+
+        // Fast fetches bring both down to their minimums.
+        assertEquals(Duration.ofMillis(200), policy.timeout());
+        assertEquals(Duration.ofMillis(20), policy.hedgeDelay());
+    }
+
+    private static <T> T call(InvocationMetrics metrics, Callable<T> work) throws Exception {
+        return metrics.bind(work).call();
+    }
+}
@@ -0,0 +1,89 @@
+package com.mattwelke.packtbookbot;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.Path;
+import java.util.Optional;
+
+class ProductPageIndexTest {
+    private static final String fourthEdition =
+            "https://www.packtpub.com/product/practical-mobile-forensics-fourth-edition/9781838647520";
+    private static final String thirdEdition =
+            "https://www.packtpub.com/product/practical-mobile-forensics-third-edition/9781788839198";
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void keysByYearMonthAcrossEditionSuffixes() throws IOException {
+        ProductPageIndex index = new ProductPageIndex(dir.resolve("index"));
+        index.put("Practical Mobile Forensics - Fourth Edition", new PublicationDate("April", "2020"), fourthEdition);
+        index.put("Practical Mobile Forensics - Third Edition", new PublicationDate("January", "2018"), thirdEdition);
+
+        assertEquals(Optional.of(fourthEdition),
+                index.lookup("Practical Mobile Forensics", new PublicationDate("April", "2020")));
+        assertEquals(Optional.of(thirdEdition),
+                index.lookup("Practical Mobile Forensics - Third Edition", new PublicationDate("January", "2018")));
+        assertEquals(Optional.empty(), index.lookup("Practical Mobile Forensics", new PublicationDate("May", "2021")));
+        assertEquals(2, index.stats().hits());
+        assertEquals(1, index.stats().misses());
+    }
+
+    @Test
+    void usesUndatedKeyForDatesWithoutYearMonth() throws IOException {
+        ProductPageIndex index = new ProductPageIndex(dir.resolve("index"));
+        PublicationDate abbreviated = new PublicationDate("Sept", "2020");
+        index.put("Practical Mobile Forensics - Third Edition", abbreviated, thirdEdition);
+        index.put("Practical Mobile Forensics - Fourth Edition", new PublicationDate("April", "2020"), fourthEdition);
+
+        assertEquals(Optional.of(thirdEdition), index.lookup("Practical Mobile Forensics - Third Edition", abbreviated));
+        assertEquals(Optional.of(fourthEdition),
+                index.lookup("Practical Mobile Forensics - Fourth Edition", abbreviated));
+        assertEquals(Optional.empty(), index.lookup("Practical Mobile Forensics", abbreviated));
+    }
+
+    @Test
+    void persistsAndGrows() throws IOException {
+        Path file = dir.resolve("index");
+        ProductPageIndex index = new ProductPageIndex(file);
+        for (int i = 0; i < 5000; i++) {
+            index.put("Title " + i, PublicationDate.ofYearMonth(202001 + i % 12), "https://example.com/" + i);
+        }
+        index.flush();
+
+        ProductPageIndex reopened = new ProductPageIndex(file);
+        assertEquals(10000, reopened.stats().entries());
+        for (int i = 0; i < 5000; i++) {
+            assertEquals(Optional.of("https://example.com/" + i),
+                    reopened.lookup("Title " + i, PublicationDate.ofYearMonth(202001 + i % 12)));
+        }
+    }
+
+    @Test
+    void importsSitemapAndTsv() throws IOException {
+        ProductPageIndex index = new ProductPageIndex(dir.resolve("index"));
+        String sitemap = """
+                <?xml version="1.0" encoding="UTF-8"?>
+                <urlset xmlns="http://www.sitemaps.org/schemas/sitemap/0.9">
+                  <url><loc>https://www.packtpub.com/free-learning</loc></url>
+                  <url><loc>%s</loc></url>
+                </urlset>
+                """.formatted(fourthEdition);
+        String tsv = "# title\tpublication date\turl\nPractical Mobile Forensics - Third Edition\t2018-01\t"
+                + thirdEdition + "\n";
+
+        assertEquals(1, index.importSitemap(new StringReader(sitemap)));
+        assertEquals(1, index.importTsv(new StringReader(tsv)));
+
+        // The sitemap has no dates, so its URL is found by the complete title with any date.
+        assertEquals(Optional.of(fourthEdition),
+                index.lookup("Practical Mobile Forensics - Fourth Edition", new PublicationDate("May", "2020")));
+        assertEquals(Optional.of(thirdEdition),
+                index.lookup("Practical Mobile Forensics", new PublicationDate("January", "2018")));
+    }
+}
@@ -0,0 +1,60 @@
+package com.mattwelke.packtbookbot;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RobotsRulesTest {
+    private static final String robotsTxt = """
+            # Everyone else
+            User-agent: *
+            Disallow: /
+
+            User-agent: packt-book-bot
+            User-agent: other-bot
+            Disallow: /checkout
+            Disallow: /*.pdf$
+            Allow: /checkout/free-learning
+            Crawl-delay: 0.5
+
+            User-agent: packt
+            Disallow: /product
+            """;
+
+    @Test
+    void usesTheMostSpecificGroupForTheCrawler() {
+        RobotsRules rules = RobotsRules.parse(robotsTxt, "packt-book-bot");
+
+        assertTrue(rules.allows("/product/x/123"));
+        assertFalse(rules.allows("/checkout/cart"));
+        assertEquals(Optional.of(Duration.ofMillis(500)), rules.crawlDelay());
+    }
+
+    @Test
+    void fallsBackToTheWildcardGroup() {
+        RobotsRules rules = RobotsRules.parse(robotsTxt, "some-other-crawler");
+
+        assertFalse(rules.allows("/product/x/123"));
+        assertEquals(Optional.empty(), rules.crawlDelay());
+    }
+
+    @Test
+    void longestRuleWinsAndWildcardsMatch() {
+        RobotsRules rules = RobotsRules.parse(robotsTxt, "packt-book-bot");
+
+        assertTrue(rules.allows("/checkout/free-learning?x=1"));
+        assertFalse(rules.allows("/files/book.pdf"));
+        assertTrue(rules.allows("/files/book.pdf?download=1"));
+    }
+
+    @Test
+    void allowsEverythingWithoutRules() {
+        assertTrue(RobotsRules.parse("", "packt-book-bot").allows("/anything"));
+        assertFalse(RobotsRules.disallowAll.allows("/"));
+    }
+}
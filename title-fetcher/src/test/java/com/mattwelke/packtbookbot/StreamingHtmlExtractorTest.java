@@ -0,0 +1,91 @@
+package com.mattwelke.packtbookbot;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.List;
+import java.util.Map;
+
+class StreamingHtmlExtractorTest {
+    private static final String page = """
+            <!DOCTYPE html>
+            <html><head><title>a <h3 class="x">not a tag</h3></title>
+            <script>if (a < b) { document.write("<h3 class='product-info__title'>fake</h3>"); }</script>
+            <link rel="canonical" href="/product/book/123"></head>
+            <body><!-- <h3 class="product-info__title">commented</h3> -->
+            <div><p>unclosed paragraph<h3 class="big product-info__title">Free eBook - A &amp; B</h3></div>
+            <a href="https://example.com/?a=1&amp;b=2"><h3>Result <b>one</b></h3></a>
+            <h5 class="accordion__title"> First </h5><h5 class="accordion__title">Second</h5>
+            </body></html>
+            """;
+
+    @Test
+    void extractsMatchesSkippingScriptsAndComments() throws IOException {
+        StreamingHtmlExtractor.Extraction extraction = new StreamingHtmlExtractor(List.of(
+                StreamingHtmlExtractor.Rule.first("title", "h3.product-info__title"),
+                StreamingHtmlExtractor.Rule.first("canonical", "link[rel=canonical]"),
+                StreamingHtmlExtractor.Rule.all("authors", "h5.accordion__title")))
+                .extract(new StringReader(page));
+
+        assertEquals("Free eBook - A & B", extraction.first("title").orElseThrow().text());
+        assertEquals("/product/book/123", extraction.first("canonical").orElseThrow().attributes().get("href"));
+        assertEquals(List.of("First", "Second"),
+                extraction.all("authors").stream().map(m -> m.html().trim()).toList());
+    }
+
+    @Test
+    void endsCommentsAtAnyRunOfDashesBeforeTheBracket() throws IOException {
+        StreamingHtmlExtractor.Extraction extraction = new StreamingHtmlExtractor(List.of(
+                StreamingHtmlExtractor.Rule.all("titles", "h3")))
+                .extract(new StringReader("<!-- x ---><h3>One</h3><!-- - -> --><h3>Two</h3>"));
+
+        assertEquals(List.of("One", "Two"), extraction.all("titles").stream().map(m -> m.text()).toList());
+    }
+
+    @Test
+    void keepsParentAttributesAndAppliesFilters() throws IOException {
+        StreamingHtmlExtractor.Extraction extraction = new StreamingHtmlExtractor(List.of(
+                new StreamingHtmlExtractor.Rule("result", StreamingHtmlExtractor.Selector.parse("h3"), 1,
+                        m -> m.text().startsWith("Result"))))
+                .extract(new StringReader(page));
+
+        StreamingHtmlExtractor.Match result = extraction.first("result").orElseThrow();
+        assertEquals("Result <b>one</b>", result.innerHtml());
+        assertEquals(Map.of("href", "https://example.com/?a=1&b=2"), result.parentAttributes());
+    }
+
+    @Test
+    void stopsReadingOnceEveryRuleIsSatisfied() throws IOException {
+        CountingReader reader = new CountingReader(page + "x".repeat(100_000));
+
+        new StreamingHtmlExtractor(List.of(StreamingHtmlExtractor.Rule.first("title", "h3.product-info__title")))
+                .extract(reader);
+
+        assertTrue(reader.read < 20_000, "read " + reader.read + " chars");
+    }
+
+    private static final class CountingReader extends Reader {
+        private final Reader delegate;
+        private long read;
+
+        private CountingReader(String s) {
+            delegate = new StringReader(s);
+        }
+
+        @Override
+        public int read(char[] buffer, int offset, int length) throws IOException {
+            int n = delegate.read(buffer, offset, Math.min(length, 1024));
+            read += Math.max(n, 0);
+            return n;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.mattwelke.packtbookbot;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the orchestrator with stand-in stages, which serve the recorded free learning page, and either answer right away
+ * or block until they're cancelled.
+ */
+class TitleFetchOrchestratorTest {
+    private static final String productPageUrl =
+            "https://www.packtpub.com/product/practical-mobile-forensics-fourth-edition/9781838647520";
+    private static final List<String> allAuthors = List.of("Rohit Tamma", "Oleg Skulkin", "Heather Mahalik",
+            "Satish Bommisetty");
+
+    /**
+     * Counted down by a blocked stage when it's interrupted.
+     */
+    private final CountDownLatch cancelled = new CountDownLatch(1);
+
+    private static FreeLearningPageDataFetcher freeLearningPage() throws IOException {
+        try (InputStream in = TitleFetchOrchestratorTest.class.getResourceAsStream("/fixtures/free-learning.html")) {
+            return new FreeLearningPageDataFetcher(in);
+        }
+    }
+
+    private <T> T blockUntilCancelled() throws InterruptedException {
+        try {
+            new CountDownLatch(1).await();
+            throw new AssertionError("unreachable");
+        } catch (InterruptedException ex) {
+            cancelled.countDown();
+            throw ex;
+        }
+    }
+
+    private final class Stages implements TitleFetchOrchestrator.Stages {
+        private final boolean slowFreeLearningPage;
+        private final boolean slowUrl;
+        private final boolean slowAuthors;
+
+        Stages(boolean slowFreeLearningPage, boolean slowUrl, boolean slowAuthors) {
+            this.slowFreeLearningPage = slowFreeLearningPage;
+            this.slowUrl = slowUrl;
+            this.slowAuthors = slowAuthors;
+        }
+
+        @Override
+        public FreeLearningPageDataFetcher freeLearningPage() throws Exception {
+            return slowFreeLearningPage ? blockUntilCancelled() : TitleFetchOrchestratorTest.freeLearningPage();
+        }
+
+        @Override
+        public String productPageUrl(String title, PublicationDate pubDate) throws Exception {
+            return slowUrl ? blockUntilCancelled() : productPageUrl;
+        }
+
+        @Override
+        public List<String> productPageAuthors(String url) throws Exception {
+            return slowAuthors ? blockUntilCancelled() : allAuthors;
+        }
+    }
+
+    private TitleFetchOrchestrator.Result fetch(boolean slowFreeLearningPage, boolean slowUrl, boolean slowAuthors)
+            throws CouldNotFetchException {
+        return new TitleFetchOrchestrator(new Stages(slowFreeLearningPage, slowUrl, slowAuthors))
+                .fetch(Duration.ofMillis(500));
+    }
+
+    @Test
+    void returnsCompleteDataWhenStagesFinishInTime() throws Exception {
+        TitleFetchOrchestrator.Result result = fetch(false, false, false);
+
+        assertFalse(result.partial());
+        assertEquals("Practical Mobile Forensics - Fourth Edition", result.data().title());
+        assertEquals(Optional.of(productPageUrl), result.data().productPageUrl());
+        assertEquals(new Authors(allAuthors, false), result.data().authors());
+        assertTrue(result.stageWallTimes().keySet().containsAll(List.of("freeLearningPage", "parseFreeLearningPage",
+                "productPageUrl", "productPageAuthors")));
+    }
+
+    @Test
+    void returnsPartialDataWithoutUrlWhenLookupMissesDeadline() throws Exception {
+        TitleFetchOrchestrator.Result result = fetch(false, true, false);
+
+        assertTrue(result.partial());
+        assertEquals("Practical Mobile Forensics - Fourth Edition", result.data().title());
+        assertEquals(new PublicationDate("April", "2020"), result.data().pubDate());
+        // No URL, and the authors from the free learning page, still marked as not all of them.
+        assertEquals(Optional.empty(), result.data().productPageUrl());
+        assertEquals(new Authors(List.of("Rohit Tamma", "Oleg Skulkin", "Heather Mahalik"), true),
+                result.data().authors());
+        assertFalse(result.stageWallTimes().containsKey("productPageAuthors"));
+        assertTrue(cancelled.await(5, TimeUnit.SECONDS), "lookup was not cancelled");
+    }
+
+    @Test
+    void returnsPartialAuthorsWhenProductPageMissesDeadline() throws Exception {
+        TitleFetchOrchestrator.Result result = fetch(false, false, true);
+
+        assertTrue(result.partial());
+        assertEquals(Optional.of(productPageUrl), result.data().productPageUrl());
+        assertTrue(result.data().authors().more());
+        assertTrue(cancelled.await(5, TimeUnit.SECONDS), "product page fetch was not cancelled");
+    }
+
+    @Test
+    void failsWhenFreeLearningPageMissesDeadline() throws Exception {
+        assertThrows(CouldNotFetchException.class, () -> fetch(true, false, false));
+        assertTrue(cancelled.await(5, TimeUnit.SECONDS), "free learning page fetch was not cancelled");
+    }
+}
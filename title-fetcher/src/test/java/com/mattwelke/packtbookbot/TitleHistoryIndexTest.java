@@ -0,0 +1,126 @@
+package com.mattwelke.packtbookbot;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Optional;
+
+class TitleHistoryIndexTest {
+    private static final LocalDate day = LocalDate.of(2023, 4, 1);
+
+    @TempDir
+    Path dir;
+
+    private static TitleData title(String title, String... authors) {
+        return new TitleData(title, new PublicationDate("April", "2020"), Optional.empty(),
+                new Authors(List.of(authors), false));
+    }
+
+    private static List<String> titles(List<TitleHistoryIndex.Entry> entries) {
+        return entries.stream().map(entry -> entry.data().title()).toList();
+    }
+
+    private static TitleHistoryIndex index() {
+        TitleHistoryIndex index = new TitleHistoryIndex();
+        index.put(title("Practical Mobile Forensics - Fourth Edition", "Rohit Tamma", "Oleg Skulkin"), day);
+        index.put(title("Learning Kotlin", "Stephen Samuel"), day.plusDays(1));
+        index.put(title("Mastering Mobile Forensics", "Soufiane Tahiri"), day.plusDays(2));
+        index.put(title("Practical Mobile Forensics - Fourth Edition", "Rohit Tamma", "Oleg Skulkin"),
+                day.plusDays(40));
+        return index;
+    }
+
+    @Test
+    void looksUpByDayAuthorAndTitle() {
+        TitleHistoryIndex index = index();
+
+        assertEquals("Learning Kotlin", index.onDay(day.plusDays(1)).orElseThrow().data().title());
+        assertTrue(index.onDay(day.plusDays(3)).isEmpty());
+        assertTrue(index.onDay(day.minusDays(1000)).isEmpty());
+        assertEquals(List.of("Learning Kotlin", "Mastering Mobile Forensics"),
+                titles(index.between(day.plusDays(1), day.plusDays(30))));
+
+        assertEquals(List.of(day, day.plusDays(40)),
+                index.byAuthor("oleg skulkin").stream().map(TitleHistoryIndex.Entry::day).toList());
+        assertEquals(day.plusDays(40),
+                index.lastFree("practical mobile forensics: fourth edition").orElseThrow().day());
+        assertTrue(index.lastFree("Practical Mobile Forensics").isEmpty());
+        assertEquals(new TitleHistoryIndex.Stats(4, 4, 8), index.stats());
+    }
+
+    @Test
+    void searchesByPrefix() {
+        TitleHistoryIndex index = index();
+
+        assertEquals(List.of("Practical Mobile Forensics - Fourth Edition", "Mastering Mobile Forensics",
+                "Practical Mobile Forensics - Fourth Edition"), titles(index.searchTitles("mobile foren", 10)));
+        assertEquals(List.of("Practical Mobile Forensics - Fourth Edition"),
+                titles(index.searchTitles("Practical", 1)));
+        assertTrue(index.searchTitles("kotlin mobile", 10).isEmpty());
+        assertEquals(List.of("Oleg Skulkin", "Soufiane Tahiri", "Stephen Samuel"), index.searchAuthors("s", 10));
+        assertEquals(List.of("Oleg Skulkin"), index.searchAuthors("SKUL", 10));
+    }
+
+    @Test
+    void replacesADaySharedAgain() {
+        TitleHistoryIndex index = index();
+        index.share(title("Learning Kotlin", "Stephen Samuel"), day.plusDays(1));
+        index.share(title("Learning Rust", "Vesa Kaihlavirta"), day.plusDays(1));
+        // A backfill of earlier days.
+        index.share(title("Learning Go", "Nathan Kozyra"), day.minusDays(2000));
+
+        assertEquals("Learning Rust", index.onDay(day.plusDays(1)).orElseThrow().data().title());
+        assertTrue(index.byAuthor("Stephen Samuel").isEmpty());
+        assertEquals(List.of("Learning Rust", "Learning Go"), titles(index.searchTitles("learning", 10)));
+        assertEquals("Practical Mobile Forensics - Fourth Edition",
+                index.onDay(day).orElseThrow().data().title());
+    }
+
+    @Test
+    void keepsPublicationDatesWithoutYearMonth() throws IOException {
+        Path file = dir.resolve("history.jsonl");
+        TitleData abbreviated = new TitleData("Learning Kotlin", new PublicationDate("Sept", "2020"), Optional.empty(),
+                new Authors(List.of("Stephen Samuel"), false));
+        try (FileTitleDataSink sink = new FileTitleDataSink(file)) {
+            sink.share(abbreviated, day);
+        } catch (CouldNotShareDataException ex) {
+            throw new IOException(ex);
+        }
+
+        TitleHistoryIndex index = TitleHistoryIndex.load(file);
+        index.share(title("Learning Rust", "Vesa Kaihlavirta"), day.plusDays(1));
+
+        assertEquals(abbreviated, index.onDay(day).orElseThrow().data());
+        assertEquals(new PublicationDate("April", "2020"), index.onDay(day.plusDays(1)).orElseThrow().data().pubDate());
+    }
+
+    @Test
+    void loadsExports() throws IOException {
+        Path file = dir.resolve("history.jsonl");
+        try (FileTitleDataSink sink = new FileTitleDataSink(file)) {
+            sink.share(title("Learning Kotlin", "Stephen Samuel"), day);
+        } catch (CouldNotShareDataException ex) {
+            throw new IOException(ex);
+        }
+        Files.writeString(file, """
+                {"day": "2023-04-02", "title": "Learning Rust", "publication_date": "2017-11-01", \
+                "authors": ["Vesa Kaihlavirta"], "authors_v2": {"names": ["Vesa Kaihlavirta"], "all_present": false}}
+                """, StandardOpenOption.APPEND);
+
+        TitleHistoryIndex index = TitleHistoryIndex.load(file);
+
+        assertEquals(List.of("Learning Kotlin", "Learning Rust"), titles(index.between(day, day.plusDays(1))));
+        TitleData rust = index.onDay(day.plusDays(1)).orElseThrow().data();
+        assertEquals(new PublicationDate("November", "2017"), rust.pubDate());
+        assertEquals(new Authors(List.of("Vesa Kaihlavirta"), true), rust.authors());
+    }
+}
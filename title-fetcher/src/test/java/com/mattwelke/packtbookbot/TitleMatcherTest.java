@@ -0,0 +1,69 @@
+package com.mattwelke.packtbookbot;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+
+class TitleMatcherTest {
+    private static final String catalog = """
+            # title\tpublication date\turl
+            Practical Mobile Forensics\t2014-07\thttps://www.packtpub.com/product/practical-mobile-forensics/9781783288311
+            Practical Mobile Forensics - Third Edition\t2018-01\thttps://www.packtpub.com/product/practical-mobile-forensics-third-edition/9781788839198
+            Practical Mobile Forensics - Fourth Edition\t2020-04\thttps://www.packtpub.com/product/practical-mobile-forensics-fourth-edition/9781838647520
+            Mastering Mobile Forensics\t2016-05\thttps://www.packtpub.com/product/mastering-mobile-forensics/9781785281068
+            """;
+
+    @Test
+    void prefersEditionAndDate() throws IOException {
+        TitleMatcher matcher = TitleMatcher.load(new StringReader(catalog));
+
+        assertEquals("https://www.packtpub.com/product/practical-mobile-forensics-fourth-edition/9781838647520",
+                matcher.best("Practical Mobile Forensics - Fourth Edition", 202004).orElseThrow().candidate().url());
+        // Without an edition, the publication date decides.
+        assertEquals("https://www.packtpub.com/product/practical-mobile-forensics-third-edition/9781788839198",
+                matcher.best("Practical Mobile Forensics", 201801).orElseThrow().candidate().url());
+    }
+
+    @Test
+    void toleratesPunctuationAndRejectsOtherBooks() throws IOException {
+        TitleMatcher matcher = TitleMatcher.load(new StringReader(catalog));
+
+        assertTrue(matcher.best("Mastering Mobile Forensics!", 0).isPresent());
+        assertEquals(Optional.empty(), matcher.best("Learning Kubernetes", 0));
+    }
+
+    @Test
+    void picksRightEditionFromRecordedGoogleResults() throws Exception {
+        try (InputStream in = getClass().getResourceAsStream("/fixtures/google-search.html")) {
+            // The third edition is listed before the fourth.
+            assertEquals("https://www.packtpub.com/product/practical-mobile-forensics-fourth-edition/9781838647520",
+                    ProductPageUrlFetcher.productPageUrl(new InputStreamReader(in, StandardCharsets.UTF_8),
+                            "Practical Mobile Forensics - Fourth Edition"));
+        }
+    }
+
+    @Test
+    void skipsGoogleResultsWithoutLinks() throws Exception {
+        String results = """
+                <div><h3>Practical Mobile Forensics - Fourth Edition</h3></div>
+                <a href="https://www.packtpub.com/product/practical-mobile-forensics-fourth-edition/9781838647520">\
+                <h3>Practical Mobile Forensics - Fourth Edition | Packt</h3></a>
+                """;
+
+        assertEquals("https://www.packtpub.com/product/practical-mobile-forensics-fourth-edition/9781838647520",
+                ProductPageUrlFetcher.productPageUrl(new StringReader(results),
+                        "Practical Mobile Forensics - Fourth Edition"));
+        assertThrows(CouldNotFetchException.class, () -> ProductPageUrlFetcher.productPageUrl(
+                new StringReader("<h3>Practical Mobile Forensics - Fourth Edition</h3>"),
+                "Practical Mobile Forensics - Fourth Edition"));
+    }
+}
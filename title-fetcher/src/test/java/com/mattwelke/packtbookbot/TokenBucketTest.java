@@ -0,0 +1,48 @@
+package com.mattwelke.packtbookbot;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class TokenBucketTest {
+    private final AtomicLong now = new AtomicLong();
+
+    @Test
+    void letsABurstGoAndThenSpacesRequestsOut() {
+        TokenBucket bucket = new TokenBucket(2, 3, now::get);
+
+        assertEquals(0, bucket.reserve());
+        assertEquals(0, bucket.reserve());
+        assertEquals(0, bucket.reserve());
+        // Reserved ahead of time, so each one waits half a second longer than the one before.
+        assertEquals(500_000_000L, bucket.reserve());
+        assertEquals(1_000_000_000L, bucket.reserve());
+    }
+
+    @Test
+    void refillsUpToTheBurstWhileIdle() {
+        TokenBucket bucket = new TokenBucket(2, 2, now::get);
+        bucket.reserve();
+        bucket.reserve();
+
+        now.addAndGet(60_000_000_000L);
+
+        assertEquals(0, bucket.reserve());
+        assertEquals(0, bucket.reserve());
+        assertEquals(500_000_000L, bucket.reserve());
+    }
+
+    @Test
+    void keepsReservedTokensWhenTheRateChanges() {
+        TokenBucket bucket = new TokenBucket(2, 1, now::get);
+        bucket.reserve();
+        bucket.reserve();
+
+        bucket.rate(1);
+
+        // Still a token behind, now paid back at one per second.
+        assertEquals(2_000_000_000L, bucket.reserve());
+    }
+}
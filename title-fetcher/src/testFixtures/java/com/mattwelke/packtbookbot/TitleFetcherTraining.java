@@ -0,0 +1,68 @@
+package com.mattwelke.packtbookbot;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.Map;
+
+/**
+ * Training run for the title fetcher's class data sharing archive. Serves the recorded pages from local stubs and
+ * invokes the action the way a cold container would, so that the archive holds the classes a real invocation loads.
+ * <p>
+ * Prints how long after the JVM started the first invocation finished, which the startup benchmark reads. Runs with
+ * the action's runtime class path followed by the test fixtures', so that the classes it loads from the action's jars
+ * can be archived for that runtime class path alone.
+ */
+class TitleFetcherTraining {
+    private static final String packtBaseUrl = "https://www.packtpub.com";
+
+    /**
+     * Runs the training.
+     *
+     * @param args The directory with the recorded free-learning.html, google-search.html and product-page.html, and
+     *             optionally how many invocations to run, 3 by default.
+     */
+    public static void main(String[] args) throws IOException {
+        Path fixtures = Path.of(args[0]);
+        int invocations = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+
+        try (StubServer packt = new StubServer("packt"); StubServer google = new StubServer("google")) {
+            packt.route("/free-learning", "text/html; charset=utf-8",
+                    Files.readAllBytes(fixtures.resolve("free-learning.html")));
+            packt.route("/product/", "text/html; charset=utf-8",
+                    Files.readAllBytes(fixtures.resolve("product-page.html")));
+            google.route("/search", "text/html; charset=utf-8", Files.readString(fixtures.resolve("google-search.html"))
+                    .replace(packtBaseUrl, packt.url("")).getBytes(StandardCharsets.UTF_8));
+
+            // Fresh state, so that the run goes through Google and the product page like a new container would.
+            Path stateDir = Files.createTempDirectory("packt-book-bot-training");
+            System.setProperty("packtbookbot.url.freeLearning", packt.url("/free-learning"));
+            System.setProperty("packtbookbot.url.googleSearch", google.url("/search"));
+            System.setProperty("packtbookbot.httpCache.dir", stateDir.resolve("http-cache").toString());
+            System.setProperty("packtbookbot.productPageIndex.file", stateDir.resolve("product-pages.idx").toString());
+
+            long invokeStart = System.nanoTime();
+            new TitleFetcherAction().invoke(Map.of());
+            printFirstInvoke(invokeStart);
+
+            for (int i = 1; i < invocations; i++) {
+                new TitleFetcherAction().invoke(Map.of());
+            }
+        }
+        // Exit even if a non-daemon thread is left running, so that the training run ends.
+        System.exit(0);
+    }
+
+    /**
+     * Prints how long the first invocation took, and how long after the JVM started it finished.
+     */
+    private static void printFirstInvoke(long invokeStartNanos) {
+        long invokeMillis = (System.nanoTime() - invokeStartNanos) / 1_000_000;
+        long sinceJvmStartMillis = ProcessHandle.current().info().startInstant()
+                .map(start -> Instant.now().toEpochMilli() - start.toEpochMilli())
+                .orElse(-1L);
+        System.out.println("firstInvokeMs=" + invokeMillis + " sinceJvmStartMs=" + sinceJvmStartMillis);
+    }
+}